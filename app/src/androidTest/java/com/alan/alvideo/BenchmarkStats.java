@@ -0,0 +1,41 @@
+package com.alan.alvideo;
+
+import java.util.Arrays;
+
+/**
+ * Shared by the benchmarks under androidTest.  They log their results instead of asserting
+ * anything, since the numbers depend entirely on the device.
+ */
+public final class BenchmarkStats {
+    /**
+     * Logcat tag for encoder and recording benchmarks.
+     */
+    public static final String ENCODER_TAG = "EncoderBenchmark";
+
+    /**
+     * Logcat tag for GL benchmarks: shader startup, filter frame times.
+     */
+    public static final String GL_TAG = "GlBenchmark";
+
+    private BenchmarkStats() {
+    }
+
+    /**
+     * Formats a set of durations in nanoseconds as mean, percentiles and extremes, in
+     * milliseconds.
+     */
+    public static String summarize(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long t : sorted) {
+            total += t;
+        }
+        return String.format("mean=%.2fms p50=%.2fms p95=%.2fms min=%.2fms max=%.2fms",
+                total / (double) sorted.length / 1e6,
+                sorted[sorted.length / 2] / 1e6,
+                sorted[(int) (sorted.length * 0.95)] / 1e6,
+                sorted[0] / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+}
@@ -0,0 +1,89 @@
+package com.alan.alvideo.gles;
+
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.alan.alvideo.BenchmarkStats;
+import com.alan.alvideo.filter.FilterGraph;
+import com.alan.alvideo.filter.FilterManager;
+import com.alan.alvideo.filter.FilterManager.FilterType;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures frame time through the BEAUTY_SHARPEN filter graph at 1080p with checkGlError()
+ * polling glGetError(), as debug builds do, and with the checks off, as in release builds.
+ * <p>
+ * Only meaningful in a debug build (the usual one for instrumentation tests); a release
+ * build never checks, and both rows come out the same.
+ * <p>
+ * Results go to logcat under BenchmarkStats#GL_TAG.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GlErrorCheckBenchmark {
+    private static final String TAG = BenchmarkStats.GL_TAG;
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int ROUNDS = 5;
+    private static final int FRAMES = 120;
+
+    @Test
+    public void frameTimeWithAndWithoutErrorChecks() {
+        EglCore eglCore = new EglCore(null, 0);
+        EGLSurface surface = eglCore.createOffscreenSurface(WIDTH, HEIGHT);
+        FramebufferPool pool = new FramebufferPool();
+        ProgramCache programCache = new ProgramCache();
+        FilterGraph graph = new FilterGraph(pool);
+        long[] checked = new long[ROUNDS];
+        long[] unchecked = new long[ROUNDS];
+        try {
+            eglCore.makeCurrent(surface);
+            int textureId = GLUtil.createExternalTextureObject();
+            graph.setPasses(FilterManager.createPasses(FilterType.BEAUTY_SHARPEN, programCache,
+                    pool));
+            graph.setSize(WIDTH, HEIGHT);
+            // Warm up: targets, shader caches, clocks.
+            runFrames(eglCore, surface, graph, textureId);
+
+            for (int i = 0; i < ROUNDS; i++) {
+                // Alternate, so thermal throttling hits both alike.
+                GLUtil.setErrorChecksEnabled(true);
+                checked[i] = runFrames(eglCore, surface, graph, textureId);
+                GLUtil.setErrorChecksEnabled(false);
+                unchecked[i] = runFrames(eglCore, surface, graph, textureId);
+            }
+            GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+        } finally {
+            GLUtil.setErrorChecksEnabled(true);
+            graph.release(true);
+            pool.release(true);
+            programCache.release(true);
+            eglCore.makeNothingCurrent();
+            eglCore.releaseSurface(surface);
+            eglCore.release();
+        }
+        Log.i(TAG, "filter frame time " + WIDTH + "x" + HEIGHT + " (debug build: " +
+                GLUtil.DEBUG_GL + ")");
+        Log.i(TAG, "with glGetError() checks: " + BenchmarkStats.summarize(checked));
+        Log.i(TAG, "without checks:           " + BenchmarkStats.summarize(unchecked));
+    }
+
+    /**
+     * Draws FRAMES frames, swapping after each, and returns the mean time per frame.  The
+     * GPU is only waited for at the end, so a check that stalls the pipeline shows up.
+     */
+    private static long runFrames(EglCore eglCore, EGLSurface surface, FilterGraph graph,
+                                  int textureId) {
+        long startNs = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            graph.draw(textureId, GLUtil.IDENTITY_MATRIX, WIDTH, HEIGHT);
+            eglCore.swapBuffers(surface);
+        }
+        GLES20.glFinish();
+        return (System.nanoTime() - startNs) / FRAMES;
+    }
+}
@@ -0,0 +1,102 @@
+package com.alan.alvideo.gles;
+
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.alan.alvideo.BenchmarkStats;
+import com.alan.alvideo.filter.FilterManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Measures the time from a fresh EGL context to the first frame drawn with the beauty
+ * filter, with programs compiled from source and with programs loaded by
+ * ProgramBinaryCache.  Each run also builds the other filters, as the preview's
+ * prewarm does, and reports that separately.
+ * <p>
+ * Android keeps its own shader cache per app on some devices, which can make "from source"
+ * look faster than on a real cold start.
+ * <p>
+ * Results go to logcat under BenchmarkStats#GL_TAG.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ShaderStartupBenchmark {
+    private static final String TAG = BenchmarkStats.GL_TAG;
+
+    private static final int RUNS = 10;
+
+    @Test
+    public void firstFrameWithAndWithoutBinaryCache() {
+        File cacheDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "shader-benchmark");
+        long[] sourceFirst = new long[RUNS];
+        long[] sourceAll = new long[RUNS];
+        long[] binaryFirst = new long[RUNS];
+        long[] binaryAll = new long[RUNS];
+        try {
+            // Fill the cache; this run isn't counted.
+            ProgramBinaryCache.init(cacheDir);
+            runOnce(new long[1], new long[1], 0);
+            for (int i = 0; i < RUNS; i++) {
+                ProgramBinaryCache.init(null);
+                runOnce(sourceFirst, sourceAll, i);
+                ProgramBinaryCache.init(cacheDir);
+                runOnce(binaryFirst, binaryAll, i);
+            }
+        } finally {
+            ProgramBinaryCache.init(null);
+            deleteRecursively(cacheDir);
+        }
+        Log.i(TAG, "first frame, from source: " + BenchmarkStats.summarize(sourceFirst));
+        Log.i(TAG, "first frame, from binary: " + BenchmarkStats.summarize(binaryFirst));
+        Log.i(TAG, "all filters, from source: " + BenchmarkStats.summarize(sourceAll));
+        Log.i(TAG, "all filters, from binary: " + BenchmarkStats.summarize(binaryAll));
+    }
+
+    /**
+     * Creates a context, draws one frame with the beauty program, then builds the rest.
+     */
+    private static void runOnce(long[] firstFrameNs, long[] allProgramsNs, int index) {
+        EglCore eglCore = new EglCore(null, EglCore.FLAG_TRY_GLES3);
+        EGLSurface surface = eglCore.createOffscreenSurface(1280, 720);
+        ProgramCache programCache = new ProgramCache();
+        try {
+            eglCore.makeCurrent(surface);
+            int textureId = GLUtil.createExternalTextureObject();
+
+            long startNs = System.nanoTime();
+            FullFrameRect rect = new FullFrameRect(
+                    programCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT_BEAUTY_COMPOSITE));
+            rect.drawFrame(textureId, GLUtil.IDENTITY_MATRIX);
+            GLES20.glFinish();
+            firstFrameNs[index] = System.nanoTime() - startNs;
+
+            programCache.prewarm(FilterManager.getAllProgramTypes());
+            GLES20.glFinish();
+            allProgramsNs[index] = System.nanoTime() - startNs;
+
+            GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+        } finally {
+            programCache.release(true);
+            eglCore.makeNothingCurrent();
+            eglCore.releaseSurface(surface);
+            eglCore.release();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,109 @@
+package com.alan.alvideo.video;
+
+import android.opengl.GLES20;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.alan.alvideo.BenchmarkStats;
+import com.alan.alvideo.gles.EglCore;
+import com.alan.alvideo.gles.WindowSurface;
+import com.alan.alvideo.muxer.AndroidMuxer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Measures the time from a record request to the first encoded frame reaching the muxer,
+ * with the codec created on the spot (as before prewarm() existed) and with a codec that was
+ * configured and started ahead of time, as TextureMovieEncoder#prewarm() does.
+ * <p>
+ * Results go to logcat under BenchmarkStats#ENCODER_TAG.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TimeToFirstFrameBenchmark {
+    private static final String TAG = BenchmarkStats.ENCODER_TAG;
+
+    private static final int RUNS = 10;
+    private static final int MAX_FRAMES = 120;
+    private static final long FRAME_INTERVAL_NS = 1000000000L / 30;
+
+    @Test
+    public void timeToFirstFrame720p() throws Exception {
+        compareColdAndWarm(1280, 720, 4 * 1024 * 1024);
+    }
+
+    @Test
+    public void timeToFirstFrame1080p() throws Exception {
+        compareColdAndWarm(1920, 1080, 8 * 1024 * 1024);
+    }
+
+    private void compareColdAndWarm(int width, int height, int bitRate) throws Exception {
+        File outputFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "ttff-" + width + "x" + height + ".mp4");
+        EncoderConfig config = new EncoderConfig.Builder(outputFile, width, height)
+                .setBitRate(bitRate)
+                .build();
+        long[] cold = new long[RUNS];
+        long[] warm = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            // Alternate, so neither gets all the benefit of a codec that was just used.
+            cold[i] = runOnce(config, false);
+            warm[i] = runOnce(config, true);
+        }
+        outputFile.delete();
+        Log.i(TAG, width + "x" + height + " cold start: " + BenchmarkStats.summarize(cold));
+        Log.i(TAG, width + "x" + height + " pre-warmed: " + BenchmarkStats.summarize(warm));
+    }
+
+    /**
+     * Starts a recording, feeds it frames at 30fps until the first one comes out of the
+     * codec, and returns the time to first frame.  With prewarmed set, the codec and its
+     * input surface are created before the clock starts, and only the muxer after.
+     */
+    private long runOnce(EncoderConfig config, boolean prewarmed) throws Exception {
+        EncoderPipelineStats stats = new EncoderPipelineStats();
+        EglCore eglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+        VideoEncoderCore encoder = null;
+        WindowSurface surface = null;
+        try {
+            if (prewarmed) {
+                encoder = new VideoEncoderCore(config, null);
+                surface = new WindowSurface(eglCore, encoder.getInputSurface(), true);
+                surface.makeCurrent();
+            }
+
+            stats.onRecordingStarted();
+            if (prewarmed) {
+                encoder.setMuxer(new AndroidMuxer(config.mOutputFile));
+            } else {
+                encoder = new VideoEncoderCore(config, new AndroidMuxer(config.mOutputFile));
+                surface = new WindowSurface(eglCore, encoder.getInputSurface(), true);
+                surface.makeCurrent();
+            }
+            encoder.setPipelineStats(stats);
+
+            long baseNs = System.nanoTime();
+            for (int i = 0; i < MAX_FRAMES && stats.getFramesEncoded() == 0; i++) {
+                encoder.drainEncoder(false);
+                GLES20.glClearColor((i % 30) / 30f, 0.5f, 0.5f, 1f);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                surface.setPresentationTime(baseNs + i * FRAME_INTERVAL_NS);
+                surface.swapBuffers();
+                Thread.sleep(FRAME_INTERVAL_NS / 1000000);
+            }
+            encoder.drainEncoder(true);
+        } finally {
+            if (surface != null) {
+                surface.release();
+            }
+            eglCore.release();
+            if (encoder != null) {
+                encoder.release();
+            }
+        }
+        return stats.getTimeToFirstFrameNs();
+    }
+}
@@ -0,0 +1,101 @@
+package com.alan.alvideo.video;
+
+import android.opengl.GLES20;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.alan.alvideo.BenchmarkStats;
+import com.alan.alvideo.gles.EglCore;
+import com.alan.alvideo.gles.WindowSurface;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Compares the per-frame cost seen by the thread feeding the encoder's input surface, with
+ * the polling drain, with MediaCodec.Callback delivery and with a separate drain thread.
+ * <p>
+ * Results go to logcat under BenchmarkStats#ENCODER_TAG.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VideoEncoderCoreBenchmark {
+    private static final String TAG = BenchmarkStats.ENCODER_TAG;
+
+    private static final int FRAME_COUNT = 300;
+    private static final long FRAME_INTERVAL_NS = 1000000000L / 30;
+
+    @Test
+    public void frameTime720p() throws Exception {
+        compareDrainModes(1280, 720, 4 * 1024 * 1024);
+    }
+
+    @Test
+    public void frameTime1080p() throws Exception {
+        compareDrainModes(1920, 1080, 8 * 1024 * 1024);
+    }
+
+    private void compareDrainModes(int width, int height, int bitRate) throws Exception {
+        for (EncoderConfig.DrainMode mode : EncoderConfig.DrainMode.values()) {
+            EncoderPipelineStats stats = new EncoderPipelineStats();
+            long[] frameTimes = runEncoder(width, height, bitRate, mode, stats);
+            Log.i(TAG, width + "x" + height + " " + mode + " " +
+                    BenchmarkStats.summarize(frameTimes));
+            Log.i(TAG, width + "x" + height + " " + mode + " " + stats);
+        }
+    }
+
+    /**
+     * Encodes FRAME_COUNT solid-color frames as fast as the encoder takes them, timing
+     * drain + draw + swap for each one the way TextureMovieEncoder#handleFrameAvailable
+     * does.  Frames are not paced, so at high resolutions the codec is the bottleneck and
+     * the encoded fps in the stats is the sustained throughput.
+     */
+    private long[] runEncoder(int width, int height, int bitRate, EncoderConfig.DrainMode mode,
+                              EncoderPipelineStats stats) throws Exception {
+        File outputFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "benchmark-" + width + "x" + height + ".mp4");
+        VideoEncoderCore encoder = new VideoEncoderCore(width, height, bitRate, outputFile,
+                mode == EncoderConfig.DrainMode.CALLBACK);
+        encoder.setPipelineStats(stats);
+        EglCore eglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+        WindowSurface surface = new WindowSurface(eglCore, encoder.getInputSurface(), true);
+        surface.makeCurrent();
+
+        EncoderDrainThread drainThread = null;
+        if (mode == EncoderConfig.DrainMode.PIPELINED) {
+            drainThread = new EncoderDrainThread(encoder);
+            drainThread.start();
+        }
+
+        long[] frameTimes = new long[FRAME_COUNT];
+        long baseNs = System.nanoTime();
+        try {
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                long start = System.nanoTime();
+                if (drainThread == null) {
+                    encoder.drainEncoder(false);
+                }
+                GLES20.glClearColor((i % 30) / 30f, 0.5f, 1f - (i % 60) / 60f, 1f);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                long pts = baseNs + i * FRAME_INTERVAL_NS;
+                surface.setPresentationTime(pts);
+                surface.swapBuffers();
+                stats.onFrameSubmitted(pts);
+                frameTimes[i] = System.nanoTime() - start;
+            }
+            if (drainThread != null) {
+                drainThread.quit();
+            }
+            encoder.drainEncoder(true);
+        } finally {
+            surface.release();
+            eglCore.release();
+            encoder.release();
+            outputFile.delete();
+        }
+        return frameTimes;
+    }
+}
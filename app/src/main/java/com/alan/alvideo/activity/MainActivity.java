@@ -17,7 +17,7 @@ import java.io.File;
  * Created by wangjianjun on 17/01/09.
  * alanwang6584@gmail.com
  */
-public class MainActivity extends Activity implements View.OnClickListener{
+public class MainActivity extends Activity implements View.OnClickListener, View.OnLongClickListener {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -27,6 +27,7 @@ public class MainActivity extends Activity implements View.OnClickListener{
         tv.setText("just for testing \r");
         TextView cross = (TextView) findViewById(R.id.videoRecord);
         cross.setOnClickListener(this);
+        cross.setOnLongClickListener(this);//长按进入高帧率（慢动作）录制
         TextView videoTv = (TextView) findViewById(R.id.videoPlay);
         videoTv.setOnClickListener(this);
 
@@ -54,4 +55,15 @@ public class MainActivity extends Activity implements View.OnClickListener{
         }
     }
 
+    @Override
+    public boolean onLongClick(View view) {
+        if (view.getId() == R.id.videoRecord) {
+            Intent intent = new Intent(MainActivity.this, VideoActivity.class);
+            intent.putExtra(VideoActivity.EXTRA_HIGH_FRAME_RATE, true);
+            startActivity(intent);
+            return true;
+        }
+        return false;
+    }
+
 }
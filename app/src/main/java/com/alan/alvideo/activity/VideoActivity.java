@@ -7,12 +7,16 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.SeekBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 
 import com.alan.alvideo.R;
+import com.alan.alvideo.camera.CameraController;
 import com.alan.alvideo.filter.FilterManager.FilterType;
+import com.alan.alvideo.gles.ProgramBinaryCache;
 import com.alan.alvideo.util.FileUtil;
+import com.alan.alvideo.video.CodecProbe;
 import com.alan.alvideo.video.EncoderConfig;
 import com.alan.alvideo.video.TextureMovieEncoder;
 import com.alan.alvideo.view.CameraSurfaceView;
@@ -25,11 +29,16 @@ import java.io.File;
  */
 public class VideoActivity extends AppCompatActivity implements View.OnClickListener, AdapterView.OnItemSelectedListener {
 
+    //是否使用高帧率（慢动作）模式录制
+    public static final String EXTRA_HIGH_FRAME_RATE = "high_frame_rate";
+
     private CameraSurfaceView cameraSurfaceView;
     private TextView curStatusTV;
     private Button recordBtn;
+    private SeekBar beautyLevelBar;
     private boolean isRecordEnabled;
     private File curRecordFile;
+    private boolean isHighFrameRate;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -42,13 +51,49 @@ public class VideoActivity extends AppCompatActivity implements View.OnClickList
             rootDir.mkdirs();
         }
 
+        //提前加载编码器能力信息，避免开始录制时才去查询
+        CodecProbe.init(getCacheDir());
+        //已链接的滤镜程序保存到cache目录，下次启动直接加载，不再编译着色器
+        ProgramBinaryCache.init(getCacheDir());
+
+        isHighFrameRate = getIntent().getBooleanExtra(EXTRA_HIGH_FRAME_RATE, false);
         initView();
         isRecordEnabled = TextureMovieEncoder.getInstance().isRecording();
+
+        //先用同样的编码参数预热编码器，输出文件在开始录制时才确定
+        final EncoderConfig prewarmConfig = buildEncoderConfig(new File(getCacheDir(), "prewarm.mp4"));
+        cameraSurfaceView.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                cameraSurfaceView.setEncoderConfig(prewarmConfig);
+            }
+        });
+    }
+
+    //录制参数，预热和录制使用同一套编码参数
+    private EncoderConfig buildEncoderConfig(File outputFile) {
+        EncoderConfig.Builder builder = new EncoderConfig.Builder(outputFile, 480, 640)
+                .setBitRate(1024 * 1024 /* 1 Mb/s */)
+                .setPreferHevc(true)
+                //录制结束后在后台把moov移到文件头，方便边下边播
+                .setFastStart(true)
+                .setAudio(EncoderConfig.DEFAULT_AUDIO_SAMPLE_RATE, 1,
+                        EncoderConfig.DEFAULT_AUDIO_BIT_RATE);
+        int previewFps = CameraController.getInstance().getPreviewFps();
+        if (isHighFrameRate && previewFps > EncoderConfig.DEFAULT_FRAME_RATE) {
+            //编码帧率与相机帧率一致，码率按帧率等比例提高，保证每帧画质不变；
+            //编码输出放到单独的线程，编码线程只负责绘制，以满足高帧率下每帧4~8ms的耗时要求
+            builder.setFrameRate(previewFps)
+                    .setBitRate(1024 * 1024 / EncoderConfig.DEFAULT_FRAME_RATE * previewFps)
+                    .setDrainMode(EncoderConfig.DrainMode.PIPELINED);
+        }
+        return builder.build();
     }
 
     //初始化界面
     private void initView() {
         cameraSurfaceView = (CameraSurfaceView) findViewById(R.id.camera);
+        cameraSurfaceView.setHighFrameRate(isHighFrameRate);
         curStatusTV = (TextView) findViewById(R.id.current_status);
 
         //初始化滤镜选择器
@@ -61,6 +106,23 @@ public class VideoActivity extends AppCompatActivity implements View.OnClickList
 
         recordBtn = (Button) findViewById(R.id.record);
         recordBtn.setOnClickListener(this);
+
+        //美颜级别调节，选择美颜滤镜时显示，进度0~4对应级别1~5
+        beautyLevelBar = (SeekBar) findViewById(R.id.beauty_level);
+        beautyLevelBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                cameraSurfaceView.setBeautyLevel(progress + 1);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
     }
 
     @Override
@@ -92,8 +154,7 @@ public class VideoActivity extends AppCompatActivity implements View.OnClickList
                     cameraSurfaceView.queueEvent(new Runnable() {
                         @Override
                         public void run() {
-                            cameraSurfaceView.setEncoderConfig(new EncoderConfig(curRecordFile, 480, 640,
-                                    1024 * 1024 /* 1 Mb/s */));
+                            cameraSurfaceView.setEncoderConfig(buildEncoderConfig(curRecordFile));
                         }
                     });
                 }
@@ -140,7 +201,11 @@ public class VideoActivity extends AppCompatActivity implements View.OnClickList
             case 4:
                 cameraSurfaceView.changeFilter(FilterType.BEAUTY);
                 break;
+            case 5:
+                cameraSurfaceView.changeFilter(FilterType.BEAUTY_SHARPEN);
+                break;
         }
+        beautyLevelBar.setVisibility(filterNum == 4 || filterNum == 5 ? View.VISIBLE : View.GONE);
     }
 
     @Override
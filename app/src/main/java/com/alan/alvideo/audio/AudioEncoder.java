@@ -0,0 +1,376 @@
+package com.alan.alvideo.audio;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+
+import com.alan.alvideo.muxer.Muxer;
+import com.alan.alvideo.muxer.TrackFormat;
+import com.alan.alvideo.util.RecordingClock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records microphone audio as AAC-LC into a Muxer.
+ * <p>
+ * Two threads do the work.  The capture thread does nothing but read AudioRecord into
+ * pooled PCM chunks and note when each read returned, so it is never late for the next
+ * read, whatever the codec is doing.  The encoder thread turns those read times into
+ * capture times with an AudioTimestampAligner, maps them onto the recording's timeline
+ * with the RecordingClock shared with the video encoder, and feeds the AAC codec and
+ * drains it into the muxer.  Chunks captured while the recording is paused are dropped.
+ * <p>
+ * The muxer is normally an InterleavingMuxer shared with the video encoder.  Like
+ * VideoEncoderCore, we add our track once the codec reports its output format, and stop
+ * and release the muxer in release().
+ * <p>
+ * start(), stop() and release() must be called from one thread.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class AudioEncoder {
+    private static final String TAG = "AudioEncoder";
+    private static final boolean VERBOSE = false;
+
+    private static final String MIME_TYPE = TrackFormat.MIMETYPE_AUDIO_AAC;
+    private static final int FRAMES_PER_CHUNK = 1024;       // one AAC frame
+    private static final int POOL_CHUNKS = 16;              // ~370ms at 44.1kHz
+    private static final int TIMEOUT_USEC = 10000;
+
+    private final int mSampleRate;
+    private final int mBytesPerFrame;
+    private final Muxer mMuxer;
+    private final RecordingClock mClock;
+    private final PcmBufferPool mPool;
+    private final AudioTimestampAligner mAligner;
+
+    private AudioRecord mAudioRecord;
+    private MediaCodec mEncoder;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private int mTrackIndex = -1;
+    private boolean mMuxerStarted;
+    private long mLastPresentationUs = -1;
+
+    private Thread mCaptureThread;
+    private Thread mEncoderThread;
+    private volatile boolean mCapturing;
+    private volatile boolean mCaptureDone;
+    private volatile int mChunksDropped;
+    private volatile int mChunksEncoded;
+
+    /**
+     * Opens the microphone and configures the codec.
+     *
+     * @param muxer Receives the encoded stream.  AudioEncoder takes ownership, and will stop
+     *              and release it in release(), even if this constructor throws.
+     * @param clock Maps capture times to presentation times; shared with the video encoder.
+     * @throws RuntimeException if the microphone can't be opened, e.g. because the app
+     *                          doesn't have the RECORD_AUDIO permission.
+     */
+    public AudioEncoder(int sampleRate, int channelCount, int bitRate, Muxer muxer,
+                        RecordingClock clock) throws IOException {
+        mSampleRate = sampleRate;
+        mBytesPerFrame = 2 * channelCount;
+        mMuxer = muxer;
+        mClock = clock;
+        int chunkBytes = FRAMES_PER_CHUNK * mBytesPerFrame;
+        mPool = new PcmBufferPool(POOL_CHUNKS, chunkBytes);
+        mAligner = new AudioTimestampAligner(sampleRate);
+
+        try {
+            int channelConfig = channelCount == 1 ? AudioFormat.CHANNEL_IN_MONO
+                    : AudioFormat.CHANNEL_IN_STEREO;
+            int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT);
+            if (minBufferSize <= 0) {
+                throw new RuntimeException("unsupported audio " + sampleRate + "Hz x" +
+                        channelCount);
+            }
+            // Room for a few chunks, so a late read loses nothing.
+            int bufferSize = Math.max(minBufferSize * 2, chunkBytes * 4);
+            mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, sampleRate,
+                    channelConfig, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+            if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                throw new RuntimeException("unable to open the microphone");
+            }
+
+            MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate,
+                    channelCount);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                    MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, chunkBytes);
+            if (VERBOSE) Log.d(TAG, "format: " + format);
+            MediaCodec encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            try {
+                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                encoder.start();
+            } catch (RuntimeException re) {
+                encoder.release();
+                throw re;
+            }
+            mEncoder = encoder;
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts capturing and encoding.
+     */
+    public void start() {
+        mCapturing = true;
+        mCaptureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                capture();
+            }
+        }, "AudioCapture");
+        mEncoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encode();
+            }
+        }, "AudioEncoder");
+        mCaptureThread.setPriority(Thread.MAX_PRIORITY);
+        mCaptureThread.start();
+        mEncoderThread.start();
+    }
+
+    /**
+     * Stops capturing, and returns once everything captured so far has been encoded and
+     * handed to the muxer.
+     */
+    public void stop() {
+        mCapturing = false;
+        joinQuietly(mCaptureThread);
+        mCaptureThread = null;
+        joinQuietly(mEncoderThread);
+        mEncoderThread = null;
+        Log.d(TAG, "stopped: " + mChunksEncoded + " chunks encoded, " + mChunksDropped +
+                " dropped, " + mAligner.getResyncCount() + " resyncs");
+    }
+
+    /**
+     * Releases the microphone, the codec and our share of the muxer.
+     */
+    public void release() {
+        if (mCaptureThread != null) {
+            stop();
+        }
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        if (mEncoder != null) {
+            mEncoder.stop();
+            mEncoder.release();
+            mEncoder = null;
+        }
+        if (mMuxerStarted) {
+            mMuxer.stop();
+            mMuxerStarted = false;
+        }
+        mMuxer.release();
+    }
+
+    /**
+     * Number of PCM chunks lost because the encoder thread fell behind.
+     */
+    public int getChunksDropped() {
+        return mChunksDropped;
+    }
+
+    /**
+     * Capture thread: keeps AudioRecord drained.
+     */
+    private void capture() {
+        int chunkBytes = mPool.getChunkBytes();
+        byte[] scratch = new byte[chunkBytes];
+        try {
+            mAudioRecord.startRecording();
+            while (mCapturing) {
+                PcmBufferPool.Chunk chunk = mPool.acquire();
+                byte[] target = chunk != null ? chunk.mData : scratch;
+                int read = mAudioRecord.read(target, 0, chunkBytes);
+                long readDoneNanos = System.nanoTime();
+                if (read < 0) {
+                    Log.w(TAG, "AudioRecord.read failed: " + read);
+                    if (chunk != null) {
+                        mPool.recycle(chunk);
+                    }
+                    break;
+                }
+                if (chunk == null) {
+                    mChunksDropped++;
+                    continue;
+                }
+                chunk.mSize = read - read % mBytesPerFrame;
+                chunk.mReadDoneNanos = readDoneNanos;
+                mPool.queue(chunk);
+            }
+            mAudioRecord.stop();
+        } catch (RuntimeException re) {
+            Log.e(TAG, "audio capture failed", re);
+        } finally {
+            mCaptureDone = true;
+        }
+    }
+
+    /**
+     * Encoder thread: feeds captured chunks to the codec and its output to the muxer.
+     */
+    private void encode() {
+        try {
+            while (true) {
+                PcmBufferPool.Chunk chunk = mPool.poll(TIMEOUT_USEC / 1000);
+                if (chunk != null) {
+                    encodeChunk(chunk);
+                    mPool.recycle(chunk);
+                } else if (mCaptureDone && mPool.getQueuedCount() == 0) {
+                    break;
+                }
+                drainEncoder(false);
+            }
+            signalEndOfStream();
+            drainEncoder(true);
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "audio encoder interrupted");
+        } catch (RuntimeException re) {
+            Log.e(TAG, "audio encoding failed", re);
+        }
+    }
+
+    private void encodeChunk(PcmBufferPool.Chunk chunk) {
+        int frames = chunk.mSize / mBytesPerFrame;
+        if (frames == 0) {
+            return;
+        }
+        long captureNanos = mAligner.align(chunk.mReadDoneNanos, frames);
+        long presentationNanos = mClock.toPresentationNanos(captureNanos);
+        if (presentationNanos < 0) {
+            return;     // paused
+        }
+        queueInput(chunk.mData, chunk.mSize, presentationNanos / 1000);
+        mChunksEncoded++;
+    }
+
+    /**
+     * Copies PCM into codec input buffers, splitting it if the codec's buffers are smaller.
+     */
+    private void queueInput(byte[] data, int size, long presentationTimeUs) {
+        ByteBuffer[] inputBuffers = mEncoder.getInputBuffers();
+        int offset = 0;
+        while (offset < size) {
+            int index = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
+            if (index < 0) {
+                // Codec is full; make room by taking its output.
+                drainEncoder(false);
+                continue;
+            }
+            ByteBuffer input = inputBuffers[index];
+            input.clear();
+            int length = Math.min(input.remaining(), size - offset);
+            length -= length % mBytesPerFrame;
+            input.put(data, offset, length);
+            long timeUs = presentationTimeUs +
+                    (offset / mBytesPerFrame) * 1000000L / mSampleRate;
+            mEncoder.queueInputBuffer(index, 0, length, timeUs, 0);
+            offset += length;
+        }
+    }
+
+    private void signalEndOfStream() {
+        while (true) {
+            int index = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
+            if (index >= 0) {
+                mEncoder.queueInputBuffer(index, 0, 0, Math.max(0, mLastPresentationUs),
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return;
+            }
+            drainEncoder(false);
+        }
+    }
+
+    /**
+     * Moves everything the codec has finished to the muxer.  With endOfStream set, waits
+     * for the end of stream to come out.
+     */
+    private void drainEncoder(boolean endOfStream) {
+        ByteBuffer[] outputBuffers = mEncoder.getOutputBuffers();
+        while (true) {
+            int status = mEncoder.dequeueOutputBuffer(mBufferInfo, endOfStream ? TIMEOUT_USEC : 0);
+            if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+            } else if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = mEncoder.getOutputBuffers();
+            } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                startMuxer(mEncoder.getOutputFormat());
+            } else if (status >= 0) {
+                ByteBuffer encodedData = outputBuffers[status];
+                writeEncodedData(encodedData, mBufferInfo);
+                mEncoder.releaseOutputBuffer(status, false);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void startMuxer(MediaFormat format) {
+        if (mMuxerStarted) {
+            throw new RuntimeException("format changed twice");
+        }
+        Log.d(TAG, "encoder output format changed: " + format);
+        ByteBuffer csd = format.getByteBuffer("csd-0").duplicate();
+        byte[] asc = new byte[csd.remaining()];
+        csd.get(asc);
+        mTrackIndex = mMuxer.addTrack(TrackFormat.createAudioFormat(MIME_TYPE,
+                format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), asc));
+        mMuxer.start();
+        mMuxerStarted = true;
+    }
+
+    private void writeEncodedData(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0) {
+            // The AudioSpecificConfig went to the muxer with the output format.
+            return;
+        }
+        if (!mMuxerStarted) {
+            throw new RuntimeException("muxer hasn't started");
+        }
+        if (info.presentationTimeUs <= mLastPresentationUs) {
+            // Some AAC encoders repeat a timestamp around a gap; muxers want them increasing.
+            info.presentationTimeUs = mLastPresentationUs + 1;
+        }
+        encodedData.position(info.offset);
+        encodedData.limit(info.offset + info.size);
+        mMuxer.writeSampleData(mTrackIndex, encodedData, info.presentationTimeUs,
+                info.flags & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        mLastPresentationUs = info.presentationTimeUs;
+        if (VERBOSE) {
+            Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" + info.presentationTimeUs);
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "interrupted waiting for " + thread.getName());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.alan.alvideo.audio;
+
+/**
+ * Turns "when did read() return" into a steady capture time for each chunk of PCM.
+ * <p>
+ * Timestamps taken from the system clock at every read jitter by a few milliseconds, which
+ * AAC encoders and players don't like.  Timestamps counted from the number of samples read
+ * are perfectly smooth, but the audio hardware's clock is not the system clock: a 50ppm
+ * difference is 180ms over an hour, and video is stamped with the system clock.  So we count
+ * samples, and pull the count's origin towards the system clock a little on every chunk.
+ * The jitter averages out, the drift can't build up, and a real discontinuity (a dropped
+ * chunk, an overrun, a pause) moves the origin in one go.
+ * <p>
+ * Times are in nanoseconds on the System.nanoTime() clock.  Not thread-safe.
+ */
+public class AudioTimestampAligner {
+    /**
+     * Error beyond which the origin is moved in one step instead of slewed.
+     */
+    public static final long DEFAULT_RESYNC_THRESHOLD_NS = 50000000L;
+
+    // Each chunk corrects 1/SLEW_DIVISOR of the error, which takes out per-read jitter while
+    // following any drift a real clock has.
+    private static final int SLEW_DIVISOR = 64;
+
+    private final int mSampleRate;
+    private final long mResyncThresholdNs;
+
+    private long mOriginNs;
+    private long mFramesSinceOrigin;
+    private long mLastTimestampNs;
+    private int mResyncCount;
+
+    /**
+     * @param sampleRate PCM frames per second.
+     */
+    public AudioTimestampAligner(int sampleRate) {
+        this(sampleRate, DEFAULT_RESYNC_THRESHOLD_NS);
+    }
+
+    public AudioTimestampAligner(int sampleRate, long resyncThresholdNs) {
+        if (sampleRate <= 0 || resyncThresholdNs <= 0) {
+            throw new IllegalArgumentException("bad sample rate " + sampleRate +
+                    " or threshold " + resyncThresholdNs);
+        }
+        mSampleRate = sampleRate;
+        mResyncThresholdNs = resyncThresholdNs;
+        reset();
+    }
+
+    /**
+     * Starts over, e.g. for a new recording.
+     */
+    public void reset() {
+        mOriginNs = -1;
+        mFramesSinceOrigin = 0;
+        mLastTimestampNs = -1;
+        mResyncCount = 0;
+    }
+
+    /**
+     * Returns the capture time of the first frame of a chunk.
+     *
+     * @param readDoneNanos System.nanoTime() right after the read that returned the chunk.
+     * @param frames        PCM frames (samples per channel) in the chunk.
+     */
+    public long align(long readDoneNanos, int frames) {
+        // The last frame of the chunk was captured around the time the read returned.
+        long observedNs = readDoneNanos - framesToNanos(frames);
+        if (mOriginNs < 0) {
+            mOriginNs = observedNs;
+            mFramesSinceOrigin = 0;
+        } else {
+            long expectedNs = mOriginNs + framesToNanos(mFramesSinceOrigin);
+            long errorNs = observedNs - expectedNs;
+            if (Math.abs(errorNs) > mResyncThresholdNs) {
+                mOriginNs = observedNs;
+                mFramesSinceOrigin = 0;
+                mResyncCount++;
+            } else {
+                mOriginNs += errorNs / SLEW_DIVISOR;
+            }
+        }
+
+        long timestampNs = mOriginNs + framesToNanos(mFramesSinceOrigin);
+        if (timestampNs <= mLastTimestampNs) {
+            // Only a resync backwards can do this.  Never go back in time.
+            timestampNs = mLastTimestampNs + 1;
+        }
+        mLastTimestampNs = timestampNs;
+        mFramesSinceOrigin += frames;
+        return timestampNs;
+    }
+
+    /**
+     * Number of times the origin was moved in one step.
+     */
+    public int getResyncCount() {
+        return mResyncCount;
+    }
+
+    private long framesToNanos(long frames) {
+        return frames * 1000000000L / mSampleRate;
+    }
+}
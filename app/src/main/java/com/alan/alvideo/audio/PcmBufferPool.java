@@ -0,0 +1,90 @@
+package com.alan.alvideo.audio;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of PCM chunks passed between the capture thread and the encoder thread.
+ * <p>
+ * All chunks are allocated up front, so a recording doesn't allocate per read.  The capture
+ * thread takes a free chunk, fills it and hands it over with queue(); the encoder thread
+ * takes it with poll() and gives it back with recycle().  When the encoder falls so far
+ * behind that there is no free chunk, acquire() returns null and the capture thread drops
+ * what it reads: AudioRecord has to be read on time or it overruns anyway.
+ * <p>
+ * Thread-safe.
+ */
+public class PcmBufferPool {
+    /**
+     * One chunk of 16-bit PCM.
+     */
+    public static class Chunk {
+        public final byte[] mData;
+        public int mSize;
+        public long mReadDoneNanos;
+
+        Chunk(int capacity) {
+            mData = new byte[capacity];
+        }
+    }
+
+    private final ArrayBlockingQueue<Chunk> mFree;
+    private final ArrayBlockingQueue<Chunk> mFilled;
+    private final int mChunkBytes;
+
+    /**
+     * @param chunkCount Number of chunks.
+     * @param chunkBytes Size of each chunk, in bytes.
+     */
+    public PcmBufferPool(int chunkCount, int chunkBytes) {
+        if (chunkCount < 1 || chunkBytes < 1) {
+            throw new IllegalArgumentException("bad pool " + chunkCount + "x" + chunkBytes);
+        }
+        mFree = new ArrayBlockingQueue<>(chunkCount);
+        mFilled = new ArrayBlockingQueue<>(chunkCount);
+        mChunkBytes = chunkBytes;
+        for (int i = 0; i < chunkCount; i++) {
+            mFree.add(new Chunk(chunkBytes));
+        }
+    }
+
+    public int getChunkBytes() {
+        return mChunkBytes;
+    }
+
+    /**
+     * Returns a free chunk, or null if all are in use.
+     */
+    public Chunk acquire() {
+        return mFree.poll();
+    }
+
+    /**
+     * Hands a filled chunk to the consumer.
+     */
+    public void queue(Chunk chunk) {
+        mFilled.add(chunk);
+    }
+
+    /**
+     * Waits up to timeoutMs for a filled chunk, returns null if there is none.
+     */
+    public Chunk poll(long timeoutMs) throws InterruptedException {
+        return mFilled.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives a chunk back to the pool.
+     */
+    public void recycle(Chunk chunk) {
+        chunk.mSize = 0;
+        mFree.add(chunk);
+    }
+
+    /**
+     * Number of filled chunks waiting for the consumer.
+     */
+    public int getQueuedCount() {
+        return mFilled.size();
+    }
+}
@@ -16,6 +16,8 @@ public class CameraController {
     private Camera mCamera = null;
     private boolean isFrontCamera = true;
     private final Object mLock = new Object();
+    private volatile boolean mHighFrameRate;
+    private volatile int mPreviewFps;
 
     /**
      * 获取相机控制器的单例，由该类统一控制管理Camera
@@ -64,6 +66,23 @@ public class CameraController {
         }
     }
 
+    /**
+     * 设置是否使用高帧率（慢动作）模式，下次设置相机参数时生效。
+     * 高帧率模式选择相机支持的最高帧率，否则使用30fps
+     * @param highFrameRate
+     */
+    public void setHighFrameRate(boolean highFrameRate) {
+        mHighFrameRate = highFrameRate;
+    }
+
+    /**
+     * 获取当前预览帧率的上限，编码器按此帧率配置
+     * @return 帧率，相机参数还未设置时返回0
+     */
+    public int getPreviewFps() {
+        return mPreviewFps;
+    }
+
     /**
      * 设置相机参数
      * @param previewSize
@@ -85,8 +104,10 @@ public class CameraController {
                         Log.e("Alan66", "configureCameraParameters()-->range[0] = " + range[0] + ", range[1]" + range[1]);
                     }
 
-                    int[] range = CameraUtils.getSuitablePreviewFps(30, fpsRanges);
+                    int[] range = mHighFrameRate ? CameraUtils.getHighestPreviewFps(fpsRanges)
+                            : CameraUtils.getSuitablePreviewFps(30, fpsRanges);
                     parameters.setPreviewFpsRange(range[0], range[1]);
+                    mPreviewFps = range[1] / 1000;
                 }
                 mCamera.setParameters(parameters);
             }
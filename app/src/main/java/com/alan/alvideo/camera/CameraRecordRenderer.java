@@ -2,38 +2,73 @@ package com.alan.alvideo.camera;
 
 import android.graphics.SurfaceTexture;
 import android.opengl.EGL14;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
+import android.util.Log;
 
+import com.alan.alvideo.filter.FilterGraph;
 import com.alan.alvideo.filter.FilterManager;
 import com.alan.alvideo.filter.FilterManager.FilterType;
-import com.alan.alvideo.gles.FullFrameRect;
+import com.alan.alvideo.gles.FramebufferPool;
+import com.alan.alvideo.gles.FramebufferTexture;
 import com.alan.alvideo.gles.GLUtil;
+import com.alan.alvideo.gles.ProgramCache;
+import com.alan.alvideo.gles.Texture2dProgram;
+import com.alan.alvideo.util.FrameTimeMonitor;
 import com.alan.alvideo.video.EncoderConfig;
 import com.alan.alvideo.video.TextureMovieEncoder;
 import com.alan.alvideo.view.CameraSurfaceView;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 public class CameraRecordRenderer implements GLSurfaceView.Renderer {
+    private static final String TAG = "CameraRecordRenderer";
+
+    //每隔多久输出一次帧耗时统计
+    private static final long FRAME_STATS_INTERVAL_NS = 5000000000L;
 
     private static final int RECORDING_OFF = 0;
     private static final int RECORDING_ON = 1;
     private static final int RECORDING_RESUMED = 2;
 
     private int mTextureId = GLUtil.NO_TEXTURE;
-    private FullFrameRect mFullScreen;
+    //滤镜链，多步滤镜时中间结果在mFramebufferPool的两个FBO之间交替渲染
+    private FilterGraph mFilterGraph;
+    private FramebufferPool mFramebufferPool;
+    //滤镜只渲染一次，结果保存在该纹理中，预览和编码器都直接复制该纹理，录制内容与预览完全一致
+    private FramebufferTexture mFilteredFrame;
+    //尺寸改变后换下的mFilteredFrame，编码器可能还在读取，等编码器切换到新纹理后再放回mFramebufferPool
+    private final List<FramebufferTexture> mRetiredFilteredFrames = new ArrayList<>();
+    //当前EGL context是否为GLES3，是则用fence与编码器同步，否则只能glFinish
+    private boolean mGles3;
+    private FilterGraph mCopyGraph;
+    //当前EGL context已编译的滤镜程序，切换滤镜时直接复用
+    private ProgramCache mProgramCache;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
     private SurfaceTexture mSurfaceTexture;
     private final float[] mSTMatrix = new float[16];
 
     private FilterType mCurrentFilterType;
     private FilterType mNewFilterType;
+    private int mBeautyLevel;
+    private volatile int mNewBeautyLevel = Texture2dProgram.DEFAULT_BEAUTY_LEVEL;
     private EncoderConfig mEncoderConfig;
     private TextureMovieEncoder mVideoEncoder;
     private final CameraSurfaceView.CameraHandler mCameraHandler;
 
     private boolean mRecordingEnabled;
     private int mRecordingStatus;
+    private boolean mEncoderPrewarmed;
+    private volatile boolean mHighFrameRate;
+    //统计每帧渲染+送编码的耗时和丢帧情况，仅在GL线程访问
+    private final FrameTimeMonitor mFrameTimes = new FrameTimeMonitor(0);
+    private long mFrameStatsStartNs = -1;
 
     public CameraRecordRenderer(CameraSurfaceView.CameraHandler cameraHandler) {
         mCameraHandler = cameraHandler;
@@ -42,7 +77,8 @@ public class CameraRecordRenderer implements GLSurfaceView.Renderer {
     }
 
     /**
-     * 设置编码器配置，携带录制文件的宽高、输出文件等信息
+     * 设置编码器配置，携带录制文件的宽高、输出文件等信息。
+     * 未录制时会按该配置预热编码器，开始录制时只需创建输出文件
      * @param encoderConfig
      */
     public void setEncoderConfig(EncoderConfig encoderConfig) {
@@ -57,17 +93,54 @@ public class CameraRecordRenderer implements GLSurfaceView.Renderer {
         mRecordingEnabled = recordingEnabled;
     }
 
+    /**
+     * 暂停、恢复录制。编码器、EGL surface和输出文件都保持不变，恢复后继续写入同一个文件
+     * @param paused
+     */
+    public void setRecordingPaused(boolean paused) {
+        if (paused) {
+            mVideoEncoder.pauseRecording();
+        } else {
+            mVideoEncoder.resumeRecording();
+        }
+    }
+
+    /**
+     * 设置高帧率（慢动作）模式，在下次创建Surface时生效。
+     * 高帧率下swapBuffers不再等待屏幕垂直同步，否则GL线程最多只能跟上屏幕刷新率（通常60fps），
+     * 多出来的相机帧在送到编码器之前就被丢弃了；屏幕仍只显示其中一部分帧
+     * @param highFrameRate
+     */
+    public void setHighFrameRate(boolean highFrameRate) {
+        mHighFrameRate = highFrameRate;
+    }
+
     /**
      * 停止渲染
      */
     public void stopRender() {
+        //释放预热的编码器，正在进行的录制不受影响
+        mVideoEncoder.shutdown();
+        mEncoderPrewarmed = false;
         if (mSurfaceTexture != null) {
             mSurfaceTexture.release();
             mSurfaceTexture = null;
         }
-        if (mFullScreen != null) {
-            mFullScreen.release(false);
-            mFullScreen = null;
+        if (mFilterGraph != null) {
+            mFilterGraph.release(false);
+            mFilterGraph = null;
+            mCopyGraph.release(false);
+            mCopyGraph = null;
+        }
+        mFilteredFrame = null;
+        mRetiredFilteredFrames.clear();
+        if (mFramebufferPool != null) {
+            mFramebufferPool.release(false);
+            mFramebufferPool = null;
+        }
+        if (mProgramCache != null) {
+            mProgramCache.release(false);
+            mProgramCache = null;
         }
     }
 
@@ -79,8 +152,18 @@ public class CameraRecordRenderer implements GLSurfaceView.Renderer {
         mNewFilterType = filterType;
     }
 
+    /**
+     * 设置美颜级别，下一帧生效。录制时编码器复制预览的滤镜结果，录制内容同时生效
+     * @param level 1~5，越大美颜效果越明显
+     */
+    public void setBeautyLevel(int level) {
+        mNewBeautyLevel = level;
+    }
+
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        //EGL context已重建，需要重新预热编码器
+        mEncoderPrewarmed = false;
         mRecordingEnabled = mVideoEncoder.isRecording();
         if (mRecordingEnabled) {
             mRecordingStatus = RECORDING_RESUMED;
@@ -88,9 +171,31 @@ public class CameraRecordRenderer implements GLSurfaceView.Renderer {
             mRecordingStatus = RECORDING_OFF;
             mVideoEncoder.initFilter(mCurrentFilterType);
         }
+        if (mHighFrameRate) {
+            EGL14.eglSwapInterval(EGL14.eglGetCurrentDisplay(), 0);
+        }
+        mFrameTimes.reset();
+        mFrameStatsStartNs = -1;
         //初始化渲染器，并获取TextureId创建SurfaceTexture，后面会将该SurfaceTexture与camera绑定
-        mFullScreen = new FullFrameRect(FilterManager.getCameraFilter(mCurrentFilterType));
-        mTextureId = mFullScreen.createTextureObject();
+        mFramebufferPool = new FramebufferPool();
+        mFilteredFrame = null;
+        mRetiredFilteredFrames.clear();
+        int[] glVersion = new int[1];
+        EGL14.eglQueryContext(EGL14.eglGetCurrentDisplay(), EGL14.eglGetCurrentContext(),
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, glVersion, 0);
+        mGles3 = glVersion[0] >= 3;
+        mProgramCache = new ProgramCache();
+        //新的程序缓存使用默认美颜级别，下一帧重新设置
+        mBeautyLevel = Texture2dProgram.DEFAULT_BEAUTY_LEVEL;
+        mFilterGraph = new FilterGraph(mFramebufferPool);
+        mFilterGraph.setPasses(FilterManager.createPasses(mCurrentFilterType, mProgramCache,
+                mFramebufferPool));
+        mCopyGraph = new FilterGraph(mFramebufferPool);
+        mCopyGraph.setPasses(FilterManager.createCopyPasses(mProgramCache));
+        //其余滤镜在后台线程的共享context中提前编译，不占用首帧时间
+        mProgramCache.prewarmInBackground(EGL14.eglGetCurrentContext(),
+                FilterManager.getAllProgramTypes());
+        mTextureId = GLUtil.createExternalTextureObject();
         mSurfaceTexture = new SurfaceTexture(mTextureId);
     }
 
@@ -99,42 +204,89 @@ public class CameraRecordRenderer implements GLSurfaceView.Renderer {
         if (gl != null) {
             gl.glViewport(0, 0, width, height);
         }
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+        mFilterGraph.setSize(width, height);
+        if (mFilteredFrame == null || mFilteredFrame.getWidth() != width ||
+                mFilteredFrame.getHeight() != height) {
+            if (mFilteredFrame != null) {
+                mRetiredFilteredFrames.add(mFilteredFrame);
+            }
+            mFilteredFrame = mFramebufferPool.acquire(width, height);
+            if (mRecordingStatus == RECORDING_ON) {
+                mVideoEncoder.setFilteredTextureId(mFilteredFrame.getTextureId());
+            }
+        }
         mCameraHandler.sendMessage(mCameraHandler.obtainMessage(
                 CameraSurfaceView.CameraHandler.SETUP_CAMERA, width, height, mSurfaceTexture));
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        long startNs = System.nanoTime();
         mSurfaceTexture.updateTexImage();
         if (mNewFilterType != mCurrentFilterType) {//如果滤镜改变，则更新滤镜
-            mFullScreen.changeProgram(FilterManager.getCameraFilter(mNewFilterType));
+            mFilterGraph.setPasses(FilterManager.createPasses(mNewFilterType, mProgramCache,
+                    mFramebufferPool));
             mCurrentFilterType = mNewFilterType;
         }
+        int beautyLevel = mNewBeautyLevel;
+        if (beautyLevel != mBeautyLevel) {
+            FilterManager.setBeautyLevel(mProgramCache, beautyLevel);
+            mBeautyLevel = beautyLevel;
+        }
         mSurfaceTexture.getTransformMatrix(mSTMatrix);
-        mFullScreen.drawFrame(mTextureId, mSTMatrix);
+        //先把滤镜结果渲染到mFilteredFrame，再复制到屏幕
+        mFilterGraph.draw(mTextureId, mSTMatrix, mFilteredFrame);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+        int filteredTextureId = mFilteredFrame.getTextureId();
+        mCopyGraph.draw(filteredTextureId, GLUtil.IDENTITY_MATRIX, mSurfaceWidth, mSurfaceHeight);
+
+        long timestamp = mSurfaceTexture.getTimestamp();
+        encoderDrawFrame(filteredTextureId, timestamp);
+        recycleRetiredFilteredFrames();
+
+        updateFrameStats(timestamp, System.nanoTime() - startNs);
+    }
 
-        encoderDrawFrame(mTextureId, mSTMatrix, mSurfaceTexture.getTimestamp());
+    /**
+     * 记录一帧的耗时（不含等待垂直同步的swapBuffers），并定期输出统计，用于检查高帧率下是否丢帧
+     * @param timestamp 相机帧时间戳
+     * @param workNs 本帧渲染和送编码的耗时
+     */
+    private void updateFrameStats(long timestamp, long workNs) {
+        if (mFrameStatsStartNs < 0) {
+            mFrameStatsStartNs = timestamp;
+            mFrameTimes.setExpectedFps(CameraController.getInstance().getPreviewFps());
+        }
+        mFrameTimes.onFrame(timestamp, workNs);
+        if (timestamp - mFrameStatsStartNs >= FRAME_STATS_INTERVAL_NS) {
+            Log.d(TAG, "render frame times @" + CameraController.getInstance().getPreviewFps() +
+                    "fps: " + mFrameTimes);
+            mFrameTimes.reset();
+            mFrameStatsStartNs = -1;
+        }
     }
 
     /**
      * 通知编码器绘制video frame
-     * @param textureId 纹理ID，与相机预览的纹理绑定，获取纹理数据
-     * @param texMatrix 纹理矩阵
+     * @param textureId 已经处理过滤镜的2D纹理ID，编码器直接复制，不再重复渲染滤镜
      * @param timestamp 时间戳
      */
-    private void encoderDrawFrame(int textureId, float[] texMatrix, long timestamp) {
+    private void encoderDrawFrame(int textureId, long timestamp) {
         if (mRecordingEnabled && mEncoderConfig != null) {
             switch (mRecordingStatus) {
                 case RECORDING_OFF:
                     mEncoderConfig.updateEglContext(EGL14.eglGetCurrentContext());
                     mVideoEncoder.startRecording(mEncoderConfig);
-                    mVideoEncoder.setTextureId(textureId);
+                    mVideoEncoder.setFilteredTextureId(textureId);
                     mRecordingStatus = RECORDING_ON;
 
                     break;
                 case RECORDING_RESUMED:
                     mVideoEncoder.updateSharedContext(EGL14.eglGetCurrentContext());
-                    mVideoEncoder.setTextureId(textureId);
+                    mVideoEncoder.setFilteredTextureId(textureId);
                     mRecordingStatus = RECORDING_ON;
                     break;
                 case RECORDING_ON:
@@ -151,14 +303,49 @@ public class CameraRecordRenderer implements GLSurfaceView.Renderer {
                     mRecordingStatus = RECORDING_OFF;
                     break;
                 case RECORDING_OFF:
-                    // yay
+                    if (!mEncoderPrewarmed && mEncoderConfig != null) {
+                        //预览期间提前创建并配置编码器，缩短开始录制到第一帧的时间
+                        mEncoderConfig.updateEglContext(EGL14.eglGetCurrentContext());
+                        mVideoEncoder.prewarm(mEncoderConfig);
+                        mEncoderPrewarmed = true;
+                    }
                     break;
                 default:
                     throw new RuntimeException("unknown status " + mRecordingStatus);
             }
         }
 
-        mVideoEncoder.updateFilter(mCurrentFilterType);
-        mVideoEncoder.frameAvailable(texMatrix, timestamp);
+        if (mRecordingStatus == RECORDING_ON) {
+            //编码器在另一个context中读取该纹理，FBO的渲染结果不会自动跨context同步。
+            //GLES3下插入fence，由编码器在GPU上等待，预览线程不阻塞；否则只能glFinish等GPU渲染完成
+            if (mGles3 && mVideoEncoder.isFenceSyncSupported()) {
+                mVideoEncoder.setFilteredFrameFence(
+                        GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0));
+                GLES20.glFlush();
+            } else {
+                GLES20.glFinish();
+            }
+        }
+        mVideoEncoder.frameAvailable(GLUtil.IDENTITY_MATRIX, timestamp);
+    }
+
+    /**
+     * 编码器不再读取换下的mFilteredFrame后，把它们放回mFramebufferPool。
+     * 录制中要等编码器切换到当前的mFilteredFrame；未录制时编码器停止后即可回收
+     */
+    private void recycleRetiredFilteredFrames() {
+        if (mRetiredFilteredFrames.isEmpty()) {
+            return;
+        }
+        int inUse = mVideoEncoder.getFilteredTextureInUse();
+        boolean released = mRecordingStatus == RECORDING_ON ?
+                inUse == mFilteredFrame.getTextureId() : inUse == GLUtil.NO_TEXTURE;
+        if (!released) {
+            return;
+        }
+        for (FramebufferTexture frame : mRetiredFilteredFrames) {
+            mFramebufferPool.recycle(frame);
+        }
+        mRetiredFilteredFrames.clear();
     }
 }
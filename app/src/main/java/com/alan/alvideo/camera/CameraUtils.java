@@ -125,4 +125,23 @@ public class CameraUtils {
         }
         return retRange;
     }
+
+    /**
+     * 获取相机支持的最高帧率范围，用于高帧率（慢动作）录制。
+     * 上限相同时优先下限更高的范围，固定帧率比可变帧率更适合编码
+     * @param fpsRanges 相机支持的帧率范围列表，单位为帧率*1000
+     * @return 帧率范围，列表为空时返回30fps
+     */
+    public static int[] getHighestPreviewFps(List<int[]> fpsRanges) {
+        if (fpsRanges == null || fpsRanges.isEmpty()) {
+            return new int[]{30000, 30000};
+        }
+        int[] retRange = fpsRanges.get(0);
+        for (int[] range : fpsRanges) {
+            if (range[1] > retRange[1] || (range[1] == retRange[1] && range[0] > retRange[0])) {
+                retRange = range;
+            }
+        }
+        return retRange;
+    }
 }
@@ -0,0 +1,115 @@
+package com.alan.alvideo.filter;
+
+import android.opengl.GLES20;
+
+import com.alan.alvideo.gles.FramebufferPool;
+import com.alan.alvideo.gles.FramebufferTexture;
+import com.alan.alvideo.gles.FullFrameRect;
+import com.alan.alvideo.gles.GLUtil;
+import com.alan.alvideo.gles.ProgramCache;
+import com.alan.alvideo.gles.Texture2dProgram;
+
+/**
+ * The beauty filter as three draws: a blur of the green channel across, then down, both
+ * at 1/BLUR_DOWNSCALE of the frame size, then the full-size composite that reads the
+ * camera and the blur.
+ * <p>
+ * The full-size pass takes two samples per pixel, and the blur passes take five each over
+ * a sixteenth of the pixels, with the step taken from the real size rather than fixed for
+ * one frame size.
+ * <p>
+ * The blur targets come from the graph's FramebufferPool.  Programs come from a
+ * ProgramCache, which owns them.
+ */
+class BeautyPass implements FilterPass {
+    /**
+     * How much smaller the blur runs than the frame, in each direction.
+     */
+    static final int BLUR_DOWNSCALE = 4;
+
+    private final FramebufferPool mPool;
+    private final FullFrameRect mBlurAcross;
+    private final FullFrameRect mBlurDown;
+    private final FullFrameRect mComposite;
+    private FramebufferTexture mAcrossTarget;
+    private FramebufferTexture mDownTarget;
+    private int mBlurWidth;
+    private int mBlurHeight;
+
+    // The caller's framebuffer and viewport, put back for the composite.
+    private final int[] mFramebuffer = new int[1];
+    private final int[] mViewport = new int[4];
+
+    BeautyPass(ProgramCache programCache, FramebufferPool pool) {
+        mPool = pool;
+        mBlurAcross = new FullFrameRect(
+                programCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT_BLUR));
+        mBlurDown = new FullFrameRect(
+                programCache.get(Texture2dProgram.ProgramType.TEXTURE_2D_BLUR));
+        mComposite = new FullFrameRect(
+                programCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT_BEAUTY_COMPOSITE));
+    }
+
+    @Override
+    public void onSizeChanged(int width, int height) {
+        int blurWidth = Math.max(1, width / BLUR_DOWNSCALE);
+        int blurHeight = Math.max(1, height / BLUR_DOWNSCALE);
+        if (blurWidth != mBlurWidth || blurHeight != mBlurHeight) {
+            recycleTargets();
+            mBlurWidth = blurWidth;
+            mBlurHeight = blurHeight;
+        }
+    }
+
+    @Override
+    public void draw(int textureId, float[] texMatrix) {
+        if (mBlurWidth == 0) {
+            throw new IllegalStateException("onSizeChanged() first");
+        }
+        if (mAcrossTarget == null) {
+            mAcrossTarget = mPool.acquire(mBlurWidth, mBlurHeight);
+            mDownTarget = mPool.acquire(mBlurWidth, mBlurHeight);
+        }
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mFramebuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mViewport, 0);
+
+        // Across the output, straight from the camera.  One blur texel along the output's x
+        // axis, carried into the camera texture's coordinates by the transform, which may
+        // rotate.
+        float step = 1f / mBlurWidth;
+        mBlurAcross.getProgram().setTexelStep(texMatrix[0] * step, texMatrix[1] * step);
+        mAcrossTarget.bind();
+        mBlurAcross.drawFrame(textureId, texMatrix);
+
+        // Down, from the upright first pass.
+        mBlurDown.getProgram().setTexelStep(0f, 1f / mBlurHeight);
+        mDownTarget.bind();
+        mBlurDown.drawFrame(mAcrossTarget.getTextureId(), GLUtil.IDENTITY_MATRIX);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        GLES20.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3]);
+        mComposite.getProgram().setBlurTexture(mDownTarget.getTextureId());
+        mComposite.drawFrame(textureId, texMatrix);
+    }
+
+    @Override
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup) {
+            recycleTargets();
+        } else {
+            mAcrossTarget = mDownTarget = null;
+        }
+        // Forget the programs without deleting them; they stay in the cache.
+        mBlurAcross.release(false);
+        mBlurDown.release(false);
+        mComposite.release(false);
+    }
+
+    private void recycleTargets() {
+        if (mAcrossTarget != null) {
+            mPool.recycle(mAcrossTarget);
+            mPool.recycle(mDownTarget);
+            mAcrossTarget = mDownTarget = null;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.alan.alvideo.filter;
+
+import android.opengl.GLES20;
+
+import com.alan.alvideo.gles.FramebufferPool;
+import com.alan.alvideo.gles.FramebufferTexture;
+import com.alan.alvideo.gles.GLUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a chain of FilterPasses over the camera texture, e.g. beauty, then sharpen.
+ * <p>
+ * Every pass but the last renders into an offscreen texture that the next one reads.  Two
+ * targets are enough for any number of passes: the passes alternate between them
+ * ("ping-pong"), so no pass reads the texture it is writing.  The targets come from a
+ * FramebufferPool and are kept until the size changes or the graph is released, so
+ * replacing the passes doesn't allocate any, and each extra pass costs one draw.  A graph
+ * with a single pass draws straight to the output, exactly like a FullFrameRect.
+ * <p>
+ * The intermediate targets have the graph's size, which can differ from the output's: the
+ * last pass scales to whatever viewport draw() is given.  The output can also be a texture,
+ * e.g. one that another context in the share group draws from, so the passes run once for
+ * several consumers.
+ * <p>
+ * Use on the thread of the EGL context the pool belongs to.
+ */
+public class FilterGraph {
+    private final FramebufferPool mPool;
+    private final List<FilterPass> mPasses = new ArrayList<>();
+    private final FramebufferTexture[] mTargets = new FramebufferTexture[2];
+    private int mWidth;
+    private int mHeight;
+
+    public FilterGraph(FramebufferPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Replaces the passes.  The graph takes ownership of the new ones, and releases the
+     * old ones.  The EGL context must be current.
+     *
+     * @param passes At least one pass; the first reads the camera texture.
+     */
+    public void setPasses(List<FilterPass> passes) {
+        if (passes.isEmpty()) {
+            throw new IllegalArgumentException("no passes");
+        }
+        releasePasses(true);
+        mPasses.addAll(passes);
+        if (mWidth > 0) {
+            for (FilterPass pass : mPasses) {
+                pass.onSizeChanged(mWidth, mHeight);
+            }
+        }
+    }
+
+    public int getPassCount() {
+        return mPasses.size();
+    }
+
+    /**
+     * Sets the size the passes work at, usually the camera frame's or the output's.
+     */
+    public void setSize(int width, int height) {
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        recycleTargets();
+        for (FilterPass pass : mPasses) {
+            pass.onSizeChanged(width, height);
+        }
+    }
+
+    /**
+     * Runs the passes.  The last one draws into the default framebuffer of the current
+     * surface.
+     *
+     * @param textureId    The camera's external texture.
+     * @param texMatrix    Its transform, from SurfaceTexture.
+     * @param outputWidth  Viewport width for the last pass.  The viewport is only set if
+     *                     there are intermediate passes, since they move it to their target;
+     *                     a single pass draws into the caller's viewport as is.
+     * @param outputHeight Viewport height for the last pass.
+     */
+    public void draw(int textureId, float[] texMatrix, int outputWidth, int outputHeight) {
+        drawPasses(textureId, texMatrix, null, outputWidth, outputHeight);
+    }
+
+    /**
+     * Runs the passes, the last one into {@code output}, which is left bound.  Its texture
+     * then holds the filtered frame, upright, so it can be drawn with the identity transform.
+     *
+     * @param textureId The camera's external texture.
+     * @param texMatrix Its transform, from SurfaceTexture.
+     * @param output    Where the filtered frame goes; any size.
+     */
+    public void draw(int textureId, float[] texMatrix, FramebufferTexture output) {
+        drawPasses(textureId, texMatrix, output, output.getWidth(), output.getHeight());
+    }
+
+    /**
+     * @param output Target for the last pass, or null for the default framebuffer.
+     */
+    private void drawPasses(int textureId, float[] texMatrix, FramebufferTexture output,
+                            int outputWidth, int outputHeight) {
+        int passCount = mPasses.size();
+        if (passCount == 0) {
+            throw new IllegalStateException("no passes");
+        }
+        int inputId = textureId;
+        float[] inputMatrix = texMatrix;
+        for (int i = 0; i < passCount - 1; i++) {
+            FramebufferTexture target = getTarget(i % 2);
+            target.bind();
+            mPasses.get(i).draw(inputId, inputMatrix);
+            inputId = target.getTextureId();
+            inputMatrix = GLUtil.IDENTITY_MATRIX;
+        }
+        if (output != null) {
+            output.bind();
+        } else if (passCount > 1) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glViewport(0, 0, outputWidth, outputHeight);
+        }
+        mPasses.get(passCount - 1).draw(inputId, inputMatrix);
+    }
+
+    private FramebufferTexture getTarget(int index) {
+        FramebufferTexture target = mTargets[index];
+        if (target == null) {
+            if (mWidth <= 0) {
+                throw new IllegalStateException("setSize() first");
+            }
+            target = mPool.acquire(mWidth, mHeight);
+            mTargets[index] = target;
+        }
+        return target;
+    }
+
+    /**
+     * Releases the passes and hands the targets back to the pool.
+     *
+     * @param doEglCleanup False if the EGL context is going away anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        releasePasses(doEglCleanup);
+        if (doEglCleanup) {
+            recycleTargets();
+        } else {
+            mTargets[0] = mTargets[1] = null;
+        }
+    }
+
+    private void releasePasses(boolean doEglCleanup) {
+        for (FilterPass pass : mPasses) {
+            pass.release(doEglCleanup);
+        }
+        mPasses.clear();
+    }
+
+    private void recycleTargets() {
+        for (int i = 0; i < mTargets.length; i++) {
+            if (mTargets[i] != null) {
+                mPool.recycle(mTargets[i]);
+                mTargets[i] = null;
+            }
+        }
+    }
+}
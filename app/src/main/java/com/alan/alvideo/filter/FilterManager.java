@@ -1,7 +1,12 @@
 package com.alan.alvideo.filter;
 
+import com.alan.alvideo.gles.FramebufferPool;
+import com.alan.alvideo.gles.ProgramCache;
 import com.alan.alvideo.gles.Texture2dProgram;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by wangjianjun on 16/12/22.
  * alanwang6584@gmail.com
@@ -12,19 +17,23 @@ public class FilterManager {
      * 滤镜类型
      */
     public enum FilterType {
-        NORMAL, GRAYSCALE, PURPLE, SEPIA, BEAUTY
+        NORMAL, GRAYSCALE, PURPLE, SEPIA, BEAUTY, BEAUTY_SHARPEN
     }
 
+    //锐化卷积核
+    private static final float[] SHARPEN_KERNEL = {
+            0f, -1f, 0f,
+            -1f, 5f, -1f,
+            0f, -1f, 0f
+    };
+
     private FilterManager() {
     }
 
     /**
-     * 根据滤镜类型返回纹理渲染器
-     *
-     * @param filterType
-     * @return
+     * 滤镜类型对应的读取相机纹理的程序类型。美颜由BeautyPass处理，不在这里
      */
-    public static Texture2dProgram getCameraFilter(FilterType filterType) {
+    private static Texture2dProgram.ProgramType getCameraProgramType(FilterType filterType) {
         Texture2dProgram.ProgramType programType;
         switch (filterType) {
             case NORMAL:
@@ -40,11 +49,75 @@ public class FilterManager {
             case SEPIA:
                 programType = Texture2dProgram.ProgramType.TEXTURE_EXT_SEPIA;
                 break;
-            case BEAUTY:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_BEAUTY;
-                break;
         }
-        Texture2dProgram program = new Texture2dProgram(programType);
-        return program;
+        return programType;
+    }
+
+    /**
+     * 所有滤镜用到的程序类型，用于提前编译。耗时最长的美颜放在最前面
+     */
+    public static Texture2dProgram.ProgramType[] getAllProgramTypes() {
+        return new Texture2dProgram.ProgramType[]{
+                Texture2dProgram.ProgramType.TEXTURE_EXT_BEAUTY_COMPOSITE,
+                Texture2dProgram.ProgramType.TEXTURE_EXT_BLUR,
+                Texture2dProgram.ProgramType.TEXTURE_2D_BLUR,
+                Texture2dProgram.ProgramType.TEXTURE_EXT,
+                Texture2dProgram.ProgramType.TEXTURE_EXT_BW,
+                Texture2dProgram.ProgramType.TEXTURE_EXT_PURPLE,
+                Texture2dProgram.ProgramType.TEXTURE_EXT_SEPIA,
+                Texture2dProgram.ProgramType.TEXTURE_2D_FILT,
+                Texture2dProgram.ProgramType.TEXTURE_2D
+        };
+    }
+
+    /**
+     * 根据滤镜类型创建FilterGraph的各个渲染步骤，第一步读取相机纹理，之后每一步读取上一步的输出。
+     * 程序从programCache中获取，已编译过的滤镜切换时不再重新编译。需要在GL线程调用。
+     * 美颜使用BeautyPass：先在1/4尺寸下分两次模糊，再全尺寸合成
+     *
+     * @param filterType
+     * @param programCache    当前EGL context的程序缓存
+     * @param framebufferPool 当前EGL context的FBO池，美颜的模糊结果从这里获取
+     * @return
+     */
+    public static List<FilterPass> createPasses(FilterType filterType, ProgramCache programCache,
+                                                FramebufferPool framebufferPool) {
+        List<FilterPass> passes = new ArrayList<>(2);
+        if (filterType == FilterType.BEAUTY || filterType == FilterType.BEAUTY_SHARPEN) {
+            passes.add(new BeautyPass(programCache, framebufferPool));
+        } else {
+            passes.add(new ProgramPass(programCache.get(getCameraProgramType(filterType))));
+        }
+        if (filterType == FilterType.BEAUTY_SHARPEN) {
+            Texture2dProgram sharpen =
+                    programCache.get(Texture2dProgram.ProgramType.TEXTURE_2D_FILT);
+            sharpen.setKernel(SHARPEN_KERNEL, 0f);
+            passes.add(new ProgramPass(sharpen));
+        }
+        return passes;
+    }
+
+    /**
+     * 只复制一张已经处理过滤镜的2D纹理（例如预览线程输出的滤镜结果），不再做任何处理。
+     * 需要在GL线程调用
+     *
+     * @param programCache 当前EGL context的程序缓存
+     * @return
+     */
+    public static List<FilterPass> createCopyPasses(ProgramCache programCache) {
+        List<FilterPass> passes = new ArrayList<>(1);
+        passes.add(new ProgramPass(programCache.get(Texture2dProgram.ProgramType.TEXTURE_2D)));
+        return passes;
+    }
+
+    /**
+     * 设置美颜级别（1~5），对programCache中的美颜程序立即生效。需要在GL线程调用
+     *
+     * @param programCache 当前EGL context的程序缓存
+     * @param level
+     */
+    public static void setBeautyLevel(ProgramCache programCache, int level) {
+        programCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT_BEAUTY_COMPOSITE)
+                .setBeautyLevel(level);
     }
 }
@@ -0,0 +1,28 @@
+package com.alan.alvideo.filter;
+
+/**
+ * One step of a FilterGraph: draws its input texture, transformed, into whatever is bound.
+ * <p>
+ * The first pass of a graph reads the camera's external texture with the SurfaceTexture
+ * transform; every later pass reads a plain 2D texture with the identity transform.  All
+ * methods are called on the thread of the EGL context the graph lives in.
+ */
+public interface FilterPass {
+    /**
+     * The frame size changed.  Called before the first draw, and again before any draw at a
+     * new size.
+     */
+    void onSizeChanged(int width, int height);
+
+    /**
+     * Draws the input over the whole viewport of the bound framebuffer.
+     */
+    void draw(int textureId, float[] texMatrix);
+
+    /**
+     * Releases the pass's GL objects.
+     *
+     * @param doEglCleanup False if the EGL context is going away anyway.
+     */
+    void release(boolean doEglCleanup);
+}
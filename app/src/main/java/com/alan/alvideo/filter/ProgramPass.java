@@ -0,0 +1,37 @@
+package com.alan.alvideo.filter;
+
+import com.alan.alvideo.gles.FullFrameRect;
+import com.alan.alvideo.gles.Texture2dProgram;
+
+/**
+ * A FilterPass that draws a viewport-filling rect with one Texture2dProgram from a
+ * ProgramCache.  The cache owns the program, so dropping the pass doesn't delete it.
+ */
+class ProgramPass implements FilterPass {
+    private final FullFrameRect mRect;
+
+    ProgramPass(Texture2dProgram program) {
+        mRect = new FullFrameRect(program);
+    }
+
+    Texture2dProgram getProgram() {
+        return mRect.getProgram();
+    }
+
+    @Override
+    public void onSizeChanged(int width, int height) {
+        // Convolution programs step one texel at a time.
+        mRect.getProgram().setTexSize(width, height);
+    }
+
+    @Override
+    public void draw(int textureId, float[] texMatrix) {
+        mRect.drawFrame(textureId, texMatrix);
+    }
+
+    @Override
+    public void release(boolean doEglCleanup) {
+        // Forget the program without deleting it; it stays in the cache.
+        mRect.release(false);
+    }
+}
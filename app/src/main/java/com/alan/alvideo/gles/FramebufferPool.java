@@ -0,0 +1,64 @@
+package com.alan.alvideo.gles;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps framebuffer textures that are not in use, so render targets can be handed back and
+ * forth between frames, filter graphs and passes without creating new ones.
+ * <p>
+ * Allocating a framebuffer texture costs a texture upload's worth of driver time and
+ * memory; with the pool, that only happens the first time a size is needed.  Up to
+ * MAX_IDLE unused targets are kept; past that, the oldest is deleted.
+ * <p>
+ * One pool per EGL context, since framebuffer objects can't be shared.  Not thread-safe;
+ * use from the thread the context is current on.
+ */
+public class FramebufferPool {
+    /**
+     * Idle targets kept around.  A filter graph uses two, and a multi-pass filter a couple
+     * more at a smaller size.
+     */
+    public static final int MAX_IDLE = 6;
+
+    private final List<FramebufferTexture> mIdle = new ArrayList<>();
+
+    /**
+     * Returns an idle target of the given size, or a new one.
+     */
+    public FramebufferTexture acquire(int width, int height) {
+        for (int i = mIdle.size() - 1; i >= 0; i--) {
+            FramebufferTexture target = mIdle.get(i);
+            if (target.getWidth() == width && target.getHeight() == height) {
+                mIdle.remove(i);
+                return target;
+            }
+        }
+        return new FramebufferTexture(width, height);
+    }
+
+    /**
+     * Hands a target back for reuse.
+     */
+    public void recycle(FramebufferTexture target) {
+        if (mIdle.size() >= MAX_IDLE) {
+            mIdle.remove(0).release();
+        }
+        mIdle.add(target);
+    }
+
+    /**
+     * Deletes the idle targets.  Targets still handed out are the caller's to release.
+     *
+     * @param doEglCleanup False if the EGL context is going away anyway, in which case the
+     *                     targets are only forgotten.
+     */
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup) {
+            for (FramebufferTexture target : mIdle) {
+                target.release();
+            }
+        }
+        mIdle.clear();
+    }
+}
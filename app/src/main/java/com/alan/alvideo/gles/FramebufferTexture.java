@@ -0,0 +1,104 @@
+package com.alan.alvideo.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * An RGBA texture with a framebuffer object that renders into it, for the output of a filter
+ * pass that the next pass reads.
+ * <p>
+ * The texture uses linear filtering and clamps to the edge, so a pass can sample it at a
+ * different size.  A framebuffer object belongs to the EGL context it was created in, even
+ * when the texture is shared, so create, bind and release it on that context.
+ */
+public class FramebufferTexture {
+    private static final String TAG = "FramebufferTexture";
+
+    private final int mWidth;
+    private final int mHeight;
+    private int mTextureId;
+    private int mFramebufferId;
+
+    /**
+     * Allocates the texture and framebuffer in the current EGL context.  On exit, the
+     * default framebuffer is bound.
+     */
+    public FramebufferTexture(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad size " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        GLUtil.checkGlError("glGenTextures");
+        mTextureId = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLUtil.checkGlError("glTexImage2D");
+
+        GLES20.glGenFramebuffers(1, values, 0);
+        GLUtil.checkGlError("glGenFramebuffers");
+        mFramebufferId = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextureId, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            release();
+            throw new RuntimeException("framebuffer not complete, status 0x" +
+                    Integer.toHexString(status));
+        }
+        Log.d(TAG, "created " + width + "x" + height + " framebuffer " + mFramebufferId);
+    }
+
+    /**
+     * Directs rendering into the texture, and sets the viewport to cover it.
+     */
+    public void bind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    public int getTextureId() {
+        return mTextureId;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Deletes the framebuffer and texture.  The EGL context they were created in must be
+     * current.
+     */
+    public void release() {
+        int[] values = new int[1];
+        if (mFramebufferId != 0) {
+            values[0] = mFramebufferId;
+            GLES20.glDeleteFramebuffers(1, values, 0);
+            mFramebufferId = 0;
+        }
+        if (mTextureId != 0) {
+            values[0] = mTextureId;
+            GLES20.glDeleteTextures(1, values, 0);
+            mTextureId = 0;
+        }
+    }
+}
@@ -19,6 +19,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
@@ -26,6 +27,8 @@ import android.support.annotation.Nullable;
 import android.support.annotation.RawRes;
 import android.util.Log;
 
+import com.alan.alvideo.BuildConfig;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -46,6 +49,22 @@ public class GLUtil {
 
     public static final int NO_TEXTURE = -1;
 
+    /**
+     * Whether GL errors are looked for at all.  Every glGetError() can stall the pipeline on
+     * tiled GPUs, and a single draw calls checkGlError() several times, so release builds
+     * leave the checks out.  This comes from the GL_ERROR_CHECKS field in build.gradle,
+     * which is generated as a literal; BuildConfig.DEBUG isn't a compile-time constant, so
+     * only with the literal does javac drop the checks from release builds.
+     * <p>
+     * Debug builds keep polling glGetError().  KHR_debug would report errors as they happen,
+     * but the framework's GLES31Ext.glDebugMessageCallbackKHR() is an unimplemented stub
+     * that throws on every release, so there is no working callback to use instead.
+     */
+    public static final boolean DEBUG_GL = BuildConfig.GL_ERROR_CHECKS;
+
+    // Debug builds only: lets a benchmark turn the checks off.
+    private static volatile boolean sCheckErrors = true;
+
     private static final int SIZEOF_FLOAT = 4;
     private static final int SIZEOF_BUFFER = 2;
 
@@ -61,7 +80,17 @@ public class GLUtil {
         return createProgram(vertexSource, fragmentSource);
     }
 
+    /**
+     * Creates a program from the saved binary if ProgramBinaryCache has one, or compiles and
+     * links it (and saves the binary for next time).
+     *
+     * @return A handle to the program, or 0 on failure.
+     */
     public static int createProgram(String vertexSource, String fragmentSource) {
+        int cached = ProgramBinaryCache.loadProgram(vertexSource, fragmentSource);
+        if (cached != 0) {
+            return cached;
+        }
         int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) {
             return 0;
@@ -79,6 +108,7 @@ public class GLUtil {
         checkGlError("glAttachShader");
         GLES20.glAttachShader(program, pixelShader);
         checkGlError("glAttachShader");
+        ProgramBinaryCache.prepareProgram(program);
         GLES20.glLinkProgram(program);
         int[] linkStatus = new int[1];
         GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
@@ -87,6 +117,8 @@ public class GLUtil {
             Log.e(TAG, GLES20.glGetProgramInfoLog(program));
             GLES20.glDeleteProgram(program);
             program = 0;
+        } else {
+            ProgramBinaryCache.saveProgram(program, vertexSource, fragmentSource);
         }
         return program;
     }
@@ -109,9 +141,12 @@ public class GLUtil {
 
 
     /**
-     * Checks to see if a GLES error has been raised.
+     * Checks to see if a GLES error has been raised.  Only in debug builds; see DEBUG_GL.
      */
     public static void checkGlError(String op) {
+        if (!DEBUG_GL || !sCheckErrors) {
+            return;
+        }
         int error = GLES20.glGetError();
         if (error != GLES20.GL_NO_ERROR) {
             String msg = op + ": glError 0x" + Integer.toHexString(error);
@@ -120,6 +155,40 @@ public class GLUtil {
         }
     }
 
+    /**
+     * Turns checkGlError() off or back on, to measure what the checks cost.  Has no effect
+     * in release builds, which never check.
+     */
+    public static void setErrorChecksEnabled(boolean enabled) {
+        sCheckErrors = enabled;
+    }
+
+    /**
+     * Creates an external texture object for a SurfaceTexture to stream into, set up like
+     * Texture2dProgram#createTextureObject() does.  On exit, the texture will be bound.
+     */
+    public static int createExternalTextureObject() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        checkGlError("glGenTextures");
+
+        int texId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texId);
+        checkGlError("glBindTexture " + texId);
+
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_NEAREST);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        checkGlError("glTexParameter");
+
+        return texId;
+    }
+
     /**
      * Checks to see if the location we obtained is valid.  GLES returns -1 if a label
      * could not be found, but does not set the GL error.
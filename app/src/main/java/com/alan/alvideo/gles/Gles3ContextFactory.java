@@ -0,0 +1,102 @@
+package com.alan.alvideo.gles;
+
+import android.opengl.EGL14;
+import android.opengl.EGLExt;
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+/**
+ * Config chooser and context factory for a GLSurfaceView that asks for GLES3 and falls back
+ * to GLES2, the way EglCore does with FLAG_TRY_GLES3.
+ * <p>
+ * The GLSurfaceView's context is the one the encoder and the program pre-warm share, and
+ * they ask for GLES3 too, so the whole share group gets the same version where the device
+ * has it.  ProgramBinaryCache only works on GLES3 contexts.
+ * <p>
+ * Use for both setEGLConfigChooser() and setEGLContextFactory(), before setRenderer().
+ */
+public class Gles3ContextFactory implements GLSurfaceView.EGLConfigChooser,
+        GLSurfaceView.EGLContextFactory {
+    private static final String TAG = "Gles3ContextFactory";
+
+    private int mGlVersion = -1;
+
+    @Override
+    public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+        EGLConfig config = chooseConfig(egl, display, 3);
+        mGlVersion = 3;
+        if (config == null) {
+            config = chooseConfig(egl, display, 2);
+            mGlVersion = 2;
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("no RGB888 GLES2 EGLConfig");
+        }
+        return config;
+    }
+
+    @Override
+    public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+        EGLContext context = EGL10.EGL_NO_CONTEXT;
+        if (mGlVersion != 2) {
+            context = createContext(egl, display, config, 3);
+        }
+        if (context == EGL10.EGL_NO_CONTEXT) {
+            context = createContext(egl, display, config, 2);
+        }
+        return context;
+    }
+
+    @Override
+    public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+        if (!egl.eglDestroyContext(display, context)) {
+            Log.e(TAG, "eglDestroyContext: 0x" + Integer.toHexString(egl.eglGetError()));
+        }
+    }
+
+    /**
+     * Finds an RGB888 config with a 16-bit depth buffer, as GLSurfaceView's default
+     * chooser does, for the given GLES version.
+     */
+    private static EGLConfig chooseConfig(EGL10 egl, EGLDisplay display, int version) {
+        int renderableType = EGL14.EGL_OPENGL_ES2_BIT;
+        if (version >= 3) {
+            renderableType |= EGLExt.EGL_OPENGL_ES3_BIT_KHR;
+        }
+        int[] attribList = {
+                EGL10.EGL_RED_SIZE, 8, EGL10.EGL_GREEN_SIZE, 8, EGL10.EGL_BLUE_SIZE, 8,
+                EGL10.EGL_DEPTH_SIZE, 16,
+                EGL10.EGL_RENDERABLE_TYPE, renderableType,
+                EGL10.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!egl.eglChooseConfig(display, attribList, configs, configs.length, numConfigs) ||
+                numConfigs[0] < 1) {
+            Log.w(TAG, "unable to find RGB888 / " + version + " EGLConfig");
+            return null;
+        }
+        return configs[0];
+    }
+
+    private static EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config,
+                                            int version) {
+        int[] attribList = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, version, EGL10.EGL_NONE
+        };
+        EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT,
+                attribList);
+        if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+            Log.w(TAG, "unable to create GLES" + version + " context: 0x" +
+                    Integer.toHexString(egl.eglGetError()));
+            return EGL10.EGL_NO_CONTEXT;
+        }
+        Log.d(TAG, "EGLContext created, client version " + version);
+        return context;
+    }
+}
@@ -0,0 +1,272 @@
+package com.alan.alvideo.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps linked program binaries on disk, so the next launch can skip compiling shaders.
+ * <p>
+ * GLUtil#createProgram() asks here first.  A binary is looked up by a hash of the two
+ * shader sources, in a directory named after a hash of GL_RENDERER, GL_VERSION (which
+ * carries the driver build on most GPUs) and Build.FINGERPRINT, since a binary is only good
+ * for the driver that made it.  When the driver changes, the old directory is deleted the
+ * first time a binary is saved in the new one.  A driver may still reject a binary, e.g.
+ * after an update that didn't change any of those strings; the file is then deleted, and
+ * the program compiled from source and saved again.
+ * <p>
+ * Only used when the current context is OpenGL ES 3.0 or later and has at least one binary
+ * format, which is why the preview (Gles3ContextFactory), the encoder and the pre-warm
+ * thread (EglCore.FLAG_TRY_GLES3) all ask for GLES3.  On a device that only has GLES2 they
+ * fall back to it, and programs are compiled from source every time: ES 2.0 contexts could
+ * use OES_get_program_binary, but the framework has no bindings for it.  Nothing is cached
+ * until init() is called.
+ * <p>
+ * Thread-safe; every method works on the context current on the calling thread.
+ */
+public final class ProgramBinaryCache {
+    private static final String TAG = "ProgramBinaryCache";
+
+    private static final String CACHE_DIR = "program_binaries";
+    private static final String CACHE_VERSION = "ProgramBinaryCache 1";
+    // Binaries much bigger than this are not something we made.
+    private static final int MAX_BINARY_BYTES = 4 * 1024 * 1024;
+
+    private static volatile File sCacheDir;
+
+    private ProgramBinaryCache() {
+    }
+
+    /**
+     * Sets where binaries are kept.  Call once, e.g. from Activity#onCreate() with
+     * Context#getCacheDir(), before any programs are created.  Null turns the cache off.
+     */
+    public static void init(File cacheDir) {
+        sCacheDir = cacheDir != null ? new File(cacheDir, CACHE_DIR) : null;
+    }
+
+    /**
+     * Creates a program from a saved binary in the current context.  Returns 0 if there is
+     * no usable binary, in which case the program must be compiled from source.
+     */
+    public static int loadProgram(String vertexSource, String fragmentSource) {
+        File file = getBinaryFile(vertexSource, fragmentSource);
+        if (file == null || !file.exists()) {
+            return 0;
+        }
+        ByteBuffer binary;
+        int binaryFormat;
+        try {
+            binary = readFile(file);
+            binaryFormat = binary.getInt();
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to read " + file, ioe);
+            file.delete();
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        if (program == 0) {
+            return 0;
+        }
+        clearGlErrors();
+        GLES30.glProgramBinary(program, binaryFormat, binary.slice(), binary.remaining());
+        // A format the driver doesn't know raises GL_INVALID_ENUM; don't leave it for the
+        // next checkGlError() to trip over.
+        int error = GLES20.glGetError();
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (error != GLES20.GL_NO_ERROR || linkStatus[0] != GLES20.GL_TRUE) {
+            Log.w(TAG, "binary rejected (glError 0x" + Integer.toHexString(error) + "), " +
+                    "compiling from source");
+            GLES20.glDeleteProgram(program);
+            file.delete();
+            return 0;
+        }
+        return program;
+    }
+
+    /**
+     * Asks the driver to keep the binary of a program that is about to be linked, so
+     * saveProgram() can get it.  Call between glAttachShader() and glLinkProgram().
+     */
+    public static void prepareProgram(int program) {
+        if (isSupported()) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+                    GLES20.GL_TRUE);
+        }
+    }
+
+    /**
+     * Saves the binary of a successfully linked program.  Failures are logged and
+     * otherwise ignored; the program compiles from source again next time.
+     */
+    public static void saveProgram(int program, String vertexSource, String fragmentSource) {
+        File file = getBinaryFile(vertexSource, fragmentSource);
+        if (file == null) {
+            return;
+        }
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        int length = values[0];
+        if (length <= 0 || length > MAX_BINARY_BYTES) {
+            GLES20.glGetError();
+            return;
+        }
+        ByteBuffer binary = ByteBuffer.allocateDirect(4 + length);
+        binary.position(4);
+        int[] binaryFormat = new int[1];
+        clearGlErrors();
+        GLES30.glGetProgramBinary(program, length, values, 0, binaryFormat, 0, binary.slice());
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || values[0] <= 0) {
+            Log.w(TAG, "unable to get program binary");
+            return;
+        }
+        binary.putInt(0, binaryFormat[0]);
+        binary.limit(4 + values[0]);
+        binary.position(0);
+        try {
+            writeFile(file, binary);
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to write " + file, ioe);
+        }
+    }
+
+    /**
+     * Returns true if binaries can be used with the current context.
+     */
+    private static boolean isSupported() {
+        if (sCacheDir == null) {
+            return false;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES ") ||
+                version.startsWith("OpenGL ES 2") || version.startsWith("OpenGL ES-")) {
+            return false;
+        }
+        int[] formats = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        return formats[0] > 0;
+    }
+
+    /**
+     * Returns the file for a program in the current context, or null if binaries can't be
+     * used with it.
+     */
+    private static File getBinaryFile(String vertexSource, String fragmentSource) {
+        File cacheDir = sCacheDir;
+        if (cacheDir == null || !isSupported()) {
+            return null;
+        }
+        String driver = CACHE_VERSION + "\n" + GLES20.glGetString(GLES20.GL_RENDERER) + "\n" +
+                GLES20.glGetString(GLES20.GL_VERSION) + "\n" + Build.FINGERPRINT;
+        File driverDir = new File(cacheDir, hash(driver));
+        return new File(driverDir, hash(vertexSource + "\u0000" + fragmentSource) + ".bin");
+    }
+
+    /**
+     * Discards errors left over from earlier calls, which release builds never check, so
+     * they aren't taken for ours.
+     */
+    private static void clearGlErrors() {
+        for (int i = 0; i < 8 && GLES20.glGetError() != GLES20.GL_NO_ERROR; i++) {
+            // keep going
+        }
+    }
+
+    private static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ByteBuffer readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size <= 4 || size > 4 + MAX_BINARY_BYTES) {
+                throw new IOException("bad size " + size);
+            }
+            ByteBuffer buf = ByteBuffer.allocateDirect((int) size);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) {
+                    throw new IOException("short read");
+                }
+            }
+            buf.flip();
+            return buf;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a binary file.  The file is replaced in one step, so a crash half way through
+     * leaves no file rather than half of one.  Other threads may be writing the same file;
+     * whichever renames last wins, and both wrote the same thing.
+     */
+    private static void writeFile(File file, ByteBuffer data) throws IOException {
+        File driverDir = file.getParentFile();
+        if (!driverDir.exists()) {
+            deleteOtherDrivers(driverDir);
+            if (!driverDir.mkdirs() && !driverDir.isDirectory()) {
+                throw new IOException("unable to create " + driverDir);
+            }
+        }
+        File temp = File.createTempFile(file.getName(), ".tmp", driverDir);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("unable to rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Deletes the binaries made by other drivers, which will never be loaded again.
+     */
+    private static void deleteOtherDrivers(File driverDir) {
+        File[] dirs = driverDir.getParentFile().listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (dir.equals(driverDir)) {
+                continue;
+            }
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.alan.alvideo.gles;
+
+import android.opengl.EGLContext;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Linked Texture2dPrograms for one EGL context, by program type.
+ * <p>
+ * Compiling and linking a program takes milliseconds, tens of them for the beauty shader on
+ * a slow GPU, so switching filters by creating a new program shows as a hitch.  With the
+ * cache each program is built once per context and then kept: switching costs a
+ * glUseProgram() and some uniforms.  The programs stay alive until release().
+ * <p>
+ * Programs are per context, not per share group, even though the encoder's context shares
+ * with the preview's: uniforms are program state, and the two threads would overwrite each
+ * other's.  prewarmInBackground() still uses sharing, to build the programs for a context
+ * on another thread before they're needed; only the context the cache belongs to ever
+ * draws with them.
+ * <p>
+ * get() and release() are called on the thread the context is current on; the cache itself
+ * may be filled from a background thread at the same time.
+ */
+public class ProgramCache {
+    private static final String TAG = "ProgramCache";
+
+    private final Map<Texture2dProgram.ProgramType, Texture2dProgram> mPrograms =
+            new EnumMap<>(Texture2dProgram.ProgramType.class);
+    private boolean mReleased;      // guarded by "this"
+
+    /**
+     * Returns the program of the given type, building it in the current context if it's
+     * not cached yet.  The program belongs to the cache; don't release it.
+     */
+    public Texture2dProgram get(Texture2dProgram.ProgramType programType) {
+        synchronized (this) {
+            Texture2dProgram program = mPrograms.get(programType);
+            if (program != null) {
+                return program;
+            }
+        }
+        // Build outside the lock, so a background prewarm doesn't wait on us or we on it.
+        return add(new Texture2dProgram(programType));
+    }
+
+    /**
+     * Builds the programs of the given types that aren't cached yet, in the current context.
+     */
+    public void prewarm(Texture2dProgram.ProgramType... programTypes) {
+        for (Texture2dProgram.ProgramType programType : programTypes) {
+            if (!contains(programType)) {
+                add(new Texture2dProgram(programType));
+            }
+        }
+    }
+
+    /**
+     * Like prewarm(), but on a new thread with a context of its own that shares with
+     * {@code sharedContext}, the context this cache is for.  Returns right away; programs
+     * show up in the cache as they're linked, and get() builds any that aren't there yet
+     * when it needs them.
+     */
+    public void prewarmInBackground(final EGLContext sharedContext,
+                                    final Texture2dProgram.ProgramType... programTypes) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long startNs = System.nanoTime();
+                EglCore eglCore = null;
+                EGLSurface surface = null;
+                try {
+                    // Fails if, e.g., the shared context was destroyed in the meantime.
+                    eglCore = new EglCore(sharedContext, EglCore.FLAG_TRY_GLES3);
+                    surface = eglCore.createOffscreenSurface(1, 1);
+                    eglCore.makeCurrent(surface);
+                    for (Texture2dProgram.ProgramType programType : programTypes) {
+                        if (isReleased()) {
+                            break;
+                        }
+                        if (contains(programType)) {
+                            continue;
+                        }
+                        Texture2dProgram program = new Texture2dProgram(programType);
+                        // The other context may only use the program once it's complete.
+                        GLES20.glFinish();
+                        add(program);
+                    }
+                } catch (RuntimeException re) {
+                    // get() builds whatever is missing.
+                    Log.w(TAG, "unable to pre-warm programs", re);
+                } finally {
+                    if (eglCore != null) {
+                        eglCore.makeNothingCurrent();
+                        if (surface != null) {
+                            eglCore.releaseSurface(surface);
+                        }
+                        eglCore.release();
+                    }
+                }
+                Log.d(TAG, "pre-warmed programs in " + (System.nanoTime() - startNs) / 1000000 +
+                        "ms");
+            }
+        }, "ProgramPrewarm");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private synchronized boolean contains(Texture2dProgram.ProgramType programType) {
+        return mPrograms.containsKey(programType);
+    }
+
+    private synchronized boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * Adds a program, unless one of its type got there first or the cache was released, in
+     * which case the new one is deleted.  Returns the cached program.
+     */
+    private Texture2dProgram add(Texture2dProgram program) {
+        Texture2dProgram.ProgramType programType = program.getProgramType();
+        Texture2dProgram cached;
+        synchronized (this) {
+            cached = mReleased ? null : mPrograms.get(programType);
+            if (cached == null && !mReleased) {
+                mPrograms.put(programType, program);
+                return program;
+            }
+        }
+        program.release();
+        return cached;
+    }
+
+    /**
+     * Releases all programs.  Programs a background prewarm is still building are deleted
+     * as they're finished.
+     *
+     * @param doEglCleanup False if the EGL context is going away anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        synchronized (this) {
+            mReleased = true;
+            if (doEglCleanup) {
+                for (Texture2dProgram program : mPrograms.values()) {
+                    program.release();
+                }
+            }
+            mPrograms.clear();
+        }
+    }
+}
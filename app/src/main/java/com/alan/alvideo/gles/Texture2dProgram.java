@@ -29,7 +29,8 @@ public class Texture2dProgram {
     private static final String TAG = Texture2dProgram.class.getSimpleName();
 
     public enum ProgramType {
-        TEXTURE_2D, TEXTURE_EXT, TEXTURE_EXT_BW, TEXTURE_EXT_FILT, TEXTURE_EXT_PURPLE, TEXTURE_EXT_SEPIA, TEXTURE_EXT_BEAUTY
+        TEXTURE_2D, TEXTURE_2D_FILT, TEXTURE_EXT, TEXTURE_EXT_BW, TEXTURE_EXT_FILT, TEXTURE_EXT_PURPLE, TEXTURE_EXT_SEPIA,
+        TEXTURE_EXT_BLUR, TEXTURE_2D_BLUR, TEXTURE_EXT_BEAUTY_COMPOSITE
     }
 
     // Simple vertex shader, used for all programs.
@@ -44,6 +45,15 @@ public class Texture2dProgram {
                     "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
                     "}\n";
 
+    // Vertex shader that also passes the untransformed coordinates, for reading a texture
+    // that was drawn upright from the one uTexMatrix applies to.
+    private static final String VERTEX_SHADER_BLUR_COORD = VERTEX_SHADER
+            .replace("varying vec2 vTextureCoord;\n",
+                    "varying vec2 vTextureCoord;\nvarying vec2 vBlurCoord;\n")
+            .replace("    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n",
+                    "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+                            "    vBlurCoord = aTextureCoord.xy;\n");
+
     // Simple fragment shader for use with "normal" 2D textures.
     private static final String FRAGMENT_SHADER_2D =
             "precision mediump float;\n" +
@@ -112,6 +122,11 @@ public class Texture2dProgram {
     // - Bake the filter kernel into the shader, instead of passing it through a uniform
     //   array.  That, combined with loop unrolling, should reduce memory accesses.
     public static final int KERNEL_SIZE = 9;
+
+    /**
+     * Beauty level the beauty programs start with.
+     */
+    public static final int DEFAULT_BEAUTY_LEVEL = 3;
     private static final String FRAGMENT_SHADER_EXT_FILT =
             "#extension GL_OES_EGL_image_external : require\n" +
                     "#define KERNEL_SIZE " + KERNEL_SIZE + "\n" +
@@ -132,68 +147,16 @@ public class Texture2dProgram {
                     "    gl_FragColor = sum;\n" +
                     "}\n";
 
-    private static final String FRAGMENT_SHADER_EXT_BEAUTY =
-            "#extension GL_OES_EGL_image_external : require\n" +
-                    "precision mediump float;\n" +
+    // Same convolution, for a 2D texture, e.g. the output of an earlier filter pass.
+    private static final String FRAGMENT_SHADER_2D_FILT = FRAGMENT_SHADER_EXT_FILT
+            .replace("#extension GL_OES_EGL_image_external : require\n", "")
+            .replace("samplerExternalOES", "sampler2D");
 
-                    "uniform samplerExternalOES sTexture;\n" +
-                    "uniform vec4 levelParam;\n" +
-                    "varying mediump vec2 vTextureCoord;\n" +
-
-                    "void main() {\n" +
-                    "vec3 centralColor;\n" +
-                    "float sampleColor;\n" +
-                    "vec2 blurCoordinates[20];\n" +
-                    "float mul = 2.0;\n" +
-                    "float mul_x = mul / 480.0;\n" +
-                    "float mul_y = mul / 640.0;\n" +
-
-                    "blurCoordinates[0] = vTextureCoord + vec2(0.0 * mul_x,-10.0 * mul_y);\n" +
-                    "blurCoordinates[1] = vTextureCoord + vec2(5.0 * mul_x,-8.0 * mul_y);\n" +
-                    "blurCoordinates[2] = vTextureCoord + vec2(8.0 * mul_x,-5.0 * mul_y);\n" +
-                    "blurCoordinates[3] = vTextureCoord + vec2(10.0 * mul_x,0.0 * mul_y);\n" +
-                    "blurCoordinates[4] = vTextureCoord + vec2(8.0 * mul_x,5.0 * mul_y);\n" +
-                    "blurCoordinates[5] = vTextureCoord + vec2(5.0 * mul_x,8.0 * mul_y);\n" +
-                    "blurCoordinates[6] = vTextureCoord + vec2(0.0 * mul_x,10.0 * mul_y);\n" +
-                    "blurCoordinates[7] = vTextureCoord + vec2(-5.0 * mul_x,8.0 * mul_y);\n" +
-                    "blurCoordinates[8] = vTextureCoord + vec2(-8.0 * mul_x,5.0 * mul_y);\n" +
-                    "blurCoordinates[9] = vTextureCoord + vec2(-10.0 * mul_x,0.0 * mul_y);\n" +
-                    "blurCoordinates[10] = vTextureCoord + vec2(-8.0 * mul_x,-5.0 * mul_y);\n" +
-                    "blurCoordinates[11] = vTextureCoord + vec2(-5.0 * mul_x,-8.0 * mul_y);\n" +
-                    "blurCoordinates[12] = vTextureCoord + vec2(0.0 * mul_x,-6.0 * mul_y);\n" +
-                    "blurCoordinates[13] = vTextureCoord + vec2(-4.0 * mul_x,-4.0 * mul_y);\n" +
-                    "blurCoordinates[14] = vTextureCoord + vec2(-6.0 * mul_x,0.0 * mul_y);\n" +
-                    "blurCoordinates[15] = vTextureCoord + vec2(-4.0 * mul_x,4.0 * mul_y);\n" +
-                    "blurCoordinates[16] = vTextureCoord + vec2(0.0 * mul_x,6.0 * mul_y);\n" +
-                    "blurCoordinates[17] = vTextureCoord + vec2(4.0 * mul_x,4.0 * mul_y);\n" +
-                    "blurCoordinates[18] = vTextureCoord + vec2(6.0 * mul_x,0.0 * mul_y);\n" +
-                    "blurCoordinates[19] = vTextureCoord + vec2(4.0 * mul_x,-4.0 * mul_y);\n" +
-
-                    "centralColor = texture2D(sTexture, vTextureCoord).rgb;\n" +
-                    "sampleColor = centralColor.g * 22.0;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[0]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[1]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[2]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[3]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[4]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[5]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[6]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[7]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[8]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[9]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[10]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[11]).g;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[12]).g * 2.0;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[13]).g * 2.0;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[14]).g * 2.0;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[15]).g * 2.0;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[16]).g * 2.0;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[17]).g * 2.0;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[18]).g * 2.0;\n" +
-                    "sampleColor += texture2D(sTexture, blurCoordinates[19]).g * 2.0;\n" +
-                    "sampleColor = sampleColor/50.0;\n" +
-
-                    "float dis = centralColor.g - sampleColor + 0.5;\n" +
+    // The rest of the beauty filter, given the pixel's color and the blurred green channel
+    // around it: a high pass of the green, sharpened to a skin mask, and a blend of
+    // brightening and soft light controlled by levelParam.
+    private static final String BEAUTY_BLEND =
+            "float dis = centralColor.g - sampleColor + 0.5;\n" +
                     "if (dis <= 0.5) {\n" +
                     "dis = dis * dis * 2.0;\n" +
                     "} else {\n" +
@@ -251,6 +214,47 @@ public class Texture2dProgram {
                     "gl_FragColor.rgb = mix(gl_FragColor.rgb, satcolor, levelParam.w);\n" +
                     "}\n";
 
+    // One direction of a separable 9-tap Gaussian blur of the green channel, in 5 fetches by
+    // sampling between texels.  uTexelStep is one texel of the output along the blur axis,
+    // in the input's texture coordinates.  The beauty filter runs it at reduced size, first
+    // across and then down, and blends the result in TEXTURE_EXT_BEAUTY_COMPOSITE.
+    private static final String FRAGMENT_SHADER_EXT_BLUR =
+            "#extension GL_OES_EGL_image_external : require\n" +
+                    "precision mediump float;\n" +
+                    "varying vec2 vTextureCoord;\n" +
+                    "uniform samplerExternalOES sTexture;\n" +
+                    "uniform vec2 uTexelStep;\n" +
+                    "void main() {\n" +
+                    "    vec2 offset1 = uTexelStep * 1.3846153846;\n" +
+                    "    vec2 offset2 = uTexelStep * 3.2307692308;\n" +
+                    "    float sum = texture2D(sTexture, vTextureCoord).g * 0.2270270270;\n" +
+                    "    sum += texture2D(sTexture, vTextureCoord + offset1).g * 0.3162162162;\n" +
+                    "    sum += texture2D(sTexture, vTextureCoord - offset1).g * 0.3162162162;\n" +
+                    "    sum += texture2D(sTexture, vTextureCoord + offset2).g * 0.0702702703;\n" +
+                    "    sum += texture2D(sTexture, vTextureCoord - offset2).g * 0.0702702703;\n" +
+                    "    gl_FragColor = vec4(sum, sum, sum, 1.0);\n" +
+                    "}\n";
+
+    // Same blur, for the second direction, which reads the first one's output.
+    private static final String FRAGMENT_SHADER_2D_BLUR = FRAGMENT_SHADER_EXT_BLUR
+            .replace("#extension GL_OES_EGL_image_external : require\n", "")
+            .replace("samplerExternalOES", "sampler2D");
+
+    // The beauty filter at full size, with the blurred green from sBlurTexture (texture
+    // unit 1), which is upright, so it is read with the untransformed coordinates.
+    private static final String FRAGMENT_SHADER_EXT_BEAUTY_COMPOSITE =
+            "#extension GL_OES_EGL_image_external : require\n" +
+                    "precision mediump float;\n" +
+                    "uniform samplerExternalOES sTexture;\n" +
+                    "uniform sampler2D sBlurTexture;\n" +
+                    "uniform vec4 levelParam;\n" +
+                    "varying mediump vec2 vTextureCoord;\n" +
+                    "varying vec2 vBlurCoord;\n" +
+                    "void main() {\n" +
+                    "vec3 centralColor = texture2D(sTexture, vTextureCoord).rgb;\n" +
+                    "float sampleColor = texture2D(sBlurTexture, vBlurCoord).g;\n" +
+                    BEAUTY_BLEND;
+
     private ProgramType mProgramType;
 
     // Handles to the GL program and various components of it.
@@ -264,6 +268,11 @@ public class Texture2dProgram {
     private int maTextureCoordLoc;
     private int mGLLevelParamLocation;
     private float[] mBeautyLevelParam;
+    private int muTexelStepLoc = -1;
+    private int muBlurTextureLoc = -1;
+    private float mTexelStepX;
+    private float mTexelStepY;
+    private int mBlurTextureId;
 
     private int mTextureTarget;
 
@@ -283,6 +292,10 @@ public class Texture2dProgram {
                 mTextureTarget = GLES20.GL_TEXTURE_2D;
                 mProgramHandle = GLUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D);
                 break;
+            case TEXTURE_2D_FILT:
+                mTextureTarget = GLES20.GL_TEXTURE_2D;
+                mProgramHandle = GLUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D_FILT);
+                break;
             case TEXTURE_EXT:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
                 mProgramHandle = GLUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT);
@@ -303,11 +316,23 @@ public class Texture2dProgram {
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
                 mProgramHandle = GLUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_FILT);
                 break;
-            case TEXTURE_EXT_BEAUTY:
+            case TEXTURE_EXT_BLUR:
+                mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
+                mProgramHandle = GLUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_BLUR);
+                muTexelStepLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexelStep");
+                break;
+            case TEXTURE_2D_BLUR:
+                mTextureTarget = GLES20.GL_TEXTURE_2D;
+                mProgramHandle = GLUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D_BLUR);
+                muTexelStepLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexelStep");
+                break;
+            case TEXTURE_EXT_BEAUTY_COMPOSITE:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GLUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_BEAUTY);
+                mProgramHandle = GLUtil.createProgram(VERTEX_SHADER_BLUR_COORD,
+                        FRAGMENT_SHADER_EXT_BEAUTY_COMPOSITE);
                 mGLLevelParamLocation = GLES20.glGetUniformLocation(mProgramHandle, "levelParam");
-                mBeautyLevelParam = setLevel(3);
+                muBlurTextureLoc = GLES20.glGetUniformLocation(mProgramHandle, "sBlurTexture");
+                mBeautyLevelParam = setLevel(DEFAULT_BEAUTY_LEVEL);
                 break;
             default:
                 throw new RuntimeException("Unhandled type " + programType);
@@ -484,8 +509,20 @@ public class Texture2dProgram {
             GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
         }
 
-        if (mProgramType == ProgramType.TEXTURE_EXT_BEAUTY) {
-            GLES20.glUniform4fv(mGLLevelParamLocation, 1, FloatBuffer.wrap(mBeautyLevelParam));
+        if (mBeautyLevelParam != null) {
+            GLES20.glUniform4fv(mGLLevelParamLocation, 1, mBeautyLevelParam, 0);
+        }
+
+        if (muTexelStepLoc >= 0) {
+            GLES20.glUniform2f(muTexelStepLoc, mTexelStepX, mTexelStepY);
+        }
+
+        // The second input, if any, goes on texture unit 1.
+        if (muBlurTextureLoc >= 0) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mBlurTextureId);
+            GLES20.glUniform1i(muBlurTextureLoc, 1);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         }
 
         // Draw the rect.
@@ -496,9 +533,41 @@ public class Texture2dProgram {
         GLES20.glDisableVertexAttribArray(maPositionLoc);
         GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
         GLES20.glBindTexture(mTextureTarget, 0);
+        if (muBlurTextureLoc >= 0) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        }
         GLES20.glUseProgram(0);
     }
 
+    /**
+     * Sets the beauty level, from 1 (lightest) to 5, for the beauty programs.  Takes effect
+     * with the next draw.
+     */
+    public void setBeautyLevel(int level) {
+        if (mBeautyLevelParam == null) {
+            throw new IllegalStateException(mProgramType + " has no beauty level");
+        }
+        mBeautyLevelParam = setLevel(level);
+    }
+
+    /**
+     * Sets the step between blur taps for the blur programs: one output texel along the blur
+     * direction, in the input's texture coordinates.
+     */
+    public void setTexelStep(float stepX, float stepY) {
+        mTexelStepX = stepX;
+        mTexelStepY = stepY;
+    }
+
+    /**
+     * Sets the blurred texture the beauty composite program reads alongside its input.
+     */
+    public void setBlurTexture(int textureId) {
+        mBlurTextureId = textureId;
+    }
+
     /**
      * 设置美颜级别
      * @param _beautyLevel
@@ -0,0 +1,68 @@
+package com.alan.alvideo.muxer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Muxer backed by android.media.MediaMuxer, writing a regular .mp4.
+ * <p>
+ * MediaMuxer keeps the whole sample table in memory and writes it out in stop(), so memory
+ * and finalize time grow with the length of the recording.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class AndroidMuxer implements Muxer {
+    private MediaMuxer mMuxer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    public AndroidMuxer(File outputFile) throws IOException {
+        mMuxer = new MediaMuxer(outputFile.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        MediaFormat mediaFormat;
+        if (format.isVideo()) {
+            mediaFormat = MediaFormat.createVideoFormat(format.getMime(), format.getWidth(),
+                    format.getHeight());
+        } else {
+            mediaFormat = MediaFormat.createAudioFormat(format.getMime(), format.getSampleRate(),
+                    format.getChannelCount());
+        }
+        for (int i = 0; i < format.getCsdCount(); i++) {
+            mediaFormat.setByteBuffer("csd-" + i, ByteBuffer.wrap(format.getCsd(i)));
+        }
+        return mMuxer.addTrack(mediaFormat);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                                int flags) {
+        mBufferInfo.set(data.position(), data.remaining(), presentationTimeUs, flags);
+        mMuxer.writeSampleData(trackIndex, data, mBufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        if (mMuxer != null) {
+            mMuxer.release();
+            mMuxer = null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.alan.alvideo.muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Assembles ISO BMFF boxes in a growable big-endian buffer.  Box sizes are patched in
+ * when the box is closed, so nested boxes can be written in one pass.
+ * <p>
+ * Meant to be reused: reset() keeps the backing buffer.
+ */
+final class BoxBuilder {
+    private static final int MAX_DEPTH = 16;
+
+    private ByteBuffer mBuffer;
+    private final int[] mBoxStart = new int[MAX_DEPTH];
+    private int mDepth;
+
+    BoxBuilder(int initialCapacity) {
+        mBuffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * Discards the contents, keeping the backing storage.
+     */
+    void reset() {
+        mBuffer.clear();
+        mDepth = 0;
+    }
+
+    /**
+     * Opens a box.  Every startBox() must be matched by an endBox().
+     */
+    BoxBuilder startBox(String type) {
+        if (mDepth == MAX_DEPTH) {
+            throw new IllegalStateException("boxes nested too deep");
+        }
+        mBoxStart[mDepth++] = position();
+        putInt(0);      // size, patched by endBox()
+        return putFourCC(type);
+    }
+
+    /**
+     * Opens a full box, i.e. one with a version and flags.
+     */
+    BoxBuilder startFullBox(String type, int version, int flags) {
+        startBox(type);
+        return putInt((version << 24) | (flags & 0xffffff));
+    }
+
+    BoxBuilder endBox() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("no open box");
+        }
+        int start = mBoxStart[--mDepth];
+        mBuffer.putInt(start, position() - start);
+        return this;
+    }
+
+    BoxBuilder putByte(int value) {
+        ensureCapacity(1);
+        mBuffer.put((byte) value);
+        return this;
+    }
+
+    BoxBuilder putShort(int value) {
+        ensureCapacity(2);
+        mBuffer.putShort((short) value);
+        return this;
+    }
+
+    BoxBuilder putInt(int value) {
+        ensureCapacity(4);
+        mBuffer.putInt(value);
+        return this;
+    }
+
+    BoxBuilder putLong(long value) {
+        ensureCapacity(8);
+        mBuffer.putLong(value);
+        return this;
+    }
+
+    BoxBuilder putBytes(byte[] value) {
+        ensureCapacity(value.length);
+        mBuffer.put(value);
+        return this;
+    }
+
+    BoxBuilder putZeros(int count) {
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            mBuffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a four character code, e.g. a box type.
+     */
+    BoxBuilder putFourCC(String fourCC) {
+        if (fourCC.length() != 4) {
+            throw new IllegalArgumentException("bad four character code '" + fourCC + "'");
+        }
+        ensureCapacity(4);
+        for (int i = 0; i < 4; i++) {
+            mBuffer.put((byte) fourCC.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Writes the unity transformation matrix used by mvhd and tkhd.
+     */
+    BoxBuilder putUnityMatrix() {
+        putInt(0x00010000).putInt(0).putInt(0);
+        putInt(0).putInt(0x00010000).putInt(0);
+        return putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    /**
+     * Overwrites four bytes that were written earlier, e.g. an offset that wasn't known yet.
+     */
+    BoxBuilder putIntAt(int position, int value) {
+        mBuffer.putInt(position, value);
+        return this;
+    }
+
+    int position() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Returns a view of everything written so far, ready to be written to a channel.  All
+     * boxes must be closed.
+     */
+    ByteBuffer contents() {
+        if (mDepth != 0) {
+            throw new IllegalStateException(mDepth + " boxes still open");
+        }
+        ByteBuffer view = mBuffer.duplicate();
+        view.flip();
+        return view;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mBuffer.remaining() < extra) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2,
+                    mBuffer.position() + extra));
+            mBuffer.flip();
+            bigger.put(mBuffer);
+            mBuffer = bigger;
+        }
+    }
+}
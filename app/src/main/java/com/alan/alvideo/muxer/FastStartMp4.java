@@ -0,0 +1,409 @@
+package com.alan.alvideo.muxer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Rewrites an MP4 file so the moov box comes before the media data ("fast start"), which
+ * lets players start streaming or range-requesting it before they have the whole file.
+ * <p>
+ * MediaMuxer only knows the sample tables once the recording is over, so unless they fit
+ * in the space it reserved up front it appends moov at the end.  Here moov is read into
+ * memory, moved in front of the first mdat, and every chunk offset (stco/co64) is shifted by
+ * the distance the media data moved.  If a 32-bit stco entry would overflow, its table is
+ * widened to co64.  Everything else is copied with FileChannel#transferTo(), which on
+ * Android and most desktop systems moves the data inside the kernel, so a multi-gigabyte
+ * file takes only as much memory as its moov box.
+ * <p>
+ * Files that are fast-start already, like those from FragmentedMp4Muxer, are left alone.
+ * Plain Java apart from logging in rewriteInBackground(), so it runs on a desktop JVM.
+ */
+public final class FastStartMp4 {
+    private static final String TAG = "FastStartMp4";
+
+    /**
+     * Largest moov box we're willing to hold in memory.  An hour of 30fps video with
+     * audio has moov boxes of a few megabytes.
+     */
+    static final int MAX_MOOV_BYTES = 64 * 1024 * 1024;
+
+    private static final int TYPE_MOOV = fourCC("moov");
+    private static final int TYPE_MDAT = fourCC("mdat");
+    private static final int TYPE_STCO = fourCC("stco");
+    private static final int TYPE_CO64 = fourCC("co64");
+    // Boxes between moov and the chunk offset tables.
+    private static final int[] CONTAINERS = {
+            fourCC("moov"), fourCC("trak"), fourCC("mdia"), fourCC("minf"), fourCC("stbl")
+    };
+
+    private static ExecutorService sExecutor;
+
+    private FastStartMp4() {
+    }
+
+    /**
+     * Writes a fast-start copy of the input to the output.
+     *
+     * @return false, without touching the output, if the input is fast-start already.
+     * @throws IOException if a file can't be read or written, or the input isn't a
+     *                     complete MP4 file.
+     */
+    public static boolean rewrite(File input, File output) throws IOException {
+        FileInputStream in = new FileInputStream(input);
+        try {
+            FileChannel inChannel = in.getChannel();
+            long fileSize = inChannel.size();
+            long moovOffset = -1;
+            long moovSize = 0;
+            long mdatOffset = -1;
+            ByteBuffer header = ByteBuffer.allocate(16);
+            long position = 0;
+            while (position < fileSize) {
+                long[] box = readBoxHeader(inChannel, position, fileSize, header);
+                long size = box[0];
+                int type = (int) box[1];
+                if (type == TYPE_MOOV && moovOffset < 0) {
+                    moovOffset = position;
+                    moovSize = size;
+                } else if (type == TYPE_MDAT && mdatOffset < 0) {
+                    mdatOffset = position;
+                }
+                position += size;
+            }
+            if (moovOffset < 0 || mdatOffset < 0) {
+                throw new IOException(input + " has no " + (moovOffset < 0 ? "moov" : "mdat"));
+            }
+            if (moovOffset < mdatOffset) {
+                return false;
+            }
+            if (moovSize > MAX_MOOV_BYTES) {
+                throw new IOException("moov box of " + moovSize + " bytes is too large");
+            }
+
+            ByteBuffer moov = ByteBuffer.allocate((int) moovSize);
+            readFully(inChannel, moov, moovOffset);
+            moov.flip();
+            ByteBuffer newMoov = rewriteMoov(moov, mdatOffset, moovOffset);
+
+            FileOutputStream out = new FileOutputStream(output);
+            try {
+                FileChannel outChannel = out.getChannel();
+                transferFully(inChannel, 0, mdatOffset, outChannel);
+                while (newMoov.hasRemaining()) {
+                    outChannel.write(newMoov);
+                }
+                transferFully(inChannel, mdatOffset, moovOffset - mdatOffset, outChannel);
+                long afterMoov = moovOffset + moovSize;
+                transferFully(inChannel, afterMoov, fileSize - afterMoov, outChannel);
+            } finally {
+                out.close();
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes the file fast-start, through a temporary file next to it that then replaces it.
+     *
+     * @return false if the file is fast-start already.
+     */
+    public static boolean rewriteInPlace(File file) throws IOException {
+        File temp = new File(file.getPath() + ".faststart");
+        boolean rewritten = false;
+        try {
+            rewritten = rewrite(file, temp);
+            if (rewritten && !temp.renameTo(file)) {
+                rewritten = false;
+                throw new IOException("unable to rename " + temp + " to " + file);
+            }
+            return rewritten;
+        } finally {
+            if (!rewritten) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Queues rewriteInPlace() on a background thread, so a long file doesn't hold up the
+     * encoder.  Failures are logged, and leave the original file as it was.
+     */
+    public static void rewriteInBackground(final File file) {
+        ExecutorService executor;
+        synchronized (FastStartMp4.class) {
+            if (sExecutor == null) {
+                sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "FastStartMp4");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            executor = sExecutor;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startMs = System.currentTimeMillis();
+                try {
+                    if (rewriteInPlace(file)) {
+                        Log.d(TAG, "moved moov to the front of " + file + " in " +
+                                (System.currentTimeMillis() - startMs) + "ms");
+                    }
+                } catch (IOException ioe) {
+                    Log.w(TAG, "unable to make " + file + " fast-start", ioe);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a copy of the moov box with its chunk offsets fixed up for the box moving
+     * from oldMoovOffset to insertOffset, in front of the data that was there.
+     */
+    static ByteBuffer rewriteMoov(ByteBuffer moov, long insertOffset, long oldMoovOffset) {
+        long oldSize = moov.remaining();
+        // Try without widening any table first; that's the only size change there can be.
+        long newSize = oldSize;
+        boolean widen = false;
+        if (maxShiftedStco(moov, insertOffset, oldMoovOffset, oldSize, newSize) > 0xffffffffL) {
+            widen = true;
+            newSize = oldSize + 4 * countStcoEntries(moov.duplicate());
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) newSize);
+        copyBox(moov.duplicate(), out, widen,
+                new OffsetShift(insertOffset, oldMoovOffset, oldSize, newSize));
+        if (out.hasRemaining()) {
+            throw new IllegalStateException("moov size mismatch");
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Where a file offset ends up once the moov box has moved.
+     */
+    private static final class OffsetShift {
+        private final long mInsertOffset;
+        private final long mOldMoovOffset;
+        private final long mOldMoovEnd;
+        private final long mNewMoovSize;
+        private final long mOldMoovSize;
+
+        OffsetShift(long insertOffset, long oldMoovOffset, long oldMoovSize, long newMoovSize) {
+            mInsertOffset = insertOffset;
+            mOldMoovOffset = oldMoovOffset;
+            mOldMoovEnd = oldMoovOffset + oldMoovSize;
+            mOldMoovSize = oldMoovSize;
+            mNewMoovSize = newMoovSize;
+        }
+
+        long map(long offset) {
+            if (offset < mInsertOffset) {
+                return offset;
+            }
+            if (offset < mOldMoovOffset) {
+                return offset + mNewMoovSize;
+            }
+            if (offset >= mOldMoovEnd) {
+                return offset + mNewMoovSize - mOldMoovSize;
+            }
+            throw new IllegalArgumentException("chunk offset " + offset + " points into moov");
+        }
+    }
+
+    /**
+     * Copies one box, recursing into the containers on the way to stco/co64.
+     */
+    private static void copyBox(ByteBuffer in, ByteBuffer out, boolean widen, OffsetShift shift) {
+        int start = in.position();
+        long[] header = readBoxHeader(in);
+        int end = (int) (start + header[0]);
+        int type = (int) header[1];
+        if (isContainer(type)) {
+            int outStart = out.position();
+            out.putInt(0);
+            out.putInt(type);
+            while (in.position() < end) {
+                copyBox(in, out, widen, shift);
+            }
+            out.putInt(outStart, out.position() - outStart);
+        } else if (type == TYPE_STCO || type == TYPE_CO64) {
+            int versionFlags = in.getInt();
+            int count = in.getInt();
+            boolean wide = type == TYPE_CO64 || widen;
+            out.putInt(16 + count * (wide ? 8 : 4));
+            out.putInt(wide ? TYPE_CO64 : TYPE_STCO);
+            out.putInt(versionFlags);
+            out.putInt(count);
+            for (int i = 0; i < count; i++) {
+                long offset = type == TYPE_CO64 ? in.getLong() : in.getInt() & 0xffffffffL;
+                long mapped = shift.map(offset);
+                if (wide) {
+                    out.putLong(mapped);
+                } else {
+                    out.putInt((int) mapped);
+                }
+            }
+        } else {
+            ByteBuffer body = in.duplicate();
+            body.position(start).limit(end);
+            out.put(body);
+        }
+        in.position(end);
+    }
+
+    /**
+     * Returns the largest stco entry after shifting by a moov box of the given size.
+     */
+    private static long maxShiftedStco(ByteBuffer moov, long insertOffset, long oldMoovOffset,
+                                       long oldSize, long newSize) {
+        final OffsetShift shift = new OffsetShift(insertOffset, oldMoovOffset, oldSize, newSize);
+        final long[] max = {0};
+        walkStco(moov.duplicate(), new StcoVisitor() {
+            @Override
+            public void visit(ByteBuffer in, int count) {
+                for (int i = 0; i < count; i++) {
+                    max[0] = Math.max(max[0], shift.map(in.getInt() & 0xffffffffL));
+                }
+            }
+        });
+        return max[0];
+    }
+
+    private static int countStcoEntries(ByteBuffer moov) {
+        final int[] total = {0};
+        walkStco(moov, new StcoVisitor() {
+            @Override
+            public void visit(ByteBuffer in, int count) {
+                total[0] += count;
+            }
+        });
+        return total[0];
+    }
+
+    private interface StcoVisitor {
+        /**
+         * Called with the buffer positioned at the first of {@code count} 32-bit entries.
+         */
+        void visit(ByteBuffer in, int count);
+    }
+
+    private static void walkStco(ByteBuffer in, StcoVisitor visitor) {
+        int start = in.position();
+        long[] header = readBoxHeader(in);
+        int end = (int) (start + header[0]);
+        int type = (int) header[1];
+        if (isContainer(type)) {
+            while (in.position() < end) {
+                walkStco(in, visitor);
+            }
+        } else if (type == TYPE_STCO) {
+            in.getInt();    // version, flags
+            visitor.visit(in, in.getInt());
+        }
+        in.position(end);
+    }
+
+    private static boolean isContainer(int type) {
+        for (int container : CONTAINERS) {
+            if (type == container) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a box header inside moov, leaving the buffer at the box body.
+     *
+     * @return {size, type}.
+     */
+    private static long[] readBoxHeader(ByteBuffer in) {
+        int start = in.position();
+        long size = in.getInt() & 0xffffffffL;
+        int type = in.getInt();
+        if (size == 1) {
+            size = in.getLong();
+        } else if (size == 0) {
+            size = in.limit() - start;
+        }
+        if (size < in.position() - start || start + size > in.limit()) {
+            throw new IllegalArgumentException("bad box size " + size + " at " + start);
+        }
+        return new long[]{size, type};
+    }
+
+    /**
+     * Reads a top-level box header from the file.
+     *
+     * @return {size, type}.
+     */
+    private static long[] readBoxHeader(FileChannel channel, long position, long fileSize,
+                                        ByteBuffer header) throws IOException {
+        header.clear();
+        header.limit((int) Math.min(16, fileSize - position));
+        readFully(channel, header, position);
+        header.flip();
+        if (header.remaining() < 8) {
+            throw new IOException("truncated box header at " + position);
+        }
+        long size = header.getInt() & 0xffffffffL;
+        int type = header.getInt();
+        int headerSize = 8;
+        if (size == 1) {
+            if (header.remaining() < 8) {
+                throw new IOException("truncated box header at " + position);
+            }
+            size = header.getLong();
+            headerSize = 16;
+        } else if (size == 0) {
+            size = fileSize - position;
+        }
+        if (size < headerSize || position + size > fileSize) {
+            throw new IOException("bad box size " + size + " at " + position);
+        }
+        return new long[]{size, type};
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    private static void transferFully(FileChannel in, long position, long count, FileChannel out)
+            throws IOException {
+        while (count > 0) {
+            long transferred = in.transferTo(position, count, out);
+            if (transferred <= 0) {
+                throw new IOException("transfer stalled at " + position);
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static int fourCC(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) |
+                type.charAt(3);
+    }
+}
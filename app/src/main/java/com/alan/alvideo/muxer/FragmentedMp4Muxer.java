@@ -0,0 +1,568 @@
+package com.alan.alvideo.muxer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a fragmented MP4 (ISO/IEC 14496-12, "fMP4") through a FileChannel.
+ * <p>
+ * start() writes ftyp and an empty moov.  After that, samples are collected per track and
+ * written out as moof + mdat pairs.  A new fragment is started at the first sync frame of
+ * the first video track once the current fragment is at least the configured duration long,
+ * or earlier if the pending data gets too big.  Only one fragment is ever held in memory,
+ * so memory use doesn't depend on the length of the recording, stop() only has to write
+ * the last fragment, and a file cut short is playable up to its last complete fragment.
+ * <p>
+ * Video samples may be given in Annex B format (as MediaCodec produces them) and are
+ * converted to length-prefixed NAL units.  Samples must arrive in decode order with
+ * increasing presentation times, i.e. without B-frames.
+ * <p>
+ * Audio samples are written as they come, each one is a sync sample.
+ * <p>
+ * Supports H.264 and H.265 video and AAC audio.  Not thread-safe.
+ */
+public class FragmentedMp4Muxer implements Muxer {
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000L;
+
+    // Upper bound for the sample data of one fragment.  Fragments are cut early, without
+    // waiting for a sync frame, rather than grow past this.
+    private static final int MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+
+    // sample_flags for trun: sample_depends_on and sample_is_non_sync_sample.
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    // trun flags: data-offset, sample-duration, sample-size and sample-flags present.
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    // tfhd flags: default-base-is-moof.
+    private static final int TFHD_FLAGS = 0x020000;
+
+    private static final int STATE_INITIALIZED = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_STOPPED = 2;
+
+    private final FileOutputStream mOutputStream;
+    private final FileChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final BoxBuilder mBoxBuilder = new BoxBuilder(4096);
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocate(8);
+
+    private int mState = STATE_INITIALIZED;
+    private int mSequenceNumber;
+    private long mStartTimeUs = -1;
+    private long mFragmentStartUs = -1;
+    private Track mFragmentTrack;       // its sync frames start new fragments
+
+    public FragmentedMp4Muxer(File outputFile) throws IOException {
+        this(outputFile, DEFAULT_FRAGMENT_DURATION_US);
+    }
+
+    /**
+     * @param fragmentDurationUs Target length of a fragment.  Fragments start on a sync frame,
+     *                           so they're usually a little longer than this.
+     */
+    public FragmentedMp4Muxer(File outputFile, long fragmentDurationUs) throws IOException {
+        if (fragmentDurationUs <= 0) {
+            throw new IllegalArgumentException("fragment duration must be positive");
+        }
+        mOutputStream = new FileOutputStream(outputFile);
+        mChannel = mOutputStream.getChannel();
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (mState != STATE_INITIALIZED) {
+            throw new IllegalStateException("tracks must be added before start()");
+        }
+        if (!TrackFormat.MIMETYPE_VIDEO_AVC.equals(format.getMime())
+                && !TrackFormat.MIMETYPE_VIDEO_HEVC.equals(format.getMime())
+                && !TrackFormat.MIMETYPE_AUDIO_AAC.equals(format.getMime())) {
+            throw new IllegalArgumentException("unsupported track " + format);
+        }
+        mTracks.add(new Track(mTracks.size() + 1, format));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (mState != STATE_INITIALIZED || mTracks.isEmpty()) {
+            throw new IllegalStateException("can't start with " + mTracks.size() + " tracks");
+        }
+        mFragmentTrack = mTracks.get(0);
+        for (Track track : mTracks) {
+            if (track.mFormat.isVideo()) {
+                mFragmentTrack = track;
+                break;
+            }
+        }
+
+        mBoxBuilder.reset();
+        writeFtyp(mBoxBuilder);
+        writeMoov(mBoxBuilder);
+        write(mBoxBuilder.contents());
+        mState = STATE_STARTED;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                                int flags) {
+        if (mState != STATE_STARTED) {
+            throw new IllegalStateException("muxer is not started");
+        }
+        if (data.remaining() == 0) {
+            return;
+        }
+        Track track = mTracks.get(trackIndex);
+        if (mStartTimeUs < 0) {
+            mStartTimeUs = presentationTimeUs;
+        }
+        long decodeTime = track.toDecodeTime(presentationTimeUs - mStartTimeUs);
+        boolean sync = !track.mFormat.isVideo() || (flags & FLAG_KEY_FRAME) != 0;
+
+        if (track == mFragmentTrack && sync && mFragmentStartUs >= 0
+                && presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs) {
+            writeFragment(track, decodeTime);
+        }
+        int maxSize = NalUnitUtil.maxLengthPrefixedSize(data.remaining());
+        if (track.mSampleCount > 0 && track.mData.position() + maxSize > MAX_FRAGMENT_BYTES) {
+            writeFragment(track, decodeTime);
+        }
+
+        track.addSample(data, decodeTime, sync);
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = presentationTimeUs;
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mState != STATE_STARTED) {
+            throw new IllegalStateException("muxer is not started");
+        }
+        writeFragment(null, 0);
+        mState = STATE_STOPPED;
+        close();
+    }
+
+    @Override
+    public void release() {
+        close();
+    }
+
+    private void close() {
+        try {
+            mOutputStream.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /**
+     * Writes all pending samples as one moof + mdat.
+     *
+     * @param nextTrack          Track whose next sample is known, or null.
+     * @param nextDecodeTime     Decode time of that sample, which gives the duration of the
+     *                           last pending sample of nextTrack.
+     */
+    private void writeFragment(Track nextTrack, long nextDecodeTime) {
+        int dataSize = 0;
+        for (Track track : mTracks) {
+            dataSize += track.mData.position();
+        }
+        if (dataSize == 0) {
+            return;
+        }
+
+        BoxBuilder b = mBoxBuilder;
+        b.reset();
+        b.startBox("moof");
+        b.startFullBox("mfhd", 0, 0).putInt(++mSequenceNumber).endBox();
+        int[] dataOffsetPositions = new int[mTracks.size()];
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            if (track.mSampleCount == 0) {
+                dataOffsetPositions[t] = -1;
+                continue;
+            }
+            int last = track.mSampleCount - 1;
+            long lastDuration;
+            if (track == nextTrack) {
+                lastDuration = nextDecodeTime - track.mDecodeTimes[last];
+            } else if (last > 0) {
+                // Don't know when the next sample starts, assume it's as long as the one before.
+                lastDuration = track.mDecodeTimes[last] - track.mDecodeTimes[last - 1];
+            } else {
+                lastDuration = track.mLastDuration;
+            }
+
+            b.startBox("traf");
+            b.startFullBox("tfhd", 0, TFHD_FLAGS).putInt(track.mId).endBox();
+            b.startFullBox("tfdt", 1, 0).putLong(track.mDecodeTimes[0]).endBox();
+            b.startFullBox("trun", 0, TRUN_FLAGS).putInt(track.mSampleCount);
+            dataOffsetPositions[t] = b.position();
+            b.putInt(0);    // data_offset, patched below
+            for (int i = 0; i < track.mSampleCount; i++) {
+                long duration = i + 1 < track.mSampleCount
+                        ? track.mDecodeTimes[i + 1] - track.mDecodeTimes[i] : lastDuration;
+                b.putInt((int) duration);
+                b.putInt(track.mSizes[i]);
+                b.putInt(track.mSyncs[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            b.endBox();     // trun
+            b.endBox();     // traf
+            track.mLastDuration = lastDuration;
+        }
+        b.endBox();         // moof
+
+        // Data offsets are relative to the start of the moof (default-base-is-moof).
+        int dataOffset = b.position() + 8;
+        for (int t = 0; t < mTracks.size(); t++) {
+            if (dataOffsetPositions[t] >= 0) {
+                b.putIntAt(dataOffsetPositions[t], dataOffset);
+                dataOffset += mTracks.get(t).mData.position();
+            }
+        }
+        write(b.contents());
+
+        mMdatHeader.clear();
+        mMdatHeader.putInt(8 + dataSize).put((byte) 'm').put((byte) 'd').put((byte) 'a')
+                .put((byte) 't');
+        mMdatHeader.flip();
+        write(mMdatHeader);
+        for (Track track : mTracks) {
+            track.mData.flip();
+            write(track.mData);
+            track.clear();
+        }
+        mFragmentStartUs = -1;
+    }
+
+    private void write(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    private static void writeFtyp(BoxBuilder b) {
+        b.startBox("ftyp").putFourCC("isom").putInt(0x200);
+        b.putFourCC("isom").putFourCC("iso6").putFourCC("avc1").putFourCC("mp41");
+        b.endBox();
+    }
+
+    private void writeMoov(BoxBuilder b) {
+        b.startBox("moov");
+        b.startFullBox("mvhd", 0, 0);
+        b.putInt(0).putInt(0);                      // creation / modification time
+        b.putInt(MOVIE_TIMESCALE).putInt(0);        // timescale, duration (unknown)
+        b.putInt(0x00010000).putShort(0x0100);      // rate 1.0, volume 1.0
+        b.putZeros(10);
+        b.putUnityMatrix();
+        b.putZeros(24);
+        b.putInt(mTracks.size() + 1);               // next_track_ID
+        b.endBox();
+
+        for (Track track : mTracks) {
+            writeTrak(b, track);
+        }
+
+        b.startBox("mvex");
+        for (Track track : mTracks) {
+            b.startFullBox("trex", 0, 0);
+            b.putInt(track.mId).putInt(1);          // track_ID, sample description index
+            b.putInt(0).putInt(0).putInt(0);        // default duration, size, flags
+            b.endBox();
+        }
+        b.endBox();
+        b.endBox();         // moov
+    }
+
+    private static void writeTrak(BoxBuilder b, Track track) {
+        TrackFormat format = track.mFormat;
+        boolean video = format.isVideo();
+
+        b.startBox("trak");
+        b.startFullBox("tkhd", 0, 0x3);             // enabled, in movie
+        b.putInt(0).putInt(0).putInt(track.mId).putInt(0).putInt(0);
+        b.putZeros(8);
+        b.putShort(0).putShort(0);                  // layer, alternate_group
+        b.putShort(video ? 0 : 0x0100).putShort(0); // volume
+        b.putUnityMatrix();
+        b.putInt(format.getWidth() << 16).putInt(format.getHeight() << 16);
+        b.endBox();
+
+        b.startBox("mdia");
+        b.startFullBox("mdhd", 0, 0);
+        b.putInt(0).putInt(0).putInt(track.mTimescale).putInt(0);
+        b.putShort(0x55c4).putShort(0);             // language "und"
+        b.endBox();
+        b.startFullBox("hdlr", 0, 0);
+        b.putInt(0).putFourCC(video ? "vide" : "soun").putZeros(12);
+        b.putBytes(asciiz(video ? "VideoHandler" : "SoundHandler"));
+        b.endBox();
+
+        b.startBox("minf");
+        if (video) {
+            b.startFullBox("vmhd", 0, 1).putZeros(8).endBox();
+        } else {
+            b.startFullBox("smhd", 0, 0).putZeros(4).endBox();
+        }
+        b.startBox("dinf");
+        b.startFullBox("dref", 0, 0).putInt(1);
+        b.startFullBox("url ", 0, 1).endBox();      // media is in this file
+        b.endBox();
+        b.endBox();
+
+        b.startBox("stbl");
+        b.startFullBox("stsd", 0, 0).putInt(1);
+        if (TrackFormat.MIMETYPE_VIDEO_HEVC.equals(format.getMime())) {
+            writeHevcSampleEntry(b, format);
+        } else if (video) {
+            writeAvcSampleEntry(b, format);
+        } else {
+            writeAacSampleEntry(b, format);
+        }
+        b.endBox();
+        // The sample tables are empty, samples are described by the fragments.
+        b.startFullBox("stts", 0, 0).putInt(0).endBox();
+        b.startFullBox("stsc", 0, 0).putInt(0).endBox();
+        b.startFullBox("stsz", 0, 0).putInt(0).putInt(0).endBox();
+        b.startFullBox("stco", 0, 0).putInt(0).endBox();
+        b.endBox();         // stbl
+        b.endBox();         // minf
+        b.endBox();         // mdia
+        b.endBox();         // trak
+    }
+
+    private static void writeAvcSampleEntry(BoxBuilder b, TrackFormat format) {
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (int i = 0; i < format.getCsdCount(); i++) {
+            for (byte[] nal : NalUnitUtil.splitNalUnits(format.getCsd(i))) {
+                int type = NalUnitUtil.getAvcNalType(nal);
+                if (type == 7) {
+                    sps.add(nal);
+                } else if (type == 8) {
+                    pps.add(nal);
+                }
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty()) {
+            throw new IllegalArgumentException("AVC track needs SPS and PPS in its csd");
+        }
+
+        b.startBox("avc1");
+        writeVisualSampleEntryFields(b, format);
+        b.startBox("avcC");
+        byte[] firstSps = sps.get(0);
+        int profile = firstSps[1] & 0xff;
+        b.putByte(1).putByte(profile).putByte(firstSps[2]).putByte(firstSps[3]);
+        b.putByte(0xff);                            // 4-byte NAL unit lengths
+        b.putByte(0xe0 | sps.size());
+        for (byte[] nal : sps) {
+            b.putShort(nal.length).putBytes(nal);
+        }
+        b.putByte(pps.size());
+        for (byte[] nal : pps) {
+            b.putShort(nal.length).putBytes(nal);
+        }
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 144) {
+            // 4:2:0, 8 bits, which is all MediaCodec gives us from a Surface.
+            b.putByte(0xfc | 1).putByte(0xf8).putByte(0xf8).putByte(0);
+        }
+        b.endBox();         // avcC
+        b.endBox();         // avc1
+    }
+
+    private static void writeHevcSampleEntry(BoxBuilder b, TrackFormat format) {
+        // VPS, SPS and PPS, in the order hvcC lists them.
+        int[] types = {32, 33, 34};
+        List<List<byte[]>> arrays = new ArrayList<>();
+        for (int type : types) {
+            arrays.add(new ArrayList<byte[]>());
+        }
+        for (int i = 0; i < format.getCsdCount(); i++) {
+            for (byte[] nal : NalUnitUtil.splitNalUnits(format.getCsd(i))) {
+                int type = NalUnitUtil.getHevcNalType(nal);
+                if (type >= 32 && type <= 34) {
+                    arrays.get(type - 32).add(nal);
+                }
+            }
+        }
+        for (List<byte[]> array : arrays) {
+            if (array.isEmpty()) {
+                throw new IllegalArgumentException("HEVC track needs VPS, SPS and PPS in its csd");
+            }
+        }
+
+        // The SPS starts with a 2-byte NAL header, one byte of sub-layer fields and then
+        // the general profile_tier_level, which is byte aligned and copied as is.
+        byte[] sps = NalUnitUtil.unescapeRbsp(arrays.get(1).get(0));
+        if (sps.length < 15) {
+            throw new IllegalArgumentException("HEVC SPS too short");
+        }
+        int maxSubLayersMinus1 = (sps[2] >> 1) & 0x7;
+        int temporalIdNested = sps[2] & 0x1;
+
+        b.startBox("hvc1");
+        writeVisualSampleEntryFields(b, format);
+        b.startBox("hvcC");
+        b.putByte(1);                               // configurationVersion
+        for (int i = 3; i < 15; i++) {
+            // profile_space, tier, profile_idc, compatibility and constraint flags, level_idc
+            b.putByte(sps[i]);
+        }
+        b.putShort(0xf000);                         // min_spatial_segmentation_idc
+        b.putByte(0xfc);                            // parallelismType unknown
+        // 4:2:0, 8 bits, which is all MediaCodec gives us from a Surface.
+        b.putByte(0xfc | 1).putByte(0xf8).putByte(0xf8);
+        b.putShort(0);                              // avgFrameRate
+        // constantFrameRate 0, numTemporalLayers, temporalIdNested, 4-byte NAL unit lengths
+        b.putByte(((maxSubLayersMinus1 + 1) << 3) | (temporalIdNested << 2) | 3);
+        b.putByte(arrays.size());
+        for (int i = 0; i < arrays.size(); i++) {
+            b.putByte(0x80 | types[i]);             // array_completeness
+            b.putShort(arrays.get(i).size());
+            for (byte[] nal : arrays.get(i)) {
+                b.putShort(nal.length).putBytes(nal);
+            }
+        }
+        b.endBox();         // hvcC
+        b.endBox();         // hvc1
+    }
+
+    private static void writeAacSampleEntry(BoxBuilder b, TrackFormat format) {
+        if (format.getCsdCount() == 0) {
+            throw new IllegalArgumentException("AAC track needs an AudioSpecificConfig in its csd");
+        }
+        byte[] asc = format.getCsd(0);
+
+        b.startBox("mp4a");
+        b.putZeros(6).putShort(1);                  // data_reference_index
+        b.putZeros(8);
+        b.putShort(format.getChannelCount()).putShort(16);  // channelcount, samplesize
+        b.putShort(0).putShort(0);                  // pre_defined, reserved
+        b.putInt(format.getSampleRate() << 16);
+
+        // ES_Descriptor, with a DecoderConfigDescriptor holding the AudioSpecificConfig.
+        // All sizes fit the one-byte form of the descriptor length.
+        b.startFullBox("esds", 0, 0);
+        b.putByte(0x03).putByte(3 + 15 + asc.length + 2 + 3);
+        b.putShort(0).putByte(0);                   // ES_ID, flags
+        b.putByte(0x04).putByte(13 + 2 + asc.length);
+        b.putByte(0x40);                            // objectTypeIndication: MPEG-4 audio
+        b.putByte(0x15);                            // streamType audio, upStream 0, reserved 1
+        b.putByte(0).putShort(0);                   // bufferSizeDB
+        b.putInt(0).putInt(0);                      // maxBitrate, avgBitrate: unknown
+        b.putByte(0x05).putByte(asc.length).putBytes(asc);
+        b.putByte(0x06).putByte(1).putByte(0x02);   // SLConfigDescriptor: predefined MP4
+        b.endBox();         // esds
+        b.endBox();         // mp4a
+    }
+
+    private static void writeVisualSampleEntryFields(BoxBuilder b, TrackFormat format) {
+        b.putZeros(6).putShort(1);                  // data_reference_index
+        b.putZeros(16);
+        b.putShort(format.getWidth()).putShort(format.getHeight());
+        b.putInt(0x00480000).putInt(0x00480000);    // 72 dpi
+        b.putInt(0).putShort(1);                    // frame_count
+        b.putZeros(32);                             // compressorname
+        b.putShort(0x0018).putShort(0xffff);        // depth, pre_defined
+    }
+
+    private static byte[] asciiz(String s) {
+        byte[] bytes = new byte[s.length() + 1];
+        for (int i = 0; i < s.length(); i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Samples of one track waiting for the next fragment.
+     */
+    private static class Track {
+        final int mId;
+        final TrackFormat mFormat;
+        final int mTimescale;
+
+        ByteBuffer mData = ByteBuffer.allocate(64 * 1024);
+        int mSampleCount;
+        int[] mSizes = new int[64];
+        long[] mDecodeTimes = new long[64];
+        boolean[] mSyncs = new boolean[64];
+        long mLastDecodeTime = -1;
+        long mLastDuration;
+
+        Track(int id, TrackFormat format) {
+            mId = id;
+            mFormat = format;
+            mTimescale = format.isVideo() ? VIDEO_TIMESCALE : format.getSampleRate();
+            mLastDuration = format.isVideo() ? VIDEO_TIMESCALE / 30 : 1024;
+        }
+
+        long toDecodeTime(long timeUs) {
+            return Math.max(0, timeUs) * mTimescale / 1000000L;
+        }
+
+        void addSample(ByteBuffer data, long decodeTime, boolean sync) {
+            if (decodeTime <= mLastDecodeTime) {
+                decodeTime = mLastDecodeTime + 1;   // keep durations positive
+            }
+            if (mSampleCount == mSizes.length) {
+                int newLength = mSizes.length * 2;
+                int[] sizes = new int[newLength];
+                long[] decodeTimes = new long[newLength];
+                boolean[] syncs = new boolean[newLength];
+                System.arraycopy(mSizes, 0, sizes, 0, mSampleCount);
+                System.arraycopy(mDecodeTimes, 0, decodeTimes, 0, mSampleCount);
+                System.arraycopy(mSyncs, 0, syncs, 0, mSampleCount);
+                mSizes = sizes;
+                mDecodeTimes = decodeTimes;
+                mSyncs = syncs;
+            }
+            ensureCapacity(NalUnitUtil.maxLengthPrefixedSize(data.remaining()));
+
+            int size;
+            if (mFormat.isVideo() && NalUnitUtil.startsWithStartCode(data)) {
+                size = NalUnitUtil.writeLengthPrefixed(data, mData);
+            } else {
+                size = data.remaining();
+                mData.put(data.duplicate());
+            }
+            mSizes[mSampleCount] = size;
+            mDecodeTimes[mSampleCount] = decodeTime;
+            mSyncs[mSampleCount] = sync;
+            mSampleCount++;
+            mLastDecodeTime = decodeTime;
+        }
+
+        void clear() {
+            mData.clear();
+            mSampleCount = 0;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mData.remaining() < extra) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(mData.capacity() * 2,
+                        mData.position() + extra));
+                mData.flip();
+                bigger.put(mData);
+                mData = bigger;
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.alan.alvideo.muxer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets several encoders, each on its own thread, share one Muxer.
+ * <p>
+ * Every encoder owns one track and goes through the usual sequence on it: addTrack() once
+ * its output format is known, start(), writeSampleData(), stop(), release().  The real
+ * muxer is only started once all tracks are in, since a file's track list can't change
+ * after that; samples that arrive before are held back.  It is stopped when the last
+ * encoder stops, and released when the last one releases.
+ * <p>
+ * Samples are handed on in presentation time order across tracks, so an audio frame is
+ * written next to the video frames it plays with, even though audio and video come out of
+ * their encoders with different delays.  A sample is held until every other track has
+ * reached its time, or until it is more than maxSkewUs older than the newest sample, so a
+ * track that stalls doesn't hold the others up for long.  The order within a track is
+ * never changed.
+ * <p>
+ * If an encoder fails before it adds its track, it releases without having stopped, and
+ * the muxer stops waiting for that track: the real muxer is started as soon as the
+ * remaining encoders have added theirs, rather than holding their samples until the end.
+ * <p>
+ * Thread-safe.  The wrapped muxer is only called with this object's lock held, so it
+ * doesn't need to be.
+ */
+public class InterleavingMuxer implements Muxer {
+    public static final long DEFAULT_MAX_SKEW_US = 1000000L;
+
+    private final Muxer mMuxer;
+    private final int mTrackCount;
+    private final long mMaxSkewUs;
+
+    private final List<TrackFormat> mFormats = new ArrayList<>();
+    private final List<ArrayDeque<Sample>> mPending = new ArrayList<>();
+    private final ArrayDeque<Sample> mFreeSamples = new ArrayDeque<>();
+    private final int[] mMuxerTrack;
+    private final long[] mNewestUs;
+    private long mNewestSampleUs = Long.MIN_VALUE;
+
+    private boolean mStarted;
+    private boolean mStopped;
+    private int mStopCalls;
+    private int mReleaseCalls;
+    // Encoders that released without ever adding a track.
+    private int mAbandonedTracks;
+
+    /**
+     * @param trackCount Number of encoders that will share the muxer, one track each.
+     */
+    public InterleavingMuxer(Muxer muxer, int trackCount) {
+        this(muxer, trackCount, DEFAULT_MAX_SKEW_US);
+    }
+
+    /**
+     * @param maxSkewUs How long a sample may wait for the other tracks.
+     */
+    public InterleavingMuxer(Muxer muxer, int trackCount, long maxSkewUs) {
+        if (trackCount < 1 || maxSkewUs < 0) {
+            throw new IllegalArgumentException("bad track count " + trackCount +
+                    " or skew " + maxSkewUs);
+        }
+        mMuxer = muxer;
+        mTrackCount = trackCount;
+        mMaxSkewUs = maxSkewUs;
+        mMuxerTrack = new int[trackCount];
+        mNewestUs = new long[trackCount];
+    }
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        if (mStarted || mFormats.size() == getLiveTrackCount()) {
+            throw new IllegalStateException("all " + getLiveTrackCount() +
+                    " tracks already added");
+        }
+        mFormats.add(format);
+        mPending.add(new ArrayDeque<Sample>());
+        mNewestUs[mFormats.size() - 1] = Long.MIN_VALUE;
+        return mFormats.size() - 1;
+    }
+
+    /**
+     * Starts the wrapped muxer if this was the last track.
+     */
+    @Override
+    public synchronized void start() {
+        startIfAllTracksAdded();
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer data,
+                                             long presentationTimeUs, int flags) {
+        if (mStopped) {
+            throw new IllegalStateException("muxer is stopped");
+        }
+        Sample sample = mFreeSamples.poll();
+        if (sample == null) {
+            sample = new Sample();
+        }
+        sample.set(data, presentationTimeUs, flags);
+        mPending.get(trackIndex).add(sample);
+        mNewestUs[trackIndex] = Math.max(mNewestUs[trackIndex], presentationTimeUs);
+        mNewestSampleUs = Math.max(mNewestSampleUs, presentationTimeUs);
+        if (mStarted) {
+            writeReadySamples(false);
+        }
+    }
+
+    /**
+     * Marks one encoder as done.  The last one writes out what is left and stops the
+     * wrapped muxer.
+     */
+    @Override
+    public synchronized void stop() {
+        // stop() doesn't say which track is done, so a track that stopped early still holds
+        // the others back for up to maxSkewUs.
+        mStopCalls++;
+        if (mStopCalls < getLiveTrackCount()) {
+            return;
+        }
+        finish();
+    }
+
+    /**
+     * Marks one encoder as gone.  The last one releases the wrapped muxer, after writing out
+     * what is left if nobody did yet.  One that never stopped never added a track either,
+     * so the others stop waiting for it.
+     */
+    @Override
+    public synchronized void release() {
+        mReleaseCalls++;
+        // Encoders stop before they release, and only stop if they started, so a release
+        // that outnumbers the stops comes from an encoder that never got going.
+        if (mReleaseCalls - mAbandonedTracks > mStopCalls) {
+            mAbandonedTracks++;
+        }
+        if (mReleaseCalls < mTrackCount) {
+            if (!mStopped && mStopCalls > 0 && mStopCalls >= getLiveTrackCount()) {
+                finish();
+            } else {
+                startIfAllTracksAdded();
+            }
+            return;
+        }
+        try {
+            if (!mStopped && (mStarted || hasPendingSamples())) {
+                finish();
+            }
+        } finally {
+            mMuxer.release();
+        }
+    }
+
+    /**
+     * Number of samples waiting for another track.
+     */
+    public synchronized int getPendingSampleCount() {
+        int count = 0;
+        for (ArrayDeque<Sample> queue : mPending) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * Number of tracks still expected in the file.
+     */
+    private int getLiveTrackCount() {
+        return mTrackCount - mAbandonedTracks;
+    }
+
+    private void startIfAllTracksAdded() {
+        if (!mStarted && !mFormats.isEmpty() && mFormats.size() == getLiveTrackCount()) {
+            startMuxer();
+            writeReadySamples(false);
+        }
+    }
+
+    private void finish() {
+        if (mStopped) {
+            return;
+        }
+        if (!mStarted) {
+            if (mFormats.isEmpty()) {
+                return;
+            }
+            startMuxer();
+        }
+        writeReadySamples(true);
+        mStopped = true;
+        mMuxer.stop();
+    }
+
+    private void startMuxer() {
+        for (int i = 0; i < mFormats.size(); i++) {
+            mMuxerTrack[i] = mMuxer.addTrack(mFormats.get(i));
+        }
+        mMuxer.start();
+        mStarted = true;
+    }
+
+    private boolean hasPendingSamples() {
+        for (ArrayDeque<Sample> queue : mPending) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes samples, oldest first, as long as the oldest one can't be overtaken by a sample
+     * still to come from another track.
+     *
+     * @param all Write everything, e.g. because no more samples will come.
+     */
+    private void writeReadySamples(boolean all) {
+        while (true) {
+            int next = -1;
+            long nextUs = Long.MAX_VALUE;
+            for (int t = 0; t < mPending.size(); t++) {
+                Sample head = mPending.get(t).peek();
+                if (head != null && head.mPresentationTimeUs < nextUs) {
+                    next = t;
+                    nextUs = head.mPresentationTimeUs;
+                }
+            }
+            if (next < 0) {
+                return;
+            }
+            if (!all && nextUs + mMaxSkewUs > mNewestSampleUs && mayStillOvertake(next, nextUs)) {
+                return;
+            }
+            Sample sample = mPending.get(next).poll();
+            mMuxer.writeSampleData(mMuxerTrack[next], sample.mData, sample.mPresentationTimeUs,
+                    sample.mFlags);
+            mFreeSamples.add(sample);
+        }
+    }
+
+    /**
+     * Returns true if some other track may still deliver a sample older than timeUs.
+     * Tracks that haven't been added yet count too.
+     */
+    private boolean mayStillOvertake(int track, long timeUs) {
+        if (mFormats.size() < getLiveTrackCount()) {
+            return true;
+        }
+        for (int t = 0; t < mFormats.size(); t++) {
+            if (t != track && mPending.get(t).isEmpty()
+                    && mNewestUs[t] < timeUs) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A copy of one sample.  Reused, so the buffer only grows.
+     */
+    private static class Sample {
+        ByteBuffer mData = ByteBuffer.allocate(0);
+        long mPresentationTimeUs;
+        int mFlags;
+
+        void set(ByteBuffer data, long presentationTimeUs, int flags) {
+            if (mData.capacity() < data.remaining()) {
+                mData = ByteBuffer.allocate(data.remaining());
+            }
+            mData.clear();
+            mData.put(data.duplicate());
+            mData.flip();
+            mPresentationTimeUs = presentationTimeUs;
+            mFlags = flags;
+        }
+    }
+}
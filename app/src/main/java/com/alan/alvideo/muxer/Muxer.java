@@ -0,0 +1,54 @@
+package com.alan.alvideo.muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns encoded elementary streams into a container file.
+ * <p>
+ * Follows the MediaMuxer call sequence: add every track, start(), write samples, stop(),
+ * release().  Implementations only depend on plain Java types, so anything that isn't
+ * backed by MediaMuxer can be exercised on a desktop JVM.
+ * <p>
+ * Implementations are not thread-safe; callers must not use a muxer from two threads at
+ * the same time.
+ */
+public interface Muxer {
+    /**
+     * Sample flag: the sample is a sync frame.  Same value as
+     * MediaCodec.BUFFER_FLAG_KEY_FRAME, so codec flags can be passed straight through.
+     */
+    int FLAG_KEY_FRAME = 1;
+
+    /**
+     * Adds a track.  Must be called before start().
+     *
+     * @return The index to pass to writeSampleData().
+     */
+    int addTrack(TrackFormat format);
+
+    /**
+     * Starts the muxer.  Must be called after all tracks were added.
+     */
+    void start();
+
+    /**
+     * Writes one encoded sample.
+     *
+     * @param trackIndex         Index returned by addTrack().
+     * @param data               Sample data, from position() to limit().  Not modified, and
+     *                           not referenced after the call returns.
+     * @param presentationTimeUs Presentation time, in microseconds.
+     * @param flags              Codec buffer flags, e.g. FLAG_KEY_FRAME.
+     */
+    void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags);
+
+    /**
+     * Finishes the file.  Must be called after start().
+     */
+    void stop();
+
+    /**
+     * Releases resources.  Safe to call more than once, and after a failed start() or stop().
+     */
+    void release();
+}
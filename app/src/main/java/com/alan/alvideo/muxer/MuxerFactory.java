@@ -0,0 +1,22 @@
+package com.alan.alvideo.muxer;
+
+import java.io.IOException;
+
+/**
+ * Creates the muxers for a recording that is split into several files.
+ */
+public interface MuxerFactory {
+    /**
+     * Creates the muxer for a segment, opening its output.  May be called on a background
+     * thread, ahead of the time the segment is needed.
+     *
+     * @param segmentIndex 0 for the first segment, then counting up.
+     */
+    Muxer createMuxer(int segmentIndex) throws IOException;
+
+    /**
+     * Called for a segment that was created but never started, e.g. the one opened ahead of
+     * time when the recording stops.  Should remove whatever createMuxer() left behind.
+     */
+    void discardSegment(int segmentIndex);
+}
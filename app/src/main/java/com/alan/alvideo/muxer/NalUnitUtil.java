@@ -0,0 +1,145 @@
+package com.alan.alvideo.muxer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for H.264 / H.265 NAL unit streams.
+ * <p>
+ * MediaCodec hands out access units in Annex B format (each NAL unit preceded by a
+ * 00 00 01 or 00 00 00 01 start code), while MP4 stores each NAL unit behind a big-endian
+ * length field.
+ */
+public final class NalUnitUtil {
+
+    private NalUnitUtil() { // do not instantiate
+    }
+
+    /**
+     * Returns true if the data at {@code buffer.position()} begins with a start code.
+     */
+    public static boolean startsWithStartCode(ByteBuffer buffer) {
+        int pos = buffer.position();
+        int remaining = buffer.remaining();
+        if (remaining >= 3 && buffer.get(pos) == 0 && buffer.get(pos + 1) == 0) {
+            if (buffer.get(pos + 2) == 1) {
+                return true;
+            }
+            return remaining >= 4 && buffer.get(pos + 2) == 0 && buffer.get(pos + 3) == 1;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the next 00 00 01 sequence in [from, limit).
+     *
+     * @return The index of the first zero byte, or limit if there is none.
+     */
+    public static int findStartCode(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((buffer.get(i + 2) & 0xff) > 1) {
+                i += 2;     // none of the three can be the start of a start code
+            } else if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Returns the worst-case size of an Annex B buffer after conversion with
+     * writeLengthPrefixed().  Every start code is at least three bytes and becomes a
+     * four-byte length.
+     */
+    public static int maxLengthPrefixedSize(int annexBSize) {
+        return annexBSize + annexBSize / 3 + 4;
+    }
+
+    /**
+     * Copies an Annex B access unit into {@code dst}, replacing each start code with a
+     * four-byte NAL unit length.  Reads from src.position() to src.limit() without moving
+     * src's position.
+     *
+     * @return The number of bytes written.
+     */
+    public static int writeLengthPrefixed(ByteBuffer src, ByteBuffer dst) {
+        int limit = src.limit();
+        int start = dst.position();
+        int nalStart = skipStartCode(src, findStartCode(src, src.position(), limit), limit);
+        while (nalStart < limit) {
+            int next = findStartCode(src, nalStart, limit);
+            int nalEnd = next;
+            // Trailing zero bytes belong to the next start code (or are padding).
+            while (nalEnd > nalStart && src.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                dst.putInt(nalEnd - nalStart);
+                ByteBuffer nal = src.duplicate();
+                nal.limit(nalEnd).position(nalStart);
+                dst.put(nal);
+            }
+            nalStart = skipStartCode(src, next, limit);
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Splits an Annex B buffer (e.g. codec specific data) into NAL units, without start
+     * codes.
+     */
+    public static List<byte[]> splitNalUnits(byte[] annexB) {
+        ByteBuffer src = ByteBuffer.wrap(annexB);
+        ByteBuffer dst = ByteBuffer.allocate(maxLengthPrefixedSize(annexB.length));
+        writeLengthPrefixed(src, dst);
+        dst.flip();
+
+        List<byte[]> nalUnits = new ArrayList<>();
+        while (dst.remaining() >= 4) {
+            byte[] nal = new byte[dst.getInt()];
+            dst.get(nal);
+            nalUnits.add(nal);
+        }
+        return nalUnits;
+    }
+
+    /**
+     * Returns the H.264 nal_unit_type of a NAL unit without start code.
+     */
+    public static int getAvcNalType(byte[] nal) {
+        return nal[0] & 0x1f;
+    }
+
+    /**
+     * Returns the H.265 nal_unit_type of a NAL unit without start code.
+     */
+    public static int getHevcNalType(byte[] nal) {
+        return (nal[0] >> 1) & 0x3f;
+    }
+
+    /**
+     * Returns the payload of a NAL unit with the emulation prevention bytes (the 03 in
+     * 00 00 03) taken out, so its fields can be read at their bit offsets.
+     */
+    public static byte[] unescapeRbsp(byte[] nal) {
+        byte[] out = new byte[nal.length];
+        int length = 0;
+        int zeros = 0;
+        for (byte b : nal) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            out[length++] = b;
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(out, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static int skipStartCode(ByteBuffer buffer, int startCode, int limit) {
+        return Math.min(startCode + 3, limit);
+    }
+}
@@ -0,0 +1,247 @@
+package com.alan.alvideo.muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the most recent encoded samples in a fixed-size off-heap ring, so a recording can
+ * start with what happened before it was asked for.
+ * <p>
+ * Samples are stored back to back in one direct ByteBuffer; a sample that doesn't fit
+ * before the end of the buffer starts over at the front.  Memory use is bounded by the byte
+ * budget given to the constructor, no matter the bit rate or frame rate.
+ * <p>
+ * Eviction works on whole GOPs, a sync frame of the sync track and everything after it up
+ * to the next one, so the history always starts with a sync frame and can be decoded on
+ * its own.  A GOP is dropped when room is needed for a new sample, or once the GOPs after
+ * it cover the wanted duration.  If a single GOP outgrows the budget it is dropped too, and
+ * nothing is kept until the next sync frame.
+ * <p>
+ * Not thread-safe.
+ */
+public class PreRecordBuffer {
+    private static final int INITIAL_SAMPLE_SLOTS = 256;
+
+    private final ByteBuffer mData;
+    private final long mMaxDurationUs;
+    private int mSyncTrack;
+
+    // Sample table, a ring of parallel arrays.  Grows if needed.
+    private int[] mOffsets = new int[INITIAL_SAMPLE_SLOTS];
+    private int[] mSizes = new int[INITIAL_SAMPLE_SLOTS];
+    private int[] mTracks = new int[INITIAL_SAMPLE_SLOTS];
+    private int[] mFlags = new int[INITIAL_SAMPLE_SLOTS];
+    private long[] mPresentationTimesUs = new long[INITIAL_SAMPLE_SLOTS];
+    private int mFirst;
+    private int mCount;
+
+    private int mWritePos;          // where the next sample goes, if it fits
+    private int mBytes;             // payload bytes held
+    private boolean mWaitingForSync = true;
+
+    /**
+     * @param maxBytes      Size of the off-heap buffer.  Also the most that's ever held.
+     * @param maxDurationUs History to keep.  Older GOPs are dropped even if there's room.
+     */
+    public PreRecordBuffer(int maxBytes, long maxDurationUs) {
+        if (maxBytes <= 0 || maxDurationUs <= 0) {
+            throw new IllegalArgumentException("bad limits " + maxBytes + "B/" + maxDurationUs + "us");
+        }
+        mData = ByteBuffer.allocateDirect(maxBytes);
+        mMaxDurationUs = maxDurationUs;
+    }
+
+    /**
+     * Sets the track whose sync frames mark GOP boundaries, usually the video track.
+     * Defaults to 0.
+     */
+    public void setSyncTrack(int trackIndex) {
+        mSyncTrack = trackIndex;
+    }
+
+    /**
+     * Copies a sample into the buffer, dropping old GOPs as needed.  The position and limit
+     * of {@code data} are left alone.
+     *
+     * @param flags Muxer.FLAG_KEY_FRAME for sync frames.
+     */
+    public void add(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+        boolean sync = trackIndex == mSyncTrack && (flags & Muxer.FLAG_KEY_FRAME) != 0;
+        if (sync) {
+            mWaitingForSync = false;
+            evictByDuration(presentationTimeUs);
+        } else if (mWaitingForSync) {
+            return;
+        }
+
+        int size = data.remaining();
+        int offset = reserve(size);
+        if (offset < 0) {
+            // The GOP this belongs to doesn't fit; start over at the next sync frame.
+            clear();
+            return;
+        }
+
+        int position = data.position();
+        mData.clear();
+        mData.position(offset);
+        mData.put(data);
+        data.position(position);
+
+        ensureSlots();
+        int slot = (mFirst + mCount) % mOffsets.length;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mTracks[slot] = trackIndex;
+        mFlags[slot] = flags;
+        mPresentationTimesUs[slot] = presentationTimeUs;
+        mCount++;
+        mWritePos = offset + size;
+        mBytes += size;
+    }
+
+    /**
+     * Writes every buffered sample to the muxer, oldest first, and empties the buffer.  The
+     * muxer must be started, with its tracks added in the same order as ours.
+     */
+    public void drainTo(Muxer muxer) {
+        for (int i = 0; i < mCount; i++) {
+            int slot = (mFirst + i) % mOffsets.length;
+            ByteBuffer sample = mData.duplicate();
+            sample.limit(mOffsets[slot] + mSizes[slot]);
+            sample.position(mOffsets[slot]);
+            muxer.writeSampleData(mTracks[slot], sample, mPresentationTimesUs[slot],
+                    mFlags[slot]);
+        }
+        clear();
+    }
+
+    /**
+     * Drops everything.  Nothing is kept until the next sync frame.
+     */
+    public void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mWritePos = 0;
+        mBytes = 0;
+        mWaitingForSync = true;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * Payload bytes currently held.
+     */
+    public int getSizeBytes() {
+        return mBytes;
+    }
+
+    public int getCapacityBytes() {
+        return mData.capacity();
+    }
+
+    /**
+     * Time between the first and last buffered samples.
+     */
+    public long getDurationUs() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return mPresentationTimesUs[(mFirst + mCount - 1) % mOffsets.length] -
+                mPresentationTimesUs[mFirst];
+    }
+
+    /**
+     * Drops the oldest GOPs for as long as the ones after them still reach back at least
+     * mMaxDurationUs from {@code nowUs}.
+     */
+    private void evictByDuration(long nowUs) {
+        int next;
+        while ((next = findNextGop()) > 0 &&
+                nowUs - mPresentationTimesUs[(mFirst + next) % mOffsets.length] >= mMaxDurationUs) {
+            dropSamples(next);
+        }
+    }
+
+    /**
+     * Finds room for {@code size} contiguous bytes, dropping GOPs from the front as needed.
+     *
+     * @return The offset, or -1 if there's no room even with only the current GOP left.
+     */
+    private int reserve(int size) {
+        int capacity = mData.capacity();
+        if (size > capacity) {
+            return -1;
+        }
+        while (true) {
+            if (mCount == 0) {
+                return 0;
+            }
+            int readPos = mOffsets[mFirst];
+            if (mWritePos > readPos) {
+                // Used region doesn't wrap: free space at the end, then before readPos.
+                if (capacity - mWritePos >= size) {
+                    return mWritePos;
+                }
+                if (readPos >= size) {
+                    return 0;
+                }
+            } else if (readPos - mWritePos >= size) {
+                return mWritePos;
+            }
+            int next = findNextGop();
+            if (next <= 0) {
+                return -1;
+            }
+            dropSamples(next);
+        }
+    }
+
+    /**
+     * Returns the index, relative to the oldest sample, of the sync frame that starts the
+     * second GOP, or -1 if we only hold one.
+     */
+    private int findNextGop() {
+        for (int i = 1; i < mCount; i++) {
+            int slot = (mFirst + i) % mOffsets.length;
+            if (mTracks[slot] == mSyncTrack && (mFlags[slot] & Muxer.FLAG_KEY_FRAME) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void dropSamples(int count) {
+        for (int i = 0; i < count; i++) {
+            mBytes -= mSizes[(mFirst + i) % mOffsets.length];
+        }
+        mFirst = (mFirst + count) % mOffsets.length;
+        mCount -= count;
+    }
+
+    private void ensureSlots() {
+        if (mCount < mOffsets.length) {
+            return;
+        }
+        int length = mOffsets.length * 2;
+        mOffsets = unwrap(mOffsets, length);
+        mSizes = unwrap(mSizes, length);
+        mTracks = unwrap(mTracks, length);
+        mFlags = unwrap(mFlags, length);
+        long[] times = new long[length];
+        for (int i = 0; i < mCount; i++) {
+            times[i] = mPresentationTimesUs[(mFirst + i) % mPresentationTimesUs.length];
+        }
+        mPresentationTimesUs = times;
+        mFirst = 0;
+    }
+
+    private int[] unwrap(int[] ring, int length) {
+        int[] array = new int[length];
+        for (int i = 0; i < mCount; i++) {
+            array[i] = ring[(mFirst + i) % ring.length];
+        }
+        return array;
+    }
+}
@@ -0,0 +1,154 @@
+package com.alan.alvideo.muxer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Muxer for always-on capture: holds the last stretch of the stream in a PreRecordBuffer
+ * and only writes a file once {@link #trigger} is called.
+ * <p>
+ * The encoder writes here continuously.  After a trigger, the next sample written sets up
+ * the output muxer, flushes the buffered history into it, and from then on samples go
+ * straight through.  The output starts with the oldest buffered sync frame; if nothing is
+ * buffered yet, samples are skipped until the next sync frame, so callers should ask the
+ * encoder for one when they trigger.
+ * <p>
+ * trigger() may be called from any thread; everything else follows the Muxer rules.
+ */
+public class PreRecordMuxer implements Muxer {
+    private final PreRecordBuffer mBuffer;
+    private final List<TrackFormat> mFormats = new ArrayList<>();
+    private volatile Muxer mPendingOutput;
+    private Muxer mOutput;
+    private boolean mStarted;
+    private boolean mOutputSynced;
+
+    /**
+     * @param maxBytes      Off-heap budget for the buffered history.
+     * @param maxDurationUs History to keep.
+     */
+    public PreRecordMuxer(int maxBytes, long maxDurationUs) {
+        mBuffer = new PreRecordBuffer(maxBytes, maxDurationUs);
+    }
+
+    /**
+     * Starts writing to {@code output}: the buffered history first, then the live stream.
+     * The muxer must be fresh; tracks are added and it's started here.  Only the first
+     * trigger counts.
+     *
+     * @return false if a trigger was already made, in which case the caller still owns
+     * {@code output}.
+     */
+    public synchronized boolean trigger(Muxer output) {
+        if (mPendingOutput != null) {
+            return false;
+        }
+        mPendingOutput = output;
+        return true;
+    }
+
+    /**
+     * Returns true once trigger() has been called.
+     */
+    public boolean isTriggered() {
+        return mPendingOutput != null;
+    }
+
+    /**
+     * Returns the buffer, e.g. to look at how much history it holds.  Only safe to read from
+     * the thread that writes samples.
+     */
+    public PreRecordBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("tracks must be added before start()");
+        }
+        mFormats.add(format);
+        int index = mFormats.size() - 1;
+        if (format.isVideo() && !hasEarlierVideoTrack(index)) {
+            mBuffer.setSyncTrack(index);
+        }
+        return index;
+    }
+
+    private boolean hasEarlierVideoTrack(int index) {
+        for (int i = 0; i < index; i++) {
+            if (mFormats.get(i).isVideo()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void start() {
+        if (mStarted || mFormats.isEmpty()) {
+            throw new IllegalStateException("can't start with " + mFormats.size() + " tracks");
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                                int flags) {
+        if (!mStarted) {
+            throw new IllegalStateException("muxer is not started");
+        }
+        if (mOutput == null) {
+            Muxer pending = mPendingOutput;
+            if (pending == null) {
+                mBuffer.add(trackIndex, data, presentationTimeUs, flags);
+                return;
+            }
+            openOutput(pending);
+        }
+        if (!mOutputSynced) {
+            // Nothing was buffered; the file has to start with a sync frame.
+            if ((flags & FLAG_KEY_FRAME) == 0 || !mFormats.get(trackIndex).isVideo()) {
+                return;
+            }
+            mOutputSynced = true;
+        }
+        mOutput.writeSampleData(trackIndex, data, presentationTimeUs, flags);
+    }
+
+    private void openOutput(Muxer output) {
+        for (TrackFormat format : mFormats) {
+            output.addTrack(format);
+        }
+        output.start();
+        mOutput = output;
+        mOutputSynced = mBuffer.getSampleCount() > 0;
+        mBuffer.drainTo(output);
+    }
+
+    /**
+     * Stops the output, if a trigger got that far.  The buffered history is dropped.
+     */
+    @Override
+    public void stop() {
+        if (!mStarted) {
+            throw new IllegalStateException("muxer is not started");
+        }
+        mStarted = false;
+        mBuffer.clear();
+        if (mOutput != null) {
+            mOutput.stop();
+        }
+    }
+
+    @Override
+    public void release() {
+        Muxer output = mOutput != null ? mOutput : mPendingOutput;
+        mOutput = null;
+        if (output != null) {
+            output.release();
+        }
+        mBuffer.clear();
+    }
+}
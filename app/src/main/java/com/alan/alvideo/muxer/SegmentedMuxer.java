@@ -0,0 +1,280 @@
+package com.alan.alvideo.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Muxer that splits a recording into consecutive files.
+ * <p>
+ * Once the current segment has reached its duration or size limit, the next sync frame of
+ * the first video track starts a new segment, so every file begins with a sync frame and
+ * plays on its own.  The next muxer is created and has its tracks added on a background
+ * thread while the current segment is being written, and finished segments are stopped
+ * there too, so the switch itself only costs a start() and no frame is dropped or delayed
+ * at the boundary.  If the next muxer isn't ready yet, the switch waits for the following
+ * sync frame.
+ * <p>
+ * Not thread-safe, like any Muxer.  onRolloverPending() is called on the thread that writes
+ * samples, onSegmentFinished() on the background thread.
+ */
+public class SegmentedMuxer implements Muxer {
+
+    /**
+     * Receives segment events.
+     */
+    public interface Listener {
+        /**
+         * The current segment is over its limit and waits for a sync frame to roll over.
+         * A good time to ask the encoder for one.  Called again for every sync frame that
+         * has to go into the old segment because the next one isn't ready yet.
+         */
+        void onRolloverPending();
+
+        /**
+         * Segment {@code segmentIndex} has been stopped and its file is complete.
+         */
+        void onSegmentFinished(int segmentIndex);
+    }
+
+    private final MuxerFactory mFactory;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final Listener mListener;
+    private final List<TrackFormat> mFormats = new ArrayList<>();
+    private final ExecutorService mExecutor;
+
+    private Muxer mCurrent;
+    private int mCurrentIndex;
+    private Future<Muxer> mNext;
+    private int mRolloverTrack = -1;
+    private long mSegmentStartUs = -1;
+    private long mSegmentBytes;
+    private boolean mRolloverPending;
+    private boolean mStarted;
+    private volatile RuntimeException mBackgroundFailure;
+
+    /**
+     * @param maxDurationUs Segment duration limit, or 0 for none.
+     * @param maxBytes      Segment size limit, or 0 for none.
+     * @param listener      May be null.
+     */
+    public SegmentedMuxer(MuxerFactory factory, long maxDurationUs, long maxBytes,
+                          Listener listener) {
+        if (maxDurationUs <= 0 && maxBytes <= 0) {
+            throw new IllegalArgumentException("need a duration or a size limit");
+        }
+        mFactory = factory;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+        mListener = listener;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "SegmentedMuxer");
+            }
+        });
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("tracks must be added before start()");
+        }
+        mFormats.add(format);
+        int index = mFormats.size() - 1;
+        if (mRolloverTrack < 0 && format.isVideo()) {
+            mRolloverTrack = index;
+        }
+        return index;
+    }
+
+    @Override
+    public void start() {
+        if (mStarted || mFormats.isEmpty()) {
+            throw new IllegalStateException("can't start with " + mFormats.size() + " tracks");
+        }
+        if (mRolloverTrack < 0) {
+            mRolloverTrack = 0;
+        }
+        try {
+            mCurrent = openSegment(0);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        mCurrent.start();
+        mCurrentIndex = 0;
+        mStarted = true;
+        prepareNext();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                                int flags) {
+        if (!mStarted) {
+            throw new IllegalStateException("muxer is not started");
+        }
+        if (trackIndex == mRolloverTrack) {
+            if (mSegmentStartUs < 0) {
+                mSegmentStartUs = presentationTimeUs;
+            }
+            boolean full = (mMaxDurationUs > 0 && presentationTimeUs - mSegmentStartUs >= mMaxDurationUs)
+                    || (mMaxBytes > 0 && mSegmentBytes >= mMaxBytes);
+            if (full) {
+                boolean keyFrame = (flags & FLAG_KEY_FRAME) != 0;
+                if (keyFrame && isNextSegmentReady()) {
+                    rollover(presentationTimeUs);
+                } else if (!mRolloverPending || keyFrame) {
+                    // A passed-over sync frame used up the last request; ask again rather
+                    // than wait out a whole GOP.
+                    mRolloverPending = true;
+                    if (mListener != null) {
+                        mListener.onRolloverPending();
+                    }
+                }
+            }
+        }
+        mSegmentBytes += data.remaining();
+        mCurrent.writeSampleData(trackIndex, data, presentationTimeUs, flags);
+    }
+
+    /**
+     * Finishes the current segment and waits until all segments are complete.  Throws if
+     * finishing any of them failed.
+     */
+    @Override
+    public void stop() {
+        if (!mStarted) {
+            throw new IllegalStateException("muxer is not started");
+        }
+        mStarted = false;
+        finishSegment(mCurrent, mCurrentIndex);
+        mCurrent = null;
+        discardNext();
+        awaitBackgroundWork();
+        if (mBackgroundFailure != null) {
+            throw mBackgroundFailure;
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mCurrent != null) {
+            mCurrent.release();
+            mCurrent = null;
+        }
+        discardNext();
+        awaitBackgroundWork();
+    }
+
+    /**
+     * Returns the index of the segment currently being written.
+     */
+    public int getCurrentSegmentIndex() {
+        return mCurrentIndex;
+    }
+
+    /**
+     * Returns true once the muxer for the next segment is ready for a rollover.
+     */
+    boolean isNextSegmentReady() {
+        return mNext != null && mNext.isDone();
+    }
+
+    private void rollover(long presentationTimeUs) {
+        Muxer next;
+        try {
+            next = mNext.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("unable to open segment " + (mCurrentIndex + 1), e);
+        }
+        next.start();
+
+        finishSegment(mCurrent, mCurrentIndex);
+        mCurrent = next;
+        mCurrentIndex++;
+        mSegmentStartUs = presentationTimeUs;
+        mSegmentBytes = 0;
+        mRolloverPending = false;
+        prepareNext();
+    }
+
+    private void prepareNext() {
+        final int index = mCurrentIndex + 1;
+        mNext = mExecutor.submit(new Callable<Muxer>() {
+            @Override
+            public Muxer call() throws IOException {
+                return openSegment(index);
+            }
+        });
+    }
+
+    private void finishSegment(final Muxer muxer, final int index) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    muxer.stop();
+                } catch (RuntimeException re) {
+                    if (mBackgroundFailure == null) {
+                        mBackgroundFailure = re;
+                    }
+                    return;
+                } finally {
+                    muxer.release();
+                }
+                if (mListener != null) {
+                    mListener.onSegmentFinished(index);
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the segment opened ahead of time and lets the factory delete it.
+     */
+    private void discardNext() {
+        if (mNext == null) {
+            return;
+        }
+        final Future<Muxer> next = mNext;
+        final int index = mCurrentIndex + 1;
+        mNext = null;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    next.get().release();
+                } catch (InterruptedException | ExecutionException e) {
+                    // never opened, nothing to release
+                }
+                mFactory.discardSegment(index);
+            }
+        });
+    }
+
+    private Muxer openSegment(int index) throws IOException {
+        Muxer muxer = mFactory.createMuxer(index);
+        for (TrackFormat format : mFormats) {
+            muxer.addTrack(format);
+        }
+        return muxer;
+    }
+
+    private void awaitBackgroundWork() {
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
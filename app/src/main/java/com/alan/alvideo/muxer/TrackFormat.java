@@ -0,0 +1,108 @@
+package com.alan.alvideo.muxer;
+
+/**
+ * Describes one track for a Muxer.
+ * <p>
+ * This is the subset of MediaFormat that a muxer needs, in plain Java types.  The codec
+ * specific data buffers hold what MediaCodec reports as "csd-0", "csd-1", ...
+ * <p>
+ * Object is immutable.
+ */
+public final class TrackFormat {
+    public static final String MIMETYPE_VIDEO_AVC = "video/avc";
+    public static final String MIMETYPE_VIDEO_HEVC = "video/hevc";
+    public static final String MIMETYPE_AUDIO_AAC = "audio/mp4a-latm";
+
+    private final String mMime;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final byte[][] mCsd;
+
+    private TrackFormat(String mime, int width, int height, int sampleRate, int channelCount,
+                        byte[][] csd) {
+        if (mime == null) {
+            throw new IllegalArgumentException("mime type is required");
+        }
+        mMime = mime;
+        mWidth = width;
+        mHeight = height;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mCsd = new byte[csd.length][];
+        for (int i = 0; i < csd.length; i++) {
+            mCsd[i] = csd[i].clone();
+        }
+    }
+
+    /**
+     * Creates a video track description.
+     *
+     * @param csd Codec specific data, e.g. SPS and PPS for AVC, in Annex B format.
+     */
+    public static TrackFormat createVideoFormat(String mime, int width, int height,
+                                                byte[]... csd) {
+        return new TrackFormat(mime, width, height, 0, 0, csd);
+    }
+
+    /**
+     * Creates an audio track description.
+     *
+     * @param csd Codec specific data, e.g. the AudioSpecificConfig for AAC.
+     */
+    public static TrackFormat createAudioFormat(String mime, int sampleRate, int channelCount,
+                                                byte[]... csd) {
+        return new TrackFormat(mime, 0, 0, sampleRate, channelCount, csd);
+    }
+
+    public String getMime() {
+        return mMime;
+    }
+
+    public boolean isVideo() {
+        return mMime.startsWith("video/");
+    }
+
+    public boolean isAudio() {
+        return mMime.startsWith("audio/");
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * Returns the number of codec specific data buffers.
+     */
+    public int getCsdCount() {
+        return mCsd.length;
+    }
+
+    /**
+     * Returns codec specific data buffer {@code index}.  The caller must not modify it.
+     */
+    public byte[] getCsd(int index) {
+        return mCsd[index];
+    }
+
+    @Override
+    public String toString() {
+        if (isVideo()) {
+            return "TrackFormat: " + mMime + " " + mWidth + "x" + mHeight;
+        }
+        return "TrackFormat: " + mMime + " " + mSampleRate + "Hz x" + mChannelCount;
+    }
+}
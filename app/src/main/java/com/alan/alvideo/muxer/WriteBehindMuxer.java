@@ -0,0 +1,367 @@
+package com.alan.alvideo.muxer;
+
+import com.alan.alvideo.util.LatencyHistogram;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Muxer that moves sample writes off the caller's thread.
+ * <p>
+ * writeSampleData() copies the sample into a pooled direct ByteBuffer and queues it for a
+ * dedicated I/O thread, which does the actual write to the wrapped muxer.  A slow or
+ * contended disk then stalls that thread instead of the encoder's drain loop.
+ * <p>
+ * The pool has a fixed byte budget.  Once the queued bytes pass the high-water mark, the
+ * caller blocks until the I/O thread has written enough to get back under it; that's the
+ * backpressure that keeps a disk which can't keep up from eating all memory.  Buffers are
+ * reused, so steady-state writes don't allocate.
+ * <p>
+ * Write latency (time spent in the wrapped muxer) and queue latency (time from
+ * writeSampleData() until written) are kept as histograms; together with the queue
+ * occupancy they show whether storage is the bottleneck.
+ * <p>
+ * Not thread-safe, like any Muxer; the getters may be called from any thread.  An
+ * exception thrown by the wrapped muxer on the I/O thread is rethrown from the next
+ * writeSampleData() or stop().
+ */
+public class WriteBehindMuxer implements Muxer {
+    public static final int DEFAULT_POOL_BYTES = 8 * 1024 * 1024;
+
+    private final Muxer mTarget;
+    private final int mPoolBytes;
+    private final int mHighWaterBytes;
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram();
+
+    private final Object mLock = new Object();      // guards everything below
+    private final ArrayDeque<Sample> mQueue = new ArrayDeque<>();
+    private final List<ByteBuffer> mFreeBuffers = new ArrayList<>();
+    private final ArrayDeque<Sample> mFreeSamples = new ArrayDeque<>();
+    private int mAllocatedBytes;
+    private int mQueuedBytes;
+    private int mMaxQueuedBytes;
+    private long mBackpressureCount;
+    private long mBackpressureNs;
+    private boolean mQuit;
+    private RuntimeException mFailure;
+
+    private Thread mWriterThread;
+
+    private static class Sample {
+        ByteBuffer mBuffer;
+        int mTrackIndex;
+        long mPresentationTimeUs;
+        int mFlags;
+        long mQueuedNs;
+    }
+
+    /**
+     * @param target    Muxer that does the writing.  WriteBehindMuxer takes ownership.
+     * @param poolBytes Budget for buffered samples.  Backpressure starts at 3/4 of it.
+     */
+    public WriteBehindMuxer(Muxer target, int poolBytes) {
+        if (poolBytes <= 0) {
+            throw new IllegalArgumentException("pool size " + poolBytes);
+        }
+        mTarget = target;
+        mPoolBytes = poolBytes;
+        mHighWaterBytes = poolBytes - poolBytes / 4;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        return mTarget.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mTarget.start();
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "WriteBehindMuxer");
+        mWriterThread.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                                int flags) {
+        if (mWriterThread == null) {
+            throw new IllegalStateException("muxer is not started");
+        }
+        int size = data.remaining();
+        Sample sample;
+        synchronized (mLock) {
+            waitForRoom(size);
+            sample = mFreeSamples.isEmpty() ? new Sample() : mFreeSamples.poll();
+            sample.mBuffer = acquireBuffer(size);
+        }
+
+        // Copy outside the lock; the buffer is ours until it's queued.
+        int position = data.position();
+        sample.mBuffer.clear();
+        sample.mBuffer.put(data);
+        sample.mBuffer.flip();
+        data.position(position);
+        sample.mTrackIndex = trackIndex;
+        sample.mPresentationTimeUs = presentationTimeUs;
+        sample.mFlags = flags;
+        sample.mQueuedNs = System.nanoTime();
+
+        synchronized (mLock) {
+            mQueue.add(sample);
+            mQueuedBytes += size;
+            if (mQueuedBytes > mMaxQueuedBytes) {
+                mMaxQueuedBytes = mQueuedBytes;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks while the queue is over the high-water mark, or while the pool can't supply a
+     * buffer for {@code size} bytes.  A sample bigger than the whole pool waits for the
+     * queue to empty and then gets a buffer of its own.  Call with mLock held.
+     */
+    private void waitForRoom(int size) {
+        long startNs = 0;
+        while (mFailure == null && !mQueue.isEmpty() &&
+                (mQueuedBytes + size > mHighWaterBytes || !canAcquire(size))) {
+            if (startNs == 0) {
+                startNs = System.nanoTime();
+                mBackpressureCount++;
+            }
+            try {
+                mLock.wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (startNs != 0) {
+            mBackpressureNs += System.nanoTime() - startNs;
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    private boolean canAcquire(int size) {
+        for (ByteBuffer buffer : mFreeBuffers) {
+            if (buffer.capacity() >= size) {
+                return true;
+            }
+        }
+        int freeBytes = 0;
+        for (ByteBuffer buffer : mFreeBuffers) {
+            freeBytes += buffer.capacity();
+        }
+        // Dropping free buffers that are too small can make room for a new one.
+        return mAllocatedBytes - freeBytes + roundUp(size) <= mPoolBytes;
+    }
+
+    /**
+     * Takes the smallest free buffer that fits, or allocates one, dropping free buffers that
+     * are too small if that's what it takes to stay within the budget.  Call with mLock
+     * held, after waitForRoom().
+     */
+    private ByteBuffer acquireBuffer(int size) {
+        int best = -1;
+        for (int i = 0; i < mFreeBuffers.size(); i++) {
+            int capacity = mFreeBuffers.get(i).capacity();
+            if (capacity >= size && (best < 0 || capacity < mFreeBuffers.get(best).capacity())) {
+                best = i;
+            }
+        }
+        if (best >= 0) {
+            return mFreeBuffers.remove(best);
+        }
+        int capacity = roundUp(size);
+        while (mAllocatedBytes + capacity > mPoolBytes && !mFreeBuffers.isEmpty()) {
+            mAllocatedBytes -= mFreeBuffers.remove(mFreeBuffers.size() - 1).capacity();
+        }
+        mAllocatedBytes += capacity;
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Rounds up to a multiple of 16KB, so buffers are interchangeable between samples of
+     * similar size.
+     */
+    private static int roundUp(int size) {
+        return (Math.max(size, 1) + 16383) & ~16383;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Sample sample;
+            boolean failed;
+            synchronized (mLock) {
+                while (mQueue.isEmpty() && !mQuit) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        // keep going until told to quit
+                    }
+                }
+                if (mQueue.isEmpty()) {
+                    return;
+                }
+                sample = mQueue.peek();
+                failed = mFailure != null;
+            }
+
+            RuntimeException failure = null;
+            if (!failed) {
+                // Once a write has failed, the rest are just discarded.
+                long startNs = System.nanoTime();
+                try {
+                    mTarget.writeSampleData(sample.mTrackIndex, sample.mBuffer,
+                            sample.mPresentationTimeUs, sample.mFlags);
+                } catch (RuntimeException re) {
+                    failure = re;
+                }
+                long endNs = System.nanoTime();
+                mWriteLatency.record(endNs - startNs);
+                mQueueLatency.record(endNs - sample.mQueuedNs);
+            }
+
+            synchronized (mLock) {
+                mQueue.poll();
+                mQueuedBytes -= sample.mBuffer.limit();
+                if (mAllocatedBytes <= mPoolBytes) {
+                    mFreeBuffers.add(sample.mBuffer);
+                } else {
+                    // Oversized one-off; let it go.
+                    mAllocatedBytes -= sample.mBuffer.capacity();
+                }
+                sample.mBuffer = null;
+                mFreeSamples.add(sample);
+                if (failure != null && mFailure == null) {
+                    mFailure = failure;
+                }
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for every queued sample to be written, then stops the wrapped muxer.
+     */
+    @Override
+    public void stop() {
+        stopWriter();
+        RuntimeException failure;
+        synchronized (mLock) {
+            failure = mFailure;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        mTarget.stop();
+    }
+
+    @Override
+    public void release() {
+        stopWriter();
+        mTarget.release();
+        synchronized (mLock) {
+            mFreeBuffers.clear();
+            mAllocatedBytes = 0;
+        }
+    }
+
+    private void stopWriter() {
+        if (mWriterThread == null) {
+            return;
+        }
+        synchronized (mLock) {
+            mQuit = true;
+            mLock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mWriterThread.join();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mWriterThread = null;
+    }
+
+    /**
+     * Time the wrapped muxer took for each write, in nanoseconds.
+     */
+    public LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * Time from writeSampleData() until the sample was written, in nanoseconds.
+     */
+    public LatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    public int getQueuedSamples() {
+        synchronized (mLock) {
+            return mQueue.size();
+        }
+    }
+
+    public int getQueuedBytes() {
+        synchronized (mLock) {
+            return mQueuedBytes;
+        }
+    }
+
+    /**
+     * Highest queue occupancy seen, in bytes.
+     */
+    public int getMaxQueuedBytes() {
+        synchronized (mLock) {
+            return mMaxQueuedBytes;
+        }
+    }
+
+    public int getPoolBytes() {
+        return mPoolBytes;
+    }
+
+    /**
+     * Number of writeSampleData() calls that had to wait for the I/O thread.
+     */
+    public long getBackpressureCount() {
+        synchronized (mLock) {
+            return mBackpressureCount;
+        }
+    }
+
+    /**
+     * Total time callers spent waiting for the I/O thread, in nanoseconds.
+     */
+    public long getBackpressureNs() {
+        synchronized (mLock) {
+            return mBackpressureNs;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "write: " + mWriteLatency.toMicrosString() +
+                ", queued: " + mQueueLatency.toMicrosString() +
+                ", max occupancy " + getMaxQueuedBytes() + "/" + mPoolBytes + "B" +
+                ", backpressure " + getBackpressureCount() + "x " +
+                getBackpressureNs() / 1000000 + "ms";
+    }
+}
@@ -0,0 +1,142 @@
+package com.alan.alvideo.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-frame work time and missed-frame counter for one stage of the camera pipeline.
+ * <p>
+ * Each frame reports its camera timestamp and how long the stage spent on it.  The work
+ * time goes into a histogram and is checked against a budget; at high frame rates a frame
+ * that takes longer than its share of the interval means the next one is already waiting.
+ * A gap of more than one and a half intervals between timestamps means frames never reached
+ * this stage, whether the camera, an earlier stage or a queue lost them.
+ * <p>
+ * onFrame() must be called from one thread at a time.  The counters can be read from any
+ * thread, and are not an atomic snapshot.
+ */
+public class FrameTimeMonitor {
+    /**
+     * Tightest budget, what's left of a 120 fps frame for render plus encode with some
+     * room for the rest of the system.
+     */
+    public static final long MIN_BUDGET_NS = 4000000L;
+    /**
+     * Loosest budget.  Even at 30 fps, taking longer than this leaves little slack for
+     * the occasional slow frame.
+     */
+    public static final long MAX_BUDGET_NS = 8000000L;
+
+    private final LatencyHistogram mWorkTimes = new LatencyHistogram();
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mFramesMissed = new AtomicLong();
+    private final AtomicLong mOverBudget = new AtomicLong();
+    private volatile long mFrameIntervalNs;
+    private volatile long mBudgetNs = MAX_BUDGET_NS;
+
+    // ----- onFrame() only -----
+    private long mLastTimestampNs = -1;
+
+    /**
+     * @param expectedFps Frame rate the stage should keep up with, or 0 if unknown, which
+     *                    turns off missed-frame counting.
+     */
+    public FrameTimeMonitor(int expectedFps) {
+        setExpectedFps(expectedFps);
+    }
+
+    /**
+     * Changes the frame rate, and with it the budget.  Takes effect from the next frame.
+     */
+    public void setExpectedFps(int fps) {
+        mFrameIntervalNs = fps > 0 ? 1000000000L / fps : 0;
+        mBudgetNs = budgetFor(fps);
+    }
+
+    /**
+     * Returns the per-frame work budget at the given frame rate: half the frame interval,
+     * kept between MIN_BUDGET_NS and MAX_BUDGET_NS.
+     */
+    public static long budgetFor(int fps) {
+        if (fps <= 0) {
+            return MAX_BUDGET_NS;
+        }
+        return Math.max(MIN_BUDGET_NS, Math.min(MAX_BUDGET_NS, 1000000000L / fps / 2));
+    }
+
+    /**
+     * Records one frame.
+     *
+     * @param timestampNanos Camera timestamp of the frame.
+     * @param workNanos      Time this stage spent on it.
+     */
+    public void onFrame(long timestampNanos, long workNanos) {
+        mFrames.incrementAndGet();
+        mWorkTimes.record(workNanos);
+        if (workNanos > mBudgetNs) {
+            mOverBudget.incrementAndGet();
+        }
+        long intervalNs = mFrameIntervalNs;
+        if (intervalNs > 0 && mLastTimestampNs >= 0) {
+            long gapNs = timestampNanos - mLastTimestampNs;
+            if (gapNs > intervalNs * 3 / 2) {
+                mFramesMissed.addAndGet((gapNs + intervalNs / 2) / intervalNs - 1);
+            }
+        }
+        mLastTimestampNs = timestampNanos;
+    }
+
+    /**
+     * Tells the monitor the next frame doesn't follow on from the last one, e.g. after a
+     * pause, so the gap isn't counted as missed frames.  Call from the onFrame() thread.
+     */
+    public void onDiscontinuity() {
+        mLastTimestampNs = -1;
+    }
+
+    /**
+     * Clears the counters.  Must not race with onFrame().
+     */
+    public void reset() {
+        mWorkTimes.reset();
+        mFrames.set(0);
+        mFramesMissed.set(0);
+        mOverBudget.set(0);
+        mLastTimestampNs = -1;
+    }
+
+    public long getFrameCount() {
+        return mFrames.get();
+    }
+
+    /**
+     * Frames the timestamps say should have been here but weren't.
+     */
+    public long getFramesMissed() {
+        return mFramesMissed.get();
+    }
+
+    /**
+     * Frames that took longer than the budget.
+     */
+    public long getOverBudgetCount() {
+        return mOverBudget.get();
+    }
+
+    public long getBudgetNs() {
+        return mBudgetNs;
+    }
+
+    /**
+     * Work time per frame, in nanoseconds.
+     */
+    public LatencyHistogram getWorkTimes() {
+        return mWorkTimes;
+    }
+
+    @Override
+    public String toString() {
+        return "frames=" + getFrameCount() + " missed=" + getFramesMissed() +
+                " over " + getBudgetNs() / 1000 + "us budget=" + getOverBudgetCount() +
+                ", work " + mWorkTimes.toMicrosString();
+    }
+}
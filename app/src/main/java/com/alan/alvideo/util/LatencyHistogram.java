@@ -0,0 +1,121 @@
+package com.alan.alvideo.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of durations, for percentiles on hot paths.
+ * <p>
+ * Values are sorted into buckets on a log scale with four buckets per power of two, so a
+ * reported percentile is the upper edge of its bucket, at most about 19% above the real
+ * value.  That's plenty to tell a 2ms write from a 40ms one.  Recording is lock-free and
+ * doesn't allocate; reads may run concurrently with recording and are not an atomic
+ * snapshot.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Adds one value.  Negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(bucketFor(value));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(value);
+        long prev;
+        do {
+            prev = mMax.get();
+        } while (value > prev && !mMax.compareAndSet(prev, value));
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotal.get() / count;
+    }
+
+    /**
+     * Returns the value below which {@code percentile} percent of the recorded values fall,
+     * rounded up to its bucket edge and capped at the max.  0 if nothing was recorded.
+     *
+     * @param percentile 0 to 100.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperEdge(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Values 0..3 get a bucket each; above that, bucket = 4 * (bit length - 2) plus the two
+     * bits after the leading one.
+     */
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperEdge(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long top = ((SUB_BUCKETS + sub + 1) << shift) - 1;
+        return top < 0 ? Long.MAX_VALUE : top;
+    }
+
+    /**
+     * Formats p50/p95/p99/max, treating the values as nanoseconds and printing microseconds.
+     */
+    public String toMicrosString() {
+        return "n=" + getCount() +
+                " p50=" + getPercentile(50) / 1000 + "us" +
+                " p95=" + getPercentile(95) / 1000 + "us" +
+                " p99=" + getPercentile(99) / 1000 + "us" +
+                " max=" + getMax() / 1000 + "us";
+    }
+}
@@ -0,0 +1,104 @@
+package com.alan.alvideo.util;
+
+/**
+ * Maps capture times to presentation times for every track of a recording.
+ * <p>
+ * Capture times are on the System.nanoTime() clock, which is what SurfaceTexture stamps
+ * camera frames with and what the audio path reads when it pulls PCM.  Presentation times
+ * are capture times minus the total length of the pauses before them, so a recording that
+ * was paused plays back without a hole, and audio and video stay lined up no matter how
+ * many times it was paused, because both subtract the same amounts.
+ * <p>
+ * Samples are often delivered some time after they were captured, so pause() and resume()
+ * take the time of the switch rather than applying to "the next sample".  A sample captured
+ * before a pause but delivered after it is still kept.
+ * <p>
+ * Thread-safe.
+ */
+public class RecordingClock {
+    private long[] mPauseStartNs = new long[4];
+    private long[] mPauseEndNs = new long[4];
+    private int mPauseCount;
+    private boolean mPaused;
+
+    /**
+     * Forgets all pauses.  Call before the first sample of a recording.
+     */
+    public synchronized void reset() {
+        mPauseCount = 0;
+        mPaused = false;
+    }
+
+    /**
+     * Starts a pause.  Samples captured from now until resume() are dropped.
+     *
+     * @param nowNanos Current System.nanoTime().
+     */
+    public synchronized void pause(long nowNanos) {
+        if (mPaused) {
+            return;
+        }
+        if (mPauseCount == mPauseStartNs.length) {
+            long[] starts = new long[mPauseCount * 2];
+            long[] ends = new long[mPauseCount * 2];
+            System.arraycopy(mPauseStartNs, 0, starts, 0, mPauseCount);
+            System.arraycopy(mPauseEndNs, 0, ends, 0, mPauseCount);
+            mPauseStartNs = starts;
+            mPauseEndNs = ends;
+        }
+        mPauseStartNs[mPauseCount] = nowNanos;
+        mPauseEndNs[mPauseCount] = Long.MAX_VALUE;
+        mPauseCount++;
+        mPaused = true;
+    }
+
+    /**
+     * Ends the current pause.
+     *
+     * @param nowNanos Current System.nanoTime().
+     */
+    public synchronized void resume(long nowNanos) {
+        if (!mPaused) {
+            return;
+        }
+        mPauseEndNs[mPauseCount - 1] = Math.max(nowNanos, mPauseStartNs[mPauseCount - 1]);
+        mPaused = false;
+    }
+
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Returns the presentation time for a sample, or -1 if it was captured while paused and
+     * should be dropped.
+     *
+     * @param captureNanos Capture time, on the System.nanoTime() clock.
+     */
+    public synchronized long toPresentationNanos(long captureNanos) {
+        long offsetNs = 0;
+        // Most recent pauses last: samples usually come in after all of them.
+        for (int i = 0; i < mPauseCount; i++) {
+            if (captureNanos < mPauseStartNs[i]) {
+                break;
+            }
+            if (captureNanos < mPauseEndNs[i]) {
+                return -1;
+            }
+            offsetNs += mPauseEndNs[i] - mPauseStartNs[i];
+        }
+        return captureNanos - offsetNs;
+    }
+
+    /**
+     * Returns the total length of the finished pauses, in nanoseconds.
+     */
+    public synchronized long getPausedNanos() {
+        long totalNs = 0;
+        int finished = mPaused ? mPauseCount - 1 : mPauseCount;
+        for (int i = 0; i < finished; i++) {
+            totalNs += mPauseEndNs[i] - mPauseStartNs[i];
+        }
+        return totalNs;
+    }
+}
@@ -0,0 +1,154 @@
+package com.alan.alvideo.util;
+
+/**
+ * Cleans up video presentation times before they go to the encoder.
+ * <p>
+ * Camera timestamps jitter by a few milliseconds, sometimes arrive in bursts, and can jump
+ * backwards, e.g. when the camera restarts after the power button.  The muxer rejects or
+ * reorders timestamps that don't increase, and players stutter over uneven ones.  This
+ * makes them:
+ * <ul>
+ * <li>strictly increasing: a timestamp at or before the previous one is moved just past it,
+ * or with a grid, to the next grid slot.
+ * <li>optionally on a constant-frame-rate grid: each timestamp is rounded to the nearest
+ * multiple of the frame interval from the first frame.  A frame that would land more than
+ * one slot ahead of its real time, because the camera delivers faster than the grid, is
+ * dropped instead of pushing every later frame further out.
+ * <li>continuous across clock resets: a jump back of more than MAX_BACKWARD_NS restarts the
+ * timeline one frame interval after the previous output.
+ * </ul>
+ * Forward gaps are left alone, since audio and wall-clock time carry on through them, but
+ * are counted, along with the frames they're missing.
+ * <p>
+ * Presentation times go in, so pauses taken out by RecordingClock are not gaps.  One
+ * instance per recording.  Not thread-safe; use from the encoder thread.
+ */
+public class TimestampNormalizer {
+    /**
+     * Smallest step between two outputs without a grid.  MediaMuxer works in microseconds,
+     * so anything less would collapse into the same timestamp.
+     */
+    public static final long MIN_STEP_NS = 1000;
+    /**
+     * Largest jump back treated as jitter.  More than this, and the clock must have been
+     * reset.
+     */
+    public static final long MAX_BACKWARD_NS = 500000000L;
+
+    private final long mFrameIntervalNs;
+    private final boolean mSnapToGrid;
+
+    private long mOffsetNs;
+    private long mGridOriginNs;
+    private long mLastInputNs;
+    private long mLastOutputNs;
+    private boolean mStarted;
+
+    private long mAdjusted;
+    private long mDropped;
+    private long mGaps;
+    private long mFramesMissing;
+    private long mDiscontinuities;
+
+    /**
+     * @param frameRate  Nominal frame rate, for gap detection, the grid, and the step over a
+     *                   clock reset.
+     * @param snapToGrid Whether to put every frame on the frameRate grid.
+     */
+    public TimestampNormalizer(int frameRate, boolean snapToGrid) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("bad frame rate " + frameRate);
+        }
+        mFrameIntervalNs = 1000000000L / frameRate;
+        mSnapToGrid = snapToGrid;
+    }
+
+    /**
+     * Returns the timestamp to encode the frame with, or -1 if the frame should be dropped.
+     *
+     * @param presentationNanos The frame's timestamp as it came in.
+     */
+    public long normalize(long presentationNanos) {
+        if (!mStarted) {
+            mStarted = true;
+            mGridOriginNs = presentationNanos;
+            mLastInputNs = presentationNanos;
+            mLastOutputNs = presentationNanos;
+            return presentationNanos;
+        }
+
+        long inputGapNs = presentationNanos - mLastInputNs;
+        mLastInputNs = presentationNanos;
+        if (inputGapNs < -MAX_BACKWARD_NS) {
+            // Clock reset.  Carry on as if this frame followed the last one normally.
+            mDiscontinuities++;
+            mOffsetNs = mLastOutputNs + mFrameIntervalNs - presentationNanos;
+        } else if (inputGapNs > mFrameIntervalNs * 3 / 2) {
+            mGaps++;
+            mFramesMissing += (inputGapNs + mFrameIntervalNs / 2) / mFrameIntervalNs - 1;
+        }
+
+        long wantedNs = presentationNanos + mOffsetNs;
+        long outputNs;
+        if (mSnapToGrid) {
+            long slot = Math.round((wantedNs - mGridOriginNs) / (double) mFrameIntervalNs);
+            outputNs = mGridOriginNs + slot * mFrameIntervalNs;
+            if (outputNs <= mLastOutputNs) {
+                outputNs = mLastOutputNs + mFrameIntervalNs;
+                if (outputNs - wantedNs > mFrameIntervalNs) {
+                    mDropped++;
+                    return -1;
+                }
+            }
+        } else {
+            outputNs = Math.max(wantedNs, mLastOutputNs + MIN_STEP_NS);
+        }
+        if (outputNs != presentationNanos) {
+            mAdjusted++;
+        }
+        mLastOutputNs = outputNs;
+        return outputNs;
+    }
+
+    /**
+     * Frames whose timestamp was changed.
+     */
+    public long getAdjustedCount() {
+        return mAdjusted;
+    }
+
+    /**
+     * Frames dropped because they would have run too far ahead of the grid.
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Times the input went more than one and a half frame intervals without a frame.
+     */
+    public long getGapCount() {
+        return mGaps;
+    }
+
+    /**
+     * Frames the gaps should have had.
+     */
+    public long getFramesMissing() {
+        return mFramesMissing;
+    }
+
+    /**
+     * Times the input clock jumped back and the timeline was restarted.
+     */
+    public long getDiscontinuityCount() {
+        return mDiscontinuities;
+    }
+
+    @Override
+    public String toString() {
+        return "adjusted=" + mAdjusted + " dropped=" + mDropped + " gaps=" + mGaps +
+                " (" + mFramesMissing + " frames) resets=" + mDiscontinuities +
+                (mSnapToGrid ? " cfr@" + 1000000000L / mFrameIntervalNs : "");
+    }
+}
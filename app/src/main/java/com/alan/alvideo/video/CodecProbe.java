@@ -0,0 +1,275 @@
+package com.alan.alvideo.video;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds out which video encoders the device has and what they can do, once per OS build.
+ * <p>
+ * Walking MediaCodecList instantiates every codec's capability tables and takes from tens
+ * to hundreds of milliseconds, which we don't want on every recording start.  The result
+ * is kept in memory, and in a small text file in the directory given to init(), tagged
+ * with Build.FINGERPRINT.  The file is only trusted while the fingerprint matches, so an
+ * OS update (which may bring new codecs) probes again.
+ * <p>
+ * Thread-safe.
+ */
+public final class CodecProbe {
+    private static final String TAG = "CodecProbe";
+
+    private static final String CACHE_FILE = "codec_probe.txt";
+    private static final String CACHE_VERSION = "CodecProbe 1";
+
+    // Sizes at which we ask for the frame rate ceiling, both ways round.
+    private static final int[][] PROBE_SIZES = {
+            {640, 480}, {1280, 720}, {1920, 1080}, {3840, 2160}
+    };
+
+    private static File sCacheDir;
+    private static List<EncoderInfo> sEncoders;
+
+    private CodecProbe() {
+    }
+
+    /**
+     * Sets where the probe result is cached, and loads it (or probes) on a background thread
+     * so it is ready by the time a recording starts.  Call once, e.g. from
+     * Activity#onCreate() with Context#getCacheDir().
+     */
+    public static void init(File cacheDir) {
+        synchronized (CodecProbe.class) {
+            sCacheDir = cacheDir;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                getEncoders();
+            }
+        }, "CodecProbe").start();
+    }
+
+    /**
+     * Returns true if the device has a video encoder for the MIME type.
+     */
+    public static boolean hasEncoder(String mimeType) {
+        for (EncoderInfo info : getEncoders()) {
+            if (info.mMimeType.equalsIgnoreCase(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the MIME types the device's video encoders support, e.g. "video/avc".
+     */
+    public static List<String> getEncoderMimeTypes() {
+        List<String> types = new ArrayList<>();
+        for (EncoderInfo info : getEncoders()) {
+            if (!types.contains(info.mMimeType)) {
+                types.add(info.mMimeType);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Returns every video encoder and MIME type pair, in MediaCodecList order.  Loads the
+     * cache or probes on first use.
+     */
+    static synchronized List<EncoderInfo> getEncoders() {
+        if (sEncoders != null) {
+            return sEncoders;
+        }
+        File cacheFile = sCacheDir != null ? new File(sCacheDir, CACHE_FILE) : null;
+        List<EncoderInfo> encoders = null;
+        if (cacheFile != null) {
+            encoders = readCache(cacheFile, Build.FINGERPRINT);
+        }
+        if (encoders == null) {
+            long startMs = SystemClock.elapsedRealtime();
+            encoders = probe();
+            Log.d(TAG, "probed " + encoders.size() + " encoders in " +
+                    (SystemClock.elapsedRealtime() - startMs) + "ms");
+            if (cacheFile != null) {
+                try {
+                    writeCache(cacheFile, Build.FINGERPRINT, encoders);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "unable to write " + cacheFile, ioe);
+                }
+            }
+        }
+        sEncoders = Collections.unmodifiableList(encoders);
+        return sEncoders;
+    }
+
+    /**
+     * Reads a cache file.  Returns null if it is missing, unreadable, from another version
+     * of this class or from another build.
+     */
+    static List<EncoderInfo> readCache(File file, String fingerprint) {
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            if (!CACHE_VERSION.equals(reader.readLine()) || !fingerprint.equals(reader.readLine())) {
+                return null;
+            }
+            List<EncoderInfo> encoders = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    encoders.add(EncoderInfo.fromLine(line));
+                }
+            }
+            return encoders;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Writes a cache file.  The file is replaced in one step, so a crash half way through
+     * leaves the old one (or none), never half of one.
+     */
+    static void writeCache(File file, String fingerprint, List<EncoderInfo> encoders)
+            throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try {
+            writer.write(CACHE_VERSION);
+            writer.newLine();
+            writer.write(fingerprint);
+            writer.newLine();
+            for (EncoderInfo info : encoders) {
+                writer.write(info.toLine());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("unable to rename " + temp + " to " + file);
+        }
+    }
+
+    private static void closeQuietly(BufferedReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException ioe) {
+                // ignore
+            }
+        }
+    }
+
+    private static List<EncoderInfo> probe() {
+        List<EncoderInfo> encoders = new ArrayList<>();
+        int count = MediaCodecList.getCodecCount();
+        for (int i = 0; i < count; i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (!type.toLowerCase().startsWith("video/")) {
+                    continue;
+                }
+                try {
+                    encoders.add(describe(info, type));
+                } catch (RuntimeException re) {
+                    // Some vendor codecs throw for their own types.
+                    Log.w(TAG, "can't get capabilities of " + info.getName() + " for " + type, re);
+                }
+            }
+        }
+        return encoders;
+    }
+
+    private static EncoderInfo describe(MediaCodecInfo info, String mimeType) {
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(mimeType);
+        int[] profileLevels = new int[caps.profileLevels.length * 2];
+        for (int i = 0; i < caps.profileLevels.length; i++) {
+            profileLevels[2 * i] = caps.profileLevels[i].profile;
+            profileLevels[2 * i + 1] = caps.profileLevels[i].level;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return new EncoderInfo(info.getName(), mimeType.toLowerCase(), profileLevels);
+        }
+        return describeLollipop(info.getName(), mimeType.toLowerCase(), caps, profileLevels);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static EncoderInfo describeLollipop(String name, String mimeType,
+                                                MediaCodecInfo.CodecCapabilities caps,
+                                                int[] profileLevels) {
+        MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+        int maxWidth = video.getSupportedWidths().getUpper();
+        int maxHeight = video.getSupportedHeights().getUpper();
+        int widthAlignment = video.getWidthAlignment();
+
+        // The area limit: the tallest frame at the widest width, or at a common width.
+        long maxPixels = 0;
+        int[] widths = {maxWidth, 1920, 1280};
+        for (int width : widths) {
+            if (width <= maxWidth && width % widthAlignment == 0) {
+                try {
+                    int height = video.getSupportedHeightsFor(width).getUpper();
+                    maxPixels = Math.max(maxPixels, (long) width * height);
+                } catch (IllegalArgumentException iae) {
+                    // width not supported after all
+                }
+            }
+        }
+
+        long maxPixelRate = 0;
+        for (int[] size : PROBE_SIZES) {
+            for (int flip = 0; flip < 2; flip++) {
+                int width = size[flip];
+                int height = size[1 - flip];
+                if (video.isSizeSupported(width, height)) {
+                    Range<Double> rates = video.getSupportedFrameRatesFor(width, height);
+                    maxPixelRate = Math.max(maxPixelRate,
+                            (long) (width * height * rates.getUpper()));
+                }
+            }
+        }
+
+        int bitrateModes = 0;
+        MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+        for (EncoderConfig.BitrateMode mode : EncoderConfig.BitrateMode.values()) {
+            if (encoder.isBitrateModeSupported(mode.mCodecValue)) {
+                bitrateModes |= 1 << mode.mCodecValue;
+            }
+        }
+
+        Range<Integer> bitRates = video.getBitrateRange();
+        return new EncoderInfo(name, mimeType, profileLevels, maxWidth, maxHeight,
+                widthAlignment, video.getHeightAlignment(), maxPixels,
+                video.getSupportedFrameRates().getUpper(), maxPixelRate,
+                bitRates.getLower(), bitRates.getUpper(), bitrateModes);
+    }
+}
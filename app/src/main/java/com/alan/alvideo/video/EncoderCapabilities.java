@@ -0,0 +1,123 @@
+package com.alan.alvideo.video;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.alan.alvideo.muxer.TrackFormat;
+
+/**
+ * Checks an EncoderConfig against what the device's encoders report they can do, so a bad
+ * combination fails with a clear message before configure() rather than with an opaque
+ * CodecException from inside it.
+ * <p>
+ * The encoders' capabilities come from CodecProbe, so this doesn't walk MediaCodecList on
+ * every recording.  Size, frame rate, bit rate and rate control mode can only be checked on
+ * API 21 and up; before that we can just look for an encoder with the right MIME type and
+ * profile.
+ */
+public final class EncoderCapabilities {
+    private static final String TAG = "EncoderCapabilities";
+
+    // Build.VERSION_CODES.N, which is newer than our compileSdkVersion.
+    private static final int API_NOUGAT = 24;
+
+    private EncoderCapabilities() {
+    }
+
+    /**
+     * Thrown when no encoder on the device supports a configuration.
+     */
+    public static class UnsupportedConfigException extends RuntimeException {
+        public UnsupportedConfigException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The encoder picked for a config.
+     */
+    static final class Choice {
+        final String mCodecName;
+        final String mMimeType;
+        final int mBitRate;
+
+        Choice(String codecName, String mimeType, int bitRate) {
+            mCodecName = codecName;
+            mMimeType = mimeType;
+            mBitRate = bitRate;
+        }
+    }
+
+    /**
+     * Returns the name of the first encoder that supports every setting in the config.
+     *
+     * @throws UnsupportedConfigException with the reason the closest candidate was
+     *                                    rejected.
+     */
+    public static String check(EncoderConfig config) {
+        return choose(config).mCodecName;
+    }
+
+    /**
+     * Picks the encoder for a config.  With EncoderConfig.Builder#setPreferHevc, an H.265
+     * encoder that supports the config at the reduced bit rate wins; otherwise it is the
+     * first encoder for the config's own MIME type that supports every setting.
+     *
+     * @throws UnsupportedConfigException with the reason the closest candidate was
+     *                                    rejected.
+     */
+    static Choice choose(EncoderConfig config) {
+        if (config.mPreferHevc && canUseHevc(config)) {
+            int bitRate = (int) (config.mBitRate * EncoderConfig.HEVC_BIT_RATE_FACTOR);
+            String[] reason = new String[1];
+            String name = findEncoder(config, TrackFormat.MIMETYPE_VIDEO_HEVC, bitRate, reason);
+            if (name != null) {
+                Log.d(TAG, "using " + name + " (HEVC at " + bitRate + "b/s) for " + config);
+                return new Choice(name, TrackFormat.MIMETYPE_VIDEO_HEVC, bitRate);
+            }
+            Log.d(TAG, "no HEVC: " + reason[0]);
+        }
+        String[] reason = new String[1];
+        String name = findEncoder(config, config.mMimeType, config.mBitRate, reason);
+        if (name == null) {
+            throw new UnsupportedConfigException(reason[0]);
+        }
+        Log.d(TAG, "using " + name + " for " + config);
+        return new Choice(name, config.mMimeType, config.mBitRate);
+    }
+
+    /**
+     * Returns true if the rest of the pipeline can take H.265 for this config.  Profiles
+     * are per MIME type, so a config with one set stays with its own type.
+     */
+    private static boolean canUseHevc(EncoderConfig config) {
+        if (config.mProfile != 0 || TrackFormat.MIMETYPE_VIDEO_HEVC.equals(config.mMimeType)) {
+            return false;
+        }
+        // MediaMuxer only writes H.265 from Android 7.0 on; our fragmented MP4 muxer
+        // always can.
+        return config.mMuxerType == EncoderConfig.MuxerType.FRAGMENTED_MP4 ||
+                Build.VERSION.SDK_INT >= API_NOUGAT;
+    }
+
+    /**
+     * Returns the name of the first encoder for the MIME type that supports the config at
+     * the given bit rate, or null with the reason the last candidate was rejected in
+     * reason[0].
+     */
+    private static String findEncoder(EncoderConfig config, String mimeType, int bitRate,
+                                      String[] reason) {
+        reason[0] = "no encoder for " + mimeType;
+        for (EncoderInfo info : CodecProbe.getEncoders()) {
+            if (!info.mMimeType.equalsIgnoreCase(mimeType)) {
+                continue;
+            }
+            String problem = info.findProblem(config, bitRate);
+            if (problem == null) {
+                return info.mName;
+            }
+            reason[0] = info.mName + ": " + problem;
+        }
+        return null;
+    }
+}
@@ -1,7 +1,10 @@
 package com.alan.alvideo.video;
 
+import android.media.MediaCodecInfo;
 import android.opengl.EGLContext;
 
+import com.alan.alvideo.muxer.TrackFormat;
+
 import java.io.File;
 
 /**
@@ -11,25 +14,561 @@ import java.io.File;
  * explicit synchronization (and don't need to worry about it getting tweaked out from
  * under us).
  * <p>
- * TODO: make frame rate and iframe interval configurable?  Maybe use builder pattern
- * with reasonable defaults for those and bit rate.
+ * Instances are made with {@link Builder}, which fills in reasonable defaults and rejects
+ * settings that contradict each other.  Whether the device's encoder can actually do what
+ * was asked is checked separately, by {@link EncoderCapabilities#check}, right before the
+ * codec is configured.
  */
 public class EncoderConfig {
+
+    /**
+     * How encoded output is pulled out of the codec.
+     */
+    public enum DrainMode {
+        /**
+         * Poll dequeueOutputBuffer() on the encoder thread before every frame is drawn.
+         */
+        SYNC,
+        /**
+         * Let MediaCodec push output buffers through MediaCodec.Callback on a dedicated
+         * looper, so the draw/swap path never waits on the codec.  Requires API 23; older
+         * devices fall back to SYNC.
+         */
+        CALLBACK,
+        /**
+         * Poll dequeueOutputBuffer() continuously on a separate drain thread, leaving the
+         * encoder thread to do nothing but draw and swap.
+         */
+        PIPELINED
+    }
+
+    /**
+     * Container writer for the output file.
+     */
+    public enum MuxerType {
+        /**
+         * android.media.MediaMuxer.  Sample tables stay in memory until the recording stops.
+         */
+        MEDIA_MUXER,
+        /**
+         * Streaming fragmented MP4 with constant memory use.  The file is playable up to its
+         * last fragment even if the recording is cut short.
+         */
+        FRAGMENTED_MP4
+    }
+
+    /**
+     * Rate control mode, see MediaCodecInfo.EncoderCapabilities.  Requires API 21; older
+     * devices use whatever the codec defaults to, which is almost always VBR.
+     */
+    public enum BitrateMode {
+        /**
+         * Constant quality.  The bit rate is only a hint.
+         */
+        CQ(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ),
+        VBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR),
+        CBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+
+        final int mCodecValue;
+
+        BitrateMode(int codecValue) {
+            mCodecValue = codecValue;
+        }
+    }
+
+    /**
+     * Whether the encoder may reorder frames.  B-frames save bits but add a frame or two of
+     * latency and make presentation order differ from decode order.
+     */
+    public enum BFramePolicy {
+        /**
+         * Ask for I and P frames only.  This is what the muxers here expect.
+         */
+        NONE,
+        /**
+         * Let the codec use B-frames if it wants to.  Only MediaMuxer handles the reordered
+         * output, and the AVC Baseline profile doesn't allow them.
+         */
+        ALLOW
+    }
+
+    /**
+     * What happens to a new frame when the encoder thread is still busy with earlier ones
+     * and the frame queue is full.
+     */
+    public enum DropPolicy {
+        /**
+         * Throw away the oldest waiting frame to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Throw away the new frame.
+         */
+        DROP_NEWEST,
+        /**
+         * Keep at most one waiting frame, and replace it with each newer one.  Since every
+         * frame is drawn from the same, most recently latched texture, this loses nothing
+         * the other policies would keep, and adds the least latency.
+         */
+        COALESCE_LATEST
+    }
+
+    public static final String DEFAULT_MIME_TYPE = TrackFormat.MIMETYPE_VIDEO_AVC;
+    public static final int DEFAULT_BIT_RATE = 1024 * 1024;    // 1 Mb/s
+    public static final int DEFAULT_FRAME_RATE = 30;
+    public static final int DEFAULT_IFRAME_INTERVAL = 5;       // seconds
+    public static final int DEFAULT_FRAME_QUEUE_CAPACITY = 3;
+    public static final int DEFAULT_AUDIO_SAMPLE_RATE = 44100;
+    public static final int DEFAULT_AUDIO_BIT_RATE = 128000;
+    /**
+     * H.265 bit rate as a fraction of the H.264 bit rate for about the same quality.
+     */
+    public static final float HEVC_BIT_RATE_FACTOR = 0.6f;
+
+    /**
+     * Builds an EncoderConfig.  Everything except the output file and size has a default.
+     */
+    public static class Builder {
+        private final File mOutputFile;
+        private final int mWidth;
+        private final int mHeight;
+        private String mMimeType = DEFAULT_MIME_TYPE;
+        private int mBitRate = DEFAULT_BIT_RATE;
+        private BitrateMode mBitrateMode = BitrateMode.VBR;
+        private int mFrameRate = DEFAULT_FRAME_RATE;
+        private int mIFrameInterval = DEFAULT_IFRAME_INTERVAL;
+        private int mProfile;
+        private int mLevel;
+        private BFramePolicy mBFramePolicy = BFramePolicy.NONE;
+        private DrainMode mDrainMode = DrainMode.SYNC;
+        private MuxerType mMuxerType = MuxerType.MEDIA_MUXER;
+        private int mFrameQueueCapacity = DEFAULT_FRAME_QUEUE_CAPACITY;
+        private DropPolicy mDropPolicy = DropPolicy.COALESCE_LATEST;
+        private long mSegmentDurationUs;
+        private long mSegmentBytes;
+        private int mPreRecordBytes;
+        private long mPreRecordDurationUs;
+        private int mWriteBehindBytes;
+        private int mMaxFramesInFlight;
+        private int mAudioSampleRate;
+        private int mAudioChannelCount;
+        private int mAudioBitRate;
+        private boolean mPreferHevc;
+        private float mTimeLapseFps;
+        private boolean mFastStart;
+        private boolean mConstantFrameRate;
+
+        public Builder(File outputFile, int width, int height) {
+            mOutputFile = outputFile;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        /**
+         * Codec MIME type, e.g. "video/avc".
+         */
+        public Builder setMimeType(String mimeType) {
+            mMimeType = mimeType;
+            return this;
+        }
+
+        /**
+         * Target bit rate, in bits per second.
+         */
+        public Builder setBitRate(int bitRate) {
+            mBitRate = bitRate;
+            return this;
+        }
+
+        public Builder setBitrateMode(BitrateMode bitrateMode) {
+            mBitrateMode = bitrateMode;
+            return this;
+        }
+
+        /**
+         * Nominal frame rate.  The encoder uses it for rate control; the actual frame
+         * timing comes from the presentation times.
+         */
+        public Builder setFrameRate(int frameRate) {
+            mFrameRate = frameRate;
+            return this;
+        }
+
+        /**
+         * GOP length, in seconds between sync frames.  0 makes every frame a sync frame.
+         */
+        public Builder setIFrameInterval(int seconds) {
+            mIFrameInterval = seconds;
+            return this;
+        }
+
+        /**
+         * Codec profile and level, MediaCodecInfo.CodecProfileLevel constants.  0 leaves
+         * the choice to the codec.  A level can only be given together with a profile.
+         */
+        public Builder setProfileLevel(int profile, int level) {
+            mProfile = profile;
+            mLevel = level;
+            return this;
+        }
+
+        public Builder setBFramePolicy(BFramePolicy policy) {
+            mBFramePolicy = policy;
+            return this;
+        }
+
+        public Builder setDrainMode(DrainMode drainMode) {
+            mDrainMode = drainMode;
+            return this;
+        }
+
+        public Builder setMuxerType(MuxerType muxerType) {
+            mMuxerType = muxerType;
+            return this;
+        }
+
+        /**
+         * Bounds the frames waiting for the encoder thread.  When the queue is full, the
+         * policy picks the frame that is lost.
+         */
+        public Builder setFrameQueue(int capacity, DropPolicy policy) {
+            mFrameQueueCapacity = capacity;
+            mDropPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Splits the recording into segments of about the given duration or size, whichever
+         * is reached first.  Segments roll over at sync frames and are named after the
+         * output file with an index appended (video.mp4 -> video_000.mp4, video_001.mp4, ...).
+         *
+         * @param segmentDurationUs Duration limit, or 0 for none.
+         * @param segmentBytes      Size limit, or 0 for none.
+         */
+        public Builder setSegments(long segmentDurationUs, long segmentBytes) {
+            mSegmentDurationUs = segmentDurationUs;
+            mSegmentBytes = segmentBytes;
+            return this;
+        }
+
+        /**
+         * Makes the recording always-on: the encoder runs from startRecording(), but only
+         * the last {@code durationUs} of its output are kept, in an off-heap buffer of
+         * {@code maxBytes}.  Nothing is written until
+         * TextureMovieEncoder#savePreRecording(), which writes the buffered history plus the
+         * live stream to the output.  The buffer drops whole GOPs, so the history may be up
+         * to one GOP longer than asked for, or shorter if the budget runs out first.
+         *
+         * @param maxBytes   Memory budget, or 0 to turn pre-recording off.
+         * @param durationUs History to keep.
+         */
+        public Builder setPreRecord(int maxBytes, long durationUs) {
+            mPreRecordBytes = maxBytes;
+            mPreRecordDurationUs = durationUs;
+            return this;
+        }
+
+        /**
+         * Moves file writes to a dedicated I/O thread, so slow storage doesn't stall the
+         * encoder.  Encoded samples are copied into a pool of direct buffers of at most
+         * {@code poolBytes}; when it fills up, the encoder waits.
+         *
+         * @param poolBytes Buffer budget, e.g. WriteBehindMuxer.DEFAULT_POOL_BYTES, or 0 to
+         *                  write inline.
+         */
+        public Builder setWriteBehind(int poolBytes) {
+            mWriteBehindBytes = poolBytes;
+            return this;
+        }
+
+        /**
+         * Limits how many frames may be inside the codec at once.  When a recording has
+         * several outputs, a codec that can't keep up would otherwise hold up the draw loop
+         * for all of them; with a limit, frames for that output are skipped until it
+         * catches up, and counted as dropped in its stats.
+         *
+         * @param maxFrames Limit, or 0 for none.
+         */
+        public Builder setMaxFramesInFlight(int maxFrames) {
+            mMaxFramesInFlight = maxFrames;
+            return this;
+        }
+
+        /**
+         * Uses H.265 instead of the configured MIME type if the device has an encoder that
+         * supports the rest of the config, at HEVC_BIT_RATE_FACTOR times the configured bit
+         * rate.  H.265 gets about the same quality from that, so files come out roughly 40%
+         * smaller.  Ignored if a profile is set, since profiles belong to one MIME type, and
+         * with MuxerType.MEDIA_MUXER before Android 7.0, which can't write H.265.
+         */
+        public Builder setPreferHevc(boolean preferHevc) {
+            mPreferHevc = preferHevc;
+            return this;
+        }
+
+        /**
+         * Records AAC-LC audio from the microphone along with the video.  Needs the
+         * RECORD_AUDIO permission; if the microphone can't be opened, the recording goes
+         * ahead without audio.
+         *
+         * @param sampleRate   Sample rate in Hz, e.g. DEFAULT_AUDIO_SAMPLE_RATE, or 0 for no
+         *                     audio.
+         * @param channelCount 1 or 2.
+         * @param bitRate      AAC bit rate, e.g. DEFAULT_AUDIO_BIT_RATE.
+         */
+        public Builder setAudio(int sampleRate, int channelCount, int bitRate) {
+            mAudioSampleRate = sampleRate;
+            mAudioChannelCount = channelCount;
+            mAudioBitRate = bitRate;
+            return this;
+        }
+
+        /**
+         * Records a time-lapse: only captureFps frames per second of capture time are
+         * drawn and encoded, the rest are skipped before they reach the encoder thread, and
+         * the recording plays back at the frame rate.  E.g. 1 fps at the default 30 fps
+         * speeds things up 30 times, and costs a thirtieth of the GPU and codec work.
+         * Can't be combined with audio.
+         *
+         * @param captureFps Frames to keep per second, or 0 to record every frame.
+         */
+        public Builder setTimeLapse(float captureFps) {
+            mTimeLapseFps = captureFps;
+            return this;
+        }
+
+        /**
+         * Puts every frame's presentation time on an exact 1/frameRate grid, so players see
+         * constant-frame-rate video instead of the camera's jitter.  When the camera runs
+         * faster than the frame rate, frames that don't fit the grid are dropped.  Either
+         * way, timestamps are kept strictly increasing; see TimestampNormalizer.
+         */
+        public Builder setConstantFrameRate(boolean constantFrameRate) {
+            mConstantFrameRate = constantFrameRate;
+            return this;
+        }
+
+        /**
+         * Moves the moov box of each finished file in front of its media data, on a
+         * background thread once the file is complete, so it can be streamed or played
+         * over the network before it's fully downloaded.  Only for MuxerType.MEDIA_MUXER,
+         * FRAGMENTED_MP4 files start with their moov box already.  See FastStartMp4.
+         */
+        public Builder setFastStart(boolean fastStart) {
+            mFastStart = fastStart;
+            return this;
+        }
+
+        /**
+         * Creates the configuration.
+         *
+         * @throws IllegalArgumentException if a value is out of range, or two settings can't
+         *                                  be used together.
+         */
+        public EncoderConfig build() {
+            if (mOutputFile == null) {
+                throw new IllegalArgumentException("no output file");
+            }
+            if (mWidth <= 0 || mHeight <= 0 || mWidth % 2 != 0 || mHeight % 2 != 0) {
+                throw new IllegalArgumentException("bad size " + mWidth + "x" + mHeight +
+                        ", must be positive and even");
+            }
+            if (mMimeType == null || !mMimeType.startsWith("video/")) {
+                throw new IllegalArgumentException("not a video MIME type: " + mMimeType);
+            }
+            if (mBitRate <= 0) {
+                throw new IllegalArgumentException("bad bit rate " + mBitRate);
+            }
+            if (mFrameRate <= 0 || mFrameRate > 240) {
+                throw new IllegalArgumentException("bad frame rate " + mFrameRate);
+            }
+            if (mIFrameInterval < 0) {
+                throw new IllegalArgumentException("bad I-frame interval " + mIFrameInterval);
+            }
+            if (mProfile < 0 || mLevel < 0 || (mLevel != 0 && mProfile == 0)) {
+                throw new IllegalArgumentException("bad profile/level " + mProfile + "/" + mLevel);
+            }
+            if (mPreRecordBytes < 0 || (mPreRecordBytes > 0 && mPreRecordDurationUs <= 0)) {
+                throw new IllegalArgumentException("bad pre-record limits " + mPreRecordBytes +
+                        "B/" + mPreRecordDurationUs + "us");
+            }
+            if (mWriteBehindBytes < 0) {
+                throw new IllegalArgumentException("bad write-behind pool " + mWriteBehindBytes);
+            }
+            if (mAudioSampleRate != 0 && (mAudioSampleRate < 8000 || mAudioSampleRate > 48000
+                    || mAudioChannelCount < 1 || mAudioChannelCount > 2 || mAudioBitRate <= 0)) {
+                throw new IllegalArgumentException("bad audio " + mAudioSampleRate + "Hz x" +
+                        mAudioChannelCount + " " + mAudioBitRate + "b/s");
+            }
+            if (mTimeLapseFps < 0 || mTimeLapseFps > mFrameRate) {
+                throw new IllegalArgumentException("bad time-lapse capture rate " +
+                        mTimeLapseFps + ", must be at most the frame rate " + mFrameRate);
+            }
+            if (mTimeLapseFps > 0 && mAudioSampleRate != 0) {
+                throw new IllegalArgumentException("time-lapse recordings can't have audio");
+            }
+            if (mMaxFramesInFlight < 0) {
+                throw new IllegalArgumentException("bad frames in flight " + mMaxFramesInFlight);
+            }
+            if (mFrameQueueCapacity < 1) {
+                throw new IllegalArgumentException("bad frame queue capacity " +
+                        mFrameQueueCapacity);
+            }
+            if (mBitrateMode == null || mBFramePolicy == null || mDrainMode == null ||
+                    mMuxerType == null || mDropPolicy == null) {
+                throw new IllegalArgumentException("null setting");
+            }
+            if (mSegmentDurationUs < 0 || mSegmentBytes < 0) {
+                throw new IllegalArgumentException("bad segment limits " + mSegmentDurationUs +
+                        "us/" + mSegmentBytes + "B");
+            }
+            if (mMuxerType == MuxerType.FRAGMENTED_MP4) {
+                if (!TrackFormat.MIMETYPE_VIDEO_AVC.equals(mMimeType)
+                        && !TrackFormat.MIMETYPE_VIDEO_HEVC.equals(mMimeType)) {
+                    throw new IllegalArgumentException(mMuxerType + " can't write " + mMimeType);
+                }
+                if (mBFramePolicy != BFramePolicy.NONE) {
+                    throw new IllegalArgumentException(mMuxerType + " can't write B-frames");
+                }
+            }
+            if (mFastStart && mMuxerType != MuxerType.MEDIA_MUXER) {
+                throw new IllegalArgumentException(mMuxerType + " is fast-start already");
+            }
+            if (mBFramePolicy != BFramePolicy.NONE &&
+                    TrackFormat.MIMETYPE_VIDEO_AVC.equals(mMimeType) &&
+                    mProfile == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline) {
+                throw new IllegalArgumentException("AVC Baseline profile has no B-frames");
+            }
+            return new EncoderConfig(this);
+        }
+    }
+
+
     final File mOutputFile;
     final int mWidth;
     final int mHeight;
+    final String mMimeType;
     final int mBitRate;
+    final BitrateMode mBitrateMode;
+    final int mFrameRate;
+    final int mIFrameInterval;
+    final int mProfile;
+    final int mLevel;
+    final BFramePolicy mBFramePolicy;
+    final DrainMode mDrainMode;
+    final MuxerType mMuxerType;
+    final int mFrameQueueCapacity;
+    final DropPolicy mDropPolicy;
+    final long mSegmentDurationUs;
+    final long mSegmentBytes;
+    final int mPreRecordBytes;
+    final long mPreRecordDurationUs;
+    final int mWriteBehindBytes;
+    final int mMaxFramesInFlight;
+    final int mAudioSampleRate;
+    final int mAudioChannelCount;
+    final int mAudioBitRate;
+    final boolean mPreferHevc;
+    final float mTimeLapseFps;
+    final boolean mFastStart;
+    final boolean mConstantFrameRate;
     EGLContext mEglContext;
 
-    public EncoderConfig(File outputFile, int width, int height, int bitRate) {
-        mOutputFile = outputFile;
-        mWidth = width;
-        mHeight = height;
-        mBitRate = bitRate;
+    private EncoderConfig(Builder builder) {
+        mOutputFile = builder.mOutputFile;
+        mWidth = builder.mWidth;
+        mHeight = builder.mHeight;
+        mMimeType = builder.mMimeType;
+        mBitRate = builder.mBitRate;
+        mBitrateMode = builder.mBitrateMode;
+        mFrameRate = builder.mFrameRate;
+        mIFrameInterval = builder.mIFrameInterval;
+        mProfile = builder.mProfile;
+        mLevel = builder.mLevel;
+        mBFramePolicy = builder.mBFramePolicy;
+        mDrainMode = builder.mDrainMode;
+        mMuxerType = builder.mMuxerType;
+        mFrameQueueCapacity = builder.mFrameQueueCapacity;
+        mDropPolicy = builder.mDropPolicy;
+        mSegmentDurationUs = builder.mSegmentDurationUs;
+        mSegmentBytes = builder.mSegmentBytes;
+        mPreRecordBytes = builder.mPreRecordBytes;
+        mPreRecordDurationUs = builder.mPreRecordDurationUs;
+        mWriteBehindBytes = builder.mWriteBehindBytes;
+        mMaxFramesInFlight = builder.mMaxFramesInFlight;
+        mAudioSampleRate = builder.mAudioSampleRate;
+        mAudioChannelCount = builder.mAudioChannelCount;
+        mAudioBitRate = builder.mAudioBitRate;
+        mPreferHevc = builder.mPreferHevc;
+        mTimeLapseFps = builder.mTimeLapseFps;
+        mFastStart = builder.mFastStart;
+        mConstantFrameRate = builder.mConstantFrameRate;
+    }
+
+    /**
+     * Returns true if the recording is split into several files.
+     */
+    public boolean isSegmented() {
+        return mSegmentDurationUs > 0 || mSegmentBytes > 0;
+    }
+
+    /**
+     * Returns true if the encoder keeps a rolling history instead of writing right away.
+     */
+    public boolean isPreRecord() {
+        return mPreRecordBytes > 0;
+    }
+
+    /**
+     * Returns true if only some of the frames are recorded, see Builder#setTimeLapse().
+     */
+    public boolean isTimeLapse() {
+        return mTimeLapseFps > 0;
+    }
+
+    /**
+     * Returns true if audio is recorded along with the video.
+     */
+    public boolean hasAudio() {
+        return mAudioSampleRate > 0;
+    }
+
+    /**
+     * Returns true if a codec configured for the other config would encode this one as is,
+     * i.e. the two differ at most in their output, muxing and audio settings.
+     */
+    public boolean sameCodecSettings(EncoderConfig other) {
+        return mWidth == other.mWidth && mHeight == other.mHeight &&
+                mMimeType.equals(other.mMimeType) && mBitRate == other.mBitRate &&
+                mBitrateMode == other.mBitrateMode && mFrameRate == other.mFrameRate &&
+                mIFrameInterval == other.mIFrameInterval && mProfile == other.mProfile &&
+                mLevel == other.mLevel && mBFramePolicy == other.mBFramePolicy &&
+                mPreferHevc == other.mPreferHevc && mDrainMode == other.mDrainMode &&
+                // The muxer type decides whether H.265 is usable on older releases.
+                mMuxerType == other.mMuxerType;
     }
 
     public void updateEglContext(EGLContext eglContext) {
         mEglContext = eglContext;
     }
-}
 
+    @Override
+    public String toString() {
+        return "EncoderConfig: " + mMimeType + " " + mWidth + "x" + mHeight + "@" + mFrameRate +
+                " " + mBitrateMode + " " + mBitRate + " gop=" + mIFrameInterval + "s" +
+                (mProfile != 0 ? " profile=" + mProfile + "/" + mLevel : "") +
+                (mPreferHevc ? " preferhevc" : "") +
+                " bframes=" + mBFramePolicy + " drain=" + mDrainMode + " " + mMuxerType +
+                " queue=" + mFrameQueueCapacity + "/" + mDropPolicy +
+                (isSegmented() ? " segments=" + mSegmentDurationUs + "us/" + mSegmentBytes + "B" : "") +
+                (isPreRecord() ? " prerecord=" + mPreRecordDurationUs + "us/" + mPreRecordBytes + "B" : "") +
+                (mWriteBehindBytes > 0 ? " writebehind=" + mWriteBehindBytes + "B" : "") +
+                (mMaxFramesInFlight > 0 ? " inflight=" + mMaxFramesInFlight : "") +
+                (isTimeLapse() ? " timelapse=" + mTimeLapseFps + "fps" : "") +
+                (mFastStart ? " faststart" : "") +
+                (mConstantFrameRate ? " cfr" : "") +
+                (hasAudio() ? " audio=" + mAudioSampleRate + "Hz x" + mAudioChannelCount + " " +
+                        mAudioBitRate : "") +
+                " to '" + mOutputFile.toString() + "'";
+    }
+}
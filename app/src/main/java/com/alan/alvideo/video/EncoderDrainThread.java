@@ -0,0 +1,47 @@
+package com.alan.alvideo.video;
+
+import android.util.Log;
+
+/**
+ * Drains a VideoEncoderCore on its own thread.
+ * <p>
+ * The encoder thread only draws and swaps into the input surface; this thread sits in
+ * dequeueOutputBuffer() and hands finished buffers to the muxer.  VideoEncoderCore allows
+ * the input surface and the output to be used from different threads.
+ * <p>
+ * The final drainEncoder(true) is not done here.  Call quit(), which waits for the thread to
+ * exit, and then send EOS from the encoder thread as usual.
+ */
+class EncoderDrainThread extends Thread {
+    private static final String TAG = "EncoderDrainThread";
+
+    private final VideoEncoderCore mVideoEncoder;
+    private volatile boolean mQuit;
+
+    EncoderDrainThread(VideoEncoderCore videoEncoder) {
+        super("EncoderDrainThread");
+        mVideoEncoder = videoEncoder;
+    }
+
+    @Override
+    public void run() {
+        // drainEncoder() waits on the codec for a short while when there is no output, so
+        // this doesn't spin.
+        while (!mQuit) {
+            mVideoEncoder.drainEncoder(false);
+        }
+        Log.d(TAG, "drain thread exiting");
+    }
+
+    /**
+     * Stops draining and waits for the thread to exit.  (Call from the encoder thread.)
+     */
+    public void quit() {
+        mQuit = true;
+        try {
+            join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "interrupted waiting for drain thread");
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.alan.alvideo.video;
+
+/**
+ * What one encoder reported about one MIME type, in a form that can be cached on disk.
+ * <p>
+ * MediaCodecInfo can answer any question about any size; this keeps a handful of numbers
+ * from which the questions EncoderCapabilities asks can be answered well enough: the
+ * largest width, height and area, the alignment, the frame rate ceiling and the highest
+ * pixel rate seen at common sizes.  A config that passes may still fail in configure() on
+ * an odd codec, but one that fails here would not have worked.
+ * <p>
+ * Before API 21 the codec only tells us its profiles and levels, and hasVideoCaps() is
+ * false.
+ * <p>
+ * Object is immutable.
+ */
+final class EncoderInfo {
+    private static final String SEPARATOR = "|";
+
+    final String mName;
+    final String mMimeType;
+    final int[] mProfileLevels;     // profile, level, profile, level, ...
+    final int mMaxWidth;
+    final int mMaxHeight;
+    final int mWidthAlignment;
+    final int mHeightAlignment;
+    final long mMaxPixels;          // largest width * height
+    final int mMaxFrameRate;
+    final long mMaxPixelRate;       // pixels per second, 0 if unknown
+    final int mMinBitRate;
+    final int mMaxBitRate;
+    final int mBitrateModes;        // bit (1 << BitrateMode.mCodecValue) per supported mode
+
+    EncoderInfo(String name, String mimeType, int[] profileLevels) {
+        this(name, mimeType, profileLevels, 0, 0, 1, 1, 0, 0, 0, 0, 0, 0);
+    }
+
+    EncoderInfo(String name, String mimeType, int[] profileLevels, int maxWidth, int maxHeight,
+                int widthAlignment, int heightAlignment, long maxPixels, int maxFrameRate,
+                long maxPixelRate, int minBitRate, int maxBitRate, int bitrateModes) {
+        if (name.contains(SEPARATOR) || mimeType.contains(SEPARATOR)
+                || profileLevels.length % 2 != 0) {
+            throw new IllegalArgumentException("bad encoder info for " + name);
+        }
+        mName = name;
+        mMimeType = mimeType;
+        mProfileLevels = profileLevels.clone();
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
+        mWidthAlignment = Math.max(1, widthAlignment);
+        mHeightAlignment = Math.max(1, heightAlignment);
+        mMaxPixels = maxPixels;
+        mMaxFrameRate = maxFrameRate;
+        mMaxPixelRate = maxPixelRate;
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mBitrateModes = bitrateModes;
+    }
+
+    /**
+     * Returns true if the size, rate and bit rate fields are known (API 21 and up).
+     */
+    boolean hasVideoCaps() {
+        return mMaxWidth > 0;
+    }
+
+    /**
+     * Returns a description of the first setting the encoder can't handle, or null if it
+     * can handle all of them.
+     *
+     * @param bitRate Bit rate to check, which may differ from the config's.
+     */
+    String findProblem(EncoderConfig config, int bitRate) {
+        if (config.mProfile != 0 && !supportsProfileLevel(config.mProfile, config.mLevel)) {
+            return "profile/level " + config.mProfile + "/" + config.mLevel + " not supported";
+        }
+        if (!hasVideoCaps()) {
+            return null;
+        }
+        int width = config.mWidth;
+        int height = config.mHeight;
+        if (width > mMaxWidth || height > mMaxHeight || width % mWidthAlignment != 0
+                || height % mHeightAlignment != 0
+                || (mMaxPixels > 0 && (long) width * height > mMaxPixels)) {
+            return "size " + width + "x" + height + " not supported";
+        }
+        if (config.mFrameRate > mMaxFrameRate
+                || (mMaxPixelRate > 0 && (long) width * height * config.mFrameRate > mMaxPixelRate)) {
+            return config.mFrameRate + "fps not supported at " + width + "x" + height;
+        }
+        if (config.mBitrateMode != EncoderConfig.BitrateMode.CQ &&
+                (bitRate < mMinBitRate || bitRate > mMaxBitRate)) {
+            return "bit rate " + bitRate + " outside [" + mMinBitRate + ", " + mMaxBitRate + "]";
+        }
+        if ((mBitrateModes & (1 << config.mBitrateMode.mCodecValue)) == 0) {
+            return "bitrate mode " + config.mBitrateMode + " not supported";
+        }
+        return null;
+    }
+
+    private boolean supportsProfileLevel(int profile, int level) {
+        for (int i = 0; i < mProfileLevels.length; i += 2) {
+            // Level constants are in ascending order, so a higher one covers ours.
+            if (mProfileLevels[i] == profile && (level == 0 || mProfileLevels[i + 1] >= level)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the cache form: one line, fields separated by '|'.
+     */
+    String toLine() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mName).append(SEPARATOR).append(mMimeType).append(SEPARATOR);
+        for (int i = 0; i < mProfileLevels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(mProfileLevels[i]).append(':').append(mProfileLevels[i + 1]);
+        }
+        long[] numbers = {mMaxWidth, mMaxHeight, mWidthAlignment, mHeightAlignment, mMaxPixels,
+                mMaxFrameRate, mMaxPixelRate, mMinBitRate, mMaxBitRate, mBitrateModes};
+        for (long number : numbers) {
+            sb.append(SEPARATOR).append(number);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses what toLine() wrote.
+     *
+     * @throws IllegalArgumentException if the line is malformed.
+     */
+    static EncoderInfo fromLine(String line) {
+        String[] fields = line.split("\\|", -1);
+        if (fields.length != 13) {
+            throw new IllegalArgumentException("expected 13 fields: " + line);
+        }
+        try {
+            int[] profileLevels;
+            if (fields[2].isEmpty()) {
+                profileLevels = new int[0];
+            } else {
+                String[] pairs = fields[2].split(",");
+                profileLevels = new int[pairs.length * 2];
+                for (int i = 0; i < pairs.length; i++) {
+                    String[] pair = pairs[i].split(":");
+                    profileLevels[2 * i] = Integer.parseInt(pair[0]);
+                    profileLevels[2 * i + 1] = Integer.parseInt(pair[1]);
+                }
+            }
+            return new EncoderInfo(fields[0], fields[1], profileLevels,
+                    Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                    Integer.parseInt(fields[5]), Integer.parseInt(fields[6]),
+                    Long.parseLong(fields[7]), Integer.parseInt(fields[8]),
+                    Long.parseLong(fields[9]), Integer.parseInt(fields[10]),
+                    Integer.parseInt(fields[11]), Integer.parseInt(fields[12]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("malformed encoder info: " + line, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + mMimeType + ")";
+    }
+}
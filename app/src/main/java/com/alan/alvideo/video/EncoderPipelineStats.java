@@ -0,0 +1,467 @@
+package com.alan.alvideo.video;
+
+import com.alan.alvideo.util.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Queue depth and latency counters for the two encoder stages.
+ * <p>
+ * The submit stage runs from TextureMovieEncoder#frameAvailable() until the frame has been
+ * swapped into the encoder's input surface.  The drain stage runs from that swap until the
+ * codec hands the encoded frame back and it has been sent to the muxer.
+ * <p>
+ * Finer-grained, each frame is also followed through the Stage steps from its camera
+ * timestamp to the muxer, with one histogram per step, so a stutter can be pinned on GL,
+ * the codec or storage.  snapshot() reads out the percentiles.
+ * <p>
+ * Updated from the GL thread, the encoder thread and the drain thread without locking or
+ * allocating, and can be read from any thread.  Values read together are not an atomic
+ * snapshot.
+ */
+public class EncoderPipelineStats {
+    // Frames swapped but not yet out of the codec that we can match up with their swap time.
+    // Codec latency is a handful of frames, anything beyond this just isn't timed.
+    private static final int IN_FLIGHT_SLOTS = 64;
+
+    /**
+     * The steps a frame goes through on its way from the camera to the file.  Each is
+     * timed from the end of the one before.
+     */
+    public enum Stage {
+        /**
+         * From the camera timestamp until the GL thread has drawn the preview and hands the
+         * frame to the encoder.  Only timed when a FrameQueue feeds this output.
+         */
+        RENDER,
+        /**
+         * Waiting in the FrameQueue for the encoder thread.  Only timed for the primary
+         * output.
+         */
+        QUEUE,
+        /**
+         * Drawing the frame into the encoder's input surface.
+         */
+        DRAW,
+        /**
+         * eglSwapBuffers(), which blocks when the codec has no free input buffer.
+         */
+        SWAP,
+        /**
+         * From the swap until the encoded frame comes out of the codec.
+         */
+        CODEC,
+        /**
+         * Muxer#writeSampleData().  With write-behind this is only the copy into the pool.
+         */
+        WRITE,
+        /**
+         * From the camera timestamp until the frame has been written: the sum of the rest,
+         * plus anything between them.
+         */
+        GLASS_TO_FILE
+    }
+
+    private static final int STAGE_COUNT = Stage.values().length;
+
+    private final AtomicLong mFramesQueued = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private final AtomicLong mFramesCoalesced = new AtomicLong();
+    private final AtomicLong mFramesDecimated = new AtomicLong();
+    private final AtomicLong mFramesSubmitted = new AtomicLong();
+    private final AtomicLong mFramesEncoded = new AtomicLong();
+
+    private final LatencyHistogram mSubmitLatency = new LatencyHistogram();
+    private final LatencyHistogram mDrainLatency = new LatencyHistogram();
+    private final LatencyHistogram[] mStageLatency = new LatencyHistogram[STAGE_COUNT];
+
+    private final AtomicLong mStartNs = new AtomicLong();
+    private final AtomicLong mFirstEncodedNs = new AtomicLong();
+    private final AtomicLong mLastEncodedNs = new AtomicLong();
+
+    private final AtomicLongArray mInFlightPtsUs = new AtomicLongArray(IN_FLIGHT_SLOTS);
+    private final AtomicLongArray mInFlightSwapNs = new AtomicLongArray(IN_FLIGHT_SLOTS);
+    private final AtomicLongArray mInFlightCaptureNs = new AtomicLongArray(IN_FLIGHT_SLOTS);
+
+    public EncoderPipelineStats() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStageLatency[i] = new LatencyHistogram();
+        }
+        reset();
+    }
+
+    /**
+     * Clears all counters.  Call before the first frame of a recording.
+     */
+    public void reset() {
+        mFramesQueued.set(0);
+        mFramesDropped.set(0);
+        mFramesCoalesced.set(0);
+        mFramesDecimated.set(0);
+        mFramesSubmitted.set(0);
+        mFramesEncoded.set(0);
+        mSubmitLatency.reset();
+        mDrainLatency.reset();
+        for (LatencyHistogram histogram : mStageLatency) {
+            histogram.reset();
+        }
+        mStartNs.set(0);
+        mFirstEncodedNs.set(0);
+        mLastEncodedNs.set(0);
+        for (int i = 0; i < IN_FLIGHT_SLOTS; i++) {
+            mInFlightPtsUs.set(i, -1);
+        }
+    }
+
+    /**
+     * The app asked for the recording to start.  Starts the time-to-first-frame clock.
+     */
+    void onRecordingStarted() {
+        mStartNs.set(System.nanoTime());
+    }
+
+    /**
+     * A frame was handed to the encoder thread.
+     */
+    void onFrameQueued() {
+        mFramesQueued.incrementAndGet();
+    }
+
+    /**
+     * A frame was handed to the encoder thread through a FrameQueue.
+     *
+     * @param timestampNanos Capture time, on the System.nanoTime() clock.
+     * @param queuedNanos    When it was handed over.
+     */
+    void onFrameQueued(long timestampNanos, long queuedNanos) {
+        mFramesQueued.incrementAndGet();
+        record(Stage.RENDER, queuedNanos - timestampNanos);
+    }
+
+    /**
+     * The encoder thread took a frame out of the FrameQueue.
+     *
+     * @param queuedNanos When the frame was handed over.
+     */
+    void onFrameDequeued(long queuedNanos) {
+        record(Stage.QUEUE, System.nanoTime() - queuedNanos);
+    }
+
+    /**
+     * A frame was thrown away before it was drawn; see getFramesDropped() for why.
+     */
+    void onFrameDropped() {
+        mFramesDropped.incrementAndGet();
+    }
+
+    /**
+     * A queued frame was replaced by a newer one before it was drawn.
+     */
+    void onFrameCoalesced() {
+        mFramesCoalesced.incrementAndGet();
+    }
+
+    /**
+     * A frame was left out of a time-lapse recording on purpose.
+     */
+    void onFrameDecimated() {
+        mFramesDecimated.incrementAndGet();
+    }
+
+    /**
+     * A frame was drawn and swapped into the encoder's input surface.
+     *
+     * @param timestampNanos The frame's timestamp, from SurfaceTexture.  This is on the same
+     *                       clock as System.nanoTime().
+     */
+    void onFrameSubmitted(long timestampNanos) {
+        onFrameSubmitted(timestampNanos, timestampNanos);
+    }
+
+    /**
+     * A frame was drawn and swapped into the encoder's input surface with a presentation
+     * time that differs from its capture time, e.g. after a pause.
+     *
+     * @param timestampNanos    Capture time, on the System.nanoTime() clock.
+     * @param presentationNanos Presentation time given to the encoder.
+     */
+    void onFrameSubmitted(long timestampNanos, long presentationNanos) {
+        submitted(timestampNanos, presentationNanos, System.nanoTime());
+    }
+
+    /**
+     * Like onFrameSubmitted(long, long), with the draw and swap steps timed as well.
+     *
+     * @param drawStartNanos When drawing into the input surface began.
+     * @param swapStartNanos When the swap began.
+     */
+    void onFrameSubmitted(long timestampNanos, long presentationNanos, long drawStartNanos,
+                          long swapStartNanos) {
+        long now = System.nanoTime();
+        record(Stage.DRAW, swapStartNanos - drawStartNanos);
+        record(Stage.SWAP, now - swapStartNanos);
+        submitted(timestampNanos, presentationNanos, now);
+    }
+
+    private void submitted(long timestampNanos, long presentationNanos, long now) {
+        long frame = mFramesSubmitted.getAndIncrement();
+        mSubmitLatency.record(now - timestampNanos);
+
+        int slot = (int) (frame % IN_FLIGHT_SLOTS);
+        mInFlightSwapNs.set(slot, now);
+        mInFlightCaptureNs.set(slot, timestampNanos);
+        mInFlightPtsUs.set(slot, presentationNanos / 1000);
+    }
+
+    /**
+     * An encoded frame was sent to the muxer.
+     *
+     * @param outputNanos  When the codec handed the frame back.
+     * @param writtenNanos When the muxer returned.
+     */
+    void onFrameEncoded(long presentationTimeUs, long outputNanos, long writtenNanos) {
+        mFramesEncoded.incrementAndGet();
+        mFirstEncodedNs.compareAndSet(0, writtenNanos);
+        mLastEncodedNs.set(writtenNanos);
+        record(Stage.WRITE, writtenNanos - outputNanos);
+
+        for (int i = 0; i < IN_FLIGHT_SLOTS; i++) {
+            if (mInFlightPtsUs.get(i) == presentationTimeUs) {
+                long swapNs = mInFlightSwapNs.get(i);
+                long captureNs = mInFlightCaptureNs.get(i);
+                mInFlightPtsUs.set(i, -1);
+                mDrainLatency.record(writtenNanos - swapNs);
+                record(Stage.CODEC, outputNanos - swapNs);
+                record(Stage.GLASS_TO_FILE, writtenNanos - captureNs);
+                break;
+            }
+        }
+    }
+
+    private void record(Stage stage, long latencyNs) {
+        mStageLatency[stage.ordinal()].record(latencyNs);
+    }
+
+    /**
+     * Frames handed to the encoder thread that it hasn't drawn yet.
+     */
+    public long getSubmitQueueDepth() {
+        return mFramesQueued.get() - mFramesDropped.get() - mFramesCoalesced.get() -
+                mFramesSubmitted.get();
+    }
+
+    /**
+     * Frames handed to the encoder thread that were never drawn into an output.  They are
+     * lost because:
+     * <ul>
+     * <li>the submit queue was full, under DropPolicy.DROP_OLDEST or DROP_NEWEST;
+     * <li>the output already had EncoderConfig's maximum of frames in flight;
+     * <li>they were captured while the recording was paused;
+     * <li>they were ahead of the constant-frame-rate grid;
+     * <li>they were still queued when the recording stopped.
+     * </ul>
+     * Frames replaced under COALESCE_LATEST are counted by getFramesCoalesced() instead.
+     */
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    /**
+     * Frames replaced by a newer one under DropPolicy.COALESCE_LATEST.
+     */
+    public long getFramesCoalesced() {
+        return mFramesCoalesced.get();
+    }
+
+    /**
+     * Frames a time-lapse recording skipped on purpose.  These never reach the encoder
+     * thread and don't count as queued.
+     */
+    public long getFramesDecimated() {
+        return mFramesDecimated.get();
+    }
+
+    /**
+     * Frames swapped into the codec that haven't come out of it yet.
+     */
+    public long getDrainQueueDepth() {
+        return mFramesSubmitted.get() - mFramesEncoded.get();
+    }
+
+    public long getFramesSubmitted() {
+        return mFramesSubmitted.get();
+    }
+
+    public long getFramesEncoded() {
+        return mFramesEncoded.get();
+    }
+
+    /**
+     * Mean time from capture to swap, in nanoseconds.
+     */
+    public long getAverageSubmitLatencyNs() {
+        return mSubmitLatency.getMean();
+    }
+
+    public long getMaxSubmitLatencyNs() {
+        return mSubmitLatency.getMax();
+    }
+
+    /**
+     * Mean time from swap to muxer, in nanoseconds.
+     */
+    public long getAverageDrainLatencyNs() {
+        return mDrainLatency.getMean();
+    }
+
+    public long getMaxDrainLatencyNs() {
+        return mDrainLatency.getMax();
+    }
+
+    /**
+     * Latency of one step of the frames so far, in nanoseconds.  Live, like the rest of
+     * the counters; see snapshot() for a copy.
+     */
+    public LatencyHistogram getStageLatency(Stage stage) {
+        return mStageLatency[stage.ordinal()];
+    }
+
+    /**
+     * Copies out the per-stage percentiles and the frame loss counters.
+     *
+     * @param framesMissed Frames that never reached the encoder, see FrameTimeMonitor.
+     */
+    Snapshot snapshot(long framesMissed) {
+        return new Snapshot(this, framesMissed);
+    }
+
+    /**
+     * Sustained encode throughput, in frames per second, measured at the muxer.
+     */
+    public float getEncodedFps() {
+        long frames = mFramesEncoded.get();
+        long elapsedNs = mLastEncodedNs.get() - mFirstEncodedNs.get();
+        if (frames < 2 || elapsedNs <= 0) {
+            return 0f;
+        }
+        return (frames - 1) * 1e9f / elapsedNs;
+    }
+
+    /**
+     * Time from the start request to the first encoded frame reaching the muxer, in
+     * nanoseconds, or 0 if either hasn't happened.  This is what the user waits for after
+     * pressing record, and what pre-warming the encoder brings down.
+     */
+    public long getTimeToFirstFrameNs() {
+        long startNs = mStartNs.get();
+        long firstNs = mFirstEncodedNs.get();
+        return startNs == 0 || firstNs == 0 ? 0 : firstNs - startNs;
+    }
+
+    @Override
+    public String toString() {
+        return "submit: depth=" + getSubmitQueueDepth() +
+                " dropped=" + getFramesDropped() + " coalesced=" + getFramesCoalesced() +
+                " decimated=" + getFramesDecimated() +
+                " avg=" + getAverageSubmitLatencyNs() / 1000 + "us" +
+                " max=" + getMaxSubmitLatencyNs() / 1000 + "us" +
+                ", drain: depth=" + getDrainQueueDepth() +
+                " avg=" + getAverageDrainLatencyNs() / 1000 + "us" +
+                " max=" + getMaxDrainLatencyNs() / 1000 + "us" +
+                ", encoded " + getFramesEncoded() + " @" + getEncodedFps() + "fps" +
+                ", first after " + getTimeToFirstFrameNs() / 1000000 + "ms";
+    }
+
+    /**
+     * Per-stage latency percentiles and lost frame counts, copied out at one point in time.
+     * Each value is read on its own, so a snapshot taken during a recording can be off by
+     * the frames that were in progress.
+     */
+    public static final class Snapshot {
+        private final long[] mCount = new long[STAGE_COUNT];
+        private final long[] mP50Ns = new long[STAGE_COUNT];
+        private final long[] mP95Ns = new long[STAGE_COUNT];
+        private final long[] mP99Ns = new long[STAGE_COUNT];
+        private final long[] mMaxNs = new long[STAGE_COUNT];
+        private final long mFramesDropped;
+        private final long mFramesCoalesced;
+        private final long mFramesMissed;
+
+        private Snapshot(EncoderPipelineStats stats, long framesMissed) {
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                LatencyHistogram histogram = stats.mStageLatency[i];
+                mCount[i] = histogram.getCount();
+                mP50Ns[i] = histogram.getPercentile(50);
+                mP95Ns[i] = histogram.getPercentile(95);
+                mP99Ns[i] = histogram.getPercentile(99);
+                mMaxNs[i] = histogram.getMax();
+            }
+            mFramesDropped = stats.getFramesDropped();
+            mFramesCoalesced = stats.getFramesCoalesced();
+            mFramesMissed = framesMissed;
+        }
+
+        /**
+         * Frames timed for the stage.
+         */
+        public long getCount(Stage stage) {
+            return mCount[stage.ordinal()];
+        }
+
+        public long getP50Ns(Stage stage) {
+            return mP50Ns[stage.ordinal()];
+        }
+
+        public long getP95Ns(Stage stage) {
+            return mP95Ns[stage.ordinal()];
+        }
+
+        public long getP99Ns(Stage stage) {
+            return mP99Ns[stage.ordinal()];
+        }
+
+        public long getMaxNs(Stage stage) {
+            return mMaxNs[stage.ordinal()];
+        }
+
+        /**
+         * Frames the encoder threw away: queue overflow, codec too far behind, or captured
+         * while paused.
+         */
+        public long getFramesDropped() {
+            return mFramesDropped;
+        }
+
+        /**
+         * Frames replaced by a newer one under DropPolicy.COALESCE_LATEST.
+         */
+        public long getFramesCoalesced() {
+            return mFramesCoalesced;
+        }
+
+        /**
+         * Frames the camera timestamps say never reached the encoder.
+         */
+        public long getFramesMissed() {
+            return mFramesMissed;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Stage stage : Stage.values()) {
+                int i = stage.ordinal();
+                sb.append(stage.name().toLowerCase(Locale.ROOT)).append(": n=").append(mCount[i])
+                        .append(" p50=").append(mP50Ns[i] / 1000).append("us")
+                        .append(" p95=").append(mP95Ns[i] / 1000).append("us")
+                        .append(" p99=").append(mP99Ns[i] / 1000).append("us")
+                        .append(" max=").append(mMaxNs[i] / 1000).append("us, ");
+            }
+            return sb.append("dropped=").append(mFramesDropped)
+                    .append(" coalesced=").append(mFramesCoalesced)
+                    .append(" missed=").append(mFramesMissed).toString();
+        }
+    }
+}
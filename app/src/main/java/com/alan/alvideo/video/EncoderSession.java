@@ -0,0 +1,340 @@
+package com.alan.alvideo.video;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.alan.alvideo.audio.AudioEncoder;
+import com.alan.alvideo.filter.FilterGraph;
+import com.alan.alvideo.gles.EglCore;
+import com.alan.alvideo.gles.WindowSurface;
+import com.alan.alvideo.muxer.AndroidMuxer;
+import com.alan.alvideo.muxer.FastStartMp4;
+import com.alan.alvideo.muxer.FragmentedMp4Muxer;
+import com.alan.alvideo.muxer.InterleavingMuxer;
+import com.alan.alvideo.muxer.Muxer;
+import com.alan.alvideo.muxer.PreRecordMuxer;
+import com.alan.alvideo.muxer.SegmentedMuxer;
+import com.alan.alvideo.muxer.WriteBehindMuxer;
+import com.alan.alvideo.util.RecordingClock;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One output of TextureMovieEncoder: an encoder, the window surface that feeds it, and the
+ * muxer chain behind it, all set up from one EncoderConfig.
+ * <p>
+ * All sessions of a recording share the encoder thread's EGL context and draw the same
+ * camera texture, each at its own size.  A session whose codec has more than the config's
+ * maximum of frames in flight skips frames instead of drawing, since swapping into a codec
+ * that can't keep up would block the encoder thread and with it every other output.
+ * <p>
+ * A session that records audio puts an InterleavingMuxer in front of its muxer chain, and
+ * runs an AudioEncoder into it next to the video encoder.  If the microphone can't be
+ * opened, the session records video only.
+ * <p>
+ * The codec can be set up before the output exists: prepareCodec() leaves a configured,
+ * started codec waiting for attachOutput(), and adoptCodec() lets the session of a new
+ * recording take over such a codec from an idle session, as TextureMovieEncoder does to
+ * start recording without waiting for MediaCodec.
+ * <p>
+ * With a fast-start config, every output file is handed to FastStartMp4 once the muxer has
+ * finished it: the whole file on release(), each segment of a segmented recording as soon
+ * as the next one has taken over.
+ * <p>
+ * Everything here runs on the encoder thread, except what the drain thread or the codec's
+ * callback thread do inside VideoEncoderCore.
+ */
+class EncoderSession {
+    private static final String TAG = "EncoderSession";
+
+    private final EncoderConfig mConfig;
+    private final EncoderPipelineStats mStats;
+    private final boolean mCountsQueued;
+    private final RecordingClock mClock;
+
+    private volatile VideoEncoderCore mVideoEncoder;
+    private WindowSurface mInputWindowSurface;
+    private EncoderDrainThread mDrainThread;
+    private PreRecordMuxer mPreRecordMuxer;
+    private volatile WriteBehindMuxer mWriteBehindMuxer;
+    private AudioEncoder mAudioEncoder;
+    private boolean mOutputCreated;
+
+    /**
+     * @param stats        Counters for this output.
+     * @param countsQueued If set, every frame offered to this session counts as queued in
+     *                     its stats.  Not wanted when the FrameQueue already counts them.
+     * @param clock        Timeline for audio, or null to ignore the config's audio setting.
+     */
+    EncoderSession(EncoderConfig config, EncoderPipelineStats stats, boolean countsQueued,
+                   RecordingClock clock) {
+        mConfig = config;
+        mStats = stats;
+        mCountsQueued = countsQueued;
+        mClock = clock;
+    }
+
+    EncoderConfig getConfig() {
+        return mConfig;
+    }
+
+    EncoderPipelineStats getStats() {
+        return mStats;
+    }
+
+    WriteBehindMuxer getWriteBehindMuxer() {
+        return mWriteBehindMuxer;
+    }
+
+    /**
+     * Creates the muxer chain and the encoders, hooks the video encoder's input surface up
+     * to the EGL context, and starts recording audio.
+     */
+    void prepare(EglCore eglCore) {
+        prepareCodec(eglCore);
+        attachOutput();
+    }
+
+    /**
+     * Creates the video encoder and its input surface, but no muxer.  The codec is
+     * configured and started, and sits idle until attachOutput().
+     */
+    void prepareCodec(EglCore eglCore) {
+        try {
+            mVideoEncoder = new VideoEncoderCore(mConfig, null);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        mInputWindowSurface = new WindowSurface(eglCore, mVideoEncoder.getInputSurface(), true);
+    }
+
+    /**
+     * Takes over the idle codec and input surface of a session whose codec settings match
+     * ours, leaving that session empty.
+     *
+     * @return false if the codecs don't match or there is nothing to take.
+     */
+    boolean adoptCodec(EncoderSession idle) {
+        if (idle.mVideoEncoder == null || idle.mDrainThread != null ||
+                !mConfig.sameCodecSettings(idle.mConfig)) {
+            return false;
+        }
+        mVideoEncoder = idle.mVideoEncoder;
+        mInputWindowSurface = idle.mInputWindowSurface;
+        idle.mVideoEncoder = null;
+        idle.mInputWindowSurface = null;
+        return true;
+    }
+
+    /**
+     * Creates the muxer chain and hands it to the prepared codec, then starts draining and
+     * recording audio.
+     */
+    void attachOutput() {
+        Muxer muxer = createMuxer();
+        if (mConfig.hasAudio() && mClock != null) {
+            muxer = new InterleavingMuxer(muxer, 2);
+            try {
+                mAudioEncoder = new AudioEncoder(mConfig.mAudioSampleRate,
+                        mConfig.mAudioChannelCount, mConfig.mAudioBitRate, muxer, mClock);
+            } catch (IOException | RuntimeException e) {
+                // AudioEncoder has released its share of the muxer, which tells the
+                // InterleavingMuxer not to wait for an audio track.
+                Log.w(TAG, "can't record audio, recording video only", e);
+            }
+        }
+        mVideoEncoder.setMuxer(muxer);
+        mVideoEncoder.setPipelineStats(mStats);
+        if (mConfig.mDrainMode == EncoderConfig.DrainMode.PIPELINED) {
+            mDrainThread = new EncoderDrainThread(mVideoEncoder);
+            mDrainThread.start();
+        }
+        if (mAudioEncoder != null) {
+            mAudioEncoder.start();
+        }
+    }
+
+    /**
+     * Makes this output's surface the current EGL surface.
+     */
+    void makeCurrent() {
+        mInputWindowSurface.makeCurrent();
+    }
+
+    /**
+     * Draws one frame into this output, unless its codec is too far behind.
+     *
+     * @param timestampNanos    Capture time, from SurfaceTexture.
+     * @param presentationNanos Presentation time for the encoder.
+     * @return false if the frame was skipped.
+     */
+    boolean drawFrame(FilterGraph filterGraph, int textureId, float[] transform,
+                      long timestampNanos, long presentationNanos) {
+        if (mCountsQueued) {
+            mStats.onFrameQueued();
+        }
+        if (mDrainThread == null) {
+            mVideoEncoder.drainEncoder(false);
+        }
+        if (mConfig.mMaxFramesInFlight > 0 &&
+                mStats.getDrainQueueDepth() >= mConfig.mMaxFramesInFlight) {
+            mStats.onFrameDropped();
+            return false;
+        }
+        long drawStartNs = System.nanoTime();
+        mInputWindowSurface.makeCurrent();
+        GLES20.glViewport(0, 0, mConfig.mWidth, mConfig.mHeight);
+        filterGraph.draw(textureId, transform, mConfig.mWidth, mConfig.mHeight);
+        mInputWindowSurface.setPresentationTime(presentationNanos);
+        long swapStartNs = System.nanoTime();
+        mInputWindowSurface.swapBuffers();
+        mStats.onFrameSubmitted(timestampNanos, presentationNanos, drawStartNs, swapStartNs);
+        return true;
+    }
+
+    void requestSyncFrame() {
+        mVideoEncoder.requestSyncFrame();
+    }
+
+    /**
+     * Hands the pre-record muxer its output, if this is a pre-record session.  The file has
+     * to start with a sync frame; the buffer always does, but if it's empty we'd otherwise
+     * wait out a whole GOP.
+     */
+    void savePreRecording() {
+        if (mPreRecordMuxer == null || mPreRecordMuxer.isTriggered()) {
+            return;
+        }
+        Log.d(TAG, "saving pre-record history to " + mConfig.mOutputFile);
+        mPreRecordMuxer.trigger(createOutputMuxer());
+        mVideoEncoder.requestSyncFrame();
+    }
+
+    /**
+     * Sends end-of-stream and drains the encoders.
+     */
+    void stop() {
+        if (mDrainThread != null) {
+            mDrainThread.quit();
+            mDrainThread = null;
+        }
+        mVideoEncoder.drainEncoder(true);
+        if (mAudioEncoder != null) {
+            mAudioEncoder.stop();
+        }
+    }
+
+    /**
+     * Releases the encoders, which stop and release the muxer chain, and the surface.
+     */
+    void release() {
+        if (mDrainThread != null) {
+            mDrainThread.quit();
+            mDrainThread = null;
+        }
+        if (mAudioEncoder != null) {
+            mAudioEncoder.release();
+            mAudioEncoder = null;
+        }
+        if (mVideoEncoder != null) {
+            mVideoEncoder.release();
+            mVideoEncoder = null;
+            // Segments are handled as they finish, see createFileMuxer().
+            if (mConfig.mFastStart && mOutputCreated && !mConfig.isSegmented() &&
+                    mConfig.mOutputFile.exists()) {
+                FastStartMp4.rewriteInBackground(mConfig.mOutputFile);
+            }
+        }
+        if (mInputWindowSurface != null) {
+            mInputWindowSurface.release();
+            mInputWindowSurface = null;
+        }
+        mPreRecordMuxer = null;
+    }
+
+    /**
+     * Drops the EGL surface ahead of the EGL context going away.
+     */
+    void releaseEglSurface() {
+        mInputWindowSurface.releaseEglSurface();
+    }
+
+    /**
+     * Recreates the EGL surface in a new context.
+     */
+    void recreateEglSurface(EglCore eglCore) {
+        mInputWindowSurface.recreate(eglCore);
+    }
+
+    /**
+     * Creates the muxer the encoder writes to.  Segmented recordings ask the encoder for a
+     * sync frame as soon as a segment is full, so segments stay close to the requested
+     * length even with a long I-frame interval.
+     */
+    private Muxer createMuxer() {
+        if (mConfig.isPreRecord()) {
+            mPreRecordMuxer = new PreRecordMuxer(mConfig.mPreRecordBytes,
+                    mConfig.mPreRecordDurationUs);
+            return mPreRecordMuxer;
+        }
+        return createOutputMuxer();
+    }
+
+    /**
+     * Creates the muxer that writes the config's output file(s), behind an I/O thread if
+     * the config asks for one.
+     */
+    private Muxer createOutputMuxer() {
+        mOutputCreated = true;
+        Muxer muxer = createFileMuxer();
+        if (mConfig.mWriteBehindBytes > 0) {
+            WriteBehindMuxer writeBehind = new WriteBehindMuxer(muxer, mConfig.mWriteBehindBytes);
+            mWriteBehindMuxer = writeBehind;
+            return writeBehind;
+        }
+        return muxer;
+    }
+
+    private Muxer createFileMuxer() {
+        if (mConfig.isSegmented()) {
+            final SegmentFileFactory factory =
+                    new SegmentFileFactory(mConfig.mOutputFile, mConfig.mMuxerType);
+            return new SegmentedMuxer(factory, mConfig.mSegmentDurationUs, mConfig.mSegmentBytes,
+                    new SegmentedMuxer.Listener() {
+                        @Override
+                        public void onRolloverPending() {
+                            VideoEncoderCore encoder = mVideoEncoder;
+                            if (encoder != null) {
+                                encoder.requestSyncFrame();
+                            }
+                        }
+
+                        @Override
+                        public void onSegmentFinished(int segmentIndex) {
+                            File segmentFile = factory.getSegmentFile(segmentIndex);
+                            Log.d(TAG, "segment finished: " + segmentFile);
+                            if (mConfig.mFastStart) {
+                                FastStartMp4.rewriteInBackground(segmentFile);
+                            }
+                        }
+                    });
+        }
+        try {
+            switch (mConfig.mMuxerType) {
+                case FRAGMENTED_MP4:
+                    return new FragmentedMp4Muxer(mConfig.mOutputFile);
+                case MEDIA_MUXER:
+                default:
+                    return new AndroidMuxer(mConfig.mOutputFile);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mConfig.mWidth + "x" + mConfig.mHeight + " -> " + mConfig.mOutputFile;
+    }
+}
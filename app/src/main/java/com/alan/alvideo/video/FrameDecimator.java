@@ -0,0 +1,68 @@
+package com.alan.alvideo.video;
+
+/**
+ * Picks the frames of a time-lapse recording out of the camera stream, and gives them
+ * evenly spaced presentation times.
+ * <p>
+ * Frames are selected by capture time, one per capture interval: a frame is kept when it is
+ * at or past the time the next one is due, and the due time then advances by exactly one
+ * interval, so camera jitter doesn't add up into drift.  If no frame arrives for more than an
+ * interval (a pause, a stalled camera) the schedule starts over from the next frame instead
+ * of keeping a burst of catch-up frames.
+ * <p>
+ * The kept frames are played back at the config's frame rate, so the n-th one is presented
+ * n frame intervals after the first, whatever its capture time.  That also takes gaps
+ * out of the output, which is why a time-lapse recording doesn't need the RecordingClock.
+ * <p>
+ * accept() is called by the producer, nextPresentationNanos() by the encoder thread; the two
+ * share no state.
+ */
+class FrameDecimator {
+    private final long mCaptureIntervalNs;
+    private final long mPlaybackIntervalNs;
+
+    // ----- producer only -----
+    private long mNextCaptureNs = -1;
+
+    // ----- encoder thread only -----
+    private long mFirstPresentationNs = -1;
+    private long mFramesOut;
+
+    /**
+     * @param captureFps  Frames to keep per second of capture time.
+     * @param playbackFps Frames per second of output.
+     */
+    FrameDecimator(float captureFps, int playbackFps) {
+        if (captureFps <= 0 || playbackFps <= 0) {
+            throw new IllegalArgumentException("bad rates " + captureFps + "/" + playbackFps);
+        }
+        mCaptureIntervalNs = (long) (1000000000L / captureFps);
+        mPlaybackIntervalNs = 1000000000L / playbackFps;
+    }
+
+    /**
+     * Returns true if the frame captured at the given time should be recorded.
+     */
+    boolean accept(long timestampNanos) {
+        if (mNextCaptureNs >= 0 && timestampNanos < mNextCaptureNs) {
+            return false;
+        }
+        if (mNextCaptureNs < 0 || timestampNanos - mNextCaptureNs >= mCaptureIntervalNs) {
+            mNextCaptureNs = timestampNanos + mCaptureIntervalNs;
+        } else {
+            mNextCaptureNs += mCaptureIntervalNs;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the presentation time for the next recorded frame.  The first one keeps its
+     * capture time, so the output starts on the same clock as a normal recording.
+     */
+    long nextPresentationNanos(long timestampNanos) {
+        if (mFirstPresentationNs < 0) {
+            mFirstPresentationNs = timestampNanos;
+        }
+        return mFirstPresentationNs + mFramesOut++ * mPlaybackIntervalNs;
+    }
+}
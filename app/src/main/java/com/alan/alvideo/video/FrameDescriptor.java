@@ -0,0 +1,34 @@
+package com.alan.alvideo.video;
+
+import com.alan.alvideo.filter.FilterManager.FilterType;
+
+/**
+ * Everything the encoder thread needs to draw one frame.  Instances are preallocated by
+ * FrameQueue and passed back and forth between the GL thread and the encoder thread; only
+ * one of them owns a descriptor at any time.
+ */
+class FrameDescriptor {
+    final float[] mTransform = new float[16];
+    long mTimestampNanos;
+    /**
+     * When the producer published the frame, on the System.nanoTime() clock.
+     */
+    long mQueuedNanos;
+    /**
+     * Filter the frame is drawn with, or null to keep the current one.
+     */
+    FilterType mFilterType;
+    /**
+     * Position in the producer's frame sequence, or -1 once the consumer is done with it.
+     */
+    long mSequence = -1;
+
+    void set(float[] transform, long timestampNanos, FilterType filterType, long sequence,
+             long queuedNanos) {
+        System.arraycopy(transform, 0, mTransform, 0, mTransform.length);
+        mTimestampNanos = timestampNanos;
+        mQueuedNanos = queuedNanos;
+        mFilterType = filterType;
+        mSequence = sequence;
+    }
+}
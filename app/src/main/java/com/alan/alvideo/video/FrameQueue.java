@@ -0,0 +1,154 @@
+package com.alan.alvideo.video;
+
+import com.alan.alvideo.filter.FilterManager.FilterType;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free hand-off of frames from the GL thread to the encoder thread.
+ * <p>
+ * Replaces posting one Handler message per frame, which let the queue grow without limit
+ * whenever the codec fell behind.  The ring holds preallocated FrameDescriptors, and the
+ * two threads trade them with atomic exchanges: the producer fills its spare descriptor
+ * and swaps it into the next slot, getting back whatever was there as its new spare, and
+ * the consumer swaps the descriptor it has finished with into the slot it reads.  A
+ * descriptor is only ever touched by the thread holding it, so the transform can't change
+ * under the encoder, and nothing is allocated once the queue exists.
+ * <p>
+ * Each descriptor carries the sequence number it was published with.  That tells the
+ * consumer whether a slot holds the frame it expects, nothing new yet, or a frame the
+ * producer wrote after lapping the ring; in the last case it skips ahead to the oldest
+ * frame that can still be in the ring, so DROP_OLDEST loses only the frames that were
+ * written over.  The consumer only needs to be woken when it has caught up with the
+ * producer.
+ * <p>
+ * When the queue is full the configured EncoderConfig.DropPolicy decides which frame is
+ * lost.  Keep in mind that every queued frame is drawn from the same external texture,
+ * which always holds the most recently latched image.  A deeper queue smooths out
+ * timestamp jitter but can't recover the content of frames that were latched over.
+ * <p>
+ * Single producer, single consumer.
+ */
+class FrameQueue {
+    private final AtomicReferenceArray<FrameDescriptor> mSlots;
+    private final int mCapacity;
+    private final EncoderConfig.DropPolicy mPolicy;
+    private final EncoderPipelineStats mStats;
+
+    // Next sequence number the consumer wants.  Written by the consumer only.
+    private final AtomicLong mExpected = new AtomicLong();
+
+    // ----- producer only -----
+    private FrameDescriptor mSpare = new FrameDescriptor();
+    private long mNextSequence;
+
+    // ----- consumer only -----
+    private FrameDescriptor mHeld = new FrameDescriptor();
+
+    /**
+     * @param capacity Frames that can be waiting at once.  COALESCE_LATEST never holds more
+     *                 than one.
+     * @param stats    Receives the queued/dropped/coalesced counts.  May be null.
+     */
+    FrameQueue(int capacity, EncoderConfig.DropPolicy policy, EncoderPipelineStats stats) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        mCapacity = policy == EncoderConfig.DropPolicy.COALESCE_LATEST ? 1 : capacity;
+        mSlots = new AtomicReferenceArray<>(mCapacity);
+        for (int i = 0; i < mCapacity; i++) {
+            mSlots.set(i, new FrameDescriptor());
+        }
+        mPolicy = policy;
+        mStats = stats;
+    }
+
+    private int slotFor(long sequence) {
+        return (int) (sequence % mCapacity);
+    }
+
+    /**
+     * Publishes a frame, applying the drop policy if the queue is full.  The transform is
+     * copied.  (Call from the producer.)
+     *
+     * @param filterType Filter to draw the frame with, or null to keep the current one.
+     * @return true if the consumer had caught up, in which case it must be woken up.
+     */
+    boolean offer(float[] transform, long timestampNanos, FilterType filterType) {
+        long queuedNanos = System.nanoTime();
+        if (mStats != null) {
+            mStats.onFrameQueued(timestampNanos, queuedNanos);
+        }
+        long sequence = mNextSequence;
+        if (mPolicy == EncoderConfig.DropPolicy.DROP_NEWEST &&
+                sequence - mExpected.get() >= mCapacity) {
+            if (mStats != null) {
+                mStats.onFrameDropped();
+            }
+            return false;
+        }
+
+        mSpare.set(transform, timestampNanos, filterType, sequence, queuedNanos);
+        FrameDescriptor old = mSlots.getAndSet(slotFor(sequence), mSpare);
+        mNextSequence = sequence + 1;
+        if (old.mSequence >= 0 && mStats != null) {
+            // Published but never consumed; we just wrote over it.
+            if (mPolicy == EncoderConfig.DropPolicy.COALESCE_LATEST) {
+                mStats.onFrameCoalesced();
+            } else {
+                mStats.onFrameDropped();
+            }
+        }
+        mSpare = old;
+        return mExpected.get() == sequence;
+    }
+
+    /**
+     * Takes the next frame.  (Call from the consumer.)
+     *
+     * @return The frame, which stays valid until the next call to poll() or clear(), or
+     * null if there is nothing new.
+     */
+    FrameDescriptor poll() {
+        long expected = mExpected.get();
+        while (true) {
+            int slot = slotFor(expected);
+            FrameDescriptor frame = mSlots.get(slot);
+            long sequence = frame.mSequence;
+            if (sequence < expected) {
+                // Nothing new yet; a slot we consumed holds a descriptor with sequence -1.
+                return null;
+            }
+            if (sequence == expected) {
+                // Only take it if the producer hasn't written over it since we looked.
+                mHeld.mSequence = -1;
+                if (mSlots.compareAndSet(slot, frame, mHeld)) {
+                    mHeld = frame;
+                    mExpected.lazySet(expected + 1);
+                    return frame;
+                }
+                continue;
+            }
+            if (mSlots.get(slot) != frame) {
+                // The producer took this descriptor back while we read it.
+                continue;
+            }
+            // The producer lapped us.  The frames it wrote over were counted as dropped in
+            // offer(); carry on from the oldest one that can still be in the ring.
+            expected = sequence - mCapacity + 1;
+            mExpected.lazySet(expected);
+        }
+    }
+
+    /**
+     * Discards all waiting frames.  They are counted as dropped.  (Call from the consumer.)
+     */
+    void clear() {
+        while (poll() != null) {
+            if (mStats != null) {
+                mStats.onFrameDropped();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.alan.alvideo.video;
+
+import android.util.Log;
+
+import com.alan.alvideo.muxer.AndroidMuxer;
+import com.alan.alvideo.muxer.FragmentedMp4Muxer;
+import com.alan.alvideo.muxer.Muxer;
+import com.alan.alvideo.muxer.MuxerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Opens one output file per segment, named after the base output file with the segment
+ * index appended: video.mp4 -> video_000.mp4, video_001.mp4, ...
+ */
+class SegmentFileFactory implements MuxerFactory {
+    private static final String TAG = "SegmentFileFactory";
+
+    private final File mBaseFile;
+    private final EncoderConfig.MuxerType mMuxerType;
+
+    SegmentFileFactory(File baseFile, EncoderConfig.MuxerType muxerType) {
+        mBaseFile = baseFile;
+        mMuxerType = muxerType;
+    }
+
+    /**
+     * Returns the file segment {@code segmentIndex} is written to.
+     */
+    File getSegmentFile(int segmentIndex) {
+        String name = mBaseFile.getName();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        return new File(mBaseFile.getParentFile(),
+                String.format(Locale.US, "%s_%03d%s", stem, segmentIndex, ext));
+    }
+
+    @Override
+    public Muxer createMuxer(int segmentIndex) throws IOException {
+        File file = getSegmentFile(segmentIndex);
+        switch (mMuxerType) {
+            case FRAGMENTED_MP4:
+                return new FragmentedMp4Muxer(file);
+            case MEDIA_MUXER:
+            default:
+                return new AndroidMuxer(file);
+        }
+    }
+
+    @Override
+    public void discardSegment(int segmentIndex) {
+        File file = getSegmentFile(segmentIndex);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "unable to delete unused segment " + file);
+        }
+    }
+}
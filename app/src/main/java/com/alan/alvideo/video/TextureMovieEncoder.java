@@ -17,20 +17,26 @@
 package com.alan.alvideo.video;
 
 import android.graphics.PointF;
+import android.opengl.EGL14;
 import android.opengl.EGLContext;
+import android.opengl.GLES30;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
+import com.alan.alvideo.filter.FilterGraph;
 import com.alan.alvideo.filter.FilterManager;
 import com.alan.alvideo.filter.FilterManager.FilterType;
 import com.alan.alvideo.gles.EglCore;
-import com.alan.alvideo.gles.FullFrameRect;
-import com.alan.alvideo.gles.WindowSurface;
+import com.alan.alvideo.gles.FramebufferPool;
+import com.alan.alvideo.gles.GLUtil;
+import com.alan.alvideo.gles.ProgramCache;
+import com.alan.alvideo.muxer.WriteBehindMuxer;
+import com.alan.alvideo.util.FrameTimeMonitor;
+import com.alan.alvideo.util.RecordingClock;
+import com.alan.alvideo.util.TimestampNormalizer;
 
-import java.io.File;
-import java.io.IOException;
 import java.lang.ref.WeakReference;
 
 /**
@@ -41,17 +47,47 @@ import java.lang.ref.WeakReference;
  * manages both sides of the encoder (feeding and draining); the only external input is
  * the GL texture.
  * <p>
+ * A recording can have several outputs, e.g. a full-size archive and a small proxy.  Each
+ * gets its own EncoderSession with its own size, bit rate and file, and every frame is drawn
+ * into all of them from the same texture.  An output that falls behind skips frames on its
+ * own (see EncoderConfig.Builder#setMaxFramesInFlight) rather than stalling the others.
+ * <p>
+ * If the primary output's config asks for audio, its session also records AAC audio on
+ * threads of its own.  Audio and video presentation times both come from one
+ * RecordingClock, which also takes care of pauses.  Video times then pass through a
+ * TimestampNormalizer, which keeps them increasing across camera jitter and clock resets,
+ * and with EncoderConfig.Builder#setConstantFrameRate puts them on a fixed grid.
+ * <p>
+ * A time-lapse config (EncoderConfig.Builder#setTimeLapse) thins the frames out in
+ * frameAvailable(), on the caller's thread, so skipped frames are never queued, drawn or
+ * encoded.  The ones that are kept get evenly spaced presentation times from a
+ * FrameDecimator instead of the RecordingClock.
+ * <p>
+ * With EncoderConfig.DrainMode.PIPELINED the work is split in two stages: the encoder
+ * thread only draws and swaps into the codec's input surface, and an EncoderDrainThread
+ * moves codec output to the muxer.  The per-stage counters are available from
+ * getPipelineStats().
+ * <p>
  * The design is complicated slightly by the need to create an EGL context that shares state
  * with a view that gets restarted if (say) the device orientation changes.  When the view
  * in question is a GLSurfaceView, we don't have full control over the EGL context creation
  * on that side, so we have to bend a bit backwards here.
  * <p>
+ * Creating and configuring a codec takes long enough to lose the first fraction of a second
+ * of a recording, so the preview can call prewarm() ahead of time.  The encoder thread then
+ * stays up between recordings, with its EGL context and a configured, started but idle codec
+ * for the expected settings; startRecording() only has to create the muxer.  After each
+ * recording the next codec is warmed up again, until shutdown().  An idle codec holds on to
+ * a hardware encoder instance, so the app should call shutdown() when the preview goes away.
+ * <p>
  * To use:
  * <ul>
  * <li>create TextureMovieEncoder object
  * <li>create an EncoderConfig
+ * <li>optionally, call TextureMovieEncoder#prewarm() with it while the preview runs
  * <li>call TextureMovieEncoder#startRecording() with the config
- * <li>call TextureMovieEncoder#setTextureId() with the texture object that receives frames
+ * <li>call TextureMovieEncoder#setTextureId() with the texture object that receives frames,
+ * or setFilteredTextureId() with a texture the caller has already run the filters into
  * <li>for each frame, after latching it with SurfaceTexture#updateTexImage(),
  * call TextureMovieEncoder#frameAvailable().
  * </ul>
@@ -69,21 +105,47 @@ public class TextureMovieEncoder implements Runnable {
     private static final int MSG_UPDATE_SHARED_CONTEXT = 6;
     private static final int MSG_UPDATE_FILTER = 7;
     private static final int MSG_QUIT = 8;
+    private static final int MSG_SAVE_PRE_RECORDING = 9;
+    private static final int MSG_PREWARM = 10;
 
     // ----- accessed exclusively by encoder thread -----
-    private WindowSurface mInputWindowSurface;
     private EglCore mEglCore;
-    private FullFrameRect mFullScreen;
+    private EGLContext mSharedContext;      // what mEglCore shares with
+    private FilterGraph mFilterGraph;
+    private FilterType mFilterGraphType;
+    private FilterGraph mCopyGraph;         // for a texture that is already filtered
+    private FramebufferPool mFramebufferPool;   // for mEglCore
+    private ProgramCache mProgramCache;         // for mEglCore
     private int mTextureId;
-    private VideoEncoderCore mVideoEncoder;
+    private boolean mTextureFiltered;       // mTextureId is a 2D texture, filters applied
+    private boolean mPrepared;
     private FilterType mCurrentFilterType;
+    private int mResumesSeen;
+    private EncoderSession mIdleSession;    // pre-warmed codec, no output yet
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
-
-    private final Object mReadyFence = new Object();      // guards ready/running
+    private volatile FrameQueue mFrameQueue;
+    private volatile FrameDecimator mDecimator;     // null unless time-lapse
+    private volatile TimestampNormalizer mNormalizer;
+    private volatile EncoderSession[] mSessions = new EncoderSession[0];    // [0] is primary
+    private final EncoderPipelineStats mPipelineStats = new EncoderPipelineStats();
+    private final RecordingClock mClock = new RecordingClock();
+    private final FrameTimeMonitor mFrameTimes = new FrameTimeMonitor(0);
+    private volatile boolean mPaused;
+    private volatile int mResumeCount;
+
+    // Last fence from setFilteredFrameFence(), and the context that made it.
+    private final Object mFenceLock = new Object();
+    private long mFilteredFence;                // guarded by mFenceLock
+    private EGLContext mFilteredFenceContext;   // guarded by mFenceLock
+    private volatile boolean mFenceSyncSupported;   // mEglCore is GLES3
+    private volatile int mFilteredTextureInUse = GLUtil.NO_TEXTURE;
+
+    private final Object mReadyFence = new Object();      // guards ready/running/persistent
     private boolean mReady;
     private boolean mRunning;
+    private boolean mPersistent;    // thread outlives recordings, see prewarm()
 
     // ----- Instance-----
     private volatile static TextureMovieEncoder sInstance;
@@ -105,36 +167,121 @@ public class TextureMovieEncoder implements Runnable {
     /**
      * Tells the video recorder to start recording.  (Call from non-encoder thread.)
      * <p>
-     * Creates a new thread, which will create an encoder using the provided configuration.
+     * Creates a new thread, unless prewarm() has already, which will create an encoder for
+     * each of the provided configurations.  The first one is the primary output: its EGL
+     * context, frame queue and frame rate apply to the whole recording, getPipelineStats()
+     * reports on it, and it is the only one that can record audio.  The primary output takes
+     * over the pre-warmed codec if there is one with the same codec settings.  A time-lapse
+     * setting in the primary config applies to all outputs.
      * <p>
      * Returns after the recorder thread has started and is ready to accept Messages.  The
-     * encoder may not yet be fully configured.
+     * encoders may not yet be fully configured.
+     *
+     * @param extraOutputs Further outputs drawn from the same frames, e.g. a low-resolution
+     *                     proxy.
      */
-    public void startRecording(EncoderConfig config) {
+    public void startRecording(EncoderConfig config, EncoderConfig... extraOutputs) {
         Log.d(TAG, "Encoder: startRecording()");
+        EncoderHandler handler;
         synchronized (mReadyFence) {
             if (mRunning) {
                 Log.w(TAG, "Encoder thread already running");
                 return;
             }
             mRunning = true;
-            new Thread(this, "TextureMovieEncoder").start();
-            while (!mReady) {
-                try {
-                    mReadyFence.wait();
-                } catch (InterruptedException ie) {
-                    // ignore
+            mPaused = false;
+            mPipelineStats.reset();
+            mPipelineStats.onRecordingStarted();
+            mClock.reset();
+            mFrameTimes.reset();
+            mFrameTimes.setExpectedFps(config.isTimeLapse() ? 0 : config.mFrameRate);
+            mFrameQueue = new FrameQueue(config.mFrameQueueCapacity, config.mDropPolicy,
+                    mPipelineStats);
+            mDecimator = config.isTimeLapse() ?
+                    new FrameDecimator(config.mTimeLapseFps, config.mFrameRate) : null;
+            mNormalizer = new TimestampNormalizer(config.mFrameRate, config.mConstantFrameRate);
+            EncoderSession[] sessions = new EncoderSession[1 + extraOutputs.length];
+            sessions[0] = new EncoderSession(config, mPipelineStats, false, mClock);
+            for (int i = 0; i < extraOutputs.length; i++) {
+                if (extraOutputs[i].hasAudio()) {
+                    Log.w(TAG, "audio is only recorded for the primary output");
                 }
+                EncoderPipelineStats stats = new EncoderPipelineStats();
+                stats.onRecordingStarted();
+                sessions[i + 1] = new EncoderSession(extraOutputs[i], stats, true, null);
+            }
+            mSessions = sessions;
+            startThreadLocked();
+            handler = mHandler;
+        }
+
+        handler.sendMessage(handler.obtainMessage(MSG_START_RECORDING));
+    }
+
+    /**
+     * Gets the encoder ready to record with the given settings.  (Call from non-encoder
+     * thread, typically the GL thread once the preview is up.)
+     * <p>
+     * Starts the encoder thread if necessary and keeps it running between recordings, with
+     * an EGL context that shares with the config's and an idle codec configured for the
+     * config.  Only the codec settings matter; the output file and muxer settings are taken
+     * from the config passed to startRecording().  Calling this again with other settings
+     * replaces the idle codec, and with a new EGL context moves it over.  Has no effect on a
+     * recording in progress.
+     *
+     * @see EncoderConfig#sameCodecSettings(EncoderConfig)
+     */
+    public void prewarm(EncoderConfig config) {
+        EncoderHandler handler;
+        synchronized (mReadyFence) {
+            mPersistent = true;
+            startThreadLocked();
+            handler = mHandler;
+        }
+        handler.sendMessage(handler.obtainMessage(MSG_PREWARM, config));
+    }
+
+    /**
+     * Releases the idle codec and lets the encoder thread end, undoing prewarm().  A
+     * recording in progress is not affected; its thread ends when it is stopped.  (Call from
+     * non-encoder thread.)
+     */
+    public void shutdown() {
+        EncoderHandler handler;
+        synchronized (mReadyFence) {
+            mPersistent = false;
+            if (!mReady || mRunning) {
+                return;
             }
+            handler = mHandler;
         }
+        handler.sendMessage(handler.obtainMessage(MSG_QUIT));
+    }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_START_RECORDING, config));
+    /**
+     * Starts the encoder thread if it isn't running, and waits until it is ready to accept
+     * Messages.  Call with mReadyFence held.
+     */
+    private void startThreadLocked() {
+        if (mReady) {
+            return;
+        }
+        new Thread(this, "TextureMovieEncoder").start();
+        while (!mReady) {
+            try {
+                mReadyFence.wait();
+            } catch (InterruptedException ie) {
+                // ignore
+            }
+        }
     }
 
     /**
      * Tells the video recorder to stop recording.  (Call from non-encoder thread.)
      * <p>
      * Returns immediately; the encoder/muxer may not yet be finished creating the movie.
+     * The encoder thread then ends, unless the encoder was pre-warmed, in which case it
+     * warms up a codec for the next recording.
      * <p>
      * TODO: have the encoder thread invoke a callback on the UI thread just before it shuts down
      * so we can provide reasonable status UI (and let the caller know that movie encoding
@@ -147,6 +294,61 @@ public class TextureMovieEncoder implements Runnable {
         // delay the UI thread though, so we return immediately.
     }
 
+    /**
+     * Starts writing the output file of a pre-record session: the buffered history first,
+     * then the live stream until stopRecording().  Only the first call in a session has an
+     * effect.  (Call from non-encoder thread.)
+     *
+     * @see EncoderConfig.Builder#setPreRecord(int, long)
+     */
+    public void savePreRecording() {
+        synchronized (mReadyFence) {
+            if (!mReady) {
+                return;
+            }
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_SAVE_PRE_RECORDING));
+    }
+
+    /**
+     * Pauses the recording.  (Call from non-encoder thread.)
+     * <p>
+     * Frames and audio are simply no longer handed to the encoders; the codecs, EGL surface
+     * and muxer all stay alive, so resumeRecording() continues the same file.
+     */
+    public void pauseRecording() {
+        synchronized (mReadyFence) {
+            if (!mReady) {
+                return;
+            }
+        }
+        mClock.pause(System.nanoTime());
+        mPaused = true;
+    }
+
+    /**
+     * Resumes a paused recording.  (Call from non-encoder thread.)
+     * <p>
+     * Presentation times after the pause are shifted back by its length so the output has
+     * no gap, and the first frame is encoded as a sync frame.
+     */
+    public void resumeRecording() {
+        if (!mPaused) {
+            return;
+        }
+        mClock.resume(System.nanoTime());
+        // The encoder thread notices the new count on the next frame it draws.
+        mResumeCount++;
+        mPaused = false;
+    }
+
+    /**
+     * Returns true while a recording is paused.
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
     /**
      * Returns true if recording has been started.
      */
@@ -156,6 +358,56 @@ public class TextureMovieEncoder implements Runnable {
         }
     }
 
+    /**
+     * Returns the queue depth and latency counters for the primary output of the current
+     * (or last) recording.
+     */
+    public EncoderPipelineStats getPipelineStats() {
+        return mPipelineStats;
+    }
+
+    /**
+     * Returns the counters for one output of the current (or last) recording, or null if
+     * there is no such output.
+     *
+     * @param output 0 for the primary output, then in the order passed to startRecording().
+     */
+    public EncoderPipelineStats getPipelineStats(int output) {
+        EncoderSession[] sessions = mSessions;
+        return output < sessions.length ? sessions[output].getStats() : null;
+    }
+
+    /**
+     * Returns p50/p95/p99 latency for each step from the camera to the file, see
+     * EncoderPipelineStats.Stage, and the frames lost on the way, for the primary output of
+     * the current (or last) recording.  Safe to call from any thread, e.g. to log when the
+     * preview stutters.
+     */
+    public EncoderPipelineStats.Snapshot getLatencySnapshot() {
+        return mPipelineStats.snapshot(mFrameTimes.getFramesMissed());
+    }
+
+    /**
+     * Returns the encoder thread's time per frame, for all outputs together, and the frames
+     * that never reached it, for the current (or last) recording.  At high frame rates the
+     * draw loop has to stay within FrameTimeMonitor#budgetFor() the frame rate.
+     */
+    public FrameTimeMonitor getFrameTimeMonitor() {
+        return mFrameTimes;
+    }
+
+    /**
+     * Returns the write-behind I/O stage of the primary output of the current (or last)
+     * recording, for its write latency and queue occupancy, or null if the config didn't
+     * ask for one.
+     *
+     * @see EncoderConfig.Builder#setWriteBehind(int)
+     */
+    public WriteBehindMuxer getWriteBehindMuxer() {
+        EncoderSession[] sessions = mSessions;
+        return sessions.length > 0 ? sessions[0].getWriteBehindMuxer() : null;
+    }
+
     /**
      * Tells the video recorder to refresh its EGL surface.  (Call from non-encoder thread.)
      */
@@ -179,10 +431,13 @@ public class TextureMovieEncoder implements Runnable {
     /**
      * Tells the video recorder that a new frame is available.  (Call from non-encoder thread.)
      * <p>
-     * This function sends a message and returns immediately.  This isn't sufficient -- we
-     * don't want the caller to latch a new frame until we're done with this one -- but we
-     * can get away with it so long as the input frame rate is reasonable and the encoder
-     * thread doesn't stall.
+     * The frame goes into a bounded, lock-free FrameQueue, and a message is only sent when
+     * the encoder thread has caught up, so this returns immediately, doesn't allocate, and
+     * never lets work pile up behind a slow codec; the config's DropPolicy decides which
+     * frames are lost instead.  The transform is copied, so the caller may reuse its matrix.
+     * This still isn't sufficient -- we don't want the caller to latch a new frame until
+     * we're done with this one -- but we can get away with it so long as the input frame
+     * rate is reasonable and the encoder thread doesn't stall.
      * <p>
      * TODO: either block here until the texture has been rendered onto the encoder surface,
      * or have a separate "block if still busy" method that the caller can execute immediately
@@ -190,11 +445,26 @@ public class TextureMovieEncoder implements Runnable {
      * stall the caller while this thread does work.
      */
     public void frameAvailable(float[] texMatrix, long timestamp) {
+        frameAvailable(texMatrix, timestamp, null);
+    }
+
+    /**
+     * Like {@link #frameAvailable(float[], long)}, but also switches the encoder to the
+     * given filter, starting with exactly this frame.  Passing the renderer's current filter
+     * with every frame keeps the recording in step with the preview without any extra
+     * messages.
+     *
+     * @param filterType Filter for this frame, or null to keep the current one.
+     */
+    public void frameAvailable(float[] texMatrix, long timestamp, FilterType filterType) {
         synchronized (mReadyFence) {
-            if (!mReady) {
+            if (!mReady || !mRunning) {
                 return;
             }
         }
+        if (mPaused) {
+            return;
+        }
         if (timestamp == 0) {
             // Seeing this after device is toggled off/on with power button.  The
             // first frame back has a zero timestamp.
@@ -203,8 +473,15 @@ public class TextureMovieEncoder implements Runnable {
             Log.w(TAG, "HEY: got SurfaceTexture with timestamp of zero");
             return;
         }
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE, (int) (timestamp >> 32),
-                (int) timestamp, texMatrix));
+        FrameDecimator decimator = mDecimator;
+        if (decimator != null && !decimator.accept(timestamp)) {
+            // Not part of the time-lapse; skip it before it costs a draw or a codec frame.
+            mPipelineStats.onFrameDecimated();
+            return;
+        }
+        if (mFrameQueue.offer(texMatrix, timestamp, filterType)) {
+            mHandler.sendEmptyMessage(MSG_FRAME_AVAILABLE);
+        }
     }
 
     /**
@@ -222,6 +499,66 @@ public class TextureMovieEncoder implements Runnable {
         mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
     }
 
+    /**
+     * Like setTextureId(), but for a GL_TEXTURE_2D in the shared context that already has the
+     * filters applied, e.g. by FilterGraph#draw(int, float[], FramebufferTexture).  Frames are
+     * then copied as they are, so filters run once for both preview and recording; pass the
+     * identity transform and no filter type to frameAvailable().
+     * <p>
+     * The caller must make sure the texture is complete before each frameAvailable(), with
+     * setFilteredFrameFence() or else glFinish(): unlike a SurfaceTexture, a framebuffer
+     * doesn't sync across contexts by itself.  A texture that is replaced must be kept until
+     * getFilteredTextureInUse() no longer returns it.  (Call from non-encoder thread.)
+     */
+    public void setFilteredTextureId(int id) {
+        synchronized (mReadyFence) {
+            if (!mReady) {
+                return;
+            }
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 1, null));
+    }
+
+    /**
+     * Returns true if the encoder's context can wait on a fence from
+     * setFilteredFrameFence(), i.e. it is GLES3.  Until then, use glFinish() instead.
+     */
+    public boolean isFenceSyncSupported() {
+        return mFenceSyncSupported;
+    }
+
+    /**
+     * Hands over a GLES30 fence inserted after the latest draw into the filtered texture.
+     * Before drawing a frame, the encoder has its context wait for the fence on the GPU with
+     * glWaitSync(), so neither thread blocks.  The caller must glFlush() after creating the
+     * fence, or the encoder may wait for a fence the GPU never sees.
+     * <p>
+     * The previous fence is deleted here; a glWaitSync() already issued on it keeps it alive
+     * for as long as it needs to.  Fences from a context that has since been replaced are
+     * dropped instead, as they mean nothing to the new one.  (Call on the thread whose
+     * context made the fence.)
+     */
+    public void setFilteredFrameFence(long fence) {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        synchronized (mFenceLock) {
+            if (mFilteredFence != 0 && context.equals(mFilteredFenceContext)) {
+                GLES30.glDeleteSync(mFilteredFence);
+            }
+            mFilteredFence = fence;
+            mFilteredFenceContext = context;
+        }
+    }
+
+    /**
+     * Returns the filtered texture the encoder currently draws from, or GLUtil.NO_TEXTURE if
+     * none.  A texture passed to setFilteredTextureId() becomes current when the encoder
+     * thread gets to it, and stops being current when a later one does, or when the
+     * recording stops.
+     */
+    public int getFilteredTextureInUse() {
+        return mFilteredTextureInUse;
+    }
+
     /**
      * Encoder thread entry point.  Establishes Looper/Handler and waits for messages.
      * <p>
@@ -239,11 +576,8 @@ public class TextureMovieEncoder implements Runnable {
         }
         Looper.loop();
 
+        // handleQuit() has already reset the state, so a new thread may be starting.
         Log.d(TAG, "Encoder thread exiting");
-        synchronized (mReadyFence) {
-            mReady = mRunning = false;
-            mHandler = null;
-        }
     }
 
     /**
@@ -269,20 +603,17 @@ public class TextureMovieEncoder implements Runnable {
 
             switch (what) {
                 case MSG_START_RECORDING:
-                    encoder.handleStartRecording((EncoderConfig) obj);
+                    encoder.handleStartRecording();
                     break;
                 case MSG_STOP_RECORDING:
                     encoder.handleStopRecording();
                     break;
 
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp =
-                            (((long) inputMessage.arg1) << 32) | (((long) inputMessage.arg2)
-                                    & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
+                    encoder.handleFramesAvailable();
                     break;
                 case MSG_SET_TEXTURE_ID:
-                    encoder.handleSetTexture(inputMessage.arg1);
+                    encoder.handleSetTexture(inputMessage.arg1, inputMessage.arg2 != 0);
                     break;
                 case MSG_UPDATE_SHARED_CONTEXT:
                     encoder.handleUpdateSharedContext((EGLContext) inputMessage.obj);
@@ -292,11 +623,15 @@ public class TextureMovieEncoder implements Runnable {
                     encoder.handleUpdateFilter((FilterType) inputMessage.obj);
                     break;
 
+                case MSG_SAVE_PRE_RECORDING:
+                    encoder.handleSavePreRecording();
+                    break;
+                case MSG_PREWARM:
+                    encoder.handlePrewarm((EncoderConfig) obj);
+                    break;
+
                 case MSG_QUIT:
-                    Looper looper = Looper.myLooper();
-                    if (looper != null) {
-                        looper.quit();
-                    }
+                    encoder.handleQuit();
                     break;
                 default:
                     throw new RuntimeException("Unhandled msg what=" + what);
@@ -307,28 +642,119 @@ public class TextureMovieEncoder implements Runnable {
     /**
      * Starts recording.
      */
-    private void handleStartRecording(EncoderConfig config) {
-        Log.d(TAG, "handleStartRecording " + config);
-        prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate,
-                config.mOutputFile);
+    private void handleStartRecording() {
+        EncoderSession[] sessions = mSessions;
+        for (EncoderSession session : sessions) {
+            Log.d(TAG, "handleStartRecording " + session.getConfig());
+        }
+        mResumesSeen = mResumeCount;
+        prepareEncoder(sessions);
+    }
+
+    /**
+     * Hands the pre-record muxers their output.
+     */
+    private void handleSavePreRecording() {
+        for (EncoderSession session : mSessions) {
+            session.savePreRecording();
+        }
+    }
+
+    /**
+     * Draws every frame waiting in the queue.  Frames that arrive while we're busy are
+     * picked up by the same loop, and the producer only sends another message once it has
+     * seen us catch up.
+     */
+    private void handleFramesAvailable() {
+        FrameQueue queue = mFrameQueue;
+        if (!mPrepared) {
+            // Stopped, or never started; nothing to draw into.
+            if (queue != null) {
+                queue.clear();
+            }
+            return;
+        }
+        FrameDescriptor frame;
+        while ((frame = queue.poll()) != null) {
+            mPipelineStats.onFrameDequeued(frame.mQueuedNanos);
+            if (frame.mFilterType != null) {
+                handleUpdateFilter(frame.mFilterType);
+            }
+            handleFrameAvailable(frame.mTransform, frame.mTimestampNanos);
+        }
     }
 
     /**
      * Handles notification of an available frame.
      * <p>
-     * The texture is rendered onto the encoder's input surface, along with a moving
+     * The texture is rendered onto each output's input surface, along with a moving
      * box (just because we can).
      * <p>
+     * With DrainMode.CALLBACK the drain call returns immediately; encoded output is
+     * forwarded to the muxer from the codec's callback thread.  With DrainMode.PIPELINED
+     * the drain thread owns the output side and we don't touch it here at all.
+     * <p>
      *
      * @param transform      The texture transform, from SurfaceTexture.
      * @param timestampNanos The frame's timestamp, from SurfaceTexture.
      */
     private void handleFrameAvailable(float[] transform, long timestampNanos) {
         //if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
-        mVideoEncoder.drainEncoder(false);
-        mFullScreen.drawFrame(mTextureId, transform);
-        mInputWindowSurface.setPresentationTime(timestampNanos);
-        mInputWindowSurface.swapBuffers();
+        long startNs = System.nanoTime();
+        FrameDecimator decimator = mDecimator;
+        long presentationNanos = decimator != null ?
+                decimator.nextPresentationNanos(timestampNanos) :
+                mClock.toPresentationNanos(timestampNanos);
+        if (presentationNanos < 0) {
+            // Captured while paused, but only got here after the resume.
+            mPipelineStats.onFrameDropped();
+            return;
+        }
+        presentationNanos = mNormalizer.normalize(presentationNanos);
+        if (presentationNanos < 0) {
+            // Ahead of the constant-frame-rate grid.
+            mPipelineStats.onFrameDropped();
+            return;
+        }
+        if (mResumesSeen != mResumeCount) {
+            mResumesSeen = mResumeCount;
+            handleResume();
+        }
+        if (mTextureFiltered) {
+            waitForFilteredFrame();
+        }
+        FilterGraph graph = mTextureFiltered ? mCopyGraph : mFilterGraph;
+        for (EncoderSession session : mSessions) {
+            session.drawFrame(graph, mTextureId, transform, timestampNanos, presentationNanos);
+        }
+        mFrameTimes.onFrame(timestampNanos, System.nanoTime() - startNs);
+    }
+
+    /**
+     * Has the current context wait on the GPU until the latest fence from
+     * setFilteredFrameFence() has signaled.  Does nothing without a usable fence.
+     */
+    private void waitForFilteredFrame() {
+        if (!mFenceSyncSupported) {
+            return;
+        }
+        synchronized (mFenceLock) {
+            if (mFilteredFence != 0 && mFilteredFenceContext.equals(mSharedContext)) {
+                GLES30.glWaitSync(mFilteredFence, 0, GLES30.GL_TIMEOUT_IGNORED);
+            }
+        }
+    }
+
+    /**
+     * Called with the first frame after a pause.  Asks the codecs to start over with a sync
+     * frame.
+     */
+    private void handleResume() {
+        Log.d(TAG, "resumed, paused for " + mClock.getPausedNanos() / 1000000 + "ms in total");
+        mFrameTimes.onDiscontinuity();
+        for (EncoderSession session : mSessions) {
+            session.requestSyncFrame();
+        }
     }
 
     /**
@@ -336,16 +762,100 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
-        mVideoEncoder.drainEncoder(true);
-        releaseEncoder();
+        EncoderSession[] sessions = mSessions;
+        for (EncoderSession session : sessions) {
+            session.stop();
+        }
+        boolean persistent;
+        synchronized (mReadyFence) {
+            persistent = mPersistent;
+        }
+        releaseEncoder(sessions, !persistent);
+        Log.d(TAG, "encoder frame times: " + mFrameTimes);
+        Log.d(TAG, "frame latency: " + getLatencySnapshot());
+        Log.d(TAG, "timestamps: " + mNormalizer);
+        for (EncoderSession session : sessions) {
+            Log.d(TAG, session + " pipeline stats: " + session.getStats());
+            if (session.getWriteBehindMuxer() != null) {
+                Log.d(TAG, session + " write-behind stats: " + session.getWriteBehindMuxer());
+            }
+        }
+        if (persistent) {
+            // A used codec can't be restarted, get a fresh one going for next time.
+            handlePrewarm(sessions[0].getConfig());
+            synchronized (mReadyFence) {
+                mRunning = false;
+            }
+        }
+    }
+
+    /**
+     * Sets up an idle codec for the config, unless there is one already or we're recording.
+     */
+    private void handlePrewarm(EncoderConfig config) {
+        if (mPrepared) {
+            // The codec is warmed up again when the recording stops.
+            return;
+        }
+        prepareEglCore(config.mEglContext);
+        if (mIdleSession != null) {
+            if (mIdleSession.getConfig().sameCodecSettings(config)) {
+                return;
+            }
+            releaseIdleSession();
+        }
+        long startNs = System.nanoTime();
+        EncoderSession session = new EncoderSession(config, new EncoderPipelineStats(), false,
+                null);
+        try {
+            session.prepareCodec(mEglCore);
+        } catch (RuntimeException re) {
+            // startRecording() will try again, and report the failure.
+            Log.w(TAG, "unable to pre-warm encoder", re);
+            session.release();
+            return;
+        }
+        mIdleSession = session;
+        session.makeCurrent();
+        prepareFilterGraph(config);
+        // We're idle until the recording starts; build every filter now, so switching
+        // filters while recording doesn't stall the encoder.
+        mProgramCache.prewarm(FilterManager.getAllProgramTypes());
+        Log.d(TAG, "pre-warmed encoder in " + (System.nanoTime() - startNs) / 1000000 + "ms: " +
+                config);
+    }
+
+    /**
+     * Tears everything down and ends the thread, unless prewarm() was called again after
+     * the quit was requested.
+     */
+    private void handleQuit() {
+        synchronized (mReadyFence) {
+            if (mPersistent) {
+                mRunning = mPrepared;
+                return;
+            }
+            releaseIdleSession();
+            releaseEglCore();
+            mReady = mRunning = false;
+            mHandler = null;
+        }
+        Looper looper = Looper.myLooper();
+        if (looper != null) {
+            looper.quit();
+        }
     }
 
     /**
      * Sets the texture name that SurfaceTexture will use when frames are received.
+     *
+     * @param filtered True if it's a 2D texture with the filters already applied.
      */
-    private void handleSetTexture(int id) {
+    private void handleSetTexture(int id, boolean filtered) {
         //Log.d(TAG, "handleSetTexture " + id);
         mTextureId = id;
+        mTextureFiltered = filtered;
+        mFilteredTextureInUse = filtered ? id : GLUtil.NO_TEXTURE;
     }
 
     /**
@@ -358,55 +868,140 @@ public class TextureMovieEncoder implements Runnable {
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
 
-        // Release the EGLSurface and EGLContext.
-        mInputWindowSurface.releaseEglSurface();
-        mFullScreen.release(false);
-        mEglCore.release();
-
-        // Create a new EGLContext and recreate the window surface.
-        mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface.recreate(mEglCore);
-        mInputWindowSurface.makeCurrent();
+        if (!mPrepared) {
+            // Idle; the next prewarm() or startRecording() brings the new context.
+            return;
+        }
+        // Release the EGLSurfaces and EGLContext.
+        for (EncoderSession session : mSessions) {
+            session.releaseEglSurface();
+        }
+        releaseEglCore();
+
+        // Create a new EGLContext and recreate the window surfaces.
+        mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        mSharedContext = newSharedContext;
+        mFenceSyncSupported = mEglCore.getGlVersion() >= 3;
+        for (EncoderSession session : mSessions) {
+            session.recreateEglSurface(mEglCore);
+        }
+        mSessions[0].makeCurrent();
 
         // Create new programs and such for the new context.
-        mFullScreen = new FullFrameRect(FilterManager.getCameraFilter(mCurrentFilterType));
+        prepareFilterGraph(mSessions[0].getConfig());
     }
 
-    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
-                                File outputFile) {
-        try {
-            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile);
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+    private void prepareEncoder(EncoderSession[] sessions) {
+        prepareEglCore(sessions[0].getConfig().mEglContext);
+        EncoderSession primary = sessions[0];
+        if (mIdleSession != null && primary.adoptCodec(mIdleSession)) {
+            Log.d(TAG, "using pre-warmed encoder");
+        } else {
+            primary.prepareCodec(mEglCore);
         }
+        releaseIdleSession();
+        primary.attachOutput();
+        for (int i = 1; i < sessions.length; i++) {
+            sessions[i].prepare(mEglCore);
+        }
+        primary.makeCurrent();
+        mPrepared = true;
+
+        prepareFilterGraph(primary.getConfig());
+    }
 
-        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
-        mInputWindowSurface.makeCurrent();
+    /**
+     * Makes sure mEglCore shares with the given context, moving the idle codec's surface
+     * over if it has to be replaced.
+     */
+    private void prepareEglCore(EGLContext sharedContext) {
+        if (mEglCore != null && sharedContext == mSharedContext) {
+            return;
+        }
+        if (mIdleSession != null) {
+            mIdleSession.releaseEglSurface();
+        }
+        releaseEglCore();
+        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        mSharedContext = sharedContext;
+        mFenceSyncSupported = mEglCore.getGlVersion() >= 3;
+        if (mIdleSession != null) {
+            mIdleSession.recreateEglSurface(mEglCore);
+        }
+    }
 
-        mFullScreen = new FullFrameRect(FilterManager.getCameraFilter(mCurrentFilterType));
+    /**
+     * Creates the filter graph that draws the camera texture, and the one that copies a
+     * filtered texture, or brings the existing ones up to date with the current filter.
+     * Intermediate passes run at the primary output's size.  Needs a current EGL surface.
+     */
+    private void prepareFilterGraph(EncoderConfig primaryConfig) {
+        if (mFilterGraph == null) {
+            mFramebufferPool = new FramebufferPool();
+            mProgramCache = new ProgramCache();
+            mFilterGraph = new FilterGraph(mFramebufferPool);
+            mFilterGraph.setPasses(FilterManager.createPasses(mCurrentFilterType, mProgramCache,
+                    mFramebufferPool));
+            mFilterGraphType = mCurrentFilterType;
+            mCopyGraph = new FilterGraph(mFramebufferPool);
+            mCopyGraph.setPasses(FilterManager.createCopyPasses(mProgramCache));
+        } else {
+            handleUpdateFilter(mCurrentFilterType);
+        }
+        mFilterGraph.setSize(primaryConfig.mWidth, primaryConfig.mHeight);
     }
 
     private void handleUpdateFilter(FilterType filterType) {
-        if (mFullScreen != null && filterType != mCurrentFilterType) {
-            mFullScreen.changeProgram(FilterManager.getCameraFilter(filterType));
-            mCurrentFilterType = filterType;
+        if (mFilterGraph != null && filterType != mFilterGraphType) {
+            mFilterGraph.setPasses(FilterManager.createPasses(filterType, mProgramCache,
+                    mFramebufferPool));
+            mFilterGraphType = filterType;
+        }
+        mCurrentFilterType = filterType;
+    }
+
+    /**
+     * Releases the outputs of a recording, and the EGL context too if there won't be
+     * another one on this thread.
+     */
+    private void releaseEncoder(EncoderSession[] sessions, boolean releaseEgl) {
+        mPrepared = false;
+        mFilteredTextureInUse = GLUtil.NO_TEXTURE;
+        if (mEglCore != null) {
+            mEglCore.makeNothingCurrent();
+        }
+        for (EncoderSession session : sessions) {
+            session.release();
+        }
+        if (releaseEgl) {
+            releaseEglCore();
         }
     }
 
-    private void releaseEncoder() {
-        mVideoEncoder.release();
-        if (mInputWindowSurface != null) {
-            mInputWindowSurface.release();
-            mInputWindowSurface = null;
+    private void releaseIdleSession() {
+        if (mIdleSession != null) {
+            mEglCore.makeNothingCurrent();
+            mIdleSession.release();
+            mIdleSession = null;
         }
-        if (mFullScreen != null) {
-            mFullScreen.release(false);
-            mFullScreen = null;
+    }
+
+    private void releaseEglCore() {
+        if (mFilterGraph != null) {
+            mFilterGraph.release(false);
+            mFilterGraph = null;
+            mCopyGraph.release(false);
+            mCopyGraph = null;
+            mFramebufferPool.release(false);
+            mFramebufferPool = null;
+            mProgramCache.release(false);
+            mProgramCache = null;
         }
         if (mEglCore != null) {
             mEglCore.release();
             mEglCore = null;
         }
+        mSharedContext = null;
+        mFenceSyncSupported = false;
     }
 }
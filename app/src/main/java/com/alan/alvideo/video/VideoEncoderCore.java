@@ -20,11 +20,17 @@ import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
+import com.alan.alvideo.muxer.AndroidMuxer;
+import com.alan.alvideo.muxer.Muxer;
+import com.alan.alvideo.muxer.TrackFormat;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -38,60 +44,145 @@ import java.nio.ByteBuffer;
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * In callback mode the codec pushes its output through MediaCodec.Callback on a private
+ * HandlerThread, and the muxer is only touched from there.  drainEncoder(false) is then a
+ * no-op, so the thread feeding the input surface never blocks on dequeueOutputBuffer().
  */
 public class VideoEncoderCore {
     private static final String TAG = "VideoEncoderCore";
     private static final boolean VERBOSE = false;
 
-    // TODO: these ought to be configurable as well
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final int FRAME_RATE = 30;               // 30fps
-    private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    // MediaFormat.KEY_MAX_B_FRAMES only became public in API 29, but encoders have
+    // honored the key for longer than that.
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";
 
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
+    private volatile Muxer mMuxer;
     private MediaCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
     private int mTrackIndex;
     private boolean mMuxerStarted;
+    private volatile EncoderPipelineStats mStats;
+
+    // ----- callback mode only -----
+    private HandlerThread mCallbackThread;
+    private final Object mEosFence = new Object();      // guards mEosReached
+    private boolean mEosReached;
 
     /**
      * Configures encoder and muxer state, and prepares the input Surface.
      */
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
+        this(width, height, bitRate, outputFile, false);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.  The output is
+     * written with MediaMuxer, and everything but the size and bit rate uses the
+     * EncoderConfig defaults.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+                            boolean useCallback) throws IOException {
+        this(new EncoderConfig.Builder(outputFile, width, height)
+                        .setBitRate(bitRate)
+                        .setDrainMode(useCallback ? EncoderConfig.DrainMode.CALLBACK
+                                : EncoderConfig.DrainMode.SYNC)
+                        .build(),
+                new AndroidMuxer(outputFile));
+    }
+
+    /**
+     * Configures encoder state, and prepares the input Surface.
+     * <p>
+     * The config is checked against the device's encoders first (see CodecProbe), and the
+     * first encoder that supports it is used, or an H.265 one if the config prefers that.
+     * With DrainMode.CALLBACK, output is delivered through MediaCodec.Callback on a dedicated
+     * looper instead of being polled by drainEncoder(); that is ignored (with a warning)
+     * before API 23.  The output file, muxer type and segment settings in the config are not
+     * used here.
+     *
+     * @param muxer Receives the encoded stream.  VideoEncoderCore takes ownership, and
+     *              will stop and release it in release().  May be null for a codec that is
+     *              set up ahead of time, see setMuxer().
+     * @throws EncoderCapabilities.UnsupportedConfigException if no encoder supports the
+     *                                                        config.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public VideoEncoderCore(EncoderConfig config, Muxer muxer) throws IOException {
         mBufferInfo = new MediaCodec.BufferInfo();
+        boolean useCallback = config.mDrainMode == EncoderConfig.DrainMode.CALLBACK;
+        if (useCallback && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Log.w(TAG, "MediaCodec.Callback with a Handler needs API 23, using polling drain");
+            useCallback = false;
+        }
+        EncoderCapabilities.Choice choice = EncoderCapabilities.choose(config);
 
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        MediaFormat format = MediaFormat.createVideoFormat(choice.mMimeType, config.mWidth,
+                config.mHeight);
 
         // Set some properties.  Failing to specify some of these can cause the MediaCodec
         // configure() call to throw an unhelpful exception.
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, choice.mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.mIFrameInterval);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, config.mBitrateMode.mCodecValue);
+        }
+        if (config.mProfile != 0) {
+            // Older encoders don't look at these, but they don't mind them either.
+            format.setInteger(MediaFormat.KEY_PROFILE, config.mProfile);
+            if (config.mLevel != 0) {
+                format.setInteger(MediaFormat.KEY_LEVEL, config.mLevel);
+            }
+        }
+        if (config.mBFramePolicy == EncoderConfig.BFramePolicy.NONE) {
+            format.setInteger(KEY_MAX_B_FRAMES, 0);
+        }
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder = MediaCodec.createByCodecName(choice.mCodecName);
+        if (useCallback) {
+            // The callback must be installed before configure().
+            mCallbackThread = new HandlerThread("VideoEncoderCallback");
+            mCallbackThread.start();
+            mEncoder.setCallback(new EncoderCallback(), new Handler(mCallbackThread.getLooper()));
+        }
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
 
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
-        // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the encoder after it has started processing data.
+        // We can't add the video track and start() the muxer here, because our MediaFormat
+        // doesn't have the Magic Goodies.  These can only be obtained from the encoder after
+        // it has started processing data.
         //
-        // We're not actually interested in multiplexing audio.  We just want to convert
-        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        // If the recording has audio, the muxer is shared with an AudioEncoder and won't
+        // really start until both tracks are in; see InterleavingMuxer.
+        mMuxer = muxer;
         mTrackIndex = -1;
         mMuxerStarted = false;
     }
 
+    /**
+     * Gives an encoder that was created without a muxer its muxer, taking ownership as the
+     * constructor would.  Must be called before the first frame is swapped into the input
+     * surface, since nothing comes out of the codec before that.
+     * <p>
+     * This is what makes a pre-warmed encoder possible: configure() and start() take tens of
+     * milliseconds, sometimes hundreds, and can all be done while the preview is running.
+     */
+    public void setMuxer(Muxer muxer) {
+        if (mMuxer != null) {
+            throw new IllegalStateException("muxer already set");
+        }
+        mMuxer = muxer;
+    }
+
     /**
      * Returns the encoder's input surface.
      */
@@ -99,12 +190,51 @@ public class VideoEncoderCore {
         return mInputSurface;
     }
 
+    /**
+     * Sets the counters to update as encoded frames reach the muxer.  May be null.
+     */
+    public void setPipelineStats(EncoderPipelineStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Asks the encoder to make the next frame a sync frame.  Safe to call from any thread.
+     * Does nothing before API 19.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mEncoder.setParameters(params);
+    }
+
+    /**
+     * Returns true if output is delivered through MediaCodec.Callback.
+     */
+    public boolean isCallbackMode() {
+        return mCallbackThread != null;
+    }
+
     /**
      * Releases encoder resources.
      */
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        if (mCallbackThread != null) {
+            // Let any callback that was already queued finish with the codec and the muxer
+            // before we stop them.  Anything the codec posts after this is dropped.
+            mCallbackThread.quitSafely();
+            try {
+                mCallbackThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "interrupted waiting for callback thread");
+            }
+            mCallbackThread = null;
+        }
         if (mEncoder != null) {
             mEncoder.stop();
             mEncoder.release();
@@ -113,7 +243,9 @@ public class VideoEncoderCore {
         if (mMuxer != null) {
             // TODO: stop() throws an exception if you haven't fed it any data.  Keep track
             //       of frames submitted, and don't call stop() if we haven't written anything.
-            mMuxer.stop();
+            if (mMuxerStarted) {
+                mMuxer.stop();
+            }
             mMuxer.release();
             mMuxer = null;
         }
@@ -126,14 +258,22 @@ public class VideoEncoderCore {
      * is set, we send EOS to the encoder, and then iterate until we see EOS on the output.
      * Calling this with endOfStream set should be done once, right before stopping the muxer.
      * <p>
-     * We're just using the muxer to get a .mp4 file (instead of a raw H.264 stream).  We're
-     * not recording audio.
+     * In callback mode the output is already being forwarded as it becomes available, so
+     * this returns immediately unless endOfStream is set, in which case it waits for the
+     * callback thread to see EOS.
      */
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     public void drainEncoder(boolean endOfStream) {
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
+        if (mCallbackThread != null) {
+            if (endOfStream) {
+                awaitEndOfStream();
+            }
+            return;
+        }
+
         if (endOfStream) {
             if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
             mEncoder.signalEndOfInputStream();
@@ -153,17 +293,7 @@ public class VideoEncoderCore {
                 // not expected for an encoder
                 encoderOutputBuffers = mEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
+                startMuxer(mEncoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
                 // let's ignore it
@@ -174,29 +304,7 @@ public class VideoEncoderCore {
                             " was null");
                 }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) {
-                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                mBufferInfo.presentationTimeUs);
-                    }
-                }
-
+                writeEncodedData(encodedData, mBufferInfo);
                 mEncoder.releaseOutputBuffer(encoderStatus, false);
 
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
@@ -210,4 +318,149 @@ public class VideoEncoderCore {
             }
         }
     }
+
+    /**
+     * Adds the video track and starts the muxer.  This should happen before receiving
+     * buffers, and should only happen once.
+     */
+    private void startMuxer(MediaFormat newFormat) {
+        if (mMuxerStarted) {
+            throw new RuntimeException("format changed twice");
+        }
+        if (mMuxer == null) {
+            throw new RuntimeException("encoder produced output before it got a muxer");
+        }
+        Log.d(TAG, "encoder output format changed: " + newFormat);
+
+        // now that we have the Magic Goodies, start the muxer
+        mTrackIndex = mMuxer.addTrack(toTrackFormat(newFormat));
+        mMuxer.start();
+        mMuxerStarted = true;
+    }
+
+    /**
+     * Pulls what the muxer needs out of the encoder's output format.
+     */
+    private static TrackFormat toTrackFormat(MediaFormat format) {
+        int csdCount = 0;
+        while (format.containsKey("csd-" + csdCount)) {
+            csdCount++;
+        }
+        byte[][] csd = new byte[csdCount][];
+        for (int i = 0; i < csdCount; i++) {
+            ByteBuffer buffer = format.getByteBuffer("csd-" + i).duplicate();
+            csd[i] = new byte[buffer.remaining()];
+            buffer.get(csd[i]);
+        }
+        return TrackFormat.createVideoFormat(format.getString(MediaFormat.KEY_MIME),
+                format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                csd);
+    }
+
+    /**
+     * Sends one buffer of encoder output to the muxer.  Codec config data is skipped, since
+     * the muxer already got it from the output format.
+     */
+    private void writeEncodedData(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer when we got
+            // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            info.size = 0;
+        }
+
+        if (info.size != 0) {
+            if (!mMuxerStarted) {
+                throw new RuntimeException("muxer hasn't started");
+            }
+
+            // adjust the ByteBuffer values to match BufferInfo (not needed?)
+            encodedData.position(info.offset);
+            encodedData.limit(info.offset + info.size);
+
+            long outputNs = System.nanoTime();
+            mMuxer.writeSampleData(mTrackIndex, encodedData, info.presentationTimeUs, info.flags);
+            EncoderPipelineStats stats = mStats;
+            if (stats != null) {
+                stats.onFrameEncoded(info.presentationTimeUs, outputNs, System.nanoTime());
+            }
+            if (VERBOSE) {
+                Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" +
+                        info.presentationTimeUs);
+            }
+        }
+    }
+
+    /**
+     * Sends EOS to the encoder and blocks until the callback thread has seen it come out the
+     * other side (or we give up waiting).
+     */
+    private void awaitEndOfStream() {
+        final long EOS_TIMEOUT_MSEC = 2000;
+        if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+        mEncoder.signalEndOfInputStream();
+
+        long deadline = System.currentTimeMillis() + EOS_TIMEOUT_MSEC;
+        synchronized (mEosFence) {
+            while (!mEosReached) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "timed out waiting for end of stream");
+                    break;
+                }
+                try {
+                    mEosFence.wait(remaining);
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void signalEndOfStreamReached() {
+        synchronized (mEosFence) {
+            mEosReached = true;
+            mEosFence.notifyAll();
+        }
+    }
+
+    /**
+     * Receives encoder output in callback mode.  Runs on mCallbackThread.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Input comes from the Surface, we never see input buffers.
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                                            MediaCodec.BufferInfo info) {
+            ByteBuffer encodedData = codec.getOutputBuffer(index);
+            if (encodedData == null) {
+                throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+            }
+
+            writeEncodedData(encodedData, info);
+            codec.releaseOutputBuffer(index, false);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "end of stream reached");
+                signalEndOfStreamReached();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "encoder error", e);
+            // Nothing more will come out, don't leave a stop request hanging.
+            signalEndOfStreamReached();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            startMuxer(format);
+        }
+    }
 }
@@ -15,6 +15,7 @@ import com.alan.alvideo.camera.CameraController;
 import com.alan.alvideo.camera.CameraRecordRenderer;
 import com.alan.alvideo.camera.CameraUtils;
 import com.alan.alvideo.filter.FilterManager.FilterType;
+import com.alan.alvideo.gles.Gles3ContextFactory;
 import com.alan.alvideo.video.EncoderConfig;
 
 import java.lang.ref.WeakReference;
@@ -36,7 +37,10 @@ public class CameraSurfaceView extends GLSurfaceView implements SurfaceTexture.O
     }
 
     private void init() {
-        setEGLContextClientVersion(2);//设置EGL版本，不设置渲染不出图像来
+        //优先使用GLES3上下文，不支持时退回GLES2；编码器与预编译线程共享该上下文，也都优先请求GLES3
+        Gles3ContextFactory contextFactory = new Gles3ContextFactory();
+        setEGLConfigChooser(contextFactory);
+        setEGLContextFactory(contextFactory);
         mHandlerThread = new HandlerThread("CameraHandlerThread");
         mHandlerThread.start();
 
@@ -57,6 +61,27 @@ public class CameraSurfaceView extends GLSurfaceView implements SurfaceTexture.O
         }
     }
 
+    /**
+     * 暂停、恢复录制，恢复后继续写入同一个文件
+     * @param paused
+     */
+    public void setRecordingPaused(boolean paused) {
+        if (mCameraRenderer != null) {
+            mCameraRenderer.setRecordingPaused(paused);
+        }
+    }
+
+    /**
+     * 设置高帧率（慢动作）模式，需在预览开始前调用
+     * @param highFrameRate
+     */
+    public void setHighFrameRate(boolean highFrameRate) {
+        CameraController.getInstance().setHighFrameRate(highFrameRate);
+        if (mCameraRenderer != null) {
+            mCameraRenderer.setHighFrameRate(highFrameRate);
+        }
+    }
+
     /**
      * 设置编码器配置，携带录制文件的宽高、输出文件等信息
      * @param encoderConfig
@@ -77,6 +102,16 @@ public class CameraSurfaceView extends GLSurfaceView implements SurfaceTexture.O
         }
     }
 
+    /**
+     * 设置美颜级别，1~5
+     * @param level
+     */
+    public void setBeautyLevel(int level) {
+        if (mCameraRenderer != null) {
+            mCameraRenderer.setBeautyLevel(level);
+        }
+    }
+
     @Override
     public void onPause() {
         mBackgroundHandler.removeCallbacksAndMessages(null);
@@ -0,0 +1,93 @@
+package com.alan.alvideo.audio;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the aligner synthetic read times: a capture clock that may run fast or slow against
+ * the system clock, plus scheduling jitter on every read.
+ */
+public class AudioTimestampAlignerTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHUNK_FRAMES = 1024;
+    private static final long START_NS = 5000000000L;
+
+    @Test
+    public void steadyReadsGiveSampleAccurateTimestamps() {
+        AudioTimestampAligner aligner = new AudioTimestampAligner(SAMPLE_RATE);
+        for (int i = 0; i < 1000; i++) {
+            long readDoneNs = START_NS + framesToNs((i + 1L) * CHUNK_FRAMES);
+            assertEquals(START_NS + framesToNs((long) i * CHUNK_FRAMES),
+                    aligner.align(readDoneNs, CHUNK_FRAMES), 1000);
+        }
+        assertEquals(0, aligner.getResyncCount());
+    }
+
+    @Test
+    public void jitterIsSmoothedOut() {
+        AudioTimestampAligner aligner = new AudioTimestampAligner(SAMPLE_RATE);
+        Random random = new Random(1);
+        long chunkNs = framesToNs(CHUNK_FRAMES);
+        long previous = -1;
+        for (int i = 0; i < 2000; i++) {
+            long jitterNs = (long) (random.nextDouble() * 10000000L);     // up to 10ms late
+            long readDoneNs = START_NS + (i + 1L) * chunkNs + jitterNs;
+            long timestamp = aligner.align(readDoneNs, CHUNK_FRAMES);
+            if (previous >= 0) {
+                // Steps stay within 5% of a chunk, where raw read times vary by 40%.
+                assertEquals(chunkNs, timestamp - previous, chunkNs / 20);
+            }
+            previous = timestamp;
+        }
+        assertEquals(0, aligner.getResyncCount());
+    }
+
+    @Test
+    public void driftStaysBoundedOverAnHour() {
+        AudioTimestampAligner aligner = new AudioTimestampAligner(SAMPLE_RATE);
+        Random random = new Random(2);
+        // The audio clock runs 100ppm fast: over an hour that's 360ms of drift when only
+        // counting samples.
+        double ppm = 100;
+        long chunks = 3600L * SAMPLE_RATE / CHUNK_FRAMES;
+        long maxErrorNs = 0;
+        for (long i = 0; i < chunks; i++) {
+            long captureNs = START_NS + (long) (framesToNs(i * CHUNK_FRAMES) / (1 + ppm / 1e6));
+            long readDoneNs = captureNs + (long) (framesToNs(CHUNK_FRAMES) / (1 + ppm / 1e6))
+                    + (long) (random.nextDouble() * 5000000L);
+            long timestamp = aligner.align(readDoneNs, CHUNK_FRAMES);
+            if (i > 1000) {
+                maxErrorNs = Math.max(maxErrorNs, Math.abs(timestamp - captureNs));
+            }
+        }
+        assertTrue("max error " + maxErrorNs / 1000 + "us", maxErrorNs < 10000000L);
+        assertEquals(0, aligner.getResyncCount());
+    }
+
+    @Test
+    public void droppedChunkResyncsForwardAndTimeNeverGoesBack() {
+        AudioTimestampAligner aligner = new AudioTimestampAligner(SAMPLE_RATE);
+        long chunkNs = framesToNs(CHUNK_FRAMES);
+        long last = 0;
+        for (int i = 0; i < 10; i++) {
+            last = aligner.align(START_NS + (i + 1) * chunkNs, CHUNK_FRAMES);
+        }
+        // Five chunks lost to an overrun.
+        long afterGap = aligner.align(START_NS + 16 * chunkNs, CHUNK_FRAMES);
+        assertEquals(START_NS + 15 * chunkNs, afterGap, 1000);
+        assertEquals(1, aligner.getResyncCount());
+        assertTrue(afterGap > last);
+
+        // A read that claims to be far in the past can't move time backwards.
+        long back = aligner.align(START_NS, CHUNK_FRAMES);
+        assertTrue(back > afterGap);
+    }
+
+    private static long framesToNs(long frames) {
+        return frames * 1000000000L / SAMPLE_RATE;
+    }
+}
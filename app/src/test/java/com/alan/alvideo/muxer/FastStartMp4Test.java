@@ -0,0 +1,169 @@
+package com.alan.alvideo.muxer;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.StaticChunkOffsetBox;
+import com.googlecode.mp4parser.util.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rewrites hand-built MP4 files and checks box order and chunk offsets.
+ */
+public class FastStartMp4Test {
+    private static final int CHUNKS = 5;
+    private static final int CHUNK_SIZE = 100;
+    private static final int FTYP_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Test
+    public void movesMoovAndKeepsChunkOffsets() throws Exception {
+        File input = mTempFolder.newFile("in.mp4");
+        long mdatOffset = FTYP_SIZE;
+        long[] offsets = new long[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            offsets[i] = mdatOffset + 8 + i * CHUNK_SIZE;
+        }
+        writeFile(input, ftyp(), mdat(), moov(stco(offsets)));
+        File output = mTempFolder.newFile("out.mp4");
+
+        assertTrue(FastStartMp4.rewrite(input, output));
+
+        assertEquals(input.length(), output.length());
+        IsoFile isoFile = new IsoFile(output.getPath());
+        try {
+            assertEquals(Arrays.asList("ftyp", "moov", "mdat"), boxTypes(isoFile.getBoxes()));
+            StaticChunkOffsetBox stco = Path.getPath(isoFile, "moov/trak/mdia/minf/stbl/stco");
+            long[] chunkOffsets = stco.getChunkOffsets();
+            assertEquals(CHUNKS, chunkOffsets.length);
+            RandomAccessFile file = new RandomAccessFile(output, "r");
+            try {
+                for (int i = 0; i < CHUNKS; i++) {
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    file.seek(chunkOffsets[i]);
+                    file.readFully(chunk);
+                    assertArrayEquals("chunk " + i, chunkPayload(i), chunk);
+                }
+            } finally {
+                file.close();
+            }
+        } finally {
+            isoFile.close();
+        }
+    }
+
+    @Test
+    public void leavesFastStartFileAlone() throws Exception {
+        File input = mTempFolder.newFile("in.mp4");
+        writeFile(input, ftyp(), moov(stco(new long[]{FTYP_SIZE + 200})), mdat());
+        File output = mTempFolder.newFile("out.mp4");
+
+        assertFalse(FastStartMp4.rewrite(input, output));
+        assertEquals(0, output.length());
+        assertFalse(FastStartMp4.rewriteInPlace(input));
+        assertFalse(new File(input.getPath() + ".faststart").exists());
+    }
+
+    @Test
+    public void widensStcoPastFourGigabytes() {
+        // moov at the end of a file just under 4GB; moving it up pushes the last chunk over.
+        long mdatOffset = FTYP_SIZE;
+        long lastChunk = 0xffffffffL - 50;
+        ByteBuffer moov = ByteBuffer.wrap(moov(stco(new long[]{mdatOffset + 8, lastChunk})));
+        long moovSize = moov.remaining();
+
+        ByteBuffer rewritten = FastStartMp4.rewriteMoov(moov, mdatOffset, 0xffffffffL);
+
+        long newMoovSize = rewritten.remaining();
+        assertEquals(moovSize + 2 * 4, newMoovSize);
+        assertEquals(newMoovSize, rewritten.getInt(0));
+        // moov/trak/mdia/minf/stbl are 8-byte headers each, followed by the co64 box.
+        int co64 = 5 * 8;
+        assertEquals("co64", fourCC(rewritten, co64 + 4));
+        assertEquals(2, rewritten.getInt(co64 + 12));
+        assertEquals(mdatOffset + 8 + newMoovSize, rewritten.getLong(co64 + 16));
+        assertEquals(lastChunk + newMoovSize, rewritten.getLong(co64 + 24));
+    }
+
+    private static byte[] chunkPayload(int index) {
+        byte[] payload = new byte[CHUNK_SIZE];
+        Arrays.fill(payload, (byte) (index + 1));
+        return payload;
+    }
+
+    private static byte[] ftyp() {
+        ByteBuffer buf = ByteBuffer.allocate(FTYP_SIZE);
+        buf.putInt(FTYP_SIZE).put("ftyp".getBytes()).put("isom".getBytes()).putInt(0);
+        return buf.array();
+    }
+
+    private static byte[] mdat() {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int i = 0; i < CHUNKS; i++) {
+            byte[] chunk = chunkPayload(i);
+            payload.write(chunk, 0, chunk.length);
+        }
+        return box("mdat", payload.toByteArray());
+    }
+
+    private static byte[] stco(long[] offsets) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + offsets.length * 4);
+        buf.putInt(0).putInt(offsets.length);
+        for (long offset : offsets) {
+            buf.putInt((int) offset);
+        }
+        return box("stco", buf.array());
+    }
+
+    private static byte[] moov(byte[] stco) {
+        return box("moov", box("trak", box("mdia", box("minf", box("stbl", stco)))));
+    }
+
+    private static byte[] box(String type, byte[] body) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + body.length);
+        buf.putInt(8 + body.length).put(type.getBytes()).put(body);
+        return buf.array();
+    }
+
+    private static String fourCC(ByteBuffer buf, int offset) {
+        byte[] type = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = buf.get(offset + i);
+        }
+        return new String(type);
+    }
+
+    private static void writeFile(File file, byte[]... boxes) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (byte[] box : boxes) {
+                out.write(box);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<String> boxTypes(List<Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) {
+            types.add(box.getType());
+        }
+        return types;
+    }
+}
@@ -0,0 +1,236 @@
+package com.alan.alvideo.muxer;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.googlecode.mp4parser.authoring.Movie;
+import com.googlecode.mp4parser.authoring.Sample;
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
+import com.googlecode.mp4parser.util.Path;
+import com.mp4parser.iso14496.part15.AvcConfigurationBox;
+import com.mp4parser.iso14496.part15.HevcConfigurationBox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes canned H.264 access units and reads the result back with mp4parser.
+ */
+public class FragmentedMp4MuxerTest {
+    // Baseline profile, level 3.0, 640x480.
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80,
+            (byte) 0xbf, (byte) 0xe5, (byte) 0xc0, 0x44, 0x00, 0x00, 0x03, 0x00, 0x04, 0x00, 0x00,
+            0x03, 0x00, (byte) 0xf0, 0x3c, 0x58, (byte) 0xba, (byte) 0x80};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x0f, (byte) 0xc8};
+
+    // AudioSpecificConfig: AAC LC, 44.1kHz, 2 channels.
+    private static final byte[] AAC_LC_44100_STEREO = {0x12, 0x10};
+
+    private static final long FRAME_INTERVAL_US = 40000;      // 25fps, one GOP per fragment
+    private static final int GOP = 25;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Test
+    public void writesParsableFragmentedFile() throws Exception {
+        File file = mTempFolder.newFile("out.mp4");
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file);
+        int track = muxer.addTrack(videoFormat());
+        muxer.start();
+        List<byte[]> expected = new ArrayList<>();
+        for (int i = 0; i < 3 * GOP; i++) {
+            expected.add(writeFrame(muxer, track, i));
+        }
+        muxer.stop();
+        muxer.release();
+
+        IsoFile isoFile = new IsoFile(file.getPath());
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"),
+                boxTypes(isoFile.getBoxes()));
+        AvcConfigurationBox avcC = Path.getPath(isoFile,
+                "moov/trak/mdia/minf/stbl/stsd/avc1/avcC");
+        assertArrayEquals(SPS, avcC.getSequenceParameterSets().get(0));
+        assertArrayEquals(PPS, avcC.getPictureParameterSets().get(0));
+        isoFile.close();
+
+        Movie movie = MovieCreator.build(file.getPath());
+        assertEquals(1, movie.getTracks().size());
+        Track parsed = movie.getTracks().get(0);
+        assertEquals("vide", parsed.getHandler());
+        assertArrayEquals(new long[]{1, GOP + 1, 2 * GOP + 1}, parsed.getSyncSamples());
+        List<Sample> samples = parsed.getSamples();
+        assertEquals(expected.size(), samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertArrayEquals("sample " + i, expected.get(i), toArray(samples.get(i).asByteBuffer()));
+        }
+        for (long duration : parsed.getSampleDurations()) {
+            assertEquals(3600, duration);
+        }
+    }
+
+    @Test
+    public void writesAacTrackNextToVideo() throws Exception {
+        File file = mTempFolder.newFile("av.mp4");
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file);
+        int video = muxer.addTrack(videoFormat());
+        int audio = muxer.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC,
+                44100, 2, AAC_LC_44100_STEREO));
+        muxer.start();
+        List<byte[]> expectedAudio = new ArrayList<>();
+        long audioUs = 0;
+        for (int i = 0; i < 2 * GOP; i++) {
+            writeFrame(muxer, video, i);
+            while (audioUs < (i + 1) * FRAME_INTERVAL_US) {
+                byte[] frame = new byte[50 + expectedAudio.size() % 7];
+                Arrays.fill(frame, (byte) expectedAudio.size());
+                muxer.writeSampleData(audio, ByteBuffer.wrap(frame), audioUs, 0);
+                expectedAudio.add(frame);
+                audioUs = expectedAudio.size() * 1024 * 1000000L / 44100;
+            }
+        }
+        muxer.stop();
+        muxer.release();
+
+        Movie movie = MovieCreator.build(file.getPath());
+        assertEquals(2, movie.getTracks().size());
+        Track parsed = movie.getTracks().get(1);
+        assertEquals("soun", parsed.getHandler());
+        assertEquals(44100, parsed.getTrackMetaData().getTimescale());
+        List<Sample> samples = parsed.getSamples();
+        assertEquals(expectedAudio.size(), samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertArrayEquals("sample " + i, expectedAudio.get(i),
+                    toArray(samples.get(i).asByteBuffer()));
+        }
+        // Every AAC frame is 1024 samples; rounding to microseconds may add or lose one.
+        for (long duration : parsed.getSampleDurations()) {
+            assertTrue("duration " + duration, Math.abs(duration - 1024) <= 1);
+        }
+    }
+
+    @Test
+    public void writesHevcConfigurationRecord() throws Exception {
+        // Main profile, level 3.1; the 48 zero constraint bits need emulation prevention.
+        byte[] vps = {0x40, 0x01, 0x0c, 0x01, (byte) 0xff, (byte) 0xff};
+        byte[] sps = {0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90, 0x00,
+                0x00, 0x03, 0x00, 0x00, 0x03, 0x00, 0x5d, (byte) 0xa0, 0x02, (byte) 0x80};
+        byte[] pps = {0x44, 0x01, (byte) 0xc1, 0x72};
+        byte[] csd = new byte[vps.length + sps.length + pps.length + 12];
+        ByteBuffer.wrap(csd).put(annexB(vps)).put(annexB(sps)).put(annexB(pps));
+
+        File file = mTempFolder.newFile("hevc.mp4");
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file);
+        int track = muxer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_HEVC,
+                640, 480, csd));
+        muxer.start();
+        byte[] slice = {0x26, 0x01, 0x11, 0x22};   // IDR_W_RADL
+        muxer.writeSampleData(track, ByteBuffer.wrap(annexB(slice)), 0, Muxer.FLAG_KEY_FRAME);
+        muxer.stop();
+        muxer.release();
+
+        IsoFile isoFile = new IsoFile(file.getPath());
+        HevcConfigurationBox hvcC = Path.getPath(isoFile,
+                "moov/trak/mdia/minf/stbl/stsd/hvc1/hvcC");
+        assertEquals(1, hvcC.getHevcDecoderConfigurationRecord().getGeneral_profile_idc());
+        assertEquals(93, hvcC.getHevcDecoderConfigurationRecord().getGeneral_level_idc());
+        assertEquals(0x60000000L,
+                hvcC.getHevcDecoderConfigurationRecord().getGeneral_profile_compatibility_flags());
+        assertEquals(3, hvcC.getHevcDecoderConfigurationRecord().getArrays().size());
+        assertArrayEquals(sps,
+                hvcC.getHevcDecoderConfigurationRecord().getArrays().get(1).nalUnits.get(0));
+        isoFile.close();
+    }
+
+    @Test
+    public void fragmentsReachDiskBeforeStop() throws Exception {
+        File file = mTempFolder.newFile("partial.mp4");
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file);
+        int track = muxer.addTrack(videoFormat());
+        muxer.start();
+        for (int i = 0; i < 2 * GOP + 5; i++) {
+            writeFrame(muxer, track, i);
+        }
+
+        // Two complete fragments, the third one is still pending.
+        IsoFile isoFile = new IsoFile(file.getPath());
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat"),
+                boxTypes(isoFile.getBoxes()));
+        isoFile.close();
+        Movie movie = MovieCreator.build(file.getPath());
+        assertEquals(2 * GOP, movie.getTracks().get(0).getSamples().size());
+        muxer.release();
+    }
+
+    @Test
+    public void convertsStartCodesToLengths() {
+        ByteBuffer annexB = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x65, 1, 2, 0, 0, 1, 0x41, 3});
+        ByteBuffer out = ByteBuffer.allocate(NalUnitUtil.maxLengthPrefixedSize(annexB.remaining()));
+        int written = NalUnitUtil.writeLengthPrefixed(annexB, out);
+        assertEquals(13, written);
+        assertArrayEquals(new byte[]{0, 0, 0, 3, 0x65, 1, 2, 0, 0, 0, 2, 0x41, 3},
+                Arrays.copyOf(out.array(), 13));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsSamplesBeforeStart() throws Exception {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(mTempFolder.newFile("early.mp4"));
+        int track = muxer.addTrack(videoFormat());
+        try {
+            writeFrame(muxer, track, 0);
+        } finally {
+            muxer.release();
+        }
+    }
+
+    private static TrackFormat videoFormat() {
+        return TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 640, 480,
+                annexB(SPS), annexB(PPS));
+    }
+
+    /**
+     * Writes one Annex B access unit and returns the length-prefixed form expected in the file.
+     */
+    private static byte[] writeFrame(Muxer muxer, int track, int index) {
+        boolean key = index % GOP == 0;
+        byte[] slice = new byte[100 + index];
+        Arrays.fill(slice, (byte) (index + 1));
+        slice[0] = (byte) (key ? 0x65 : 0x41);
+        muxer.writeSampleData(track, ByteBuffer.wrap(annexB(slice)), index * FRAME_INTERVAL_US,
+                key ? Muxer.FLAG_KEY_FRAME : 0);
+
+        ByteBuffer expected = ByteBuffer.allocate(4 + slice.length);
+        expected.putInt(slice.length).put(slice);
+        return expected.array();
+    }
+
+    private static byte[] annexB(byte[] nal) {
+        byte[] out = new byte[nal.length + 4];
+        out[3] = 1;
+        System.arraycopy(nal, 0, out, 4, nal.length);
+        return out;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static List<String> boxTypes(List<Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) {
+            types.add(box.getType());
+        }
+        return types;
+    }
+}
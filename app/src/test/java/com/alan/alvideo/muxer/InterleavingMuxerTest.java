@@ -0,0 +1,191 @@
+package com.alan.alvideo.muxer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InterleavingMuxerTest {
+    private static final TrackFormat VIDEO =
+            TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240);
+    private static final TrackFormat AUDIO =
+            TrackFormat.createAudioFormat(TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 1);
+
+    @Test
+    public void waitsForAllTracksBeforeStarting() {
+        RecordingMuxer target = new RecordingMuxer();
+        InterleavingMuxer muxer = new InterleavingMuxer(target, 2);
+        int video = muxer.addTrack(VIDEO);
+        muxer.start();
+        for (int i = 0; i < 5; i++) {
+            muxer.writeSampleData(video, sample(i), i * 33333, 0);
+        }
+        assertFalse(target.mStarted);
+        assertEquals(5, muxer.getPendingSampleCount());
+
+        int audio = muxer.addTrack(AUDIO);
+        muxer.start();
+        assertTrue(target.mStarted);
+        assertEquals(2, target.mFormats.size());
+        muxer.writeSampleData(audio, sample(100), 0, 0);
+        muxer.stop();
+        muxer.stop();
+        muxer.release();
+        muxer.release();
+
+        assertEquals(6, target.mTimes.size());
+        assertTrue(target.mStopped);
+        assertTrue(target.mReleased);
+    }
+
+    @Test
+    public void interleavesByPresentationTime() {
+        RecordingMuxer target = new RecordingMuxer();
+        InterleavingMuxer muxer = new InterleavingMuxer(target, 2);
+        int video = muxer.addTrack(VIDEO);
+        int audio = muxer.addTrack(AUDIO);
+        muxer.start();
+        muxer.start();
+
+        // Video comes out of its encoder ~100ms late, in bursts; audio in small steps.
+        long audioUs = 0;
+        for (int frame = 0; frame < 90; frame++) {
+            long videoUs = frame * 33333L;
+            while (audioUs <= videoUs + 100000) {
+                muxer.writeSampleData(audio, sample(1), audioUs, 0);
+                audioUs += 23220;
+            }
+            muxer.writeSampleData(video, sample(0), videoUs, 0);
+        }
+        muxer.stop();
+        muxer.stop();
+        muxer.release();
+        muxer.release();
+
+        for (int i = 1; i < target.mTimes.size(); i++) {
+            assertTrue("sample " + i + " out of order",
+                    target.mTimes.get(i) >= target.mTimes.get(i - 1));
+        }
+        assertEquals(0, muxer.getPendingSampleCount());
+    }
+
+    @Test
+    public void stalledTrackHoldsOthersOnlyUpToMaxSkew() {
+        RecordingMuxer target = new RecordingMuxer();
+        InterleavingMuxer muxer = new InterleavingMuxer(target, 2, 500000);
+        int video = muxer.addTrack(VIDEO);
+        int audio = muxer.addTrack(AUDIO);
+        muxer.start();
+        muxer.start();
+        muxer.writeSampleData(audio, sample(1), 0, 0);
+        for (int i = 0; i < 60; i++) {
+            muxer.writeSampleData(video, sample(0), i * 33333L, 0);
+        }
+        // Audio is stuck at 0, so only video more than 500ms behind the newest got out.
+        long newestUs = 59 * 33333L;
+        for (long timeUs : target.mTimes) {
+            assertTrue(timeUs + 500000 <= newestUs);
+        }
+        assertTrue(muxer.getPendingSampleCount() < 60);
+        muxer.release();
+        muxer.release();
+        assertEquals(61, target.mTimes.size());
+    }
+
+    @Test
+    public void failedTrackStillGetsOtherTracksWritten() {
+        RecordingMuxer target = new RecordingMuxer();
+        InterleavingMuxer muxer = new InterleavingMuxer(target, 2);
+        int video = muxer.addTrack(VIDEO);
+        muxer.start();
+        for (int i = 0; i < 5; i++) {
+            muxer.writeSampleData(video, sample(i), i * 33333L, 0);
+        }
+        assertFalse(target.mStarted);
+
+        // The audio encoder never got going, and gives up.
+        muxer.release();
+        assertTrue(target.mStarted);
+        assertEquals(1, target.mFormats.size());
+        assertEquals(5, target.mTimes.size());
+        assertFalse(target.mReleased);
+
+        for (int i = 5; i < 10; i++) {
+            muxer.writeSampleData(video, sample(i), i * 33333L, 0);
+        }
+        assertEquals(10, target.mTimes.size());
+        assertEquals(0, muxer.getPendingSampleCount());
+        muxer.stop();
+        assertTrue(target.mStopped);
+        muxer.release();
+        assertTrue(target.mReleased);
+    }
+
+    @Test
+    public void trackGivenUpBeforeOthersAddedIsNotWaitedFor() {
+        RecordingMuxer target = new RecordingMuxer();
+        InterleavingMuxer muxer = new InterleavingMuxer(target, 2);
+        // As when the microphone can't be opened: the audio encoder releases first.
+        muxer.release();
+        int video = muxer.addTrack(VIDEO);
+        muxer.start();
+        assertTrue(target.mStarted);
+        for (int i = 0; i < 10; i++) {
+            muxer.writeSampleData(video, sample(i), i * 33333L, 0);
+        }
+        assertEquals(10, target.mTimes.size());
+        muxer.stop();
+        muxer.release();
+        assertTrue(target.mStopped);
+        assertTrue(target.mReleased);
+    }
+
+    private static ByteBuffer sample(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putInt(value);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static class RecordingMuxer implements Muxer {
+        final List<TrackFormat> mFormats = new ArrayList<>();
+        final List<Long> mTimes = new ArrayList<>();
+        boolean mStarted;
+        boolean mStopped;
+        boolean mReleased;
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            mFormats.add(format);
+            return mFormats.size() - 1;
+        }
+
+        @Override
+        public void start() {
+            mStarted = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                                    int flags) {
+            assertTrue(mStarted);
+            assertEquals(16, data.remaining());
+            mTimes.add(presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+            mStopped = true;
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+    }
+}
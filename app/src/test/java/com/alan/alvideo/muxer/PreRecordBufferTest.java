@@ -0,0 +1,159 @@
+package com.alan.alvideo.muxer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PreRecordBufferTest {
+    private static final long FRAME_INTERVAL_US = 40000;
+    private static final int GOP = 25;
+
+    @Test
+    public void dropsWholeGopsWhenOverBudget() {
+        // Room for a bit more than two 25 x 1000 byte GOPs.
+        PreRecordBuffer buffer = new PreRecordBuffer(60000, 60000000);
+        for (int i = 0; i < 4 * GOP; i++) {
+            buffer.add(0, frame(i, 1000), i * FRAME_INTERVAL_US, flagsFor(i));
+            assertTrue(buffer.getSizeBytes() <= buffer.getCapacityBytes());
+        }
+        List<Long> times = drain(buffer);
+        // Always starts on a GOP boundary, and keeps as much as fits.
+        assertEquals(0, times.get(0) % (GOP * FRAME_INTERVAL_US));
+        assertEquals((4 * GOP - 1) * FRAME_INTERVAL_US, (long) times.get(times.size() - 1));
+        assertTrue(times.size() >= 2 * GOP);
+    }
+
+    @Test
+    public void keepsRequestedDuration() {
+        PreRecordBuffer buffer = new PreRecordBuffer(1 << 20, 2000000);
+        for (int i = 0; i < 10 * GOP; i++) {
+            buffer.add(0, frame(i, 100), i * FRAME_INTERVAL_US, flagsFor(i));
+        }
+        // 10 s of 1 s GOPs with a 2 s window: the last 2 full GOPs plus the current one.
+        assertEquals(3 * GOP, buffer.getSampleCount());
+        assertEquals((3 * GOP - 1) * FRAME_INTERVAL_US, buffer.getDurationUs());
+    }
+
+    @Test
+    public void startsAtSyncFrame() {
+        PreRecordBuffer buffer = new PreRecordBuffer(1 << 20, 2000000);
+        buffer.add(0, frame(1, 100), 0, 0);
+        assertEquals(0, buffer.getSampleCount());
+        buffer.add(0, frame(2, 100), FRAME_INTERVAL_US, Muxer.FLAG_KEY_FRAME);
+        buffer.add(0, frame(3, 100), 2 * FRAME_INTERVAL_US, 0);
+        assertEquals(2, buffer.getSampleCount());
+    }
+
+    @Test
+    public void restartsWhenOneGopOutgrowsBudget() {
+        PreRecordBuffer buffer = new PreRecordBuffer(5000, 60000000);
+        for (int i = 0; i < 10; i++) {
+            buffer.add(0, frame(i, 1000), i * FRAME_INTERVAL_US, i == 0 ? Muxer.FLAG_KEY_FRAME : 0);
+        }
+        assertEquals(0, buffer.getSampleCount());
+    }
+
+    @Test
+    public void preservesSampleContentAcrossWrap() {
+        PreRecordBuffer buffer = new PreRecordBuffer(7000, 60000000);
+        for (int i = 0; i < 30; i++) {
+            // GOPs of 3, sizes vary so samples land all over the ring.
+            buffer.add(0, frame(i, 500 + (i % 4) * 300), i * FRAME_INTERVAL_US,
+                    i % 3 == 0 ? Muxer.FLAG_KEY_FRAME : 0);
+        }
+        final List<Long> times = new ArrayList<>();
+        buffer.drainTo(new CheckingMuxer(times));
+        assertEquals(0, times.get(0) / FRAME_INTERVAL_US % 3);
+        assertEquals(29 * FRAME_INTERVAL_US, (long) times.get(times.size() - 1));
+    }
+
+    @Test
+    public void preRecordMuxerFlushesHistoryOnTrigger() {
+        PreRecordMuxer muxer = new PreRecordMuxer(1 << 20, 1000000);
+        muxer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240));
+        muxer.start();
+        for (int i = 0; i < 3 * GOP; i++) {
+            muxer.writeSampleData(0, frame(i, 100), i * FRAME_INTERVAL_US, flagsFor(i));
+        }
+        List<Long> times = new ArrayList<>();
+        muxer.trigger(new CheckingMuxer(times));
+        for (int i = 3 * GOP; i < 4 * GOP; i++) {
+            muxer.writeSampleData(0, frame(i, 100), i * FRAME_INTERVAL_US, flagsFor(i));
+        }
+        muxer.stop();
+        muxer.release();
+
+        // 1 s window: the GOP starting at 1 s, the current one, then the live frames.
+        assertEquals(GOP * FRAME_INTERVAL_US, (long) times.get(0));
+        assertEquals(3 * GOP, times.size());
+        for (int i = 1; i < times.size(); i++) {
+            assertEquals(FRAME_INTERVAL_US, times.get(i) - times.get(i - 1));
+        }
+    }
+
+    private static int flagsFor(int frame) {
+        return frame % GOP == 0 ? Muxer.FLAG_KEY_FRAME : 0;
+    }
+
+    /**
+     * A sample filled with its own frame number, so the content can be checked later.
+     */
+    private static ByteBuffer frame(int frame, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) frame);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static List<Long> drain(PreRecordBuffer buffer) {
+        List<Long> times = new ArrayList<>();
+        buffer.drainTo(new CheckingMuxer(times));
+        assertEquals(0, buffer.getSampleCount());
+        return times;
+    }
+
+    /**
+     * Checks each sample's content against its timestamp and records the timestamps.
+     */
+    private static class CheckingMuxer implements Muxer {
+        private final List<Long> mTimes;
+
+        CheckingMuxer(List<Long> times) {
+            mTimes = times;
+        }
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                                    int flags) {
+            byte expected = (byte) (presentationTimeUs / FRAME_INTERVAL_US);
+            for (int i = data.position(); i < data.limit(); i++) {
+                assertEquals(expected, data.get(i));
+            }
+            mTimes.add(presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
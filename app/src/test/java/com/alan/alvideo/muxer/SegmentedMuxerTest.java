@@ -0,0 +1,206 @@
+package com.alan.alvideo.muxer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks where SegmentedMuxer rolls over, using muxers that just record what they get.
+ */
+public class SegmentedMuxerTest {
+    private static final long FRAME_INTERVAL_US = 40000;
+    private static final int GOP = 25;
+
+    @Test
+    public void rollsOverAtFirstSyncFrameAfterLimit() {
+        RecordingFactory factory = new RecordingFactory();
+        SegmentedMuxer muxer = new SegmentedMuxer(factory, 1500000, 0, null);
+        int track = muxer.addTrack(videoFormat());
+        muxer.start();
+        for (int i = 0; i < 4 * GOP; i++) {
+            writeFrame(muxer, track, i);
+            waitForNext(muxer);
+        }
+        muxer.stop();
+        muxer.release();
+
+        // 1.5 s limit with a sync frame every second: segments start at frames 0, 50.
+        assertEquals(3, factory.mMuxers.size());
+        assertEquals(50, factory.mMuxers.get(0).mSamples.size());
+        assertEquals(50, factory.mMuxers.get(1).mSamples.size());
+        assertTrue(factory.mMuxers.get(0).mStopped);
+        assertTrue(factory.mMuxers.get(1).mStopped);
+        assertEquals(Long.valueOf(50 * FRAME_INTERVAL_US), factory.mMuxers.get(1).mSamples.get(0));
+
+        // The segment opened ahead of time was never started and is discarded.
+        RecordingMuxer unused = factory.mMuxers.get(2);
+        assertTrue(!unused.mStarted && unused.mReleased);
+        assertEquals(Collections.singletonList(2), factory.mDiscarded);
+    }
+
+    @Test
+    public void notifiesWhileWaitingForSyncFrame() {
+        RecordingFactory factory = new RecordingFactory();
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        SegmentedMuxer muxer = new SegmentedMuxer(factory, 0, 1000,
+                new SegmentedMuxer.Listener() {
+                    @Override
+                    public void onRolloverPending() {
+                        events.add("pending");
+                    }
+
+                    @Override
+                    public void onSegmentFinished(int segmentIndex) {
+                        events.add("finished " + segmentIndex);
+                    }
+                });
+        int track = muxer.addTrack(videoFormat());
+        muxer.start();
+        for (int i = 0; i < GOP + 1; i++) {
+            writeFrame(muxer, track, i);
+            waitForNext(muxer);
+        }
+        muxer.stop();
+
+        // 100-byte frames: full after 10, rolled over at the sync frame at 25.
+        assertEquals(25, factory.mMuxers.get(0).mSamples.size());
+        assertEquals(1, factory.mMuxers.get(1).mSamples.size());
+        assertEquals(1, muxer.getCurrentSegmentIndex());
+        assertEquals(3, events.size());
+        assertEquals("pending", events.get(0));
+        assertTrue(events.contains("finished 0"));
+        assertTrue(events.contains("finished 1"));
+    }
+
+    @Test
+    public void notifiesAgainWhenSyncFrameIsPassedOver() throws InterruptedException {
+        final CountDownLatch nextSegment = new CountDownLatch(1);
+        RecordingFactory factory = new RecordingFactory() {
+            @Override
+            public Muxer createMuxer(int segmentIndex) throws IOException {
+                if (segmentIndex == 1) {
+                    try {
+                        nextSegment.await();
+                    } catch (InterruptedException ie) {
+                        throw new IOException(ie);
+                    }
+                }
+                return super.createMuxer(segmentIndex);
+            }
+        };
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        SegmentedMuxer muxer = new SegmentedMuxer(factory, 0, 1000,
+                new SegmentedMuxer.Listener() {
+                    @Override
+                    public void onRolloverPending() {
+                        events.add("pending");
+                    }
+
+                    @Override
+                    public void onSegmentFinished(int segmentIndex) {
+                    }
+                });
+        int track = muxer.addTrack(videoFormat());
+        muxer.start();
+        for (int i = 0; i <= GOP; i++) {
+            writeFrame(muxer, track, i);
+        }
+
+        // Full after 10 frames, and the sync frame at 25 came before the next segment.
+        assertEquals(0, muxer.getCurrentSegmentIndex());
+        assertEquals(2, events.size());
+
+        nextSegment.countDown();
+        waitForNext(muxer);
+        for (int i = GOP + 1; i <= 2 * GOP; i++) {
+            writeFrame(muxer, track, i);
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(2, events.size());
+        assertEquals(1, muxer.getCurrentSegmentIndex());
+        assertEquals(2 * GOP, factory.mMuxers.get(0).mSamples.size());
+    }
+
+    private static TrackFormat videoFormat() {
+        return TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240,
+                new byte[]{0, 0, 0, 1, 0x67}, new byte[]{0, 0, 0, 1, 0x68});
+    }
+
+    private static void writeFrame(Muxer muxer, int track, int frame) {
+        int flags = frame % GOP == 0 ? Muxer.FLAG_KEY_FRAME : 0;
+        muxer.writeSampleData(track, ByteBuffer.allocate(100), frame * FRAME_INTERVAL_US, flags);
+    }
+
+    /**
+     * Makes the test deterministic by letting the background open finish before the next
+     * frame, as it would in a real recording.
+     */
+    private static void waitForNext(SegmentedMuxer muxer) {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!muxer.isNextSegmentReady() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+    }
+
+    private static class RecordingFactory implements MuxerFactory {
+        final List<RecordingMuxer> mMuxers = Collections.synchronizedList(new ArrayList<RecordingMuxer>());
+        final List<Integer> mDiscarded = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public Muxer createMuxer(int segmentIndex) throws IOException {
+            RecordingMuxer muxer = new RecordingMuxer();
+            mMuxers.add(muxer);
+            return muxer;
+        }
+
+        @Override
+        public void discardSegment(int segmentIndex) {
+            mDiscarded.add(segmentIndex);
+        }
+    }
+
+    private static class RecordingMuxer implements Muxer {
+        final List<Long> mSamples = new ArrayList<>();
+        int mTracks;
+        volatile boolean mStarted;
+        volatile boolean mStopped;
+        volatile boolean mReleased;
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            return mTracks++;
+        }
+
+        @Override
+        public void start() {
+            mStarted = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                                    int flags) {
+            assertTrue(mStarted && !mStopped);
+            mSamples.add(presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+            mStopped = true;
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.alan.alvideo.muxer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteBehindMuxerTest {
+
+    @Test
+    public void writesEverySampleInOrder() {
+        SlowMuxer target = new SlowMuxer(0);
+        WriteBehindMuxer muxer = new WriteBehindMuxer(target, 1 << 20);
+        muxer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240));
+        muxer.start();
+        for (int i = 0; i < 500; i++) {
+            ByteBuffer sample = sample(i, 1000 + i * 10);
+            muxer.writeSampleData(0, sample, i, 0);
+            assertEquals("caller's position moved", 0, sample.position());
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertTrue(target.mStopped);
+        assertEquals(500, target.mTimes.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(Long.valueOf(i), target.mTimes.get(i));
+        }
+        assertEquals(500, muxer.getWriteLatency().getCount());
+        assertEquals(0, muxer.getQueuedSamples());
+    }
+
+    @Test
+    public void slowStorageBlocksCallerAtHighWaterMark() {
+        SlowMuxer target = new SlowMuxer(5);
+        // 16KB buffers, 64KB pool: the 4th queued sample hits the high-water mark.
+        WriteBehindMuxer muxer = new WriteBehindMuxer(target, 64 * 1024);
+        muxer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240));
+        muxer.start();
+        for (int i = 0; i < 20; i++) {
+            muxer.writeSampleData(0, sample(i, 15000), i, 0);
+            assertTrue(muxer.getQueuedBytes() <= 48 * 1024);
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(20, target.mTimes.size());
+        assertTrue(muxer.getBackpressureCount() > 0);
+        assertTrue(muxer.getMaxQueuedBytes() <= 48 * 1024);
+    }
+
+    @Test
+    public void sampleLargerThanPoolStillGoesThrough() {
+        SlowMuxer target = new SlowMuxer(0);
+        WriteBehindMuxer muxer = new WriteBehindMuxer(target, 32 * 1024);
+        muxer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240));
+        muxer.start();
+        muxer.writeSampleData(0, sample(1, 1000), 1, 0);
+        muxer.writeSampleData(0, sample(2, 100000), 2, Muxer.FLAG_KEY_FRAME);
+        muxer.writeSampleData(0, sample(3, 1000), 3, 0);
+        muxer.stop();
+        muxer.release();
+        assertEquals(3, target.mTimes.size());
+    }
+
+    @Test
+    public void writeFailureSurfacesOnStop() {
+        SlowMuxer target = new SlowMuxer(0);
+        target.mFailAt = 3;
+        WriteBehindMuxer muxer = new WriteBehindMuxer(target, 1 << 20);
+        muxer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIMETYPE_VIDEO_AVC, 320, 240));
+        muxer.start();
+        try {
+            for (int i = 0; i < 10; i++) {
+                muxer.writeSampleData(0, sample(i, 100), i, 0);
+            }
+            muxer.stop();
+            fail("write failure was swallowed");
+        } catch (RuntimeException re) {
+            assertEquals("disk full", re.getMessage());
+        } finally {
+            muxer.release();
+        }
+        assertTrue(!target.mStopped);
+    }
+
+    private static ByteBuffer sample(int value, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Checks sample content, records timestamps and takes its time about it.
+     */
+    private static class SlowMuxer implements Muxer {
+        final List<Long> mTimes = Collections.synchronizedList(new ArrayList<Long>());
+        final long mDelayMs;
+        long mFailAt = -1;
+        volatile boolean mStopped;
+
+        SlowMuxer(long delayMs) {
+            mDelayMs = delayMs;
+        }
+
+        @Override
+        public int addTrack(TrackFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                                    int flags) {
+            if (presentationTimeUs == mFailAt) {
+                throw new RuntimeException("disk full");
+            }
+            for (int i = data.position(); i < data.limit(); i++) {
+                assertEquals((byte) presentationTimeUs, data.get(i));
+            }
+            if (mDelayMs > 0) {
+                try {
+                    Thread.sleep(mDelayMs);
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+            }
+            mTimes.add(presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+            mStopped = true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.alan.alvideo.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameTimeMonitorTest {
+    private static final long INTERVAL_120_NS = 1000000000L / 120;
+
+    @Test
+    public void budgetShrinksWithFrameRate() {
+        assertEquals(FrameTimeMonitor.MAX_BUDGET_NS, FrameTimeMonitor.budgetFor(30));
+        assertEquals(FrameTimeMonitor.MAX_BUDGET_NS, FrameTimeMonitor.budgetFor(60));
+        assertEquals(INTERVAL_120_NS / 2, FrameTimeMonitor.budgetFor(120));
+        assertEquals(FrameTimeMonitor.MIN_BUDGET_NS, FrameTimeMonitor.budgetFor(240));
+    }
+
+    @Test
+    public void countsMissedFramesFromTimestampGaps() {
+        FrameTimeMonitor monitor = new FrameTimeMonitor(120);
+        long timestamp = 0;
+        for (int i = 0; i < 10; i++) {
+            // A little jitter is not a missed frame.
+            monitor.onFrame(timestamp + (i % 2) * 1000000L, 1000000L);
+            timestamp += INTERVAL_120_NS;
+        }
+        assertEquals(0, monitor.getFramesMissed());
+
+        // Three frames lost.
+        timestamp += 3 * INTERVAL_120_NS;
+        monitor.onFrame(timestamp, 1000000L);
+        assertEquals(3, monitor.getFramesMissed());
+
+        monitor.onDiscontinuity();
+        monitor.onFrame(timestamp + 1000 * INTERVAL_120_NS, 1000000L);
+        assertEquals(3, monitor.getFramesMissed());
+        assertEquals(12, monitor.getFrameCount());
+    }
+
+    @Test
+    public void countsFramesOverBudget() {
+        FrameTimeMonitor monitor = new FrameTimeMonitor(120);
+        monitor.onFrame(0, 2000000L);
+        monitor.onFrame(INTERVAL_120_NS, 5000000L);
+        monitor.onFrame(2 * INTERVAL_120_NS, 3000000L);
+        assertEquals(1, monitor.getOverBudgetCount());
+        assertEquals(5000000L, monitor.getWorkTimes().getMax());
+
+        monitor.reset();
+        assertEquals(0, monitor.getFrameCount());
+        assertEquals(0, monitor.getOverBudgetCount());
+    }
+}
@@ -0,0 +1,57 @@
+package com.alan.alvideo.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingClockTest {
+
+    @Test
+    public void subtractsFinishedPauses() {
+        RecordingClock clock = new RecordingClock();
+        assertEquals(1000, clock.toPresentationNanos(1000));
+
+        clock.pause(2000);
+        clock.resume(2500);
+        clock.pause(4000);
+        clock.resume(4100);
+
+        assertEquals(1999, clock.toPresentationNanos(1999));
+        assertEquals(2000, clock.toPresentationNanos(2500));
+        assertEquals(3000, clock.toPresentationNanos(3500));
+        assertEquals(3900, clock.toPresentationNanos(4500));
+        assertEquals(600, clock.getPausedNanos());
+    }
+
+    @Test
+    public void dropsSamplesCapturedWhilePaused() {
+        RecordingClock clock = new RecordingClock();
+        clock.pause(2000);
+        assertTrue(clock.isPaused());
+        assertEquals(-1, clock.toPresentationNanos(2000));
+        assertEquals(-1, clock.toPresentationNanos(9000));
+        // Captured before the pause, delivered after it.
+        assertEquals(1900, clock.toPresentationNanos(1900));
+
+        clock.resume(3000);
+        assertFalse(clock.isPaused());
+        assertEquals(-1, clock.toPresentationNanos(2999));
+        assertEquals(2000, clock.toPresentationNanos(3000));
+    }
+
+    @Test
+    public void manyPausesAndReset() {
+        RecordingClock clock = new RecordingClock();
+        for (int i = 0; i < 20; i++) {
+            clock.pause(i * 100 + 50);
+            clock.resume(i * 100 + 100);
+        }
+        assertEquals(1000, clock.getPausedNanos());
+        assertEquals(1000, clock.toPresentationNanos(2000));
+
+        clock.reset();
+        assertEquals(2000, clock.toPresentationNanos(2000));
+    }
+}
@@ -0,0 +1,126 @@
+package com.alan.alvideo.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs timestamp traces taken from camera preview logs (in microseconds, rebased to the
+ * first frame) through the normalizer.
+ */
+public class TimestampNormalizerTest {
+    private static final long BASE_NS = 1000000000000L;
+    private static final long INTERVAL_NS = 1000000000L / 30;
+
+    // 30fps with the usual few milliseconds of jitter, one pair arriving in a burst.
+    private static final long[] JITTERY_30FPS_US = {
+            0, 33412, 66102, 101877, 132340, 166981, 199011, 234520, 265118, 268903,
+            333870, 366245, 400012, 432998, 468127
+    };
+
+    // Camera restart after the power button: the clock comes back from an earlier epoch.
+    private static final long[] POWER_TOGGLE_US = {
+            0, 33333, 66667, 100000, -5000000, -4966667, -4933333
+    };
+
+    // A stall of about five frames, then normal again.
+    private static final long[] STALL_US = {
+            0, 33333, 66667, 266667, 300000, 333333
+    };
+
+    @Test
+    public void keepsJitteryTraceIncreasing() {
+        long[] out = run(new TimestampNormalizer(30, false), JITTERY_30FPS_US);
+        assertIncreasing(out);
+        assertEquals(0, out[0]);
+        // Unchanged where it was already increasing.
+        assertEquals(33412000, out[1]);
+    }
+
+    @Test
+    public void snapsToGridAndSpreadsBursts() {
+        TimestampNormalizer normalizer = new TimestampNormalizer(30, true);
+        long[] out = run(normalizer, JITTERY_30FPS_US);
+        assertIncreasing(out);
+        for (int i = 0; i < out.length; i++) {
+            if (out[i] >= 0) {
+                assertEquals("frame " + i, 0, out[i] % INTERVAL_NS);
+            }
+        }
+        // The burst frame takes the empty slot after its partner instead of colliding.
+        assertEquals(8 * INTERVAL_NS, out[8]);
+        assertEquals(9 * INTERVAL_NS, out[9]);
+        assertEquals(10 * INTERVAL_NS, out[10]);
+        assertEquals(0, normalizer.getDroppedCount());
+    }
+
+    @Test
+    public void dropsFramesFasterThanGrid() {
+        // 60fps camera into a 30fps grid: every other frame has no slot.
+        long[] trace = new long[20];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = i * 16667;
+        }
+        TimestampNormalizer normalizer = new TimestampNormalizer(30, true);
+        long[] out = run(normalizer, trace);
+        assertIncreasing(out);
+        assertEquals(trace.length / 2 - 1, normalizer.getDroppedCount());
+        // Never runs away from real time.
+        assertTrue(lastKept(out) <= trace[trace.length - 1] * 1000 + INTERVAL_NS);
+    }
+
+    @Test
+    public void bridgesClockReset() {
+        TimestampNormalizer normalizer = new TimestampNormalizer(30, false);
+        long[] out = run(normalizer, POWER_TOGGLE_US);
+        assertIncreasing(out);
+        assertEquals(1, normalizer.getDiscontinuityCount());
+        assertEquals(100000000 + INTERVAL_NS, out[4]);
+        assertEquals(out[4] + 33333000, out[5]);
+    }
+
+    @Test
+    public void countsGapsWithoutClosingThem() {
+        TimestampNormalizer normalizer = new TimestampNormalizer(30, false);
+        long[] out = run(normalizer, STALL_US);
+        assertEquals(266667000, out[3]);
+        assertEquals(1, normalizer.getGapCount());
+        assertEquals(5, normalizer.getFramesMissing());
+        assertEquals(0, normalizer.getAdjustedCount());
+    }
+
+    /**
+     * Returns the outputs relative to the first input, keeping -1 for dropped frames.
+     */
+    private static long[] run(TimestampNormalizer normalizer, long[] traceUs) {
+        long[] out = new long[traceUs.length];
+        for (int i = 0; i < traceUs.length; i++) {
+            long ns = normalizer.normalize(BASE_NS + traceUs[i] * 1000);
+            out[i] = ns < 0 ? -1 : ns - BASE_NS;
+        }
+        return out;
+    }
+
+    private static void assertIncreasing(long[] out) {
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < out.length; i++) {
+            if (out[i] == -1) {
+                continue;
+            }
+            assertTrue("frame " + i + ": " + out[i] + " after " + last, out[i] > last);
+            // MediaMuxer sees microseconds.
+            assertTrue(last == Long.MIN_VALUE || out[i] / 1000 > last / 1000);
+            last = out[i];
+        }
+    }
+
+    private static long lastKept(long[] out) {
+        for (int i = out.length - 1; i >= 0; i--) {
+            if (out[i] != -1) {
+                return out[i];
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,95 @@
+package com.alan.alvideo.video;
+
+import android.media.MediaCodecInfo;
+
+import com.alan.alvideo.muxer.TrackFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CodecProbeTest {
+    private static final String FINGERPRINT = "vendor/device/device:7.0/NRD90M/1234:user/release-keys";
+    private static final File OUTPUT = new File("/tmp/out.mp4");
+
+    // A typical phone H.264 encoder: up to 1080p60, 64kb/s to 40Mb/s, VBR and CBR.
+    private static final EncoderInfo AVC = new EncoderInfo("OMX.vendor.avc.encoder",
+            TrackFormat.MIMETYPE_VIDEO_AVC,
+            new int[]{MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline,
+                    MediaCodecInfo.CodecProfileLevel.AVCLevel41,
+                    MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+                    MediaCodecInfo.CodecProfileLevel.AVCLevel4},
+            1920, 1920, 2, 2, 1920L * 1088, 120, 1920L * 1080 * 60, 64000, 40000000, 0x6);
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Test
+    public void cacheRoundTrips() throws Exception {
+        File file = new File(mTempFolder.getRoot(), "probe.txt");
+        EncoderInfo legacy = new EncoderInfo("OMX.old.hevc", TrackFormat.MIMETYPE_VIDEO_HEVC,
+                new int[0]);
+        CodecProbe.writeCache(file, FINGERPRINT, Arrays.asList(AVC, legacy));
+
+        List<EncoderInfo> read = CodecProbe.readCache(file, FINGERPRINT);
+        assertNotNull(read);
+        assertEquals(2, read.size());
+        assertEquals(AVC.toLine(), read.get(0).toLine());
+        assertArrayEquals(AVC.mProfileLevels, read.get(0).mProfileLevels);
+        assertEquals(legacy.toLine(), read.get(1).toLine());
+        assertEquals(false, read.get(1).hasVideoCaps());
+    }
+
+    @Test
+    public void cacheFromAnotherBuildIsIgnored() throws Exception {
+        File file = new File(mTempFolder.getRoot(), "probe.txt");
+        CodecProbe.writeCache(file, FINGERPRINT, Arrays.asList(AVC));
+        assertNull(CodecProbe.readCache(file, FINGERPRINT + ".update"));
+        assertNull(CodecProbe.readCache(new File(mTempFolder.getRoot(), "missing"), FINGERPRINT));
+    }
+
+    @Test
+    public void corruptCacheIsIgnored() throws Exception {
+        File file = new File(mTempFolder.getRoot(), "probe.txt");
+        CodecProbe.writeCache(file, FINGERPRINT, Arrays.asList(AVC));
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("OMX.truncated|video/avc|1:2|19".getBytes("UTF-8"));
+        out.close();
+        assertNull(CodecProbe.readCache(file, FINGERPRINT));
+    }
+
+    @Test
+    public void findsProblemsWithConfig() {
+        assertNull(AVC.findProblem(config(1280, 720, 30).build(), 4000000));
+        assertNull(AVC.findProblem(config(1080, 1920, 30).build(), 4000000));
+        assertEquals("size 3840x2160 not supported",
+                AVC.findProblem(config(3840, 2160, 30).build(), 4000000));
+        assertEquals("60fps not supported at 1920x1088",
+                AVC.findProblem(config(1920, 1088, 60).build(), 4000000));
+        assertEquals("bit rate 50000 outside [64000, 40000000]",
+                AVC.findProblem(config(640, 480, 30).build(), 50000));
+        assertEquals("bitrate mode CQ not supported",
+                AVC.findProblem(config(640, 480, 30)
+                        .setBitrateMode(EncoderConfig.BitrateMode.CQ).build(), 50000));
+        assertNull(AVC.findProblem(config(640, 480, 30).setProfileLevel(
+                MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+                MediaCodecInfo.CodecProfileLevel.AVCLevel31).build(), 1000000));
+        assertEquals("profile/level 2/2048 not supported", AVC.findProblem(config(640, 480, 30)
+                .setProfileLevel(MediaCodecInfo.CodecProfileLevel.AVCProfileMain,
+                        MediaCodecInfo.CodecProfileLevel.AVCLevel4).build(), 1000000));
+    }
+
+    private static EncoderConfig.Builder config(int width, int height, int frameRate) {
+        return new EncoderConfig.Builder(OUTPUT, width, height).setFrameRate(frameRate);
+    }
+}
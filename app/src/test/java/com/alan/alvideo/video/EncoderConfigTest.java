@@ -0,0 +1,95 @@
+package com.alan.alvideo.video;
+
+import android.media.MediaCodecInfo;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderConfigTest {
+    private static final File OUTPUT = new File("out.mp4");
+
+    @Test
+    public void fillsInDefaults() {
+        EncoderConfig config = new EncoderConfig.Builder(OUTPUT, 640, 480).build();
+        assertEquals(EncoderConfig.DEFAULT_MIME_TYPE, config.mMimeType);
+        assertEquals(EncoderConfig.DEFAULT_FRAME_RATE, config.mFrameRate);
+        assertEquals(EncoderConfig.DEFAULT_IFRAME_INTERVAL, config.mIFrameInterval);
+        assertEquals(EncoderConfig.BFramePolicy.NONE, config.mBFramePolicy);
+        assertFalse(config.isSegmented());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddSize() {
+        new EncoderConfig.Builder(OUTPUT, 641, 480).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLevelWithoutProfile() {
+        new EncoderConfig.Builder(OUTPUT, 640, 480)
+                .setProfileLevel(0, MediaCodecInfo.CodecProfileLevel.AVCLevel31)
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBFramesInFragmentedMp4() {
+        new EncoderConfig.Builder(OUTPUT, 640, 480)
+                .setMuxerType(EncoderConfig.MuxerType.FRAGMENTED_MP4)
+                .setBFramePolicy(EncoderConfig.BFramePolicy.ALLOW)
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBFramesInBaselineProfile() {
+        new EncoderConfig.Builder(OUTPUT, 640, 480)
+                .setProfileLevel(MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline, 0)
+                .setBFramePolicy(EncoderConfig.BFramePolicy.ALLOW)
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeFramesInFlight() {
+        new EncoderConfig.Builder(OUTPUT, 640, 480)
+                .setMaxFramesInFlight(-1)
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadAudioChannelCount() {
+        new EncoderConfig.Builder(OUTPUT, 640, 480)
+                .setAudio(EncoderConfig.DEFAULT_AUDIO_SAMPLE_RATE, 6,
+                        EncoderConfig.DEFAULT_AUDIO_BIT_RATE)
+                .build();
+    }
+
+    @Test
+    public void codecSettingsIgnoreOutput() {
+        EncoderConfig warm = new EncoderConfig.Builder(new File("prewarm.mp4"), 640, 480)
+                .setBitRate(2000000)
+                .build();
+        EncoderConfig record = new EncoderConfig.Builder(OUTPUT, 640, 480)
+                .setBitRate(2000000)
+                .setWriteBehind(1024 * 1024)
+                .setAudio(EncoderConfig.DEFAULT_AUDIO_SAMPLE_RATE, 1,
+                        EncoderConfig.DEFAULT_AUDIO_BIT_RATE)
+                .build();
+        EncoderConfig other = new EncoderConfig.Builder(OUTPUT, 640, 480)
+                .setBitRate(4000000)
+                .build();
+        assertTrue(record.sameCodecSettings(warm));
+        assertFalse(other.sameCodecSettings(warm));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTimeLapseWithAudio() {
+        new EncoderConfig.Builder(OUTPUT, 640, 480)
+                .setTimeLapse(1)
+                .setAudio(EncoderConfig.DEFAULT_AUDIO_SAMPLE_RATE, 1,
+                        EncoderConfig.DEFAULT_AUDIO_BIT_RATE)
+                .build();
+    }
+}
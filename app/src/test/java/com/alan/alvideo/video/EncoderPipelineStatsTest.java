@@ -0,0 +1,71 @@
+package com.alan.alvideo.video;
+
+import com.alan.alvideo.video.EncoderPipelineStats.Stage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds one frame's timestamps through the stats and checks each stage gets its share.
+ */
+public class EncoderPipelineStatsTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void followsFrameThroughStages() {
+        EncoderPipelineStats stats = new EncoderPipelineStats();
+        long captureNs = System.nanoTime() - 20 * MS;
+        stats.onFrameQueued(captureNs, captureNs + 4 * MS);
+        long now = System.nanoTime();
+        stats.onFrameSubmitted(captureNs, captureNs, now - 3 * MS, now - MS);
+        long outputNs = System.nanoTime() + 10 * MS;
+        stats.onFrameEncoded(captureNs / 1000, outputNs, outputNs + 2 * MS);
+
+        EncoderPipelineStats.Snapshot snapshot = stats.snapshot(0);
+        assertInBucket(4 * MS, snapshot.getP50Ns(Stage.RENDER));
+        assertInBucket(2 * MS, snapshot.getP99Ns(Stage.DRAW));
+        assertTrue(snapshot.getP50Ns(Stage.SWAP) >= MS);
+        assertTrue(snapshot.getP50Ns(Stage.CODEC) >= 10 * MS);
+        assertInBucket(2 * MS, snapshot.getP95Ns(Stage.WRITE));
+        assertTrue(snapshot.getP50Ns(Stage.GLASS_TO_FILE) >= 32 * MS);
+        // QUEUE is only timed when the encoder thread takes the frame out of the queue.
+        assertEquals(0, snapshot.getCount(Stage.QUEUE));
+    }
+
+    @Test
+    public void unmatchedOutputIsOnlyTimedForWrite() {
+        EncoderPipelineStats stats = new EncoderPipelineStats();
+        long now = System.nanoTime();
+        stats.onFrameSubmitted(now, now, now, now);
+        stats.onFrameEncoded(now / 1000 + 1, now, now + MS);
+
+        EncoderPipelineStats.Snapshot snapshot = stats.snapshot(0);
+        assertEquals(1, snapshot.getCount(Stage.WRITE));
+        assertEquals(0, snapshot.getCount(Stage.CODEC));
+        assertEquals(0, snapshot.getCount(Stage.GLASS_TO_FILE));
+    }
+
+    @Test
+    public void snapshotCountsLostFrames() {
+        EncoderPipelineStats stats = new EncoderPipelineStats();
+        stats.onFrameDropped();
+        stats.onFrameDropped();
+        stats.onFrameCoalesced();
+        EncoderPipelineStats.Snapshot snapshot = stats.snapshot(5);
+
+        stats.reset();
+        assertEquals(2, snapshot.getFramesDropped());
+        assertEquals(1, snapshot.getFramesCoalesced());
+        assertEquals(5, snapshot.getFramesMissed());
+        assertEquals(0, stats.snapshot(0).getFramesDropped());
+    }
+
+    /**
+     * Histogram values are bucket upper edges, at most about 19% above the real value.
+     */
+    private static void assertInBucket(long expected, long actual) {
+        assertTrue("expected ~" + expected + ", got " + actual,
+                actual >= expected && actual <= expected * 6 / 5);
+    }
+}
@@ -0,0 +1,49 @@
+package com.alan.alvideo.video;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecimatorTest {
+    private static final long SECOND_NS = 1000000000L;
+    private static final long CAMERA_INTERVAL_NS = SECOND_NS / 30;
+
+    @Test
+    public void keepsOneFramePerCaptureInterval() {
+        FrameDecimator decimator = new FrameDecimator(1, 30);
+        int kept = 0;
+        for (int i = 0; i < 30 * 60; i++) {
+            // Camera timestamps wobble by a few ms either way.
+            long jitter = (i % 3 - 1) * 3000000L;
+            if (decimator.accept(i * CAMERA_INTERVAL_NS + jitter)) {
+                kept++;
+            }
+        }
+        assertEquals(60, kept);
+    }
+
+    @Test
+    public void restartsScheduleAfterGap() {
+        FrameDecimator decimator = new FrameDecimator(2, 30);
+        assertTrue(decimator.accept(0));
+        assertFalse(decimator.accept(CAMERA_INTERVAL_NS));
+        // Nothing for ten seconds, e.g. a pause: no burst of catch-up frames after it.
+        assertTrue(decimator.accept(10 * SECOND_NS));
+        assertFalse(decimator.accept(10 * SECOND_NS + CAMERA_INTERVAL_NS));
+        assertFalse(decimator.accept(10 * SECOND_NS + 2 * CAMERA_INTERVAL_NS));
+        assertTrue(decimator.accept(10 * SECOND_NS + SECOND_NS / 2));
+    }
+
+    @Test
+    public void presentsAtPlaybackRate() {
+        FrameDecimator decimator = new FrameDecimator(1, 30);
+        long start = 5 * SECOND_NS;
+        assertEquals(start, decimator.nextPresentationNanos(start));
+        assertEquals(start + SECOND_NS / 30, decimator.nextPresentationNanos(start + SECOND_NS));
+        // Capture gaps don't show up in the output.
+        assertEquals(start + 2 * (SECOND_NS / 30),
+                decimator.nextPresentationNanos(start + 60 * SECOND_NS));
+    }
+}
@@ -0,0 +1,156 @@
+package com.alan.alvideo.video;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameQueueTest {
+    private static final float[] IDENTITY = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1
+    };
+
+    @Test
+    public void wakesConsumerOnlyWhenCaughtUp() {
+        FrameQueue queue = new FrameQueue(3, EncoderConfig.DropPolicy.DROP_OLDEST, null);
+        assertTrue(queue.offer(IDENTITY, 1, null));
+        assertFalse(queue.offer(IDENTITY, 2, null));
+        assertEquals(1, queue.poll().mTimestampNanos);
+        assertEquals(2, queue.poll().mTimestampNanos);
+        assertNull(queue.poll());
+        assertTrue(queue.offer(IDENTITY, 3, null));
+    }
+
+    @Test
+    public void dropOldestKeepsNewest() {
+        EncoderPipelineStats stats = new EncoderPipelineStats();
+        FrameQueue queue = new FrameQueue(3, EncoderConfig.DropPolicy.DROP_OLDEST, stats);
+        for (int i = 1; i <= 5; i++) {
+            queue.offer(IDENTITY, i, null);
+        }
+        assertArrayEquals(new long[]{3, 4, 5}, drain(queue));
+        assertEquals(2, stats.getFramesDropped());
+    }
+
+    @Test
+    public void dropOldestKeepsOrderWithinCapacity() {
+        FrameQueue queue = new FrameQueue(3, EncoderConfig.DropPolicy.DROP_OLDEST, null);
+        for (int i = 1; i <= 3; i++) {
+            queue.offer(IDENTITY, i, null);
+        }
+        assertArrayEquals(new long[]{1, 2, 3}, drain(queue));
+    }
+
+    @Test
+    public void dropNewestKeepsOldest() {
+        EncoderPipelineStats stats = new EncoderPipelineStats();
+        FrameQueue queue = new FrameQueue(3, EncoderConfig.DropPolicy.DROP_NEWEST, stats);
+        for (int i = 1; i <= 5; i++) {
+            queue.offer(IDENTITY, i, null);
+        }
+        assertEquals(3, stats.getSubmitQueueDepth());
+        assertArrayEquals(new long[]{1, 2, 3}, drain(queue));
+        assertEquals(2, stats.getFramesDropped());
+    }
+
+    @Test
+    public void coalesceKeepsOnlyLatest() {
+        EncoderPipelineStats stats = new EncoderPipelineStats();
+        FrameQueue queue = new FrameQueue(3, EncoderConfig.DropPolicy.COALESCE_LATEST, stats);
+        for (int i = 1; i <= 5; i++) {
+            queue.offer(IDENTITY, i, null);
+        }
+        assertArrayEquals(new long[]{5}, drain(queue));
+        assertEquals(4, stats.getFramesCoalesced());
+        assertEquals(0, stats.getFramesDropped());
+    }
+
+    @Test
+    public void copiesTransform() {
+        FrameQueue queue = new FrameQueue(1, EncoderConfig.DropPolicy.DROP_OLDEST, null);
+        float[] matrix = IDENTITY.clone();
+        queue.offer(matrix, 1, null);
+        matrix[0] = 2;
+        assertEquals(1f, queue.poll().mTransform[0], 0f);
+    }
+
+    /**
+     * Hammers the queue from two threads.  Every frame the consumer sees must be intact
+     * and newer than the last, and every frame must be accounted for.
+     */
+    @Test
+    public void concurrentHandOffIsConsistent() throws InterruptedException {
+        for (EncoderConfig.DropPolicy policy : EncoderConfig.DropPolicy.values()) {
+            final int frameCount = 200000;
+            final EncoderPipelineStats stats = new EncoderPipelineStats();
+            final FrameQueue queue = new FrameQueue(4, policy, stats);
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    float[] matrix = new float[16];
+                    for (int i = 1; i <= frameCount; i++) {
+                        Arrays.fill(matrix, i);
+                        queue.offer(matrix, i, null);
+                    }
+                }
+            });
+            producer.start();
+
+            long consumed = 0;
+            long last = 0;
+            List<String> errors = new ArrayList<>();
+            while (producer.isAlive() || last < frameCount) {
+                FrameDescriptor frame = queue.poll();
+                if (frame == null) {
+                    if (!producer.isAlive() && queue.poll() == null) {
+                        break;
+                    }
+                    continue;
+                }
+                for (float value : frame.mTransform) {
+                    if (value != frame.mTimestampNanos) {
+                        errors.add("torn frame " + frame.mTimestampNanos);
+                        break;
+                    }
+                }
+                if (frame.mTimestampNanos <= last) {
+                    errors.add("out of order " + frame.mTimestampNanos + " after " + last);
+                }
+                last = frame.mTimestampNanos;
+                consumed++;
+            }
+            producer.join();
+            queue.clear();
+
+            assertEquals(policy + ": " + errors, 0, errors.size());
+            assertTrue(policy + ": consumed " + consumed, consumed > 0);
+            // Anything left uncounted is a skipped frame still sitting in the ring.
+            long lost = stats.getFramesDropped() + stats.getFramesCoalesced();
+            assertTrue(policy + ": " + consumed + " + " + lost,
+                    frameCount - consumed - lost >= 0 && frameCount - consumed - lost < 4);
+        }
+    }
+
+    private static long[] drain(FrameQueue queue) {
+        List<Long> timestamps = new ArrayList<>();
+        FrameDescriptor frame;
+        while ((frame = queue.poll()) != null) {
+            timestamps.add(frame.mTimestampNanos);
+        }
+        long[] result = new long[timestamps.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = timestamps.get(i);
+        }
+        return result;
+    }
+}